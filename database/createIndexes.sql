@@ -45,3 +45,7 @@ CREATE INDEX idx_nonce_userid ON nonce(userid);
 
 CREATE INDEX idx_permission_group_id ON permission(group_id);
 CREATE INDEX idx_permission_user_id ON permission(user_id);
+create index idx_filebody_storedfilepath on filebody (storedfilepath);
+create index idx_folder_owner_treepath on folder (owner_id, treepath varchar_pattern_ops);
+create index idx_fileheader_owner_treepath on fileheader (owner_id, treepath varchar_pattern_ops);
+create index idx_fileheader_folder_modificationdate on fileheader (folder_id, modificationdate, id);
@@ -0,0 +1,22 @@
+with recursive paths(id, treepath) as (
+select id, cast('/' as varchar)
+from folder
+where parent_id is null
+UNION ALL
+select f.id, cast(p.treepath || f.name || '/' as varchar)
+from folder f, paths p
+where f.parent_id=p.id
+)
+update folder
+set treepath=paths.treepath
+from paths
+where folder.id=paths.id
+and length(paths.treepath)<=768;
+
+
+update fileheader
+set treepath=folder.treepath || fileheader.name
+from folder
+where fileheader.folder_id=folder.id
+and folder.treepath is not null
+and length(folder.treepath || fileheader.name)<=768;
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.mbeans;
+
+import static org.gss_project.gss.server.configuration.GSSConfigurationFactory.getConfiguration;
+import org.gss_project.gss.server.ejb.BandwidthAccumulator;
+import org.gss_project.gss.server.ejb.ExternalAPI;
+import org.gss_project.gss.server.ejb.TransactionHelper;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMRuntimeException;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.rmi.PortableRemoteObject;
+
+import org.jboss.system.ServiceMBeanSupport;
+
+/**
+ * A service that periodically stores the bandwidth collected by the
+ * BandwidthAccumulator in the accounting information of the users, in a
+ * single transaction, and once more when it stops. A transaction that is
+ * rolled back, e.g. because another node created the same accounting period
+ * concurrently, is retried. Usage that cannot be stored is put back in the
+ * accumulator for the next run.
+ *
+ * @author past
+ *
+ */
+public class AccountingFlusher extends ServiceMBeanSupport implements AccountingFlusherMBean {
+
+	/**
+	 * The scheduler that runs the flusher.
+	 */
+	private ScheduledExecutorService scheduler;
+
+	private final AtomicLong bucketsFlushed = new AtomicLong();
+
+	private final AtomicLong failures = new AtomicLong();
+
+	private volatile long lastFlushMillis;
+
+	@Override
+	protected void startService() throws Exception {
+		long interval = getConfiguration().getLong("accountingFlushInterval", 5);
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (Exception e) {
+					log.error("Storing bandwidth accounting failed", e);
+				}
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+
+	@Override
+	protected void stopService() throws Exception {
+		scheduler.shutdown();
+		scheduler.awaitTermination(30, TimeUnit.SECONDS);
+		scheduler = null;
+		flush();
+	}
+
+	@Override
+	public String flushNow() {
+		try {
+			return flush() + " buckets stored";
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new JMRuntimeException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Store the accumulated bandwidth, putting it back in the accumulator if
+	 * it cannot be stored.
+	 *
+	 * @return the number of user and period buckets stored
+	 */
+	private synchronized int flush() throws Exception {
+		BandwidthAccumulator accumulator = BandwidthAccumulator.getInstance();
+		final List<BandwidthAccumulator.Usage> usages = accumulator.drain();
+		if (usages.isEmpty())
+			return 0;
+		long start = System.currentTimeMillis();
+		try {
+			new TransactionHelper<Void>().tryExecute(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					getService().updateAccounting(usages);
+					return null;
+				}
+			});
+		} catch (Exception e) {
+			accumulator.addAll(usages);
+			failures.incrementAndGet();
+			throw e;
+		}
+		bucketsFlushed.addAndGet(usages.size());
+		lastFlushMillis = System.currentTimeMillis() - start;
+		return usages.size();
+	}
+
+	@Override
+	public long getBucketsFlushed() {
+		return bucketsFlushed.get();
+	}
+
+	@Override
+	public long getFailures() {
+		return failures.get();
+	}
+
+	@Override
+	public long getLastFlushMillis() {
+		return lastFlushMillis;
+	}
+
+	private ExternalAPI getService() throws NamingException {
+		try {
+			InitialContext ctx = new InitialContext();
+			Object ref = ctx.lookup(getConfiguration().getString("externalApiPath"));
+			return (ExternalAPI) PortableRemoteObject.narrow(ref, ExternalAPI.class);
+		} catch (ClassCastException e) {
+			throw new JMRuntimeException(e.getMessage());
+		}
+	}
+}
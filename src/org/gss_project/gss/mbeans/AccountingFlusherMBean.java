@@ -0,0 +1,48 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.mbeans;
+
+import org.jboss.system.ServiceMBean;
+
+
+/**
+ * @author past
+ *
+ */
+public interface AccountingFlusherMBean extends ServiceMBean {
+	/**
+	 * Stores the bandwidth accumulated so far right away
+	 */
+	public String flushNow();
+
+	/**
+	 * Returns the number of user and period buckets stored since the service started
+	 */
+	public long getBucketsFlushed();
+
+	/**
+	 * Returns the number of flushes that failed since the service started
+	 */
+	public long getFailures();
+
+	/**
+	 * Returns the duration of the last flush in milliseconds
+	 */
+	public long getLastFlushMillis();
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.mbeans;
+
+import static org.gss_project.gss.server.configuration.GSSConfigurationFactory.getConfiguration;
+import org.gss_project.gss.server.ejb.ExternalAPI;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMRuntimeException;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.rmi.PortableRemoteObject;
+
+import org.jboss.system.ServiceMBeanSupport;
+
+/**
+ * A service that periodically removes the stored files recorded in the
+ * deletion journal, in throttled batches. Expired resumable uploads are
+ * aborted first, so that their stored files are removed in the same run.
+ *
+ * @author past
+ *
+ */
+public class BlobReaper extends ServiceMBeanSupport implements BlobReaperMBean {
+
+	/**
+	 * The scheduler that runs the reaper.
+	 */
+	private ScheduledExecutorService scheduler;
+
+	private final AtomicLong filesReaped = new AtomicLong();
+
+	private final AtomicLong uploadsExpired = new AtomicLong();
+
+	private final AtomicLong runs = new AtomicLong();
+
+	private volatile long lastRunMillis;
+
+	@Override
+	protected void startService() throws Exception {
+		long interval = getConfiguration().getLong("reaperInterval", 60);
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					reap();
+				} catch (Exception e) {
+					log.error("Reaping deleted files failed", e);
+				}
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+
+	@Override
+	protected void stopService() throws Exception {
+		scheduler.shutdownNow();
+		scheduler = null;
+	}
+
+	@Override
+	public String reapNow() {
+		try {
+			return reap() + " journal entries completed";
+		} catch (NamingException e) {
+			throw new JMRuntimeException(e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new JMRuntimeException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Abort the expired uploads and process the deletion journal with the
+	 * configured batch size and rate.
+	 *
+	 * @return the number of journal entries completed
+	 */
+	private int reap() throws NamingException, InterruptedException {
+		ExternalAPI service = getService();
+		int batchSize = getConfiguration().getInt("reaperBatchSize", 100);
+		int expired;
+		do {
+			expired = service.expireUploadSessions(batchSize);
+			uploadsExpired.addAndGet(expired);
+		} while (expired == batchSize);
+		return reap(service, batchSize, getConfiguration().getInt("reaperMaxFilesPerSecond", 0));
+	}
+
+	/**
+	 * Process the deletion journal in batches until it is drained, pausing
+	 * between batches to stay under the specified rate.
+	 *
+	 * @param service the service that processes the batches
+	 * @param batchSize the maximum number of journal entries per batch
+	 * @param maxPerSecond the maximum number of entries per second, or 0 for
+	 * 			no limit
+	 * @return the number of journal entries completed
+	 */
+	synchronized int reap(ExternalAPI service, int batchSize, int maxPerSecond) throws InterruptedException {
+		long start = System.currentTimeMillis();
+		int total = 0;
+		while (true) {
+			long batchStart = System.currentTimeMillis();
+			int reaped = service.reapDeletedFiles(batchSize);
+			total += reaped;
+			filesReaped.addAndGet(reaped);
+			// Entries that could not be removed are deferred and no longer
+			// selected, so keep going until a batch completes nothing.
+			if (reaped == 0)
+				break;
+			if (maxPerSecond > 0) {
+				long pause = reaped * 1000L / maxPerSecond - (System.currentTimeMillis() - batchStart);
+				if (pause > 0)
+					Thread.sleep(pause);
+			}
+		}
+		runs.incrementAndGet();
+		lastRunMillis = System.currentTimeMillis() - start;
+		return total;
+	}
+
+	@Override
+	public long getFilesReaped() {
+		return filesReaped.get();
+	}
+
+	@Override
+	public long getUploadsExpired() {
+		return uploadsExpired.get();
+	}
+
+	@Override
+	public long getRuns() {
+		return runs.get();
+	}
+
+	@Override
+	public long getLastRunMillis() {
+		return lastRunMillis;
+	}
+
+	@Override
+	public long getPendingDeletions() {
+		try {
+			return getService().getPendingDeletionCount();
+		} catch (NamingException e) {
+			throw new JMRuntimeException(e.getMessage());
+		}
+	}
+
+	private ExternalAPI getService() throws NamingException {
+		try {
+			InitialContext ctx = new InitialContext();
+			Object ref = ctx.lookup(getConfiguration().getString("externalApiPath"));
+			return (ExternalAPI) PortableRemoteObject.narrow(ref, ExternalAPI.class);
+		} catch (ClassCastException e) {
+			throw new JMRuntimeException(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.mbeans;
+
+import org.jboss.system.ServiceMBean;
+
+
+/**
+ * @author past
+ *
+ */
+public interface BlobReaperMBean extends ServiceMBean {
+	/**
+	 * Removes a batch of journaled files right away
+	 */
+	public String reapNow();
+
+	/**
+	 * Returns the number of journal entries completed since the service
+	 * started, i.e. files removed or found to be in use again
+	 */
+	public long getFilesReaped();
+
+	/**
+	 * Returns the number of abandoned uploads aborted since the service
+	 * started
+	 */
+	public long getUploadsExpired();
+
+	/**
+	 * Returns the number of reaper runs since the service started
+	 */
+	public long getRuns();
+
+	/**
+	 * Returns the duration of the last reaper run in milliseconds
+	 */
+	public long getLastRunMillis();
+
+	/**
+	 * Returns the number of files waiting to be removed
+	 */
+	public long getPendingDeletions();
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.mbeans;
+
+import org.gss_project.gss.server.ejb.ResourcePathCache;
+
+import org.jboss.system.ServiceMBeanSupport;
+
+/**
+ * A service that exposes the statistics of the resource path cache, for
+ * sizing it.
+ *
+ * @author past
+ *
+ */
+public class PathCache extends ServiceMBeanSupport implements PathCacheMBean {
+
+	@Override
+	public long getHits() {
+		return ResourcePathCache.getInstance().getHits();
+	}
+
+	@Override
+	public long getMisses() {
+		return ResourcePathCache.getInstance().getMisses();
+	}
+
+	@Override
+	public double getHitRate() {
+		return ResourcePathCache.getInstance().getHitRate();
+	}
+
+	@Override
+	public long getEvictions() {
+		return ResourcePathCache.getInstance().getEvictions();
+	}
+
+	@Override
+	public long getInvalidations() {
+		return ResourcePathCache.getInstance().getInvalidations();
+	}
+
+	@Override
+	public int getSize() {
+		return ResourcePathCache.getInstance().getSize();
+	}
+
+	@Override
+	public int getMaxSize() {
+		return ResourcePathCache.getInstance().getMaxSize();
+	}
+
+	@Override
+	public void clear() {
+		ResourcePathCache.getInstance().clear();
+	}
+}
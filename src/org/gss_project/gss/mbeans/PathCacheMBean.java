@@ -0,0 +1,68 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.mbeans;
+
+import org.jboss.system.ServiceMBean;
+
+
+/**
+ * @author past
+ *
+ */
+public interface PathCacheMBean extends ServiceMBean {
+	/**
+	 * Returns the number of path lookups found in the cache
+	 */
+	public long getHits();
+
+	/**
+	 * Returns the number of path lookups not found in the cache
+	 */
+	public long getMisses();
+
+	/**
+	 * Returns the fraction of path lookups found in the cache
+	 */
+	public double getHitRate();
+
+	/**
+	 * Returns the number of paths evicted to make room for new ones
+	 */
+	public long getEvictions();
+
+	/**
+	 * Returns the number of paths removed after a change
+	 */
+	public long getInvalidations();
+
+	/**
+	 * Returns the number of cached paths
+	 */
+	public int getSize();
+
+	/**
+	 * Returns the maximum number of cached paths
+	 */
+	public int getMaxSize();
+
+	/**
+	 * Removes all cached paths
+	 */
+	public void clear();
+}
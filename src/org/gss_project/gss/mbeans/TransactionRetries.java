@@ -0,0 +1,63 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.mbeans;
+
+import org.gss_project.gss.server.ejb.TransactionHelper;
+
+import org.jboss.system.ServiceMBeanSupport;
+
+/**
+ * A service that exposes the statistics of the transactions retried after
+ * optimistic locking failures.
+ *
+ * @author past
+ *
+ */
+public class TransactionRetries extends ServiceMBeanSupport implements TransactionRetriesMBean {
+
+	@Override
+	protected void stopService() throws Exception {
+		TransactionHelper.shutdown(30000);
+	}
+
+	@Override
+	public long getExecutions() {
+		return TransactionHelper.getExecutions();
+	}
+
+	@Override
+	public long getRetries() {
+		return TransactionHelper.getRetries();
+	}
+
+	@Override
+	public long getFailures() {
+		return TransactionHelper.getFailures();
+	}
+
+	@Override
+	public int getPendingRetries() {
+		return TransactionHelper.getPendingRetries();
+	}
+
+	@Override
+	public String getBackoffHistogram() {
+		return TransactionHelper.getBackoffHistogram();
+	}
+}
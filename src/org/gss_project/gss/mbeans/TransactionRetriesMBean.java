@@ -0,0 +1,54 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.mbeans;
+
+import org.jboss.system.ServiceMBean;
+
+
+/**
+ * @author past
+ *
+ */
+public interface TransactionRetriesMBean extends ServiceMBean {
+	/**
+	 * Returns the number of transactions executed with retries enabled
+	 */
+	public long getExecutions();
+
+	/**
+	 * Returns the number of transaction retries scheduled
+	 */
+	public long getRetries();
+
+	/**
+	 * Returns the number of transactions that were still rolled back after
+	 * all the retries
+	 */
+	public long getFailures();
+
+	/**
+	 * Returns the number of retries that are currently waiting or running
+	 */
+	public int getPendingRetries();
+
+	/**
+	 * Returns the number of retries in each range of backoff delays
+	 */
+	public String getBackoffHistogram();
+}
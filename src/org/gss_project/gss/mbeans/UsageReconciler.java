@@ -0,0 +1,137 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.mbeans;
+
+import static org.gss_project.gss.server.configuration.GSSConfigurationFactory.getConfiguration;
+import org.gss_project.gss.server.ejb.ExternalAPI;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMRuntimeException;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.rmi.PortableRemoteObject;
+
+import org.jboss.system.ServiceMBeanSupport;
+
+/**
+ * A service that periodically recomputes the storage usage counters of the
+ * users from their files, a batch of users at a time, to correct any drift.
+ *
+ * @author past
+ *
+ */
+public class UsageReconciler extends ServiceMBeanSupport implements UsageReconcilerMBean {
+
+	/**
+	 * The scheduler that runs the reconciler.
+	 */
+	private ScheduledExecutorService scheduler;
+
+	private final AtomicLong usersReconciled = new AtomicLong();
+
+	private final AtomicLong runs = new AtomicLong();
+
+	private volatile long lastRunMillis;
+
+	@Override
+	protected void startService() throws Exception {
+		long interval = getConfiguration().getLong("usageReconcilerInterval", 600);
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					reconcile();
+				} catch (Exception e) {
+					log.error("Reconciling storage usage failed", e);
+				}
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+
+	@Override
+	protected void stopService() throws Exception {
+		scheduler.shutdownNow();
+		scheduler = null;
+	}
+
+	@Override
+	public String reconcileNow() {
+		try {
+			return reconcile() + " users reconciled";
+		} catch (NamingException e) {
+			throw new JMRuntimeException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Recompute the usage of the next batch of users, each one in its own
+	 * transaction so that the counters are locked briefly.
+	 *
+	 * @return the number of users reconciled
+	 */
+	private synchronized int reconcile() throws NamingException {
+		int batchSize = getConfiguration().getInt("usageReconcilerBatchSize", 100);
+		ExternalAPI service = getService();
+		long start = System.currentTimeMillis();
+		int total = 0;
+		List<Long> userIds = service.getUsersForUsageReconciliation(batchSize);
+		for (Long userId : userIds)
+			try {
+				service.reconcileUsage(userId);
+				total++;
+			} catch (Exception e) {
+				log.warn("Could not reconcile the storage usage of user " + userId, e);
+			}
+		usersReconciled.addAndGet(total);
+		runs.incrementAndGet();
+		lastRunMillis = System.currentTimeMillis() - start;
+		return total;
+	}
+
+	@Override
+	public long getUsersReconciled() {
+		return usersReconciled.get();
+	}
+
+	@Override
+	public long getRuns() {
+		return runs.get();
+	}
+
+	@Override
+	public long getLastRunMillis() {
+		return lastRunMillis;
+	}
+
+	private ExternalAPI getService() throws NamingException {
+		try {
+			InitialContext ctx = new InitialContext();
+			Object ref = ctx.lookup(getConfiguration().getString("externalApiPath"));
+			return (ExternalAPI) PortableRemoteObject.narrow(ref, ExternalAPI.class);
+		} catch (ClassCastException e) {
+			throw new JMRuntimeException(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.mbeans;
+
+import org.jboss.system.ServiceMBean;
+
+
+/**
+ * @author past
+ *
+ */
+public interface UsageReconcilerMBean extends ServiceMBean {
+	/**
+	 * Recomputes the storage usage of a batch of users right away
+	 */
+	public String reconcileNow();
+
+	/**
+	 * Returns the number of users whose usage was recomputed since the service started
+	 */
+	public long getUsersReconciled();
+
+	/**
+	 * Returns the number of reconciler runs since the service started
+	 */
+	public long getRuns();
+
+	/**
+	 * Returns the duration of the last reconciler run in milliseconds
+	 */
+	public long getLastRunMillis();
+}
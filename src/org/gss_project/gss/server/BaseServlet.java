@@ -21,15 +21,13 @@ package org.gss_project.gss.server;
 import static org.gss_project.gss.server.configuration.GSSConfigurationFactory.getConfiguration;
 import org.gss_project.gss.common.exceptions.RpcException;
 import org.gss_project.gss.server.ejb.ExternalAPI;
+import org.gss_project.gss.server.ejb.ServiceLocator;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.Formatter;
 
-import javax.naming.Context;
-import javax.naming.InitialContext;
 import javax.naming.NamingException;
-import javax.rmi.PortableRemoteObject;
 import javax.servlet.http.HttpServlet;
 
 import org.apache.commons.logging.Log;
@@ -66,9 +64,7 @@ public class BaseServlet extends HttpServlet {
 	 */
 	protected ExternalAPI getService() throws RpcException {
 		try {
-			final Context ctx = new InitialContext();
-			final Object ref = ctx.lookup(getConfiguration().getString("externalApiPath"));
-			return (ExternalAPI) PortableRemoteObject.narrow(ref, ExternalAPI.class);
+			return ServiceLocator.getInstance().getExternalAPI();
 		} catch (final NamingException e) {
 			logger.error("Unable to retrieve the ExternalAPI EJB", e);
 			throw new RpcException("An error occurred while contacting the naming service");
@@ -32,15 +32,13 @@ import org.gss_project.gss.common.dto.SystemStatsDTO;
 import org.gss_project.gss.common.dto.UserClassDTO;
 import org.gss_project.gss.common.dto.UserDTO;
 import org.gss_project.gss.server.ejb.AdminAPI;
+import org.gss_project.gss.server.ejb.ServiceLocator;
 
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
 
-import javax.naming.Context;
-import javax.naming.InitialContext;
 import javax.naming.NamingException;
-import javax.rmi.PortableRemoteObject;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -62,9 +60,7 @@ public class AdminServiceImpl extends RemoteServiceServlet implements AdminServi
 	 */
 	protected AdminAPI getService() throws RpcException {
 		try {
-			final Context ctx = new InitialContext();
-			final Object ref = ctx.lookup(getConfiguration().getString("adminApiPath"));
-			return (AdminAPI) PortableRemoteObject.narrow(ref, AdminAPI.class);
+			return ServiceLocator.getInstance().getAdminAPI();
 		} catch (final NamingException e) {
 			logger.error("Unable to retrieve the AdminAPI EJB", e);
 			throw new RpcException("An error occurred while contacting the naming service");
@@ -41,7 +41,7 @@ import org.hibernate.annotations.CacheConcurrencyStrategy;
  * This information is broken down in time periods.
  */
 @Entity
-@Table(name="accountinginfo", uniqueConstraints=@UniqueConstraint(columnNames={"user_id", "dateFrom", "dateTo"}))
+@Table(name="accountinginfo", uniqueConstraints=@UniqueConstraint(columnNames={"user_id", "dateFrom"}))
 @Cache(usage=CacheConcurrencyStrategy.READ_WRITE)
 public class AccountingInfo  implements Serializable{
 
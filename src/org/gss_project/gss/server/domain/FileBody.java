@@ -100,6 +100,36 @@ public final class FileBody  implements Serializable{
 	 */
 	private long fileSize;
 
+	/**
+	 * The hex-encoded SHA-256 digest of the file contents, or null for files
+	 * uploaded before digests were recorded.
+	 */
+	private String contentDigest;
+
+	/**
+	 * The repository volume that holds the file contents, or null when the
+	 * repository has a single volume or the volume is unknown.
+	 */
+	private String volume;
+
+	/**
+	 * The codec of the stored file contents, or null if they are stored
+	 * uncompressed.
+	 */
+	private String codec;
+
+	/**
+	 * The ID of the body whose contents are the base of the delta stored for
+	 * this body, when the codec is a delta codec.
+	 */
+	private Long deltaBaseId;
+
+	/**
+	 * The size in bytes of the stored contents, when it differs from the file
+	 * size because of delta encoding, or null otherwise.
+	 */
+	private Long storedSize;
+
 	
 	public Long getId() {
 		return id;
@@ -218,6 +248,97 @@ public final class FileBody  implements Serializable{
 		fileSize = newFileSize;
 	}
 
+	/**
+	 * Retrieve the digest of the file contents.
+	 *
+	 * @return the hex-encoded SHA-256 digest, or null if unknown
+	 */
+	public String getContentDigest() {
+		return contentDigest;
+	}
+
+	/**
+	 * Modify the digest of the file contents.
+	 *
+	 * @param newContentDigest the new hex-encoded SHA-256 digest
+	 */
+	public void setContentDigest(final String newContentDigest) {
+		contentDigest = newContentDigest;
+	}
+
+	/**
+	 * Retrieve the repository volume of the file contents.
+	 *
+	 * @return the volume, or null if unknown
+	 */
+	public String getVolume() {
+		return volume;
+	}
+
+	/**
+	 * Modify the repository volume of the file contents.
+	 *
+	 * @param newVolume the new volume
+	 */
+	public void setVolume(final String newVolume) {
+		volume = newVolume;
+	}
+
+	/**
+	 * Retrieve the codec of the stored file contents.
+	 *
+	 * @return the codec, or null if the contents are stored uncompressed
+	 */
+	public String getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Modify the codec of the stored file contents.
+	 *
+	 * @param newCodec the new codec
+	 */
+	public void setCodec(final String newCodec) {
+		codec = newCodec;
+	}
+
+	/**
+	 * Retrieve the ID of the delta base body.
+	 *
+	 * @return the delta base body ID, or null if the contents are not
+	 *         delta-encoded
+	 */
+	public Long getDeltaBaseId() {
+		return deltaBaseId;
+	}
+
+	/**
+	 * Modify the ID of the delta base body.
+	 *
+	 * @param newDeltaBaseId the new delta base body ID
+	 */
+	public void setDeltaBaseId(final Long newDeltaBaseId) {
+		deltaBaseId = newDeltaBaseId;
+	}
+
+	/**
+	 * Retrieve the size of the stored contents.
+	 *
+	 * @return the stored size, or null if it is the file size
+	 */
+	public Long getStoredSize() {
+		return storedSize;
+	}
+
+	/**
+	 * Modify the size of the stored contents.
+	 *
+	 * @param newStoredSize the new stored size, or null if it is the file size
+	 */
+	public void setStoredSize(final Long newStoredSize) {
+		storedSize = newStoredSize;
+	}
+
 	/**
 	 * Modify the audit info.
 	 *
@@ -21,8 +21,6 @@ package org.gss_project.gss.server.domain;
 import org.gss_project.gss.common.dto.FileHeaderDTO;
 
 import java.io.Serializable;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -155,6 +153,14 @@ public final class FileHeader  implements Serializable{
 
 	@Column(columnDefinition=" boolean DEFAULT false")
 	private Boolean shared;
+
+	/**
+	 * The path of the file from the root folder of its owner, with plain (not
+	 * URL-encoded) names, e.g. /parent1/name. It is null for files with paths
+	 * that are too long, or that were created before paths were recorded.
+	 */
+	@Column(length=Folder.MAX_TREE_PATH_LENGTH)
+	private String treePath;
 	/**
 	 * Retrieve the ID.
 	 *
@@ -485,9 +491,7 @@ public final class FileHeader  implements Serializable{
 	 *         otherwise
 	 */
 	public boolean hasDeletePermission(final User user) {
-		if (hasWritePermission(user))
-			return true;
-		return false;
+		return hasDeletePermission(user, user.getGroupMemberIds());
 	}
 
 	/**
@@ -498,47 +502,105 @@ public final class FileHeader  implements Serializable{
 	 *         otherwise
 	 */
 	public boolean hasWritePermission(final User user) {
+		return hasWritePermission(user, user.getGroupMemberIds());
+	}
+
+	/**
+	 * Checks if the specified user has permission to read this file.
+	 *
+	 * @param user the specified User
+	 * @return true if the user has permission to read the file, false
+	 *         otherwise
+	 */
+	public boolean hasReadPermission(final User user) {
+		return hasReadPermission(user, user.getGroupMemberIds());
+	}
+
+	/**
+	 * Checks if the specified user has permission to modify the ACL of this file.
+	 *
+	 * @param user the specified User
+	 * @return true if the user has permission to modify the ACL of the file, false
+	 *         otherwise
+	 */
+	public boolean hasModifyACLPermission(final User user) {
+		return hasModifyACLPermission(user, user.getGroupMemberIds());
+	}
+
+	/**
+	 * Checks if the specified user has permission to delete this file, using
+	 * the IDs of the groups the user is a member of instead of the group
+	 * member collections.
+	 *
+	 * @param user the specified User
+	 * @param groupIds the IDs of the groups that contain the user
+	 * @return true if the user has permission to delete the file, false
+	 *         otherwise
+	 */
+	public boolean hasDeletePermission(final User user, final Set<Long> groupIds) {
+		if (hasWritePermission(user, groupIds))
+			return true;
+		return false;
+	}
+
+	/**
+	 * Checks if the specified user has permission to modify this file, using
+	 * the IDs of the groups the user is a member of instead of the group
+	 * member collections.
+	 *
+	 * @param user the specified User
+	 * @param groupIds the IDs of the groups that contain the user
+	 * @return true if the user has permission to modify the file, false
+	 *         otherwise
+	 */
+	public boolean hasWritePermission(final User user, final Set<Long> groupIds) {
 		for (final Permission p : permissions)
 			if (p.getUser() != null) {
-				if (p.getUser().equals(user) && p.getWrite())
+				if (p.getUser().getId().equals(user.getId()) && p.getWrite())
 					return true;
-			} else if (p.getGroup().contains(user) && p.getWrite())
+			} else if (groupIds.contains(p.getGroup().getId()) && p.getWrite())
 				return true;
 		return false;
 	}
 
 	/**
-	 * Checks if the specified user has permission to read this file.
+	 * Checks if the specified user has permission to read this file, using
+	 * the IDs of the groups the user is a member of instead of the group
+	 * member collections.
 	 *
 	 * @param user the specified User
+	 * @param groupIds the IDs of the groups that contain the user
 	 * @return true if the user has permission to read the file, false
 	 *         otherwise
 	 */
-	public boolean hasReadPermission(final User user) {
+	public boolean hasReadPermission(final User user, final Set<Long> groupIds) {
 		if(readForAll)
 			return true;
 		for (final Permission p : permissions)
 			if (p.getUser() != null) {
-				if (p.getUser().equals(user) && p.getRead())
+				if (p.getUser().getId().equals(user.getId()) && p.getRead())
 					return true;
-			} else if (p.getGroup().contains(user) && p.getRead())
+			} else if (groupIds.contains(p.getGroup().getId()) && p.getRead())
 				return true;
 		return false;
 	}
 
 	/**
-	 * Checks if the specified user has permission to modify the ACL of this file.
+	 * Checks if the specified user has permission to modify the ACL of this file, using
+	 * the IDs of the groups the user is a member of instead of the group
+	 * member collections.
 	 *
 	 * @param user the specified User
+	 * @param groupIds the IDs of the groups that contain the user
 	 * @return true if the user has permission to modify the ACL of the file, false
 	 *         otherwise
 	 */
-	public boolean hasModifyACLPermission(final User user) {
+	public boolean hasModifyACLPermission(final User user, final Set<Long> groupIds) {
 		for (final Permission p : permissions)
 			if (p.getUser() != null) {
-				if (p.getUser().equals(user) && p.getModifyACL())
+				if (p.getUser().getId().equals(user.getId()) && p.getModifyACL())
 					return true;
-			} else if (p.getGroup().contains(user) && p.getModifyACL())
+			} else if (groupIds.contains(p.getGroup().getId()) && p.getModifyACL())
 				return true;
 		return false;
 	}
@@ -550,22 +612,41 @@ public final class FileHeader  implements Serializable{
 	 * @return the full path from the root of the files namespace
 	 */
 	public String getPath() {
-		try {
-			return folder.getPath() + URLEncoder.encode(name, "UTF-8");
-		} catch (UnsupportedEncodingException e) {
-			throw new RuntimeException(e);
-		}
+		return Folder.encodePath(getTreePath());
+	}
+
+	/**
+	 * Retrieve the path of the file with plain names, in the form:
+	 * /parent1/parent2/parent3/name
+	 * The recorded path is used when available, so that the parents need not
+	 * be loaded.
+	 *
+	 * @return the path from the root of the files namespace
+	 */
+	public String getTreePath() {
+		if (treePath != null)
+			return treePath;
+		return folder.getTreePath() + name;
+	}
+
+	/**
+	 * Record the path of the file, after it was created, renamed or moved.
+	 */
+	public void updateTreePath() {
+		String path = folder.getTreePath() + name;
+		treePath = path.length() <= Folder.MAX_TREE_PATH_LENGTH ? path : null;
 	}
 
 	/**
 	 * Return the total space occupied by this file in storage
-	 * (i.e. the total size of all bodies)
+	 * (i.e. the total size of all bodies, counting delta-encoded
+	 * versions by the size of their deltas)
 	 * @return long
 	 */
 	public long getTotalSize() {
 		long total = 0;
 		for (FileBody body: getBodies())
-			total += body.getFileSize();
+			total += body.getStoredSize() == null ? body.getFileSize() : body.getStoredSize();
 		return total;
 	}
 	
@@ -133,6 +133,21 @@ public final class Folder  implements Serializable{
 	@Column(columnDefinition=" boolean DEFAULT false")
 	private Boolean shared;
 
+	/**
+	 * The maximum length of a recorded tree path, so that it fits in an
+	 * index entry.
+	 */
+	public static final int MAX_TREE_PATH_LENGTH = 768;
+
+	/**
+	 * The path of the folder from the root folder of its owner, with plain
+	 * (not URL-encoded) names and a trailing slash, e.g. /parent1/name/. It
+	 * is null for folders with paths that are too long, or that were created
+	 * before paths were recorded.
+	 */
+	@Column(length=MAX_TREE_PATH_LENGTH)
+	private String treePath;
+
 	/**
 	 * Retrieve the ID.
 	 *
@@ -406,9 +421,7 @@ public final class Folder  implements Serializable{
 	 *         otherwise
 	 */
 	public boolean hasDeletePermission(final User user) {
-		if (parent.hasWritePermission(user))
-			return true;
-		return false;
+		return hasDeletePermission(user, user.getGroupMemberIds());
 	}
 
 	/**
@@ -419,45 +432,103 @@ public final class Folder  implements Serializable{
 	 *         otherwise
 	 */
 	public boolean hasWritePermission(final User user) {
+		return hasWritePermission(user, user.getGroupMemberIds());
+	}
+
+	/**
+	 * Checks if the specified user has permission to read this folder.
+	 *
+	 * @param user the specified User
+	 * @return true if the user has permission to read the folder, false
+	 *         otherwise
+	 */
+	public boolean hasReadPermission(final User user) {
+		return hasReadPermission(user, user.getGroupMemberIds());
+	}
+
+	/**
+	 * Checks if the specified user has permission to modify the ACL of this file.
+	 *
+	 * @param user the specified User
+	 * @return true if the user has permission to modify the ACL of the file, false
+	 *         otherwise
+	 */
+	public boolean hasModifyACLPermission(final User user) {
+		return hasModifyACLPermission(user, user.getGroupMemberIds());
+	}
+
+	/**
+	 * Checks if the specified user has permission to delete this folder, using
+	 * the IDs of the groups the user is a member of instead of the group
+	 * member collections.
+	 *
+	 * @param user the specified User
+	 * @param groupIds the IDs of the groups that contain the user
+	 * @return true if the user has permission to delete the folder, false
+	 *         otherwise
+	 */
+	public boolean hasDeletePermission(final User user, final Set<Long> groupIds) {
+		if (parent.hasWritePermission(user, groupIds))
+			return true;
+		return false;
+	}
+
+	/**
+	 * Checks if the specified user has permission to modify this folder, using
+	 * the IDs of the groups the user is a member of instead of the group
+	 * member collections.
+	 *
+	 * @param user the specified User
+	 * @param groupIds the IDs of the groups that contain the user
+	 * @return true if the user has permission to modify the folder, false
+	 *         otherwise
+	 */
+	public boolean hasWritePermission(final User user, final Set<Long> groupIds) {
 		for (final Permission p : permissions)
 			if (p.getUser() != null) {
-				if (p.getUser().equals(user) && p.getWrite())
+				if (p.getUser().getId().equals(user.getId()) && p.getWrite())
 					return true;
-			} else if (p.getGroup().contains(user) && p.getWrite())
+			} else if (groupIds.contains(p.getGroup().getId()) && p.getWrite())
 				return true;
 		return false;
 	}
 
 	/**
-	 * Checks if the specified user has permission to read this folder.
+	 * Checks if the specified user has permission to read this folder, using
+	 * the IDs of the groups the user is a member of instead of the group
+	 * member collections.
 	 *
 	 * @param user the specified User
+	 * @param groupIds the IDs of the groups that contain the user
 	 * @return true if the user has permission to read the folder, false
 	 *         otherwise
 	 */
-	public boolean hasReadPermission(final User user) {
+	public boolean hasReadPermission(final User user, final Set<Long> groupIds) {
 		for (final Permission p : permissions)
 			if (p.getUser() != null) {
-				if (p.getUser().equals(user) && p.getRead())
+				if (p.getUser().getId().equals(user.getId()) && p.getRead())
 					return true;
-			} else if (p.getGroup().contains(user) && p.getRead())
+			} else if (groupIds.contains(p.getGroup().getId()) && p.getRead())
 				return true;
 		return false;
 	}
 
 	/**
-	 * Checks if the specified user has permission to modify the ACL of this file.
+	 * Checks if the specified user has permission to modify the ACL of this folder, using
+	 * the IDs of the groups the user is a member of instead of the group
+	 * member collections.
 	 *
 	 * @param user the specified User
-	 * @return true if the user has permission to modify the ACL of the file, false
+	 * @param groupIds the IDs of the groups that contain the user
+	 * @return true if the user has permission to modify the ACL of the folder, false
 	 *         otherwise
 	 */
-	public boolean hasModifyACLPermission(final User user) {
+	public boolean hasModifyACLPermission(final User user, final Set<Long> groupIds) {
 		for (final Permission p : permissions)
 			if (p.getUser() != null) {
-				if (p.getUser().equals(user) && p.getModifyACL())
+				if (p.getUser().getId().equals(user.getId()) && p.getModifyACL())
 					return true;
-			} else if (p.getGroup().contains(user) && p.getModifyACL())
+			} else if (groupIds.contains(p.getGroup().getId()) && p.getModifyACL())
 				return true;
 		return false;
 	}
@@ -516,13 +587,57 @@ public final class Folder  implements Serializable{
 	 * @return the full path from the root of the files namespace
 	 */
 	public String getPath() {
+		return encodePath(getTreePath());
+	}
+
+	/**
+	 * Retrieve the path of the folder with plain names, in the form:
+	 * /parent1/parent2/parent3/name/
+	 * The recorded path is used when available, so that the parents need not
+	 * be loaded.
+	 *
+	 * @return the path from the root of the files namespace
+	 */
+	public String getTreePath() {
+		if (treePath != null)
+			return treePath;
 		if (parent == null)
 			return "/";
+		return parent.getTreePath() + name + '/';
+	}
+
+	/**
+	 * Record the path of the folder, after it was created, renamed or moved.
+	 * The paths of its contents are not updated.
+	 */
+	public void updateTreePath() {
+		String path = parent == null ? "/" : parent.getTreePath() + name + '/';
+		treePath = path.length() <= MAX_TREE_PATH_LENGTH ? path : null;
+	}
+
+	/**
+	 * URL-encode each name in a path with plain names.
+	 *
+	 * @param plainPath the path with plain names
+	 * @return the URL-encoded path
+	 */
+	static String encodePath(String plainPath) {
+		StringBuilder result = new StringBuilder(plainPath.length() + 16);
+		int start = 0;
+		int slash;
 		try {
-			return parent.getPath() + URLEncoder.encode(name, "UTF-8") + '/';
+			while ((slash = plainPath.indexOf('/', start)) >= 0) {
+				if (slash > start)
+					result.append(URLEncoder.encode(plainPath.substring(start, slash), "UTF-8"));
+				result.append('/');
+				start = slash + 1;
+			}
+			if (start < plainPath.length())
+				result.append(URLEncoder.encode(plainPath.substring(start), "UTF-8"));
 		} catch (UnsupportedEncodingException e) {
 			throw new RuntimeException(e);
 		}
+		return result.toString();
 	}
 
 	/**
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.server.domain;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * A journal entry for a stored file that is no longer needed. Entries are
+ * written in the same transaction that removes the file bodies, and the
+ * stored files are removed by a background reaper after that transaction
+ * has committed.
+ *
+ * @author past
+ */
+@Entity
+public class PendingDeletion implements Serializable {
+
+	/**
+	 * The serial version UID of the class.
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The persistence ID of the object.
+	 */
+	@Id
+	@GeneratedValue
+	private Long id;
+
+	/**
+	 * The path of the stored file to remove.
+	 */
+	@Column(nullable=false)
+	private String storedFilePath;
+
+	/**
+	 * The date the entry was created.
+	 */
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date creationDate;
+
+	/**
+	 * The number of failed attempts to remove the stored file.
+	 */
+	private int attempts;
+
+	/**
+	 * The earliest date of the next attempt to remove the stored file, or
+	 * null if it can be removed right away.
+	 */
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date nextAttempt;
+
+	/**
+	 * Retrieve the id.
+	 *
+	 * @return the id
+	 */
+	public Long getId() {
+		return id;
+	}
+
+	/**
+	 * Retrieve the stored file path.
+	 *
+	 * @return the stored file path
+	 */
+	public String getStoredFilePath() {
+		return storedFilePath;
+	}
+
+	/**
+	 * Modify the stored file path.
+	 *
+	 * @param aStoredFilePath the stored file path to set
+	 */
+	public void setStoredFilePath(String aStoredFilePath) {
+		storedFilePath = aStoredFilePath;
+	}
+
+	/**
+	 * Retrieve the creation date.
+	 *
+	 * @return the creation date
+	 */
+	public Date getCreationDate() {
+		return creationDate;
+	}
+
+	/**
+	 * Modify the creation date.
+	 *
+	 * @param aCreationDate the creation date to set
+	 */
+	public void setCreationDate(Date aCreationDate) {
+		creationDate = aCreationDate;
+	}
+
+	/**
+	 * Retrieve the number of failed removal attempts.
+	 *
+	 * @return the attempts
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * Modify the number of failed removal attempts.
+	 *
+	 * @param theAttempts the attempts to set
+	 */
+	public void setAttempts(int theAttempts) {
+		attempts = theAttempts;
+	}
+
+	/**
+	 * Retrieve the earliest date of the next removal attempt.
+	 *
+	 * @return the date, or null if the stored file can be removed right away
+	 */
+	public Date getNextAttempt() {
+		return nextAttempt;
+	}
+
+	/**
+	 * Modify the earliest date of the next removal attempt.
+	 *
+	 * @param aNextAttempt the date to set
+	 */
+	public void setNextAttempt(Date aNextAttempt) {
+		nextAttempt = aNextAttempt;
+	}
+
+	/**
+	 * Record a failed attempt to remove the stored file, deferring the next
+	 * one by the specified delay, doubled for every earlier failure.
+	 *
+	 * @param now the date of the failed attempt
+	 * @param retryDelay the delay after the first failure, in milliseconds
+	 */
+	public void recordFailedAttempt(Date now, long retryDelay) {
+		attempts++;
+		nextAttempt = new Date(now.getTime() + (retryDelay << Math.min(attempts - 1, 16)));
+	}
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.server.domain;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * The state of a resumable upload. The uploaded chunks are written straight
+ * into the stored file, which becomes the body of the target file when the
+ * upload is committed.
+ *
+ * @author past
+ */
+@Entity
+public class UploadSession implements Serializable {
+
+	/**
+	 * The serial version UID of the class.
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The persistence ID of the object.
+	 */
+	@Id
+	@GeneratedValue
+	private Long id;
+
+	/**
+	 * The user that performs the upload.
+	 */
+	@ManyToOne(optional=false)
+	@JoinColumn(name="owner_id", nullable=false)
+	private User owner;
+
+	/**
+	 * The ID of the folder that will contain the uploaded file. It is not a
+	 * foreign key, so that pending uploads do not prevent deleting the folder.
+	 */
+	@Column(nullable=false)
+	private Long folderId;
+
+	/**
+	 * The name of the uploaded file.
+	 */
+	@Column(nullable=false)
+	private String name;
+
+	/**
+	 * The MIME type of the uploaded file.
+	 */
+	private String mimeType;
+
+	/**
+	 * The path under which the uploaded contents are stored.
+	 */
+	@Column(nullable=false)
+	private String storedFilePath;
+
+	/**
+	 * The number of contiguous bytes received from the start of the file.
+	 */
+	private long bytesReceived;
+
+	/**
+	 * The total size of the uploaded file in bytes, or null if the client did
+	 * not specify it.
+	 */
+	private Long fileSize;
+
+	/**
+	 * The date the upload was started.
+	 */
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date creationDate;
+
+	/**
+	 * Retrieve the id.
+	 *
+	 * @return the id
+	 */
+	public Long getId() {
+		return id;
+	}
+
+	/**
+	 * Retrieve the owner.
+	 *
+	 * @return the owner
+	 */
+	public User getOwner() {
+		return owner;
+	}
+
+	/**
+	 * Modify the owner.
+	 *
+	 * @param anOwner the owner to set
+	 */
+	public void setOwner(User anOwner) {
+		owner = anOwner;
+	}
+
+	/**
+	 * Retrieve the ID of the target folder.
+	 *
+	 * @return the folder ID
+	 */
+	public Long getFolderId() {
+		return folderId;
+	}
+
+	/**
+	 * Modify the ID of the target folder.
+	 *
+	 * @param aFolderId the folder ID to set
+	 */
+	public void setFolderId(Long aFolderId) {
+		folderId = aFolderId;
+	}
+
+	/**
+	 * Retrieve the file name.
+	 *
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Modify the file name.
+	 *
+	 * @param aName the name to set
+	 */
+	public void setName(String aName) {
+		name = aName;
+	}
+
+	/**
+	 * Retrieve the MIME type.
+	 *
+	 * @return the MIME type
+	 */
+	public String getMimeType() {
+		return mimeType;
+	}
+
+	/**
+	 * Modify the MIME type.
+	 *
+	 * @param aMimeType the MIME type to set
+	 */
+	public void setMimeType(String aMimeType) {
+		mimeType = aMimeType;
+	}
+
+	/**
+	 * Retrieve the stored file path.
+	 *
+	 * @return the stored file path
+	 */
+	public String getStoredFilePath() {
+		return storedFilePath;
+	}
+
+	/**
+	 * Modify the stored file path.
+	 *
+	 * @param aStoredFilePath the stored file path to set
+	 */
+	public void setStoredFilePath(String aStoredFilePath) {
+		storedFilePath = aStoredFilePath;
+	}
+
+	/**
+	 * Retrieve the number of bytes received.
+	 *
+	 * @return the bytes received
+	 */
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/**
+	 * Modify the number of bytes received.
+	 *
+	 * @param theBytesReceived the bytes received to set
+	 */
+	public void setBytesReceived(long theBytesReceived) {
+		bytesReceived = theBytesReceived;
+	}
+
+	/**
+	 * Retrieve the total file size.
+	 *
+	 * @return the file size, or null if unknown
+	 */
+	public Long getFileSize() {
+		return fileSize;
+	}
+
+	/**
+	 * Modify the total file size.
+	 *
+	 * @param aFileSize the file size to set
+	 */
+	public void setFileSize(Long aFileSize) {
+		fileSize = aFileSize;
+	}
+
+	/**
+	 * Retrieve the creation date.
+	 *
+	 * @return the creation date
+	 */
+	public Date getCreationDate() {
+		return creationDate;
+	}
+
+	/**
+	 * Modify the creation date.
+	 *
+	 * @param aCreationDate the creation date to set
+	 */
+	public void setCreationDate(Date aCreationDate) {
+		creationDate = aCreationDate;
+	}
+
+	/**
+	 * Check whether all the contents of the file have been received.
+	 *
+	 * @return true if the file size is known and has been reached
+	 */
+	public boolean isComplete() {
+		return fileSize != null && bytesReceived >= fileSize;
+	}
+}
@@ -25,6 +25,7 @@ import java.io.Serializable;
 import java.security.SecureRandom;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
@@ -325,6 +326,19 @@ public class User implements Serializable {
 		groupsMember = newGroupsMember;
 	}
 
+	/**
+	 * Retrieve the IDs of the groups of which this user is member.
+	 *
+	 * @return the group IDs
+	 */
+	public Set<Long> getGroupMemberIds() {
+		Set<Long> ids = new HashSet<Long>();
+		if (groupsMember != null)
+			for (Group group : groupsMember)
+				ids.add(group.getId());
+		return ids;
+	}
+
 	/**
 	 * Retrieve the audit info.
 	 *
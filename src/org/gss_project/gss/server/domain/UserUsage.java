@@ -0,0 +1,140 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.server.domain;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * The storage used by a user, kept up to date as files are created, deleted
+ * or change owner, so that quota checks do not have to add up the sizes of
+ * all the user's files. The counters are updated with bulk statements that
+ * add to them, and are periodically recomputed from the file bodies to
+ * correct any drift.
+ *
+ * @author past
+ */
+@Entity
+public class UserUsage implements Serializable {
+
+	/**
+	 * The serial version UID of the class.
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The ID of the user. There is no foreign key, so that the usage does not
+	 * stand in the way of removing users.
+	 */
+	@Id
+	private Long userId;
+
+	/**
+	 * The number of bytes used by the bodies of the user's files.
+	 */
+	private long bytesUsed;
+
+	/**
+	 * The number of files owned by the user.
+	 */
+	private long fileCount;
+
+	/**
+	 * The date the counters were last recomputed.
+	 */
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date reconciled;
+
+	/**
+	 * Retrieve the user ID.
+	 *
+	 * @return the user ID
+	 */
+	public Long getUserId() {
+		return userId;
+	}
+
+	/**
+	 * Modify the user ID.
+	 *
+	 * @param aUserId the user ID to set
+	 */
+	public void setUserId(Long aUserId) {
+		userId = aUserId;
+	}
+
+	/**
+	 * Retrieve the number of bytes used.
+	 *
+	 * @return the bytes used
+	 */
+	public long getBytesUsed() {
+		return bytesUsed;
+	}
+
+	/**
+	 * Modify the number of bytes used.
+	 *
+	 * @param theBytesUsed the bytes used to set
+	 */
+	public void setBytesUsed(long theBytesUsed) {
+		bytesUsed = theBytesUsed;
+	}
+
+	/**
+	 * Retrieve the number of files.
+	 *
+	 * @return the file count
+	 */
+	public long getFileCount() {
+		return fileCount;
+	}
+
+	/**
+	 * Modify the number of files.
+	 *
+	 * @param aFileCount the file count to set
+	 */
+	public void setFileCount(long aFileCount) {
+		fileCount = aFileCount;
+	}
+
+	/**
+	 * Retrieve the date the counters were last recomputed.
+	 *
+	 * @return the reconciliation date
+	 */
+	public Date getReconciled() {
+		return reconciled;
+	}
+
+	/**
+	 * Modify the date the counters were last recomputed.
+	 *
+	 * @param aReconciled the reconciliation date to set
+	 */
+	public void setReconciled(Date aReconciled) {
+		reconciled = aReconciled;
+	}
+}
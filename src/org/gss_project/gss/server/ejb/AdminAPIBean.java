@@ -22,7 +22,6 @@ import org.gss_project.gss.common.exceptions.InsufficientPermissionsException;
 import org.gss_project.gss.common.exceptions.ObjectNotFoundException;
 import org.gss_project.gss.server.domain.AccountingInfo;
 import org.gss_project.gss.server.domain.AuditInfo;
-import org.gss_project.gss.server.domain.FileBody;
 import org.gss_project.gss.server.domain.FileHeader;
 import org.gss_project.gss.server.domain.FileUploadStatus;
 import org.gss_project.gss.server.domain.Folder;
@@ -43,6 +42,7 @@ import org.gss_project.gss.common.dto.UserDTO;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
@@ -51,6 +51,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.StringTokenizer;
 
+import javax.annotation.Resource;
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
 import javax.jms.Connection;
@@ -64,6 +65,7 @@ import javax.jms.Session;
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
+import javax.transaction.TransactionSynchronizationRegistry;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
@@ -90,6 +92,13 @@ public class AdminAPIBean implements AdminAPI {
 	@EJB
 	private GSSDAO dao;
 
+	/**
+	 * The transaction synchronization registry, for updating the shared
+	 * caches once a transaction completes.
+	 */
+	@Resource(mappedName="java:comp/TransactionSynchronizationRegistry")
+	private TransactionSynchronizationRegistry transactions;
+
 	@Override
 	public FileHeaderDTO getFile(String uri) throws ObjectNotFoundException {
 		if (uri == null)
@@ -262,6 +271,7 @@ public class AdminAPIBean implements AdminAPI {
 		User user = dao.getEntityById(User.class, userId);
 		user.setActive(!user.isActive());
 		dao.update(user);
+		AuthenticationCache.getInstance().invalidateOnCompletion(transactions, user.getUsername());
 	}
 
 	@Override
@@ -379,6 +389,7 @@ public class AdminAPIBean implements AdminAPI {
 		UserClass userClass = dao.getEntityById(UserClass.class, userClassId);
 		user.setUserClass(userClass);
 		dao.update(user);
+		AuthenticationCache.getInstance().invalidateOnCompletion(transactions, user.getUsername());
 	}
 
 	@Override
@@ -483,6 +494,9 @@ public class AdminAPIBean implements AdminAPI {
 		List<UserLogin> allUserLogins = dao.getAllLoginsForUser(userId);
 		for(UserLogin ul : allUserLogins)
 			dao.delete(ul);
+		dao.deleteUsage(userId);
+		GroupMembershipCache.getInstance().invalidateUserOnCompletion(transactions, userId);
+		AuthenticationCache.getInstance().invalidateOnCompletion(transactions, user.getUsername());
 		dao.flush();
 		dao.delete(user);
 	}
@@ -506,7 +520,7 @@ public class AdminAPIBean implements AdminAPI {
 		final Folder parent = folder.getParent();
 		final User user = dao.getEntityById(User.class, userId);
 
-		removeSubfolderFiles(folder);
+		removeFolderContents(folder);
 		if(parent!=null)
 			parent.removeSubfolder(folder);
 		dao.delete(folder);
@@ -514,16 +528,21 @@ public class AdminAPIBean implements AdminAPI {
 			touchParentFolders(parent, user, new Date());
 	}
 
-	private void removeSubfolderFiles(Folder folder) {
-		//remove files for all subfolders
-		for (Folder subfolder:folder.getSubfolders())
-			removeSubfolderFiles(subfolder);
-		//remove this folder's file bodies (actual files)
-		for (FileHeader file:folder.getFiles()) {
-			for (FileBody body:file.getBodies())
-				api.deleteActualFile(body.getStoredFilePath());
-			indexFile(file.getId(), true);
-		}
+	/**
+	 * Removes the files and subfolders of the folder with bulk deletes over
+	 * the whole tree, leaving the folder itself for the caller to remove.
+	 */
+	private void removeFolderContents(Folder folder) {
+		List<Long> folderIds = dao.getFolderTreeIds(folder.getId());
+		List<Long> fileIds = dao.getFileIdsInFolders(folderIds);
+		dao.addUsage(folder.getOwner().getId(), -dao.getFileSizeInFolders(folderIds), -fileIds.size());
+		List<String> paths = dao.getStoredFilePathsInFolders(folderIds);
+		dao.flush();
+		dao.deleteFilesInFolders(folderIds);
+		// The folder itself comes last.
+		dao.deleteFolders(folderIds.subList(0, folderIds.size() - 1));
+		api.deleteActualFiles(paths);
+		indexFiles(fileIds, true);
 	}
 
 	private void touchParentFolders(Folder folder, User modifiedBy, Date modificationDate) {
@@ -538,6 +557,16 @@ public class AdminAPIBean implements AdminAPI {
 	}
 
 	public void indexFile(Long fileId, boolean delete) {
+		indexFiles(Collections.singletonList(fileId), delete);
+	}
+
+	/**
+	 * Queue the specified files for updating or removing from the search
+	 * index, with a single connection to the indexing queue.
+	 */
+	private void indexFiles(List<Long> fileIds, boolean delete) {
+		if (fileIds.isEmpty())
+			return;
 		Connection qConn = null;
 		Session session = null;
 		MessageProducer sender = null;
@@ -549,10 +578,12 @@ public class AdminAPIBean implements AdminAPI {
 			session = qConn.createSession(false, Session.AUTO_ACKNOWLEDGE);
 			sender = session.createProducer(queue);
 
-			MapMessage map = session.createMapMessage();
-			map.setObject("id", fileId);
-			map.setBoolean("delete", delete);
-			sender.send(map);
+			for (Long fileId : fileIds) {
+				MapMessage map = session.createMapMessage();
+				map.setObject("id", fileId);
+				map.setBoolean("delete", delete);
+				sender.send(map);
+			}
 		}
 		catch (NamingException e) {
 			logger.error("Index was not updated: ", e);
@@ -592,7 +623,7 @@ public class AdminAPIBean implements AdminAPI {
 		    throw new ObjectNotFoundException("No folder specified");
 		User user = dao.getEntityById(User.class, userId);
 		Folder folder = dao.getEntityById(Folder.class, folderId);
-		if (!folder.hasReadPermission(user))
+		if (!folder.hasReadPermission(user, dao.getGroupIdsForUser(user.getId())))
 		    throw new InsufficientPermissionsException("You don't have the permissions to read this folder");
 		// Do the actual work.
 		List<FileHeaderDTO> result = new ArrayList<FileHeaderDTO>();
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.server.ejb;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * Runs actions when the current transaction completes. The shared caches use
+ * it to drop their entries after a change is committed, since a request that
+ * reloads an entry before the commit would otherwise cache the old data
+ * again.
+ *
+ * @author past
+ */
+final class AfterCompletion {
+
+	private AfterCompletion() {
+		// Utility class.
+	}
+
+	/**
+	 * Run the specified action when the current transaction commits or rolls
+	 * back, or right away if there is no active transaction.
+	 *
+	 * @param registry the transaction synchronization registry
+	 * @param action the action to run
+	 */
+	static void run(TransactionSynchronizationRegistry registry, final Runnable action) {
+		if (registry == null || registry.getTransactionStatus() != Status.STATUS_ACTIVE) {
+			action.run();
+			return;
+		}
+		registry.registerInterposedSynchronization(new Synchronization() {
+			@Override
+			public void beforeCompletion() {
+				// Nothing to do before the outcome is known.
+			}
+
+			@Override
+			public void afterCompletion(int status) {
+				action.run();
+			}
+		});
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.server.ejb;
+
+import org.gss_project.gss.server.domain.User;
+
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+
+/**
+ * A cache of the users that authenticate requests, keyed by their username,
+ * so that validating the signature of a request does not require a database
+ * query. The cached users are detached and shared between requests, so they
+ * must not be modified. The users are kept in the authentication Ehcache
+ * cache, whose size and expiry are configured in ehcache.xml, where removals
+ * can also be replicated to the other nodes of a cluster. Entries are removed
+ * when the authentication token or the account of a user changes, once the
+ * change is committed.
+ *
+ * @author past
+ */
+public class AuthenticationCache {
+
+	/**
+	 * The name of the cache that holds the users.
+	 */
+	private static final String CACHE_NAME = "authentication";
+
+	/**
+	 * The cache shared by all request handlers.
+	 */
+	private static final AuthenticationCache instance = new AuthenticationCache();
+
+	private final Ehcache cache;
+
+	private AuthenticationCache() {
+		CacheManager manager = CacheManager.create();
+		synchronized (manager) {
+			// Fall back to the default cache settings if it is not configured.
+			if (!manager.cacheExists(CACHE_NAME))
+				manager.addCache(CACHE_NAME);
+		}
+		cache = manager.getEhcache(CACHE_NAME);
+	}
+
+	/**
+	 * Retrieve the cache shared by all request handlers.
+	 */
+	public static AuthenticationCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Retrieve the cached user with the specified username.
+	 *
+	 * @param username the username
+	 * @return the user, or null if the user is not cached or the entry has
+	 *         expired
+	 */
+	public User get(String username) {
+		Element element = cache.get(username);
+		return element == null ? null : (User) element.getObjectValue();
+	}
+
+	/**
+	 * Cache the specified user.
+	 *
+	 * @param user the user, as loaded from the database
+	 */
+	public void put(User user) {
+		cache.put(new Element(user.getUsername(), user));
+	}
+
+	/**
+	 * Remove the user with the specified username from the cache.
+	 *
+	 * @param username the username
+	 */
+	public void invalidate(String username) {
+		cache.remove(username);
+	}
+
+	/**
+	 * Remove the user with the specified username from the cache when the
+	 * current transaction completes.
+	 *
+	 * @param registry the transaction synchronization registry
+	 * @param username the username
+	 */
+	public void invalidateOnCompletion(TransactionSynchronizationRegistry registry, final String username) {
+		AfterCompletion.run(registry, new Runnable() {
+			@Override
+			public void run() {
+				invalidate(username);
+			}
+		});
+	}
+
+	/**
+	 * Remove all users from the cache.
+	 */
+	public void clear() {
+		cache.removeAll();
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.server.ejb;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory accumulator of the bandwidth used by each user, that lets
+ * downloads record their traffic without a database round trip. The amounts
+ * are summed per user and accounting period in a number of independently
+ * locked stripes, and are periodically drained and written to the
+ * AccountingInfo table in a single transaction by the AccountingFlusher
+ * service.
+ *
+ * @author past
+ */
+public class BandwidthAccumulator {
+
+	/**
+	 * The number of independently locked stripes.
+	 */
+	private static final int STRIPES = 16;
+
+	/**
+	 * The accumulator shared by all request handlers.
+	 */
+	private static final BandwidthAccumulator instance = new BandwidthAccumulator();
+
+	/**
+	 * The bandwidth used by a user in an accounting period.
+	 */
+	public static class Usage implements Serializable {
+		/**
+		 * The serial version UID of the class.
+		 */
+		private static final long serialVersionUID = 1L;
+
+		private final Long userId;
+
+		private final int year;
+
+		private final int month;
+
+		private long bytes;
+
+		Usage(Long userId, int year, int month) {
+			this.userId = userId;
+			this.year = year;
+			this.month = month;
+		}
+
+		/**
+		 * Retrieve the ID of the user.
+		 */
+		public Long getUserId() {
+			return userId;
+		}
+
+		/**
+		 * Retrieve a date in the accounting period.
+		 */
+		public Date getDate() {
+			return new GregorianCalendar(year, month, 1).getTime();
+		}
+
+		/**
+		 * Retrieve the bandwidth used, in bytes.
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof Usage)) return false;
+			Usage u = (Usage) o;
+			return userId.equals(u.userId) && year == u.year && month == u.month;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * userId.hashCode() + year) + month;
+		}
+	}
+
+	private final List<Map<Usage, Usage>> stripes = new ArrayList<Map<Usage, Usage>>(STRIPES);
+
+	private BandwidthAccumulator() {
+		for (int i = 0; i < STRIPES; i++)
+			stripes.add(new HashMap<Usage, Usage>());
+	}
+
+	/**
+	 * Retrieve the accumulator shared by all request handlers.
+	 */
+	public static BandwidthAccumulator getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Add the specified amount to the bandwidth used by a user.
+	 *
+	 * @param userId the ID of the user
+	 * @param date the date of the transfer
+	 * @param bytes the bandwidth used; positive for addition, negative for
+	 * 			subtraction
+	 */
+	public void add(Long userId, Date date, long bytes) {
+		Calendar calendar = new GregorianCalendar();
+		calendar.setTime(date);
+		Usage key = new Usage(userId, calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH));
+		Map<Usage, Usage> stripe = stripes.get((key.hashCode() & 0x7fffffff) % STRIPES);
+		synchronized (stripe) {
+			Usage usage = stripe.get(key);
+			if (usage == null) {
+				usage = key;
+				stripe.put(key, usage);
+			}
+			usage.bytes += bytes;
+		}
+	}
+
+	/**
+	 * Add back usage that was drained but could not be stored.
+	 *
+	 * @param usages the usage returned by drain()
+	 */
+	public void addAll(List<Usage> usages) {
+		for (Usage u : usages)
+			add(u.getUserId(), u.getDate(), u.getBytes());
+	}
+
+	/**
+	 * Remove and return the bandwidth accumulated since the last call.
+	 *
+	 * @return the usage of each user and accounting period
+	 */
+	public List<Usage> drain() {
+		List<Usage> result = new ArrayList<Usage>();
+		for (Map<Usage, Usage> stripe : stripes)
+			synchronized (stripe) {
+				for (Usage u : stripe.values())
+					if (u.bytes != 0)
+						result.add(u);
+				stripe.clear();
+			}
+		return result;
+	}
+}
@@ -36,9 +36,9 @@ import org.gss_project.gss.server.domain.Permission;
 import org.gss_project.gss.server.domain.SearchResult;
 import org.gss_project.gss.server.domain.User;
 import org.gss_project.gss.server.domain.UserClass;
+import org.gss_project.gss.server.domain.UploadSession;
 import org.gss_project.gss.server.domain.UserLogin;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Date;
@@ -144,6 +144,44 @@ public interface ExternalAPI {
 	public List<FileHeader> getFiles(Long userId, Long folderId, boolean ignoreDeleted) throws ObjectNotFoundException,
 			InsufficientPermissionsException;
 
+	/**
+	 * Returns a page of the files in the specified folder that the user can
+	 * read, ordered by name. The next page starts after the name of the last
+	 * file returned.
+	 *
+	 * @param userId the ID of the User
+	 * @param folderId the ID of the folder containing the files
+	 * @param ignoreDeleted whether files marked as deleted are left out
+	 * @param after the name of the last file of the previous page, or null
+	 * 			for the first page
+	 * @param max the maximum number of files to return
+	 * @return the list of file header objects
+	 * @throws ObjectNotFoundException if the user or the folder cannot be found
+	 * @throws InsufficientPermissionsException if the user cannot read the folder
+	 */
+	public List<FileHeader> getFilesByName(Long userId, Long folderId, boolean ignoreDeleted,
+			String after, int max) throws ObjectNotFoundException, InsufficientPermissionsException;
+
+	/**
+	 * Returns a page of the files in the specified folder that the user can
+	 * read, most recently modified first. The next page starts after the
+	 * modification date and ID of the last file returned.
+	 *
+	 * @param userId the ID of the User
+	 * @param folderId the ID of the folder containing the files
+	 * @param ignoreDeleted whether files marked as deleted are left out
+	 * @param before the modification date of the last file of the previous
+	 * 			page, or null for the first page
+	 * @param beforeId the ID of the last file of the previous page
+	 * @param max the maximum number of files to return
+	 * @return the list of file header objects
+	 * @throws ObjectNotFoundException if the user or the folder cannot be found
+	 * @throws InsufficientPermissionsException if the user cannot read the folder
+	 */
+	public List<FileHeader> getFilesByModificationDate(Long userId, Long folderId, boolean ignoreDeleted,
+			Date before, Long beforeId, int max) throws ObjectNotFoundException,
+			InsufficientPermissionsException;
+
 	/**
 	 * Returns a list of users for the specified group
 	 *
@@ -442,6 +480,28 @@ public interface ExternalAPI {
 	public Object getResourceAtPath(Long ownerId, String path, boolean ignoreDeleted)
 			throws ObjectNotFoundException;
 
+	/**
+	 * Get the resources at the specified paths, along with the metadata
+	 * needed for rendering them to the specified user, in a single
+	 * transaction. The path at each position of the list is resolved in the
+	 * namespace of the owner at the same position. Folders are returned with
+	 * their subfolders and the first page of the files the user can read,
+	 * ordered by name, and files with their folder and tags. Resources that
+	 * are not found, or whose owner is not found, are returned with a null
+	 * resource, and resources the user cannot read without files or
+	 * permissions.
+	 *
+	 * @param userId the ID of the user making the request
+	 * @param owners the usernames of the users owning the namespace of each
+	 * 			path
+	 * @param paths the absolute paths in the namespaces of the owners
+	 * @param maxFiles the maximum number of files to return for each folder
+	 * @return the metadata of the resources, in the order of the paths
+	 * @throws ObjectNotFoundException if the user was not found
+	 */
+	public List<ResourceMetadata> getResourcesAtPaths(Long userId, List<String> owners, List<String> paths,
+			int maxFiles) throws ObjectNotFoundException;
+
 	/**
 	 * Copy the provided file to the specified destination.
 	 *
@@ -496,7 +556,9 @@ public interface ExternalAPI {
 			InsufficientPermissionsException, QuotaExceededException;
 
 	/**
-	 * Copy the provided file to the specified destination.
+	 * Copy the provided file to the specified destination. The bodies of the
+	 * copy reference the stored files of the original instead of duplicating
+	 * them, but count against the quota of the destination owner.
 	 *
 	 * @param userId the ID of the current user
 	 * @param fileId the IF of the provided file
@@ -1020,8 +1082,7 @@ public interface ExternalAPI {
 	 * @param folderId the ID of the parent folder
 	 * @param name the name of the new file
 	 * @param mimeType the MIME type of the file
-	 * @param fileSize the uploaded file size
-	 * @param filePath the uploaded file full path
+	 * @param contents the uploaded contents, as returned by uploadFile
 	 * @return The FileHeader created
 	 * @throws DuplicateNameException if the specified name already exists in
 	 *             the parent folder, as either a folder or file
@@ -1032,7 +1093,7 @@ public interface ExternalAPI {
 	 * @throws InsufficientPermissionsException
 	 * @throws QuotaExceededException
 	 */
-	public FileHeader createFile(Long userId, Long folderId, String name, String mimeType, long fileSize, String filePath)
+	public FileHeader createFile(Long userId, Long folderId, String name, String mimeType, StoredFile contents)
 			throws DuplicateNameException, ObjectNotFoundException, GSSIOException,
 			InsufficientPermissionsException, QuotaExceededException;
 
@@ -1043,8 +1104,7 @@ public interface ExternalAPI {
 	 * @param userId the ID of the current user
 	 * @param fileId the ID of the file header object
 	 * @param mimeType the content type of the file
-	 * @param fileSize the uploaded file size
-	 * @param filePath the uploaded file full path
+	 * @param contents the uploaded contents, as returned by uploadFile
 	 * @return The FileHeader updated
 	 * @throws ObjectNotFoundException if the user or file was not found, with
 	 * 			the exception message mentioning the precise problem
@@ -1053,30 +1113,187 @@ public interface ExternalAPI {
 	 * @throws QuotaExceededException
 	 */
 	public FileHeader updateFileContents(Long userId, Long fileId, String mimeType,
-				long fileSize, String filePath) throws ObjectNotFoundException, GSSIOException,
+				StoredFile contents) throws ObjectNotFoundException, GSSIOException,
 				InsufficientPermissionsException, QuotaExceededException;
 
 	/**
-	 * Create a file based on inputstream without using transaction.
+	 * Create a file based on inputstream without using transaction. The
+	 * contents are stored compressed when storage compression is enabled and
+	 * they are of a compressible content type.
 	 *
 	 * @param stream
 	 * @param userId
-	 * @return the file
+	 * @param mimeType the content type of the file, or null if unknown
+	 * @return the location and size of the contents in the configured blob
+	 * 			store
 	 * @throws IOException
 	 * @throws ObjectNotFoundException
 	 */
 	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
-	public File uploadFile(InputStream stream, Long userId)
+	public StoredFile uploadFile(InputStream stream, Long userId, String mimeType)
 			throws IOException, ObjectNotFoundException;
 
+	/**
+	 * Record the progress of an upload of the specified user. The progress is
+	 * kept in memory by the UploadProgressRegistry, not in the database.
+	 *
+	 * @param userId the ID of the uploader
+	 * @param filename the name of the uploaded file
+	 * @param bytesTransfered the number of bytes received so far
+	 * @param fileSize the total size of the file
+	 * @throws ObjectNotFoundException if no user is specified
+	 */
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
 	public void createFileUploadProgress(Long userId, String filename,
 				Long bytesTransfered, Long fileSize) throws ObjectNotFoundException;
 
+	/**
+	 * Retrieve the progress of an upload of the specified user.
+	 *
+	 * @param userId the ID of the uploader
+	 * @param fileName the name of the uploaded file
+	 * @return the progress, without an owner, or null if there is no upload
+	 * 			in progress
+	 */
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
 	public FileUploadStatus getFileUploadStatus(Long userId, String fileName);
 
+	/**
+	 * Forget the progress of a finished upload of the specified user.
+	 *
+	 * @param userId the ID of the uploader
+	 * @param filename the name of the uploaded file
+	 * @throws ObjectNotFoundException if no user is specified
+	 */
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
 	public void removeFileUploadProgress(Long userId, String filename)
 			throws ObjectNotFoundException;
 
+	/**
+	 * Start a resumable upload of a file in the specified folder. The file is
+	 * created, or its contents updated if it already exists, when the upload
+	 * is committed.
+	 *
+	 * @param userId the ID of the current user
+	 * @param folderId the ID of the folder that will contain the file
+	 * @param name the name of the file
+	 * @param mimeType the MIME type of the file
+	 * @param fileSize the total size of the file, or null if not known
+	 * @return the new upload session
+	 * @throws ObjectNotFoundException if the user or folder were not found
+	 * @throws InsufficientPermissionsException if the user cannot write to
+	 * 			the folder
+	 * @throws QuotaExceededException if the file does not fit in the user's
+	 * 			quota
+	 * @throws GSSIOException if the stored file could not be created
+	 */
+	public UploadSession createUploadSession(Long userId, Long folderId, String name, String mimeType,
+				Long fileSize) throws ObjectNotFoundException, InsufficientPermissionsException,
+				QuotaExceededException, GSSIOException;
+
+	/**
+	 * Retrieve a resumable upload of the specified user.
+	 *
+	 * @param userId the ID of the current user
+	 * @param sessionId the ID of the upload session
+	 * @return the upload session
+	 * @throws ObjectNotFoundException if the session was not found or belongs
+	 * 			to another user
+	 */
+	public UploadSession getUploadSession(Long userId, Long sessionId) throws ObjectNotFoundException;
+
+	/**
+	 * Write a chunk of a resumable upload straight into its stored file,
+	 * without using transaction. The chunk must start at or before the end of
+	 * the data received so far. The caller must then record the new amount of
+	 * received data with updateUploadSession. Chunks that continue the data
+	 * written before them are digested on the way, for finishUploadSession.
+	 *
+	 * @param userId the ID of the current user
+	 * @param sessionId the ID of the upload session
+	 * @param offset the position of the chunk in the file
+	 * @param stream the chunk data
+	 * @return the position after the end of the chunk
+	 * @throws ObjectNotFoundException if the session was not found
+	 * @throws GSSIOException if the chunk does not continue the received
+	 * 			data or could not be stored
+	 */
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public long writeUploadChunk(Long userId, Long sessionId, long offset, InputStream stream)
+			throws ObjectNotFoundException, GSSIOException;
+
+	/**
+	 * Record the amount of contiguous data received for a resumable upload.
+	 *
+	 * @param userId the ID of the current user
+	 * @param sessionId the ID of the upload session
+	 * @param bytesReceived the number of bytes received from the start
+	 * @return the updated upload session
+	 * @throws ObjectNotFoundException if the session was not found
+	 * @throws QuotaExceededException if the received data do not fit in the
+	 * 			user's quota
+	 */
+	public UploadSession updateUploadSession(Long userId, Long sessionId, long bytesReceived)
+			throws ObjectNotFoundException, QuotaExceededException;
+
+	/**
+	 * Prepare a resumable upload for commitUploadSession, without using
+	 * transaction. Any data stored past the bytes received, by a chunk that
+	 * was written but not recorded, are cut off and the content digest of the
+	 * upload is computed, unless it was kept while the chunks were written.
+	 *
+	 * @param userId the ID of the current user
+	 * @param sessionId the ID of the upload session
+	 * @return the uploaded contents
+	 * @throws ObjectNotFoundException if the session was not found
+	 * @throws GSSIOException if the upload is not complete or the stored file
+	 * 			could not be read
+	 */
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public StoredFile finishUploadSession(Long userId, Long sessionId)
+			throws ObjectNotFoundException, GSSIOException;
+
+	/**
+	 * Finish a resumable upload, creating the target file or adding a new
+	 * version to it. The session is removed.
+	 *
+	 * @param userId the ID of the current user
+	 * @param sessionId the ID of the upload session
+	 * @param contents the uploaded contents, as returned by
+	 * 			finishUploadSession
+	 * @return the created or updated file
+	 * @throws ObjectNotFoundException if the session was not found
+	 * @throws DuplicateNameException if a folder with the same name exists
+	 * @throws InsufficientPermissionsException if the user cannot write the
+	 * 			file
+	 * @throws QuotaExceededException if the file does not fit in the user's
+	 * 			quota
+	 * @throws GSSIOException if the upload is not complete or has received
+	 * 			more data since it was finished
+	 */
+	public FileHeader commitUploadSession(Long userId, Long sessionId, StoredFile contents) throws ObjectNotFoundException,
+				DuplicateNameException, InsufficientPermissionsException, QuotaExceededException,
+				GSSIOException;
+
+	/**
+	 * Abort a resumable upload, discarding the received data.
+	 *
+	 * @param userId the ID of the current user
+	 * @param sessionId the ID of the upload session
+	 * @throws ObjectNotFoundException if the session was not found
+	 */
+	public void deleteUploadSession(Long userId, Long sessionId) throws ObjectNotFoundException;
+
+	/**
+	 * Abort a batch of resumable uploads that were started longer ago than
+	 * the configured uploadSessionExpiry. Their stored files are recorded in
+	 * the deletion journal.
+	 *
+	 * @param maxSessions the maximum number of uploads to abort
+	 * @return the number of uploads aborted
+	 */
+	public int expireUploadSessions(int maxSessions);
+
 	/**
 	 * Fetch the file body with the specified version number.
 	 *
@@ -1112,6 +1329,14 @@ public interface ExternalAPI {
 	 */
 	public void updateAccounting(User user, Date date, long bandwidthDiff);
 
+	/**
+	 * Store the bandwidth accumulated by the BandwidthAccumulator in the
+	 * accounting information of the users, in a single transaction.
+	 *
+	 * @param usages the bandwidth used by each user in each time period
+	 */
+	public void updateAccounting(List<BandwidthAccumulator.Usage> usages);
+
 	/**
 	 * Check if the user with the specified ID has permission to read the
 	 * folder with the supplied ID.
@@ -1170,9 +1395,71 @@ public interface ExternalAPI {
 	public UserClass getCouponUserClass();
 
 	/**
-	 * Delete the actual file in the specified file system path.
+	 * Schedule the deletion of the actual file in the specified file system
+	 * path. The path is recorded in the deletion journal as part of the
+	 * current transaction and the file is removed later by
+	 * {@link #reapDeletedFiles(int)}, unless it is still referenced by a
+	 * file body by then.
 	 */
 	public void deleteActualFile(String path);
+
+	/**
+	 * Schedule the deletion of an uploaded file that will not be attached to
+	 * a file body, in a transaction of its own. The journal entry is kept
+	 * even if the current transaction rolls back, e.g. when the upload is
+	 * rejected for exceeding the quota.
+	 *
+	 * @param path the stored file path
+	 * @see #deleteActualFile(String)
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public void discardActualFile(String path);
+
+	/**
+	 * Schedule the deletion of the actual files in the specified file system
+	 * paths, after the file bodies that referenced them have been removed.
+	 *
+	 * @param paths the stored file paths
+	 * @see #deleteActualFile(String)
+	 */
+	public void deleteActualFiles(List<String> paths);
+
+	/**
+	 * Remove a batch of actual files recorded in the deletion journal. Files
+	 * that are referenced again by a file body are kept, and files that
+	 * cannot be removed stay in the journal for a later attempt, after a
+	 * delay that grows with every failure.
+	 *
+	 * @param maxFiles the maximum number of journal entries to process
+	 * @return the number of journal entries completed, i.e. files that were
+	 * 			removed or are referenced again
+	 */
+	public int reapDeletedFiles(int maxFiles);
+
+	/**
+	 * Return the number of actual files waiting to be removed.
+	 *
+	 * @return the size of the deletion journal
+	 */
+	public long getPendingDeletionCount();
+
+	/**
+	 * Retrieve the IDs of the users whose storage usage counters should be
+	 * recomputed next: users without counters first, then the ones that
+	 * were recomputed least recently.
+	 *
+	 * @param maxUsers the maximum number of IDs to return
+	 * @return the user IDs
+	 */
+	public List<Long> getUsersForUsageReconciliation(int maxUsers);
+
+	/**
+	 * Recompute the storage usage counters of the specified user from the
+	 * stored file bodies, creating them if needed.
+	 *
+	 * @param userId the ID of the user
+	 */
+	public void reconcileUsage(Long userId);
 	
 	/**
 	 * Update the userLogin with the values from the supplied object.
@@ -1193,6 +1480,7 @@ public interface ExternalAPI {
 	 * @param id
 	 */
 	public void postFileToSolr(Long id) throws IOException, SolrServerException, ObjectNotFoundException;
+
 	
 	/**
 	 * @param folder
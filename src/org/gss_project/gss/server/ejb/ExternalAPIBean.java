@@ -36,36 +36,49 @@ import org.gss_project.gss.server.domain.Group;
 import org.gss_project.gss.server.domain.FileLock;
 import org.gss_project.gss.server.domain.Invitation;
 import org.gss_project.gss.server.domain.Nonce;
+import org.gss_project.gss.server.domain.PendingDeletion;
 import org.gss_project.gss.server.domain.Permission;
 import org.gss_project.gss.server.domain.SearchResult;
 import org.gss_project.gss.server.domain.User;
 import org.gss_project.gss.server.domain.UserClass;
+import org.gss_project.gss.server.domain.UserUsage;
+import org.gss_project.gss.server.domain.UploadSession;
 import org.gss_project.gss.server.domain.UserLogin;
 import org.gss_project.gss.server.domain.WebDavNonce;
 import org.gss_project.gss.common.dto.StatsDTO;
 import org.gss_project.gss.common.dto.UserDTO;
+import org.gss_project.gss.server.ejb.blob.BinaryDelta;
+import org.gss_project.gss.server.ejb.blob.BlobStore;
+import org.gss_project.gss.server.ejb.blob.BlobStoreFactory;
+import org.gss_project.gss.server.ejb.blob.BlockCompression;
 
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Date;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.Random;
+import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
 
+import javax.annotation.Resource;
 import javax.ejb.EJB;
 import javax.ejb.EJBException;
 import javax.ejb.EJBTransactionRolledbackException;
+import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
 import javax.ejb.TransactionAttribute;
 import javax.ejb.TransactionAttributeType;
@@ -80,8 +93,10 @@ import javax.jms.Session;
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
+import javax.transaction.TransactionSynchronizationRegistry;
 import javax.persistence.PersistenceException;
 
+import org.apache.commons.configuration.DataConfiguration;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -94,6 +109,7 @@ import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.ContentStreamBase;
 import org.hibernate.exception.ConstraintViolationException;
 
 import com.novell.ldap.LDAPAttribute;
@@ -115,10 +131,20 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 	private static final String DEFAULT_MIME_TYPE = "application/octet-stream";
 
 	/**
-	 * The size of the buffer that is used to temporarily store chunks of
-	 * uploaded files, while storing them to the file repository.
+	 * The digest algorithm for the contents of stored files, which also names
+	 * them in a content-addressed file repository.
 	 */
-	private static final int UPLOAD_BUFFER_SIZE = 1024 * 4;
+	private static final String CONTENT_DIGEST_ALGORITHM = "SHA-256";
+
+	/**
+	 * The cache of resolved resource paths.
+	 */
+	private static final ResourcePathCache pathCache = ResourcePathCache.getInstance();
+
+	/**
+	 * The cache of the group IDs of each user.
+	 */
+	private static final GroupMembershipCache groupCache = GroupMembershipCache.getInstance();
 
 	/**
 	 * The logger.
@@ -131,11 +157,19 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 	@EJB
 	private GSSDAO dao;
 
+	/**
+	 * The session context, for calling business methods with their own
+	 * transaction attributes.
+	 */
+	@Resource
+	private SessionContext context;
 
 	/**
-	 * A cached random number generator for creating unique filenames.
+	 * The transaction synchronization registry, for updating the shared
+	 * caches once a transaction completes.
 	 */
-	private static Random random = new Random();
+	@Resource(mappedName="java:comp/TransactionSynchronizationRegistry")
+	private TransactionSynchronizationRegistry transactions;
 
 	/**
 	 * Mark the folder and all of its parent folders as modified from the specified user.
@@ -174,7 +208,7 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 		final User user = dao.getEntityById(User.class, userId);
 		final Folder folder = dao.getEntityById(Folder.class, folderId);
 		// Check permissions
-		if (!folder.hasReadPermission(user))
+		if (!folder.hasReadPermission(user, getGroupIds(user)))
 			throw new InsufficientPermissionsException("You don't have the permissions to read this folder");
 		return expandFolder(folder);
 	}
@@ -231,12 +265,43 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 			throw new ObjectNotFoundException("No folder specified");
 		User user = dao.getEntityById(User.class, userId);
 		Folder folder = dao.getEntityById(Folder.class, folderId);
-		if (!folder.hasReadPermission(user))
+		if (!folder.hasReadPermission(user, getGroupIds(user)))
 			throw new InsufficientPermissionsException("You don't have the permissions to read this folder");
 		List<FileHeader> files = dao.getFiles(folderId, userId, ignoreDeleted);
 		return files;
 	}
 
+	@Override
+	public List<FileHeader> getFilesByName(Long userId, Long folderId, boolean ignoreDeleted,
+			String after, int max) throws ObjectNotFoundException, InsufficientPermissionsException {
+		checkFolderReadable(userId, folderId);
+		return dao.getFilesByName(folderId, userId, ignoreDeleted, after, max);
+	}
+
+	@Override
+	public List<FileHeader> getFilesByModificationDate(Long userId, Long folderId, boolean ignoreDeleted,
+			Date before, Long beforeId, int max) throws ObjectNotFoundException, InsufficientPermissionsException {
+		checkFolderReadable(userId, folderId);
+		if (before != null && beforeId == null)
+			throw new ObjectNotFoundException("No file specified");
+		return dao.getFilesByModificationDate(folderId, userId, ignoreDeleted, before, beforeId, max);
+	}
+
+	/**
+	 * Check that the specified user can read the specified folder.
+	 */
+	private void checkFolderReadable(Long userId, Long folderId)
+			throws ObjectNotFoundException, InsufficientPermissionsException {
+		if (userId == null)
+			throw new ObjectNotFoundException("No user specified");
+		if (folderId == null)
+			throw new ObjectNotFoundException("No folder specified");
+		User user = dao.getEntityById(User.class, userId);
+		Folder folder = dao.getEntityById(Folder.class, folderId);
+		if (!folder.hasReadPermission(user, getGroupIds(user)))
+			throw new InsufficientPermissionsException("You don't have the permissions to read this folder");
+	}
+
 	@Override
 	public List<User> getUsers(final Long userId, final Long groupId) throws ObjectNotFoundException {
 		// Validate.
@@ -273,7 +338,7 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 			// Supply a more accurate problem description.
 			throw new ObjectNotFoundException("Parent folder not found");
 		}
-		if (!parent.hasWritePermission(creator))
+		if (!parent.hasWritePermission(creator, getGroupIds(creator)))
 			throw new InsufficientPermissionsException("You don't have the permissions" +
 					" to write to this folder");
 
@@ -297,6 +362,8 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 			folder.setOwner(parent.getOwner());
 		} else
 			folder.setOwner(creator);
+		folder.updateTreePath();
+		pathCache.invalidate(folder.getOwner().getId(), folder.getTreePath());
 
 		Date now = new Date();
 		AuditInfo auditInfo = new AuditInfo();
@@ -347,32 +414,37 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 		if (parent == null)
 			throw new ObjectNotFoundException("Deleting the root folder is not allowed");
 		final User user = dao.getEntityById(User.class, userId);
-		if (!folder.hasDeletePermission(user)) {
+		if (!folder.hasDeletePermission(user, getGroupIds(user))) {
 			logger.info("User " + user.getId() + " cannot delete folder " + folder.getName() + "(" + folder.getId() + ")");
 			throw new InsufficientPermissionsException("User " + user.getId() + " cannot delete folder " + folder.getName() + "(" + folder.getId() + ")");
 		}
-		removeSubfolderFiles(folder);
+		pathCache.invalidateTree(folder.getOwner().getId(), folder.getTreePath());
+		removeFolderContents(folder);
 		parent.removeSubfolder(folder);
 		dao.delete(folder);
 		touchParentFolders(parent, user, new Date());
 	}
 
 	/**
-	 * Traverses the folder and deletes all actual files (file system)
-	 * regardless of permissions
+	 * Removes the files and subfolders of the folder regardless of
+	 * permissions, with bulk deletes over the whole tree instead of loading
+	 * it. The actual files (file system) are journaled for deletion and the
+	 * removed files are queued for removal from the search index. The folder
+	 * itself is left for the caller to remove.
 	 *
-	 * @param folder
+	 * @param folder the folder to empty
 	 */
-	private void removeSubfolderFiles(Folder folder) {
-		//remove files for all subfolders
-		for (Folder subfolder:folder.getSubfolders())
-			removeSubfolderFiles(subfolder);
-		//remove this folder's file bodies (actual files)
-		for (FileHeader file:folder.getFiles()) {
-			for (FileBody body:file.getBodies())
-				deleteActualFile(body.getStoredFilePath());
-			indexFile(file.getId(), true);
-		}
+	private void removeFolderContents(Folder folder) {
+		List<Long> folderIds = dao.getFolderTreeIds(folder.getId());
+		List<Long> fileIds = dao.getFileIdsInFolders(folderIds);
+		adjustUsage(folder.getOwner().getId(), -dao.getFileSizeInFolders(folderIds), -fileIds.size());
+		List<String> paths = dao.getStoredFilePathsInFolders(folderIds);
+		dao.flush();
+		dao.deleteFilesInFolders(folderIds);
+		// The folder itself comes last.
+		dao.deleteFolders(folderIds.subList(0, folderIds.size() - 1));
+		deleteActualFiles(paths);
+		indexFiles(fileIds, true);
 	}
 
 	@Override
@@ -385,12 +457,12 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 			throw new ObjectNotFoundException("No folder specified");
 		User user = dao.getEntityById(User.class, userId);
 		Folder folder = dao.getEntityById(Folder.class, folderId);
-		if (!folder.hasReadPermission(user))
+		if (!folder.hasReadPermission(user, getGroupIds(user)))
 			throw new InsufficientPermissionsException("You don't have the permissions to read this folder");
 		List<Folder> result = new ArrayList<Folder>();
-		if (folder.hasReadPermission(user))
+		if (folder.hasReadPermission(user, getGroupIds(user)))
 			for (Folder f : folder.getSubfolders())
-				if (f.hasReadPermission(user) && !f.isDeleted())
+				if (f.hasReadPermission(user, getGroupIds(user)) && !f.isDeleted())
 					result.add(f);
 		return result;
 	}
@@ -410,9 +482,9 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 
 		Folder folder = dao.getEntityById(Folder.class, folderId);
 		User user = dao.getEntityById(User.class, userId);
-		if (folderName != null && !folder.hasWritePermission(user))
+		if (folderName != null && !folder.hasWritePermission(user, getGroupIds(user)))
 			throw new InsufficientPermissionsException("You don't have the necessary permissions");
-		if(permissions != null && !permissions.isEmpty() && !folder.hasModifyACLPermission(user))
+		if(permissions != null && !permissions.isEmpty() && !folder.hasModifyACLPermission(user, getGroupIds(user)))
 			throw new InsufficientPermissionsException("You don't have the necessary permissions");
 		// Check permissions for making file public.
 		if (readForAll != null && !user.equals(folder.getOwner()))
@@ -425,7 +497,10 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 					throw new DuplicateNameException("A folder or file with the name '" + folderName + "' already exists at this level");
 
 			// Do the actual modification.
+			String oldPath = folder.getTreePath();
+			pathCache.invalidateTree(folder.getOwner().getId(), oldPath);
 			folder.setName(folderName);
+			updateTreePaths(folder, oldPath);
 		}
 		if (permissions != null)
 			setFolderPermissions(user, folder, permissions);
@@ -443,12 +518,14 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 		return folder;
 	}
 
-    private void indexFolder(Folder folder) {
-        for (FileHeader fh : folder.getFiles())
-            indexFile(fh.getId(), false);
-        for (Folder f : folder.getSubfolders())
-            indexFolder(f);
-    }
+	/**
+	 * Queue the files in the specified folder and its subfolders for
+	 * updating in the search index, so that the indexer processes each of
+	 * them in a transaction of its own.
+	 */
+	private void indexFolder(Folder folder) {
+		indexFiles(dao.getFileIdsInFolders(dao.getFolderTreeIds(folder.getId())), false);
+	}
 
 	@Override
 	public void createGroup(final Long userId, final String name) throws ObjectNotFoundException, DuplicateNameException {
@@ -495,6 +572,8 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 			for(FileHeader h : files){
 				h.getPermissions().removeAll(group.getPermissions());
 			}
+			for (User member : group.getMembers())
+				groupCache.invalidateUserOnCompletion(transactions, member.getId());
 			owner.removeSpecifiedGroup(group);
 			dao.delete(group);
 		}
@@ -505,9 +584,9 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 	public FileHeader createFile(Long userId, Long folderId, String name, String mimeType, InputStream stream)
 			throws DuplicateNameException, ObjectNotFoundException, GSSIOException,
 			InsufficientPermissionsException, QuotaExceededException {
-		File file = null;
+		StoredFile file = null;
 		try {
-			file = uploadFile(stream, userId);
+			file = uploadFile(stream, userId, mimeType);
 		} catch ( IOException ioe) {
 			// Supply a more accurate problem description.
 			throw new GSSIOException("Problem creating file",ioe);
@@ -519,10 +598,20 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 				logger.error("Unable to close InputStream on FileUpload:",e);
 			}
 		}
-		return createFile(userId, folderId, name, mimeType, file.length(), file.getAbsolutePath());
+		return createFile(userId, folderId, name, mimeType, file);
 	}
 
 	private void indexFile(Long fileId, boolean delete) {
+		indexFiles(Collections.singletonList(fileId), delete);
+	}
+
+	/**
+	 * Queue the specified files for updating or removing from the search
+	 * index, with a single connection to the indexing queue.
+	 */
+	private void indexFiles(List<Long> fileIds, boolean delete) {
+		if (fileIds.isEmpty())
+			return;
 		Connection qConn = null;
 		Session session = null;
 		MessageProducer sender = null;
@@ -534,10 +623,12 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 			session = qConn.createSession(false, Session.AUTO_ACKNOWLEDGE);
 			sender = session.createProducer(queue);
 
-			MapMessage map = session.createMapMessage();
-			map.setObject("id", fileId);
-			map.setBoolean("delete", delete);
-			sender.send(map);
+			for (Long fileId : fileIds) {
+				MapMessage map = session.createMapMessage();
+				map.setObject("id", fileId);
+				map.setBoolean("delete", delete);
+				sender.send(map);
+			}
 		}
 		catch (NamingException e) {
 			logger.error("Index was not updated: ", e);
@@ -563,28 +654,106 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 
 
 	/**
-	 * A helper method that generates a unique file path for a stored file. The
-	 * files are stored using random hash names that are distributed evenly in
-	 * a 2-level tree of subdirectories named after the first two hex characters
-	 * in the name. For example, file ab1234cd5769f will be stored in the path
-	 * /file-repository-root/a/b/ab1234cd5769f. The directories will be created
-	 * if they don't already exist.
+	 * Return the store that keeps the physical contents of file bodies.
+	 */
+	private BlobStore getBlobStore() {
+		return BlobStoreFactory.getBlobStore();
+	}
+
+	/**
+	 * Check whether the file repository is content-addressed, i.e. stored files
+	 * are named after the digest of their contents and identical uploads share
+	 * the same file.
+	 */
+	private boolean isContentAddressed() {
+		return getConfiguration().getBoolean("contentAddressedRepository", false);
+	}
+
+	/**
+	 * Open the contents of the specified file body, decompressing them if
+	 * they are stored compressed and reconstructing them from the newer
+	 * version they are based on if they are delta-encoded.
+	 *
+	 * @param body the file body
+	 * @return a stream with the file contents
+	 * @throws IOException if the contents could not be found or opened
+	 */
+	private InputStream openBody(FileBody body) throws IOException {
+		if (BlockCompression.CODEC.equals(body.getCodec()))
+			return BlockCompression.decompress(getBlobStore(), body.getStoredFilePath());
+		if (BinaryDelta.CODEC.equals(body.getCodec())) {
+			FileBody base;
+			try {
+				base = dao.getEntityById(FileBody.class, body.getDeltaBaseId());
+			} catch (ObjectNotFoundException e) {
+				throw new FileNotFoundException("Delta base of " + body.getStoredFilePath() + " not found");
+			}
+			// Deltas need random access to uncompressed base contents, so
+			// encoded bases are expanded to a temporary location first.
+			if (base.getCodec() == null)
+				return BinaryDelta.open(getBlobStore(), body.getStoredFilePath(), base.getStoredFilePath(), false);
+			InputStream in = openBody(base);
+			String expanded;
+			try {
+				expanded = getBlobStore().put(in);
+			} finally {
+				in.close();
+			}
+			return BinaryDelta.open(getBlobStore(), body.getStoredFilePath(), expanded, true);
+		}
+		return getBlobStore().open(body.getStoredFilePath());
+	}
+
+	/**
+	 * Replace the stored contents of the previous current body of a versioned
+	 * file with a delta against the new current body, if version deltas are
+	 * enabled and the delta is small enough. Every deltaKeyframeInterval-th
+	 * version is kept whole, to bound the work of reconstructing old versions.
+	 * Both versions are read in the current transaction, which is why version
+	 * deltas are disabled by default.
 	 *
-	 * @return a unique new file path
+	 * @param previous the previous current body
+	 * @param current the new current body
+	 * @param paths receives the stored file path that is no longer needed
 	 */
-	private String generateRepositoryFilePath() {
-		String filename = Long.toHexString(random.nextLong());
-		String fileRepositoryPath = getConfiguration().getString("fileRepositoryPath","/tmp");
-		File root = new File(fileRepositoryPath);
-		if (!root.exists())
-			root.mkdirs();
-		File firstFolder = new File(root + File.separator + filename.substring(0, 1));
-		if (!firstFolder.exists())
-			firstFolder.mkdir();
-		File secondFolder = new File(firstFolder + File.separator + filename.substring(1, 2));
-		if (!secondFolder.exists())
-			secondFolder.mkdir();
-		return secondFolder + File.separator + filename;
+	private void encodeVersionDelta(FileBody previous, FileBody current, List<String> paths) {
+		DataConfiguration conf = getConfiguration();
+		if (!conf.getBoolean("versionDeltas", false))
+			return;
+		if (BinaryDelta.CODEC.equals(previous.getCodec()))
+			return;
+		int interval = conf.getInt("deltaKeyframeInterval", 10);
+		if (interval > 0 && previous.getVersion() % interval == 0)
+			return;
+		// Large files are left alone, to keep the transaction short.
+		long maxSize = conf.getLong("deltaMaxSize", 256L * 1024 * 1024);
+		if (previous.getFileSize() > maxSize || current.getFileSize() > maxSize)
+			return;
+		long maxDeltaSize = (long) (previous.getFileSize() * conf.getDouble("deltaMaxRatio", 0.5));
+		try {
+			String location;
+			InputStream base = openBody(current);
+			try {
+				InputStream target = openBody(previous);
+				try {
+					location = BinaryDelta.store(getBlobStore(), base, target, maxDeltaSize);
+				} finally {
+					target.close();
+				}
+			} finally {
+				base.close();
+			}
+			if (location == null)
+				return;
+			paths.add(previous.getStoredFilePath());
+			previous.setStoredFilePath(location);
+			previous.setCodec(BinaryDelta.CODEC);
+			previous.setDeltaBaseId(current.getId());
+			previous.setStoredSize(getBlobStore().size(location));
+			previous.setVolume(getBlobStore().getVolume(location));
+		} catch (IOException e) {
+			logger.warn("Could not delta-encode " + previous.getStoredFilePath() + ", keeping it whole", e);
+		}
 	}
 
 	@Override
@@ -601,11 +770,15 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 		if (parent == null)
 			throw new ObjectNotFoundException("The specified file has no parent folder");
 		final User user = dao.getEntityById(User.class, userId);
-		if (!file.hasDeletePermission(user))
+		if (!file.hasDeletePermission(user, getGroupIds(user)))
 			throw new InsufficientPermissionsException("User " + user.getId() + " cannot delete file " + file.getName() + "(" + file.getId() + ")");
+		List<String> paths = new ArrayList<String>();
 		for (final FileBody body : file.getBodies())
-			deleteActualFile(body.getStoredFilePath());
+			paths.add(body.getStoredFilePath());
+		pathCache.invalidate(file.getOwner().getId(), file.getTreePath());
+		adjustUsage(file.getOwner().getId(), -file.getTotalSize(), -1);
 		dao.delete(file);
+		deleteActualFiles(paths);
 		touchParentFolders(parent, user, new Date());
 		indexFile(fileId, true);
 	}
@@ -614,9 +787,70 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 	public void deleteActualFile(String path) {
 		if (path == null)
 			return;
-		File file = new File(path);
-		if (!file.delete() && file.exists())
-			logger.error("Could not delete file " + path);
+		// The stored file is only journaled here, so that it is removed after
+		// the current transaction commits and never if it rolls back. The
+		// grace period lets uploads that already share the stored file, but
+		// are not committed yet, cancel the entry first.
+		Date now = new Date();
+		PendingDeletion deletion = new PendingDeletion();
+		deletion.setStoredFilePath(path);
+		deletion.setCreationDate(now);
+		deletion.setNextAttempt(new Date(now.getTime() + getConfiguration().getLong("reaperGracePeriod", 300) * 1000));
+		dao.create(deletion);
+	}
+
+	@Override
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public void discardActualFile(String path) {
+		deleteActualFile(path);
+	}
+
+	@Override
+	public void deleteActualFiles(List<String> paths) {
+		for (String path : new LinkedHashSet<String>(paths))
+			deleteActualFile(path);
+	}
+
+	@Override
+	public int reapDeletedFiles(int maxFiles) {
+		DataConfiguration conf = getConfiguration();
+		int maxAttempts = conf.getInt("reaperMaxAttempts", 10);
+		long retryDelay = conf.getLong("reaperRetryDelay", 60) * 1000;
+		Date now = new Date();
+		int reaped = 0;
+		for (PendingDeletion deletion : dao.getPendingDeletions(maxFiles, maxAttempts, now)) {
+			String path = deletion.getStoredFilePath();
+			// A body that starts sharing the stored file cancels the entry,
+			// so hold it until the file is removed.
+			if (!dao.lockPendingDeletion(deletion.getId())) {
+				reaped++;
+				continue;
+			}
+			// Bodies may share the same stored file, so only remove it when
+			// the last reference is gone.
+			if (dao.isStoredFileReferenced(path)) {
+				dao.delete(deletion);
+				reaped++;
+				continue;
+			}
+			if (getBlobStore().delete(path)) {
+				dao.delete(deletion);
+				reaped++;
+			} else {
+				deletion.recordFailedAttempt(now, retryDelay);
+				if (deletion.getAttempts() < maxAttempts)
+					logger.error("Could not delete file " + path + " (attempt " + deletion.getAttempts() + ")");
+				else
+					logger.error("Could not delete file " + path + ", giving up after " +
+								deletion.getAttempts() + " attempts");
+			}
+		}
+		return reaped;
+	}
+
+	@Override
+	public long getPendingDeletionCount() {
+		return dao.getPendingDeletionCount();
 	}
 
 	@Override
@@ -658,20 +892,22 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 
 		User user = dao.getEntityById(User.class, userId);
 		// Check permissions for modifying the file metadata.
-		if ((name != null || tagSet != null || modificationDate != null || versioned != null) && !file.hasWritePermission(user))
+		if ((name != null || tagSet != null || modificationDate != null || versioned != null) && !file.hasWritePermission(user, getGroupIds(user)))
 			throw new InsufficientPermissionsException("User " + user.getId() +	" cannot update file " + file.getName() + "(" +	file.getId() + ")");
 		// Check permissions for making file public.
 		if (readForAll != null && !user.equals(file.getOwner()))
 				throw new InsufficientPermissionsException("Only the owner can make a file public or not public");
 		// Check permissions for modifying the ACL.
-		if(permissions != null && !permissions.isEmpty() &&	!file.hasModifyACLPermission(user))
+		if(permissions != null && !permissions.isEmpty() &&	!file.hasModifyACLPermission(user, getGroupIds(user)))
 			throw new InsufficientPermissionsException("User " + user.getId() +	" cannot update the permissions on file " +	file.getName() + "(" + file.getId() + ")");
 
 		if (name != null) {
 			// Do plain check for file already exists.
 			// Extreme concurrency case should be caught by constraint violation later.
 			if (dao.existsFolderOrFile(parent.getId(), name)) throw new DuplicateNameException("A file or folder with the name '" + name + "' already exists");
+			pathCache.invalidate(file.getOwner().getId(), file.getTreePath());
 			file.setName(name);
+			file.updateTreePath();
 		}
 
 		if (modificationDate != null)
@@ -737,16 +973,16 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 
 		FileHeader header = dao.getEntityById(FileHeader.class, fileId);
 		User user = dao.getEntityById(User.class, userId);
-		if (!header.hasReadPermission(user)) {
+		if (!header.hasReadPermission(user, getGroupIds(user))) {
 			logger.info("User " + user.getId() + " cannot read file " + header.getName() + "(" + fileId + ")");
 			throw new InsufficientPermissionsException("You don't have the necessary permissions");
 		}
 
-		File f = new File(header.getCurrentBody().getStoredFilePath());
+		String path = header.getCurrentBody().getStoredFilePath();
 		try {
-			return new FileInputStream(f);
-		} catch (FileNotFoundException e) {
-			logger.error("Could not locate the contents of file " + f.getAbsolutePath());
+			return openBody(header.getCurrentBody());
+		} catch (IOException e) {
+			logger.error("Could not locate the contents of file " + path);
 			throw new ObjectNotFoundException("The file contents could not be located");
 		}
 	}
@@ -766,16 +1002,16 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 		final FileHeader header = dao.getEntityById(FileHeader.class, fileId);
 		final FileBody body = dao.getEntityById(FileBody.class, bodyId);
 		final User user = dao.getEntityById(User.class, userId);
-		if (!header.hasReadPermission(user)) {
+		if (!header.hasReadPermission(user, getGroupIds(user))) {
 			logger.info("User " + user.getId() + " cannot read file " + header.getName() + "(" + fileId + ")");
 			throw new InsufficientPermissionsException("You don't have the necessary permissions");
 		}
 
-		File f = new File(body.getStoredFilePath());
+		String path = body.getStoredFilePath();
 		try {
-			return new FileInputStream(f);
-		} catch (FileNotFoundException e) {
-			logger.error("Could not locate the contents of file " + f.getAbsolutePath());
+			return openBody(body);
+		} catch (IOException e) {
+			logger.error("Could not locate the contents of file " + path);
 			throw new ObjectNotFoundException("The file contents could not be located");
 		}
 	}
@@ -788,7 +1024,7 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 			throw new ObjectNotFoundException("No file specified");
 		final User user = dao.getEntityById(User.class, userId);
 		final FileHeader file = dao.getEntityById(FileHeader.class, fileId);
-		if (!file.hasReadPermission(user) && !file.getFolder().hasReadPermission(user))
+		if (!file.hasReadPermission(user, getGroupIds(user)) && !file.getFolder().hasReadPermission(user, getGroupIds(user)))
 			throw new InsufficientPermissionsException("You don't have the necessary permissions");
 		return file;
 	}
@@ -801,7 +1037,7 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 			throw new ObjectNotFoundException("No file specified");
 		User user = dao.getEntityById(User.class, userId);
 		FileHeader file = dao.getEntityById(FileHeader.class, fileId);
-		if (!file.hasReadPermission(user) && !file.getFolder().hasReadPermission(user))
+		if (!file.hasReadPermission(user, getGroupIds(user)) && !file.getFolder().hasReadPermission(user, getGroupIds(user)))
 			throw new InsufficientPermissionsException("You don't have the necessary permissions");
 		FileBody body = dao.getEntityById(FileBody.class, bodyId);
 		return body;
@@ -822,6 +1058,15 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 			pathElements.add(st.nextToken());
 		if (pathElements.size() < 1)
 			return getRootFolder(owner.getId());
+		String plainPath = '/' + StringUtils.join(pathElements, '/');
+		Object found = getCachedResource(owner.getId(), plainPath, ignoreDeleted);
+		if (found != null)
+			return found;
+		found = getResourceAtTreePath(owner.getId(), pathElements, ignoreDeleted);
+		if (found != null) {
+			cacheResource(owner.getId(), plainPath, found);
+			return found;
+		}
 		// Store the last element, since it requires special handling.
 		String lastElement = pathElements.remove(pathElements.size() - 1);
 		
@@ -849,9 +1094,167 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 				throw new ObjectNotFoundException("Resource not found");
 			resource = folder;
 		}
+		cacheResource(owner.getId(), plainPath, resource);
 		return resource;
 	}
-	
+
+	@Override
+	public List<ResourceMetadata> getResourcesAtPaths(Long userId, List<String> owners, List<String> paths,
+			int maxFiles) throws ObjectNotFoundException {
+		if (userId == null)
+			throw new ObjectNotFoundException("No user specified");
+		if (owners.size() != paths.size())
+			throw new IllegalArgumentException("Every path must have an owner");
+		User user = dao.getEntityById(User.class, userId);
+		Set<Long> groupIds = getGroupIds(user);
+		Map<String, User> ownersByName = new HashMap<String, User>();
+		List<ResourceMetadata> result = new ArrayList<ResourceMetadata>(paths.size());
+		for (int i = 0; i < paths.size(); i++) {
+			String username = owners.get(i);
+			if (!ownersByName.containsKey(username))
+				ownersByName.put(username, findUser(username));
+			User owner = ownersByName.get(username);
+			if (owner == null) {
+				result.add(new ResourceMetadata(null));
+				continue;
+			}
+			Object resource;
+			try {
+				resource = getResourceAtPath(owner.getId(), paths.get(i), false);
+			} catch (ObjectNotFoundException e) {
+				result.add(new ResourceMetadata(null));
+				continue;
+			}
+			ResourceMetadata metadata = new ResourceMetadata(resource);
+			if (resource instanceof Folder) {
+				Folder folder = (Folder) resource;
+				if (folder.hasReadPermission(user, groupIds)) {
+					metadata.setReadable(true);
+					folder.getSubfolders().size();
+					metadata.setFiles(dao.getFilesByName(folder.getId(), userId, false, null, maxFiles));
+					metadata.setPermissions(ownerPermissionsFirst(folder.getPermissions(), folder.getOwner()));
+				}
+			} else {
+				FileHeader file = (FileHeader) resource;
+				if (file.hasReadPermission(user, groupIds)) {
+					metadata.setReadable(true);
+					file.getFolder();
+					file.getFileTags().size();
+					metadata.setPermissions(ownerPermissionsFirst(file.getPermissions(), file.getOwner()));
+				}
+			}
+			result.add(metadata);
+		}
+		return result;
+	}
+
+	/**
+	 * Return the specified permissions in a new set, starting with those of
+	 * the specified owner.
+	 */
+	private Set<Permission> ownerPermissionsFirst(Set<Permission> perms, User owner) {
+		Set<Permission> result = new LinkedHashSet<Permission>();
+		for (Permission perm : perms)
+			if (perm.getUser() != null && perm.getUser().getId().equals(owner.getId()))
+				result.add(perm);
+		result.addAll(perms);
+		return result;
+	}
+
+	/**
+	 * Retrieve the resource cached for the specified path, after checking
+	 * that it is still found there. Stale entries are removed.
+	 *
+	 * @param ownerId the ID of the owner of the namespace
+	 * @param path the path with plain names
+	 * @param ignoreDeleted whether to ignore a deleted resource
+	 * @return the resource, or null if it was not cached
+	 */
+	private Object getCachedResource(Long ownerId, String path, boolean ignoreDeleted) {
+		ResourcePathCache.Entry entry = pathCache.get(ownerId, path);
+		if (entry == null)
+			return null;
+		try {
+			if (entry.isFolder()) {
+				Folder folder = dao.getEntityById(Folder.class, entry.getId());
+				if (!folder.isDeleted() && folder.getOwner().getId().equals(ownerId)
+						&& folder.getTreePath().equals(path + '/'))
+					return folder;
+			} else {
+				FileHeader file = dao.getEntityById(FileHeader.class, entry.getId());
+				if (!file.isDeleted() && file.getOwner().getId().equals(ownerId)
+						&& file.getTreePath().equals(path))
+					return file;
+			}
+		} catch (ObjectNotFoundException e) {
+			// The resource was removed.
+		}
+		pathCache.invalidate(ownerId, path);
+		return null;
+	}
+
+	/**
+	 * Cache the resource found at the specified path, unless it is deleted.
+	 */
+	private void cacheResource(Long ownerId, String path, Object resource) {
+		if (resource instanceof FileHeader) {
+			FileHeader file = (FileHeader) resource;
+			if (!file.isDeleted())
+				pathCache.put(ownerId, path, file.getId(), false);
+		} else if (resource instanceof Folder) {
+			Folder folder = (Folder) resource;
+			if (!folder.isDeleted())
+				pathCache.put(ownerId, path, folder.getId(), true);
+		}
+	}
+
+	/**
+	 * Retrieve the resource with the specified path elements from the
+	 * recorded tree paths, with a single lookup instead of one per element.
+	 * Returns null when the result cannot be determined from the recorded
+	 * paths, e.g. for resources created before paths were recorded, so that
+	 * the caller can traverse the path instead.
+	 *
+	 * @param ownerId the ID of the owner of the namespace
+	 * @param pathElements the names in the path, not empty
+	 * @param ignoreDeleted whether to ignore a deleted resource
+	 * @return the resource found, or null
+	 */
+	private Object getResourceAtTreePath(Long ownerId, List<String> pathElements, boolean ignoreDeleted) {
+		StringBuilder path = new StringBuilder("/");
+		List<String> ancestors = new ArrayList<String>();
+		for (int i = 0; i < pathElements.size(); i++) {
+			path.append(pathElements.get(i));
+			if (i < pathElements.size() - 1) {
+				path.append('/');
+				ancestors.add(path.toString());
+			}
+		}
+		if (path.length() >= Folder.MAX_TREE_PATH_LENGTH)
+			return null;
+		Object resource = null;
+		try {
+			FileHeader file = dao.getFileByTreePath(ownerId, path.toString());
+			if (!ignoreDeleted || !file.isDeleted())
+				resource = file;
+		} catch (ObjectNotFoundException e) {
+			// Perhaps the requested resource is not a file.
+		}
+		if (resource == null)
+			try {
+				Folder folder = dao.getFolderByTreePath(ownerId, path.append('/').toString());
+				if (!ignoreDeleted || !folder.isDeleted())
+					resource = folder;
+			} catch (ObjectNotFoundException e) {
+				return null;
+			}
+		// Every intermediate folder must be recorded and not deleted,
+		// otherwise let the traversal decide.
+		if (resource == null || dao.countLiveFoldersByTreePath(ownerId, ancestors) != ancestors.size())
+			return null;
+		return resource;
+	}
+
 	@Override
 	public Object getResourceAtPathOthersShared(Long ownerId, String path, boolean ignoreDeleted, Long userId)
 			throws ObjectNotFoundException {
@@ -961,14 +1364,14 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 	}
 
 	private FileHeader updateFileContents(Long userId, Long fileId, String mimeType, InputStream resourceInputStream) throws ObjectNotFoundException, GSSIOException, InsufficientPermissionsException, QuotaExceededException {
-		File file = null;
+		StoredFile file = null;
 		try {
-			file = uploadFile(resourceInputStream, userId);
+			file = uploadFile(resourceInputStream, userId, mimeType);
 		} catch ( IOException ioe) {
 			// Supply a more accurate problem description.
 			throw new GSSIOException("Problem creating file",ioe);
 		}
-		return updateFileContents(userId, fileId, mimeType, file.length(), file.getAbsolutePath());
+		return updateFileContents(userId, fileId, mimeType, file);
 	}
 
 	@Override
@@ -1019,33 +1422,55 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 		FileHeader file = dao.getEntityById(FileHeader.class, fileId);
 		Folder destination = dao.getEntityById(Folder.class, destId);
 		User user = dao.getEntityById(User.class, userId);
-		if (!file.hasReadPermission(user) || !destination.hasWritePermission(user))
+		if (!file.hasReadPermission(user, getGroupIds(user)) || !destination.hasWritePermission(user, getGroupIds(user)))
 			throw new InsufficientPermissionsException("You don't have the necessary permissions");
-		boolean versioned = file.isVersioned();
-		int versionsNumber = file.getBodies().size();
-		FileBody oldestBody = file.getBodies().get(0);
-		assert oldestBody != null;
-		File contents = new File(oldestBody.getStoredFilePath());
-		try {
-			createFile(user.getId(), destination.getId(), destName, oldestBody.getMimeType(), new FileInputStream(contents));
-			FileHeader copiedFile = dao.getFile(destination.getId(), destName);
-			copiedFile.setVersioned(versioned);
-			dao.flush();
-			if (versionsNumber > 1)
-				for (int i = 1; i < versionsNumber; i++) {
-					FileBody body = file.getBodies().get(i);
-					assert body != null;
-					contents = new File(body.getStoredFilePath());
-					updateFileContents(user.getId(), copiedFile.getId(), body.getMimeType(), new FileInputStream(contents));
-				}
-			List<FileTag> tags = file.getFileTags();
-			for (FileTag tag : tags)
-				createTag(userId, copiedFile.getId(), tag.getTag());
-
-		} catch (FileNotFoundException e) {
-			throw new ObjectNotFoundException("File contents not found for file " + contents.getAbsolutePath());
-		}
+		if (dao.existsFolderOrFile(destination.getId(), destName))
+			throw new DuplicateNameException("A folder or file with the name '" + destName +
+						"' already exists at this level");
+		// The copy shares the stored files of the original, since they are
+		// never modified in place, but its bodies are still charged to the
+		// owner of the destination.
+		if (getQuotaLeft(destination.getOwner().getId()) < file.getTotalSize())
+			throw new QuotaExceededException("Not enough free space available");
 
+		FileHeader copiedFile = createFileHeader(user, destination, destName);
+		copiedFile.setVersioned(file.isVersioned());
+		dao.flush();
+		Map<Long, FileBody> copiedBodies = new HashMap<Long, FileBody>();
+		for (FileBody body : file.getBodies()) {
+			String contents = body.getStoredFilePath();
+			if (!getBlobStore().exists(contents))
+				throw new ObjectNotFoundException("File contents not found for file " + contents);
+			FileBody copiedBody = new FileBody();
+			copiedBody.setMimeType(body.getMimeType());
+			copiedBody.setOriginalFilename(body.getOriginalFilename());
+			copiedBody.setFileSize(body.getFileSize());
+			copiedBody.setStoredFilePath(contents);
+			copiedBody.setContentDigest(body.getContentDigest());
+			copiedBody.setVolume(body.getVolume());
+			copiedBody.setCodec(body.getCodec());
+			copiedBody.setStoredSize(body.getStoredSize());
+			AuditInfo auditInfo = new AuditInfo();
+			auditInfo.setCreatedBy(user);
+			auditInfo.setCreationDate(copiedFile.getAuditInfo().getCreationDate());
+			auditInfo.setModifiedBy(user);
+			auditInfo.setModificationDate(copiedFile.getAuditInfo().getModificationDate());
+			copiedBody.setAuditInfo(auditInfo);
+			copiedFile.addBody(copiedBody);
+			dao.create(copiedBody);
+			copiedBodies.put(body.getId(), copiedBody);
+		}
+		// Delta-encoded versions must be based on the copied versions.
+		dao.flush();
+		for (FileBody body : file.getBodies())
+			if (body.getDeltaBaseId() != null)
+				copiedBodies.get(body.getId()).setDeltaBaseId(copiedBodies.get(body.getDeltaBaseId()).getId());
+		adjustUsage(copiedFile.getOwner().getId(), copiedFile.getTotalSize(), 0);
+		for (FileTag tag : file.getFileTags())
+			user.addTag(copiedFile, tag.getTag());
+		touchParentFolders(destination, user, new Date());
+		dao.flush();
+		indexFile(copiedFile.getId(), false);
 	}
 
 	@Override
@@ -1077,7 +1502,7 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 		Folder folder = dao.getEntityById(Folder.class, folderId);
 		Folder destination = dao.getEntityById(Folder.class, destId);
 		User user = dao.getEntityById(User.class, userId);
-		if (!destination.hasWritePermission(user) || !folder.hasReadPermission(user))
+		if (!destination.hasWritePermission(user, getGroupIds(user)) || !folder.hasReadPermission(user, getGroupIds(user)))
 			throw new InsufficientPermissionsException("You don't have the necessary permissions");
 		createFolder(user.getId(), destination.getId(), destName);
 	}
@@ -1116,11 +1541,11 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 		final User user = dao.getEntityById(User.class, userId);
 		// XXX: quick fix need to copy only visible items to user (Source
 		// for bugs)
-		if (!folder.getOwner().getId().equals(userId) && !folder.hasReadPermission(user))
+		if (!folder.getOwner().getId().equals(userId) && !folder.hasReadPermission(user, getGroupIds(user)))
 			return;
 		if(folder.isDeleted())//do not copy trashed folder and contents
 			return;
-		if (!destination.hasWritePermission(user) || !folder.hasReadPermission(user))
+		if (!destination.hasWritePermission(user, getGroupIds(user)) || !folder.hasReadPermission(user, getGroupIds(user)))
 			throw new InsufficientPermissionsException("You don't have the necessary permissions");
 		createFolder(user.getId(), destination.getId(), destName);
 		Folder createdFolder = dao.getFolder(destination.getId(), destName);
@@ -1198,11 +1623,12 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 			throw new ObjectNotFoundException("The specified file has no parent folder");
 		User user = dao.getEntityById(User.class, userId);
         trashFile(user, file);
+        pathCache.invalidate(file.getOwner().getId(), file.getTreePath());
         touchParentFolders(parent, user, new Date());
 	}
 
     private void trashFile(User user, FileHeader file) throws InsufficientPermissionsException {
-        if (!file.hasDeletePermission(user))
+        if (!file.hasDeletePermission(user, getGroupIds(user)))
             throw new InsufficientPermissionsException("User " + user.getId() + " cannot delete file " + file.getName() + "(" + file.getId() + ")");
 
         file.setDeleted(true);
@@ -1242,8 +1668,9 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 		Folder destination = dao.getEntityById(Folder.class, destId);
 
 		User owner = dao.getEntityById(User.class, userId);
-		if (!file.hasDeletePermission(owner) || !destination.hasWritePermission(owner))
+		if (!file.hasDeletePermission(owner, getGroupIds(owner)) || !destination.hasWritePermission(owner, getGroupIds(owner)))
 			throw new InsufficientPermissionsException("User " + owner.getId() + " cannot move file " + file.getName() + "(" + file.getId() + ")");
+		pathCache.invalidate(file.getOwner().getId(), file.getTreePath());
 
 		// if the destination folder belongs to another user:
 		if (!file.getOwner().equals(destination.getOwner())) {
@@ -1252,6 +1679,8 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 				throw new QuotaExceededException("Not enough free space available");
 			User newOwner = destination.getOwner();
 			// (b) if quota OK, change the owner of the file
+			adjustUsage(file.getOwner().getId(), -file.getTotalSize(), -1);
+			adjustUsage(newOwner.getId(), file.getTotalSize(), 1);
 			file.setOwner(newOwner);
 			// if the file has no permission for the new owner, add it
 			Permission ownerPermission = null;
@@ -1272,6 +1701,7 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 		}
 		// move the file to the destination folder
 		file.setFolder(destination);
+		file.updateTreePath();
 		touchParentFolders(source, owner, new Date());
 		touchParentFolders(destination, owner, new Date());
 	}
@@ -1307,47 +1737,73 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 		if (source.isDeleted())
 			return;
 		// Check permissions.
-		if (!destination.hasWritePermission(user)
-				|| !source.hasReadPermission(user)
-				|| !source.hasWritePermission(user))
+		if (!destination.hasWritePermission(user, getGroupIds(user))
+				|| !source.hasReadPermission(user, getGroupIds(user))
+				|| !source.hasWritePermission(user, getGroupIds(user)))
 			throw new InsufficientPermissionsException("You don't have the " +
 					"necessary permissions");
 		// Use the same timestamp for all subsequent modifications to make
 		// changes appear simultaneous.
 		Date now = new Date();
+		pathCache.invalidateTree(sourceOwner.getId(), source.getTreePath());
+		// Perform the move, rewriting the paths of the moved tree before its
+		// owner changes.
+		Folder oldParent = source.getParent();
+		String oldPath = source.getTreePath();
+		oldParent.removeSubfolder(source);
+		destination.addSubfolder(source);
+		updateTreePaths(source, oldPath);
 		// If source and destination are not in the same user's namespace,
 		// change owners and check quota.
 		if (!sourceOwner.equals(destinationOwner)) {
-			changeOwner(source, destinationOwner, user, now);
+			List<Long> folderIds = dao.getFolderTreeIds(source.getId());
+			long bytes = dao.getFileSizeInFolders(folderIds);
+			long files = dao.getFileIdsInFolders(folderIds).size();
+			adjustUsage(sourceOwner.getId(), -bytes, -files);
+			adjustUsage(destinationOwner.getId(), bytes, files);
+			changeOwner(source, folderIds, destinationOwner, user, now);
 			if (getQuotaLeft(destinationOwner.getId()) < 0)
 				throw new QuotaExceededException("Not enough free space " +
 						"available in destination folder");
 		}
-		// Perform the move.
-		Folder oldParent = source.getParent();
-		oldParent.removeSubfolder(source);
-		destination.addSubfolder(source);
 		// Mark the former parent and destination trees upwards as modified.
 		touchParentFolders(oldParent, user, now);
 		touchParentFolders(source, user, now);
 	}
 
 	/**
-	 * Recursively change the owner of the specified folder and all of its
-	 * contents to the specified owner. Also mark them all as modified with the
-	 * specified modifier and modificationDate.
+	 * Record the new path of the specified folder after it was renamed or
+	 * moved, and replace the old path in the recorded paths of its contents,
+	 * without loading them.
+	 *
+	 * @param folder the renamed or moved folder, already attached to its new parent
+	 * @param oldPath the path of the folder before the change
 	 */
-	private void changeOwner(Folder folder, User owner, User modifier, Date modificationDate) {
-		for (FileHeader file: folder.getFiles()) {
-			file.setOwner(owner);
-			file.getAuditInfo().setModificationDate(modificationDate);
-			file.getAuditInfo().setModifiedBy(modifier);
-		}
-		for (Folder sub: folder.getSubfolders())
-			changeOwner(sub, owner, modifier, modificationDate);
+	private void updateTreePaths(Folder folder, String oldPath) {
+		folder.updateTreePath();
+		String newPath = folder.getTreePath();
+		if (newPath.equals(oldPath))
+			return;
+		// Write pending changes first, since the bulk update bypasses them.
+		dao.flush();
+		dao.updateTreePaths(folder.getId(), oldPath, newPath);
+	}
+
+	/**
+	 * Change the owner of the specified folder and all of its contents to the
+	 * specified owner, with bulk updates over the folder tree. Also mark them
+	 * all as modified with the specified modifier and modificationDate.
+	 *
+	 * @param folder the top folder
+	 * @param folderIds the IDs of the folder and all of its subfolders
+	 */
+	private void changeOwner(Folder folder, List<Long> folderIds, User owner, User modifier, Date modificationDate) {
+		// The top folder is already loaded, so keep it in step with the bulk update.
 		folder.setOwner(owner);
 		folder.getAuditInfo().setModificationDate(modificationDate);
 		folder.getAuditInfo().setModifiedBy(modifier);
+		dao.flush();
+		dao.setOwnerInFolders(folderIds, owner, modifier, modificationDate);
 	}
 
 	@Override
@@ -1376,11 +1832,12 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 			throw new ObjectNotFoundException("The specified file has no parent folder");
 		User user = dao.getEntityById(User.class, userId);
         untrashFile(user, file);
+        pathCache.invalidate(file.getOwner().getId(), file.getTreePath());
 		touchParentFolders(parent, user, new Date());
 	}
 
     private void untrashFile(User user, FileHeader file) throws InsufficientPermissionsException {
-        if (!file.hasDeletePermission(user))
+        if (!file.hasDeletePermission(user, getGroupIds(user)))
             throw new InsufficientPermissionsException("User " + user.getUsername() +
                         " cannot restore file " + file.getName());
 
@@ -1396,17 +1853,25 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
         Folder folder = dao.getEntityById(Folder.class, folderId);
         User user = dao.getEntityById(User.class, userId);
         trashFolder(user, folder);
+        pathCache.invalidateTree(folder.getOwner().getId(), folder.getTreePath());
         touchParentFolders(folder, user, new Date());
 	}
 
     private void trashFolder(User user, Folder folder) throws ObjectNotFoundException, InsufficientPermissionsException {
-        if (!folder.hasDeletePermission(user))
+        if (!folder.hasDeletePermission(user, getGroupIds(user)))
             throw new InsufficientPermissionsException("You don't have the necessary permissions");
-        folder.setDeleted(true);
-        for (FileHeader file : folder.getFiles())
-            trashFile(user, file);
-        for (Folder subFolder : folder.getSubfolders())
-            trashFolder(user, subFolder);
+        setFolderTreeDeleted(folder, true);
+    }
+
+    /**
+     * Set the deleted flag of the specified folder and everything in it, with
+     * bulk updates over the folder tree instead of loading it.
+     */
+    private void setFolderTreeDeleted(Folder folder, boolean deleted) {
+        // The top folder is already loaded, so keep it in step with the bulk update.
+        folder.setDeleted(deleted);
+        dao.flush();
+        dao.setDeletedInFolders(dao.getFolderTreeIds(folder.getId()), deleted);
     }
 
 	@Override
@@ -1419,18 +1884,15 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 		Folder folder = dao.getEntityById(Folder.class, folderId);
 		User user = dao.getEntityById(User.class, userId);
         untrashFolder(user, folder);
+        pathCache.invalidateTree(folder.getOwner().getId(), folder.getTreePath());
 		touchParentFolders(folder, user, new Date());
 	}
 
     private void untrashFolder(User user, Folder folder) throws ObjectNotFoundException, InsufficientPermissionsException {
-        if (!folder.hasDeletePermission(user))
+        if (!folder.hasDeletePermission(user, getGroupIds(user)))
             throw new InsufficientPermissionsException("User " + user.getUsername() +
                         " cannot restore folder " + folder.getName());
-        folder.setDeleted(false);
-        for (FileHeader file : folder.getFiles())
-            untrashFile(user, file);
-        for (Folder subFolder : folder.getSubfolders())
-            untrashFolder(user, subFolder);
+        setFolderTreeDeleted(folder, false);
     }
 
 	@Override
@@ -1486,6 +1948,10 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 		dao.create(user);
 		// Make sure we get an ID in the user object.
 		dao.flush();
+		UserUsage usage = new UserUsage();
+		usage.setUserId(user.getId());
+		usage.setReconciled(new Date());
+		dao.create(usage);
 		// Create the root folder for the user.
 		createFolder(user.getName(), null, user);
 		return user;
@@ -1526,6 +1992,7 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 	@Override
 	public void updateUser(User user) {
 		dao.update(user);
+		AuthenticationCache.getInstance().invalidateOnCompletion(transactions, user.getUsername());
 	}
 
 	@Override
@@ -1541,6 +2008,7 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 			throw new ObjectNotFoundException("No user specified");
 		User user = dao.getEntityById(User.class, userId);
 		user.generateAuthToken();
+		AuthenticationCache.getInstance().invalidateOnCompletion(transactions, user.getUsername());
 		return user;
 	}
 
@@ -1552,18 +2020,9 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 			throw new ObjectNotFoundException("No folder specified");
 		User user = dao.getEntityById(User.class, userId);
 		Folder folder = dao.getEntityById(Folder.class, folderId);
-		if(!folder.hasReadPermission(user))
+		if(!folder.hasReadPermission(user, getGroupIds(user)))
 			throw new InsufficientPermissionsException("You don't have the necessary permissions");
-		Set<Permission> perms = folder.getPermissions();
-		Set<Permission> result = new LinkedHashSet<Permission>();
-		for (Permission perm : perms)
-			if (perm.getUser() != null && perm.getUser().getId().equals(folder.getOwner().getId()))
-				result.add(perm);
-		for (Permission perm : perms)
-			if (perm.getUser() != null && perm.getUser().getId().equals(folder.getOwner().getId())) {
-			} else
-				result.add(perm);
-		return result;
+		return ownerPermissionsFirst(folder.getPermissions(), folder.getOwner());
 
 	}
 
@@ -1598,14 +2057,13 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 				folder.addPermission(getPermission(p));
 			}
 			dao.update(folder);
-			for (FileHeader file : folder.getFiles()) {
-				setFilePermissions(file, permissions);
-				Date now = new Date();
-				file.getAuditInfo().setModificationDate(now);
-				file.getAuditInfo().setModifiedBy(user);
-			}
-			for (Folder sub : folder.getSubfolders())
-				setFolderPermissions(user, sub, permissions);
+			// Copy the new permissions to the whole tree with bulk statements,
+			// since everything in it has the same owner.
+			List<Long> folderIds = dao.getFolderTreeIds(folder.getId());
+			dao.flush();
+			dao.replaceFilePermissions(folderIds, folder.getPermissions(), user, new Date());
+			// The folder itself comes last.
+			dao.replaceFolderPermissions(folderIds.subList(0, folderIds.size() - 1), folder.getPermissions());
 		}
 	}
 
@@ -1651,6 +2109,7 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 			throw new DuplicateNameException("User already exists in group");
 		group.getMembers().add(userToAdd);
 		dao.update(group);
+		groupCache.invalidateUserOnCompletion(transactions, userToAddId);
 
 	}
 
@@ -1660,6 +2119,7 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 			throw new ObjectNotFoundException("No user specified");
 		User user = dao.getEntityById(User.class, userId);
 		user.invalidateAuthToken();
+		AuthenticationCache.getInstance().invalidateOnCompletion(transactions, user.getUsername());
 		return;
 	}
 
@@ -1692,6 +2152,7 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 			throw new InsufficientPermissionsException("User is not the owner of the group");
 		group.removeMemberFromGroup(member);
 		dao.update(group);
+		groupCache.invalidateUserOnCompletion(transactions, memberId);
 
 	}
 
@@ -1716,18 +2177,9 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 			throw new ObjectNotFoundException("No folder specified");
 		User user = dao.getEntityById(User.class, userId);
 		FileHeader folder = dao.getEntityById(FileHeader.class, fileId);
-		if(!folder.hasReadPermission(user))
+		if(!folder.hasReadPermission(user, getGroupIds(user)))
 			throw new InsufficientPermissionsException("You don't have the necessary permissions");
-		Set<Permission> perms = folder.getPermissions();
-		Set<Permission> result = new LinkedHashSet<Permission>();
-		for (Permission perm : perms)
-			if (perm.getUser() != null && perm.getUser().getId().equals(folder.getOwner().getId()))
-				result.add(perm);
-		for (Permission perm : perms)
-			if (perm.getUser() != null && perm.getUser().getId().equals(folder.getOwner().getId())) {
-			} else
-				result.add(perm);
-		return result;
+		return ownerPermissionsFirst(folder.getPermissions(), folder.getOwner());
 	}
 
 	/**
@@ -1873,15 +2325,15 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 		List<FileHeader> result = new ArrayList<FileHeader>();
 		try {
 			CommonsHttpSolrServer solr = new CommonsHttpSolrServer(getConfiguration().getString("solr.url"));
-            List<Group> groups = dao.getGroupsContainingUser(userId);
+            Set<Long> groupIds = dao.getGroupIdsForUser(userId);
             String escapedQuery = luceneQuery ? normalizeSearchQuery(query) : escapeCharacters(normalizeSearchQuery(query));
             String constructedQuery =  escapedQuery + " AND (public: true OR ureaders: " + userId;
-            if (!groups.isEmpty()) {
+            if (!groupIds.isEmpty()) {
                 constructedQuery += " OR (";
-                for (int i=0; i<groups.size(); i++) {
-                    Group g = groups.get(i);
-                    constructedQuery += "greaders :" + g.getId();
-                    if (i < groups.size() - 1)
+                Iterator<Long> i = groupIds.iterator();
+                while (i.hasNext()) {
+                    constructedQuery += "greaders :" + i.next();
+                    if (i.hasNext())
                         constructedQuery += " OR ";
                 }
                 constructedQuery += ")";
@@ -1977,8 +2429,15 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 		if (userId == null)
 			throw new ObjectNotFoundException("No user specified");
 		StatsDTO stats = new StatsDTO();
-		stats.setFileCount(dao.getFileCount(userId));
-		Long fileSize = dao.getFileSize(userId);
+		UserUsage usage = dao.getUsage(userId);
+		Long fileSize;
+		if (usage == null) {
+			stats.setFileCount(dao.getFileCount(userId));
+			fileSize = dao.getFileSize(userId);
+		} else {
+			stats.setFileCount(usage.getFileCount());
+			fileSize = usage.getBytesUsed();
+		}
 		stats.setFileSize(fileSize);
 		Long quota = getQuota(userId);
 		Long quotaLeft = quota - fileSize;
@@ -1994,14 +2453,12 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 			throw new ObjectNotFoundException("No file specified");
 		User user = dao.getEntityById(User.class, userId);
 		FileHeader header = dao.getEntityById(FileHeader.class, fileId);
-		if(!header.hasWritePermission(user))
+		if(!header.hasWritePermission(user, getGroupIds(user)))
 			throw new InsufficientPermissionsException("You don't have the necessary permissions");
 		FileBody body = dao.getFileVersion(fileId, version);
-		final File fileContents = new File(body.getStoredFilePath());
-
 		try {
-			updateFileContents(userId, fileId, body.getMimeType(), new FileInputStream(fileContents) );
-		} catch (FileNotFoundException e) {
+			updateFileContents(userId, fileId, body.getMimeType(), openBody(body));
+		} catch (IOException e) {
 			throw new GSSIOException(e);
 		}
 
@@ -2018,17 +2475,21 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 			throw new ObjectNotFoundException("No file specified");
 		User user = dao.getEntityById(User.class, userId);
 		FileHeader header = dao.getEntityById(FileHeader.class, fileId);
-		if(!header.hasWritePermission(user))
+		if(!header.hasWritePermission(user, getGroupIds(user)))
 			throw new InsufficientPermissionsException("You don't have the necessary permissions");
+		List<String> paths = new ArrayList<String>();
+		long previousTotalSize = header.getTotalSize();
 		Iterator<FileBody> it = header.getBodies().iterator();
 		while(it.hasNext()){
 			FileBody body = it.next();
 			if(!body.equals(header.getCurrentBody())){
-				deleteActualFile(body.getStoredFilePath());
+				paths.add(body.getStoredFilePath());
 				it.remove();
 				dao.delete(body);
 			}
 		}
+		adjustUsage(header.getOwner().getId(), header.getTotalSize() - previousTotalSize, 0);
+		deleteActualFiles(paths);
 		header.getCurrentBody().setVersion(1);
 
 		Folder parent = header.getFolder();
@@ -2039,11 +2500,61 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 	 * Gets the quota left for specified user ID.
 	 */
 	private Long getQuotaLeft(Long userId) throws ObjectNotFoundException{
-		Long fileSize = dao.getFileSize(userId);
+		UserUsage usage = dao.getUsage(userId);
+		Long fileSize = usage == null ? dao.getFileSize(userId) : usage.getBytesUsed();
 		Long quota = getQuota(userId);
 		return quota - fileSize;
 	}
 
+	/**
+	 * Retrieve the IDs of the groups the specified user is a member of, for
+	 * checking permissions without loading the members of every group in an
+	 * ACL.
+	 */
+	private Set<Long> getGroupIds(User user) {
+		return dao.getGroupIdsForUser(user.getId());
+	}
+
+	/**
+	 * Add the specified amounts to the storage usage counters of a user. The
+	 * counters are changed in the current transaction, so they are rolled
+	 * back along with the changes they account for.
+	 */
+	private void adjustUsage(Long userId, long bytes, long files) {
+		if (bytes != 0 || files != 0)
+			dao.addUsage(userId, bytes, files);
+	}
+
+	@Override
+	public List<Long> getUsersForUsageReconciliation(int maxUsers) {
+		return dao.getUsersForUsageReconciliation(maxUsers);
+	}
+
+	@Override
+	public void reconcileUsage(Long userId) {
+		// Changes committed after the lock is taken wait for this transaction,
+		// so they are neither counted twice nor lost.
+		boolean exists = dao.lockUsage(userId);
+		long bytes = dao.getFileSize(userId);
+		long files = dao.getFileCount(userId);
+		UserUsage usage;
+		if (exists) {
+			usage = dao.getUsage(userId);
+			if (usage.getBytesUsed() != bytes || usage.getFileCount() != files)
+				logger.info("Correcting usage of user " + userId + " from " + usage.getBytesUsed() +
+						" bytes in " + usage.getFileCount() + " files to " + bytes + " bytes in " +
+						files + " files");
+		} else {
+			usage = new UserUsage();
+			usage.setUserId(userId);
+		}
+		usage.setBytesUsed(bytes);
+		usage.setFileCount(files);
+		usage.setReconciled(new Date());
+		if (!exists)
+			dao.create(usage);
+	}
+
 	/**
 	 * Gets the quota for specified user ID.
 	 */
@@ -2138,7 +2649,7 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
     }
 
     @Override
-	public FileHeader createFile(Long userId, Long folderId, String name, String mimeType, long fileSize, String filePath)
+	public FileHeader createFile(Long userId, Long folderId, String name, String mimeType, StoredFile contents)
 			throws DuplicateNameException, ObjectNotFoundException, GSSIOException,
 			InsufficientPermissionsException, QuotaExceededException {
 		// Validate.
@@ -2164,21 +2675,50 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 			throw new ObjectNotFoundException("Parent folder not found");
 		}
 		final User owner = dao.getEntityById(User.class, userId);
-		if (!parent.hasWritePermission(owner))
+		if (!parent.hasWritePermission(owner, getGroupIds(owner)))
 			throw new InsufficientPermissionsException("You don't have the permissions to write to this folder");
+		final FileHeader file = createFileHeader(owner, parent, name);
+		final AuditInfo auditInfo = file.getAuditInfo();
+
+		// Create the file body.
+		try {
+			createFileBody(name, contentType, contents, file, auditInfo);
+		} catch (FileNotFoundException e) {
+			throw new GSSIOException(e);
+		}
+		touchParentFolders(parent, owner, new Date());
+		dao.flush();
+		indexFile(file.getId(), false);
+
+		return file;
+	}
+
+	/**
+	 * Helper method to create a new file header in the specified folder, owned
+	 * by the folder owner and inheriting its permissions. The caller is
+	 * responsible for attaching a body to it.
+	 *
+	 * @param user the user creating the file
+	 * @param parent the parent folder
+	 * @param name the name of the file
+	 * @return the new file header
+	 */
+	private FileHeader createFileHeader(User user, Folder parent, String name) {
 		final FileHeader file = new FileHeader();
 		file.setName(name);
 		parent.addFile(file);
+		file.updateTreePath();
 		// set file owner to folder owner
 		file.setOwner(parent.getOwner());
+		adjustUsage(file.getOwner().getId(), 0, 1);
 		//set file's readForAll value according to parent folder readForAll value
 		file.setReadForAll(parent.isReadForAll());
 
 		final Date now = new Date();
 		final AuditInfo auditInfo = new AuditInfo();
-		auditInfo.setCreatedBy(owner);
+		auditInfo.setCreatedBy(user);
 		auditInfo.setCreationDate(now);
-		auditInfo.setModifiedBy(owner);
+		auditInfo.setModifiedBy(user);
 		auditInfo.setModificationDate(now);
 		file.setAuditInfo(auditInfo);
 		// TODO set the proper versioning flag on creation
@@ -2193,22 +2733,11 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 			permission.setModifyACL(p.getModifyACL());
 			file.addPermission(permission);
 		}
-
-		// Create the file body.
-		try {
-			createFileBody(name, contentType, fileSize, filePath, file, auditInfo);
-		} catch (FileNotFoundException e) {
-			throw new GSSIOException(e);
-		}
-		touchParentFolders(parent, owner, new Date());
-		dao.flush();
-		indexFile(file.getId(), false);
-
 		return file;
 	}
 
 	@Override
-	public FileHeader updateFileContents(Long userId, Long fileId, String mimeType, long fileSize, String filePath) throws ObjectNotFoundException, GSSIOException, InsufficientPermissionsException, QuotaExceededException {
+	public FileHeader updateFileContents(Long userId, Long fileId, String mimeType, StoredFile contents) throws ObjectNotFoundException, GSSIOException, InsufficientPermissionsException, QuotaExceededException {
 		if (userId == null)
 			throw new ObjectNotFoundException("No user specified");
 		if (fileId == null)
@@ -2224,7 +2753,7 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 			contentType = identifyMimeType(file.getName());
 
 		final User owner = dao.getEntityById(User.class, userId);
-		if (!file.hasWritePermission(owner))
+		if (!file.hasWritePermission(owner, getGroupIds(owner)))
 			throw new InsufficientPermissionsException("You don't have the necessary permissions");
 		final Date now = new Date();
 		final AuditInfo auditInfo = new AuditInfo();
@@ -2233,7 +2762,7 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 		auditInfo.setModifiedBy(owner);
 		auditInfo.setModificationDate(now);
 		try {
-			createFileBody(file.getName(), contentType, fileSize, filePath, file, auditInfo);
+			createFileBody(file.getName(), contentType, contents, file, auditInfo);
 		} catch (FileNotFoundException e) {
 			throw new GSSIOException(e);
 		}
@@ -2282,27 +2811,39 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 	 *
 	 * @param name the original file name
 	 * @param mimeType the content type
-	 * @param fileSize the uploaded file size
-	 * @param filePath the uploaded file full path
+	 * @param contents the uploaded contents
 	 * @param header the file header that will be associated with the new body
 	 * @param auditInfo the audit info
 	 * @throws FileNotFoundException
 	 * @throws QuotaExceededException
 	 * @throws ObjectNotFoundException if the owner was not found
 	 */
-	private void createFileBody(String name, String mimeType, long fileSize, String filePath,
+	private void createFileBody(String name, String mimeType, StoredFile contents,
 				FileHeader header, AuditInfo auditInfo)
 			throws FileNotFoundException, QuotaExceededException, ObjectNotFoundException {
+		long fileSize = contents.getSize();
+		String filePath = contents.getLocation();
+		String contentDigest = contents.getContentDigest();
 
 		long currentTotalSize = 0;
 		if (!header.isVersioned() && header.getCurrentBody() != null && header.getBodies() != null)
 			currentTotalSize = header.getTotalSize();
+		long previousTotalSize = header.getTotalSize();
 		Long quotaLeft = getQuotaLeft(header.getOwner().getId());
 		if(quotaLeft < fileSize-currentTotalSize) {
-			// quota exceeded -> delete the file
-			deleteActualFile(filePath);
+			// quota exceeded -> delete the file, in a separate transaction
+			// since this one is rolled back
+			context.getBusinessObject(ExternalAPI.class).discardActualFile(filePath);
 			throw new QuotaExceededException("Not enough free space available");
 		}
+		// The stored file may be shared with bodies that were deleted, so keep
+		// the reaper from removing it before this body is committed. If it was
+		// removed already, the check below fails.
+		dao.cancelPendingDeletions(filePath);
+		if (!getBlobStore().exists(filePath))
+			throw new FileNotFoundException("Stored file " + filePath + " not found");
+		if (contentDigest == null)
+			contentDigest = getContentDigest(filePath);
 
 		FileBody body = new FileBody();
 
@@ -2315,7 +2856,11 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 			body.setMimeType(mimeType);
 		body.setAuditInfo(auditInfo);
 		body.setFileSize(fileSize);
+		body.setContentDigest(contentDigest);
 		body.setOriginalFilename(name);
+		body.setCodec(contents.getCodec());
+		List<String> paths = new ArrayList<String>();
+		body.setVolume(getBlobStore().getVolume(filePath));
 		body.setStoredFilePath(filePath);
 		//CLEAR OLD VERSION IF FILE IS NOT VERSIONED AND GETS UPDATED
 		if(!header.isVersioned() && header.getCurrentBody() != null){
@@ -2324,24 +2869,34 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 				Iterator<FileBody> it = header.getBodies().iterator();
 				while(it.hasNext()){
 					FileBody bo = it.next();
-					deleteActualFile(bo.getStoredFilePath());
+					paths.add(bo.getStoredFilePath());
 					it.remove();
 					dao.delete(bo);
 				}
 			}
 		}
 
+		FileBody previous = header.isVersioned() ? header.getCurrentBody() : null;
 		dao.flush();
 		header.addBody(body);
 		header.setAuditInfo(auditInfo);
 
 		dao.create(body);
+		if (previous != null) {
+			dao.flush();
+			encodeVersionDelta(previous, body, paths);
+		}
+		adjustUsage(header.getOwner().getId(), header.getTotalSize() - previousTotalSize, 0);
+		// Release the old contents only after the new body is in place, since
+		// they may be shared with it.
+		deleteActualFiles(paths);
 	}
 
 
 	@Override
 	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
-	public File uploadFile(InputStream stream, Long userId) throws IOException, ObjectNotFoundException {
+	public StoredFile uploadFile(InputStream stream, Long userId, String mimeType)
+			throws IOException, ObjectNotFoundException {
 		if (userId == null)
 			throw new ObjectNotFoundException("No user specified");
 		User owner = dao.getEntityById(User.class, userId);
@@ -2350,21 +2905,27 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 		long start = 0, end = 0;
 		if (logger.isDebugEnabled())
 			start = System.currentTimeMillis();
-		File result = new File(generateRepositoryFilePath());
+		MessageDigest digest = newContentDigest();
+		InputStream in = new BufferedInputStream(new DigestInputStream(stream, digest),
+					BlockCompression.BLOCK_SIZE);
+		String location;
+		String codec = null;
 		try {
-			final FileOutputStream output = new FileOutputStream(result);
-			final byte[] buffer = new byte[UPLOAD_BUFFER_SIZE];
-			int n = 0;
-
-			while (-1 != (n = stream.read(buffer)))
-				output.write(buffer, 0, n);
-			output.close();
-			stream.close();
-		} catch (IOException e) {
-			if (!result.delete())
-				logger.warn("Could not delete " + result.getPath());
-			throw e;
-		}
+			// Compress while storing, so that the transaction that attaches
+			// the contents to a body does not have to.
+			if (isCompressible(mimeType, in)) {
+				codec = BlockCompression.CODEC;
+				in = BlockCompression.compress(in);
+			}
+			location = getBlobStore().put(in);
+		} finally {
+			in.close();
+		}
+		String hex = toHex(digest.digest());
+		if (isContentAddressed())
+			location = getBlobStore().rename(location, codec == null ? hex : hex + "z");
+		long size = codec == null ? getBlobStore().size(location) : BlockCompression.size(getBlobStore(), location);
+		StoredFile result = new StoredFile(location, size, hex, codec);
 		if (logger.isDebugEnabled()) {
 			end = System.currentTimeMillis();
 			logger.debug("Time to upload: " + (end - start) + " (msec)");
@@ -2373,41 +2934,262 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 	}
 
 
+	/**
+	 * Check whether uploaded contents should be stored compressed: storage
+	 * compression must be enabled, the content type must be one of the
+	 * compressible types and a sample of the contents must compress well
+	 * enough.
+	 *
+	 * @param mimeType the declared content type, or null if unknown
+	 * @param stream the uploaded contents, which must support mark
+	 * @return true if the contents should be stored compressed
+	 * @throws IOException if the contents could not be sampled
+	 */
+	private boolean isCompressible(String mimeType, InputStream stream) throws IOException {
+		DataConfiguration conf = getConfiguration();
+		if (!conf.getBoolean("storageCompression", false) || mimeType == null)
+			return false;
+		boolean compressible = false;
+		for (String type : conf.getStringArray("compressibleMimeTypes"))
+			if (mimeType.startsWith(type.trim()))
+				compressible = true;
+		return compressible && BlockCompression.isCompressible(stream,
+					conf.getLong("compressionMinSize", 4096), conf.getDouble("compressionMinRatio", 1.5));
+	}
+
+	/**
+	 * Create the message digest for the contents of stored files.
+	 */
+	private MessageDigest newContentDigest() {
+		try {
+			return MessageDigest.getInstance(CONTENT_DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new EJBException(e);
+		}
+	}
+
+	/**
+	 * Return the digest of the contents stored at the specified path, by
+	 * reading them again.
+	 *
+	 * @param filePath the stored file path
+	 * @return the hex-encoded digest
+	 * @throws FileNotFoundException if the stored contents could not be read
+	 */
+	private String getContentDigest(String filePath) throws FileNotFoundException {
+		MessageDigest digest = newContentDigest();
+		try {
+			InputStream in = new DigestInputStream(getBlobStore().open(filePath), digest);
+			try {
+				byte[] buffer = new byte[4096];
+				while (in.read(buffer) != -1)
+					;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new FileNotFoundException("Stored file " + filePath + " could not be read");
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Return the hex encoding of the specified digest.
+	 */
+	private static String toHex(byte[] digest) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest)
+			hex.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+		return hex.toString();
+	}
+
 	@Override
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
 	public void createFileUploadProgress(Long userId, String filename, Long bytesTransfered, Long fileSize) throws ObjectNotFoundException{
+		if (userId == null)
+			throw new ObjectNotFoundException("No user specified");
+		UploadProgressRegistry.getInstance().update(userId, filename, bytesTransfered, fileSize);
+	}
 
+	@Override
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public void removeFileUploadProgress(Long userId, String filename) throws ObjectNotFoundException{
 		if (userId == null)
 			throw new ObjectNotFoundException("No user specified");
+		UploadProgressRegistry.getInstance().remove(userId, filename);
+	}
+
+	@Override
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public FileUploadStatus getFileUploadStatus(Long userId, String fileName) {
+		return UploadProgressRegistry.getInstance().get(userId, fileName);
+	}
+
+	@Override
+	public UploadSession createUploadSession(Long userId, Long folderId, String name, String mimeType,
+				Long fileSize) throws ObjectNotFoundException, InsufficientPermissionsException,
+				QuotaExceededException, GSSIOException {
+		if (userId == null)
+			throw new ObjectNotFoundException("No user specified");
+		if (folderId == null)
+			throw new ObjectNotFoundException("No folder specified");
+		if (StringUtils.isEmpty(name))
+			throw new ObjectNotFoundException("No file name specified");
 		User user = dao.getEntityById(User.class, userId);
-		FileUploadStatus status = dao.getFileUploadStatus(userId, filename);
-		if(status == null){
-			status = new FileUploadStatus();
-			status.setOwner(user);
-			status.setFilename(filename);
-			status.setBytesUploaded(bytesTransfered);
-			status.setFileSize(fileSize);
-			dao.create(status);
-		}
-		else{
-			status.setBytesUploaded(bytesTransfered);
-			status.setFileSize(fileSize);
-			dao.update(status);
-		}
+		Folder folder = dao.getEntityById(Folder.class, folderId);
+		if (!folder.hasWritePermission(user, getGroupIds(user)))
+			throw new InsufficientPermissionsException("You don't have the permissions to write to this folder");
+		if (fileSize != null && getQuotaLeft(folder.getOwner().getId()) < fileSize)
+			throw new QuotaExceededException("Not enough free space available");
 
+		UploadSession session = new UploadSession();
+		session.setOwner(user);
+		session.setFolderId(folder.getId());
+		session.setName(name);
+		session.setMimeType(mimeType);
+		session.setFileSize(fileSize);
+		session.setCreationDate(new Date());
+		try {
+			session.setStoredFilePath(getBlobStore().put(new ByteArrayInputStream(new byte[0])));
+		} catch (IOException e) {
+			throw new GSSIOException("Problem creating file", e);
+		}
+		dao.create(session);
+		return session;
 	}
 
 	@Override
-	public void removeFileUploadProgress(Long userId, String filename) throws ObjectNotFoundException{
+	public UploadSession getUploadSession(Long userId, Long sessionId) throws ObjectNotFoundException {
 		if (userId == null)
 			throw new ObjectNotFoundException("No user specified");
-		FileUploadStatus status = dao.getFileUploadStatus(userId, filename);
-		if(status != null)
-			dao.delete(status);
+		if (sessionId == null)
+			throw new ObjectNotFoundException("No upload specified");
+		UploadSession session = dao.getEntityById(UploadSession.class, sessionId);
+		if (!session.getOwner().getId().equals(userId))
+			throw new ObjectNotFoundException("Upload not found");
+		return session;
 	}
 
 	@Override
-	public FileUploadStatus getFileUploadStatus(Long userId, String fileName) {
-		return dao.getFileUploadStatus(userId, fileName);
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public long writeUploadChunk(Long userId, Long sessionId, long offset, InputStream stream)
+			throws ObjectNotFoundException, GSSIOException {
+		UploadSession session = getUploadSession(userId, sessionId);
+		if (offset < 0 || offset > session.getBytesReceived())
+			throw new GSSIOException("Chunk at " + offset + " does not continue the " +
+						session.getBytesReceived() + " bytes received");
+		// A chunk that overlaps the digested bytes may differ from them, so
+		// the digest is only carried on by the chunk that follows it.
+		UploadDigests.Digest digest = UploadDigests.getInstance().remove(sessionId);
+		if (digest == null || digest.position != offset)
+			digest = offset == 0 ? new UploadDigests.Digest(newContentDigest()) : null;
+		InputStream in = digest == null ? stream : new DigestInputStream(stream, digest.digest);
+		long written;
+		try {
+			written = getBlobStore().write(session.getStoredFilePath(), offset, in);
+		} catch (IOException e) {
+			throw new GSSIOException("Problem storing upload chunk", e);
+		}
+		if (digest != null) {
+			digest.position = offset + written;
+			UploadDigests.getInstance().put(sessionId, digest);
+		}
+		return offset + written;
+	}
+
+	@Override
+	public UploadSession updateUploadSession(Long userId, Long sessionId, long bytesReceived)
+			throws ObjectNotFoundException, QuotaExceededException {
+		UploadSession session = getUploadSession(userId, sessionId);
+		if (bytesReceived <= session.getBytesReceived())
+			return session;
+		Folder folder = dao.getEntityById(Folder.class, session.getFolderId());
+		if (getQuotaLeft(folder.getOwner().getId()) < bytesReceived)
+			throw new QuotaExceededException("Not enough free space available");
+		session.setBytesReceived(bytesReceived);
+		return session;
+	}
+
+	@Override
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public StoredFile finishUploadSession(Long userId, Long sessionId)
+			throws ObjectNotFoundException, GSSIOException {
+		UploadSession session = getUploadSession(userId, sessionId);
+		String filePath = session.getStoredFilePath();
+		long fileSize = session.getBytesReceived();
+		if (session.getFileSize() != null && !session.isComplete())
+			throw new GSSIOException("Upload incomplete: " + fileSize + " of " +
+						session.getFileSize() + " bytes received");
+		UploadDigests.Digest digest = UploadDigests.getInstance().remove(sessionId);
+		try {
+			// A chunk that failed or was refused may have left data past the
+			// received bytes.
+			getBlobStore().truncate(filePath, fileSize);
+			if (getBlobStore().size(filePath) != fileSize)
+				throw new GSSIOException("Upload incomplete: " + fileSize + " bytes received");
+		} catch (IOException e) {
+			throw new GSSIOException("Problem committing upload", e);
+		}
+		String contentDigest;
+		if (digest != null && digest.position == fileSize)
+			contentDigest = toHex(digest.digest.digest());
+		else
+			try {
+				contentDigest = getContentDigest(filePath);
+			} catch (FileNotFoundException e) {
+				throw new GSSIOException(e);
+			}
+		return new StoredFile(filePath, fileSize, contentDigest, null);
+	}
+
+	@Override
+	public FileHeader commitUploadSession(Long userId, Long sessionId, StoredFile contents)
+				throws ObjectNotFoundException, DuplicateNameException, InsufficientPermissionsException,
+				QuotaExceededException, GSSIOException {
+		UploadSession session = getUploadSession(userId, sessionId);
+		if (!session.getStoredFilePath().equals(contents.getLocation())
+					|| session.getBytesReceived() != contents.getSize())
+			throw new GSSIOException("Upload changed while it was committed");
+		Long folderId = session.getFolderId();
+		String name = session.getName();
+		String mimeType = session.getMimeType();
+
+		FileHeader file = null;
+		try {
+			file = dao.getFile(folderId, name);
+		} catch (ObjectNotFoundException e) {
+			// A new file will be created.
+		}
+		if (file != null)
+			file = updateFileContents(userId, file.getId(), mimeType, contents);
+		else
+			file = createFile(userId, folderId, name, mimeType, contents);
+		dao.delete(session);
+		return file;
+	}
+
+	@Override
+	public void deleteUploadSession(Long userId, Long sessionId) throws ObjectNotFoundException {
+		UploadSession session = getUploadSession(userId, sessionId);
+		String filePath = session.getStoredFilePath();
+		dao.delete(session);
+		deleteActualFiles(Collections.singletonList(filePath));
+		UploadDigests.getInstance().remove(sessionId);
+	}
+
+	@Override
+	public int expireUploadSessions(int maxSessions) {
+		long expiry = getConfiguration().getLong("uploadSessionExpiry", 604800);
+		Date before = new Date(System.currentTimeMillis() - expiry * 1000);
+		List<UploadSession> sessions = dao.getUploadSessionsStartedBefore(before, maxSessions);
+		List<String> paths = new ArrayList<String>();
+		for (UploadSession session : sessions) {
+			paths.add(session.getStoredFilePath());
+			dao.delete(session);
+			UploadDigests.getInstance().remove(session.getId());
+		}
+		deleteActualFiles(paths);
+		return sessions.size();
 	}
 
 	@Override
@@ -2421,7 +3203,7 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 			throw new ObjectNotFoundException("No valid version specified");
 		User user = dao.getEntityById(User.class, userId);
 		FileHeader file = dao.getEntityById(FileHeader.class, fileId);
-		if (!file.hasReadPermission(user) && !file.getFolder().hasReadPermission(user))
+		if (!file.hasReadPermission(user, getGroupIds(user)) && !file.getFolder().hasReadPermission(user, getGroupIds(user)))
 			throw new InsufficientPermissionsException("You don't have the necessary permissions");
 		FileBody body = dao.getFileVersion(fileId, version);
 		return body;
@@ -2433,6 +3215,7 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 			throw new ObjectNotFoundException("No user specified");
 		User user = dao.getEntityById(User.class, userId);
 		user.setAcceptedPolicy(isAccepted);
+		AuthenticationCache.getInstance().invalidateOnCompletion(transactions, user.getUsername());
 		return user;
 	}
 
@@ -2441,6 +3224,12 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 		dao.updateAccounting(user, date, bandwidthDiff);
 	}
 
+	@Override
+	public void updateAccounting(List<BandwidthAccumulator.Usage> usages) {
+		for (BandwidthAccumulator.Usage u : usages)
+			dao.addBandwidth(u.getUserId(), u.getDate(), u.getBytes());
+	}
+
 	@Override
 	public boolean canReadFolder(Long userId, Long folderId) throws ObjectNotFoundException {
 		if (userId == null)
@@ -2450,7 +3239,7 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 		User user = dao.getEntityById(User.class, userId);
 		Folder folder = dao.getEntityById(Folder.class, folderId);
 		// Check permissions
-		if (!folder.hasReadPermission(user))
+		if (!folder.hasReadPermission(user, getGroupIds(user)))
 			return false;
 		return true;
 	}
@@ -2510,6 +3299,7 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 		invite.setUser(user);
 		UserClass couponClass = getCouponUserClass();
 		user.setUserClass(couponClass);
+		AuthenticationCache.getInstance().invalidateOnCompletion(transactions, user.getUsername());
 		return couponClass;
 	}
 
@@ -2612,8 +3402,16 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
                 }
                 solrRequest.setParam("literal.owner", file.getOwner().getId().toString());
                 solrRequest.setParam("literal.public", String.valueOf(file.isReadForAll()));
-                File fsFile = new File(body.getStoredFilePath());
-				solrRequest.addFile(fsFile);
+				final FileBody storedBody = body;
+				ContentStreamBase contents = new ContentStreamBase() {
+					@Override
+					public InputStream getStream() throws IOException {
+						return openBody(storedBody);
+					}
+				};
+				contents.setName(file.getName());
+				contents.setSize(body.getFileSize());
+				solrRequest.addContentStream(contents);
 				try {
 					solr.request(solrRequest);
 				}
@@ -2747,13 +3545,15 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 			throw new ObjectNotFoundException("Parent folder not found");
 		}
 		final User owner = dao.getEntityById(User.class, userId);
-		if (!parent.hasWritePermission(owner))
+		if (!parent.hasWritePermission(owner, getGroupIds(owner)))
 			throw new InsufficientPermissionsException("You don't have the permissions to write to this folder");
 		final FileHeader file = new FileHeader();
 		file.setName(name);
 		parent.addFile(file);
+		file.updateTreePath();
 		// set file owner to folder owner
 		file.setOwner(parent.getOwner());
+		adjustUsage(file.getOwner().getId(), 0, 1);
 		//set file's readForAll value according to parent folder readForAll value
 		file.setReadForAll(parent.isReadForAll());
 
@@ -2794,6 +3594,7 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 		long currentTotalSize = 0;
 		if (!header.isVersioned() && header.getCurrentBody() != null && header.getBodies() != null)
 			currentTotalSize = header.getTotalSize();
+		long previousTotalSize = header.getTotalSize();
 		Long quotaLeft = getQuotaLeft(header.getOwner().getId());
 		
 
@@ -2809,23 +3610,24 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 		body.setAuditInfo(auditInfo);
 		body.setFileSize(fileSize);
 		body.setOriginalFilename(name);
-		String filePath = generateRepositoryFilePath();
-		try{
-			File f = new File(filePath);
-			if(!f.exists()){
-				f.createNewFile();
-			}
+		String filePath;
+		try {
+			filePath = getBlobStore().put(new ByteArrayInputStream(new byte[0]));
+		} catch (IOException e) {
+			throw new EJBException("Could not create empty file " + name, e);
 		}
-		catch(IOException ex){/*swallow*/}
 		body.setStoredFilePath(filePath);
+		body.setContentDigest(toHex(newContentDigest().digest()));
+		body.setVolume(getBlobStore().getVolume(filePath));
 		//CLEAR OLD VERSION IF FILE IS NOT VERSIONED AND GETS UPDATED
+		List<String> paths = new ArrayList<String>();
 		if(!header.isVersioned() && header.getCurrentBody() != null){
 			header.setCurrentBody(null);
 			if (header.getBodies() != null) {
 				Iterator<FileBody> it = header.getBodies().iterator();
 				while(it.hasNext()){
 					FileBody bo = it.next();
-					deleteActualFile(bo.getStoredFilePath());
+					paths.add(bo.getStoredFilePath());
 					it.remove();
 					dao.delete(bo);
 				}
@@ -2837,6 +3639,8 @@ public class ExternalAPIBean implements ExternalAPI, ExternalAPIRemote {
 		header.setAuditInfo(auditInfo);
 
 		dao.create(body);
+		adjustUsage(header.getOwner().getId(), header.getTotalSize() - previousTotalSize, 0);
+		deleteActualFiles(paths);
 	}
 	/*** WEBDAV LOCK **/
 	@Override
@@ -28,11 +28,16 @@ import org.gss_project.gss.server.domain.Group;
 import org.gss_project.gss.server.domain.FileLock;
 import org.gss_project.gss.server.domain.Invitation;
 import org.gss_project.gss.server.domain.Nonce;
+import org.gss_project.gss.server.domain.PendingDeletion;
+import org.gss_project.gss.server.domain.Permission;
 import org.gss_project.gss.server.domain.User;
+import org.gss_project.gss.server.domain.UploadSession;
 import org.gss_project.gss.server.domain.UserClass;
 import org.gss_project.gss.server.domain.UserLogin;
+import org.gss_project.gss.server.domain.UserUsage;
 import org.gss_project.gss.server.domain.WebDavNonce;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
@@ -137,6 +142,40 @@ public interface GSSDAO {
 	@SuppressWarnings("unchecked")
 	public List<FileHeader> getFiles(Long folderId, Long userId, boolean ignoreDeleted) throws ObjectNotFoundException;
 
+	/**
+	 * Returns a page of the files in the specified folder that the user can
+	 * read, ordered by name. The permission check is part of the query, so
+	 * only the requested page is loaded.
+	 *
+	 * @param folderId the ID of the folder
+	 * @param userId the ID of the user requesting the files
+	 * @param ignoreDeleted whether files marked as deleted are left out
+	 * @param after the name of the last file of the previous page, or null
+	 * 			for the first page
+	 * @param max the maximum number of files to return
+	 * @return the files of the page
+	 */
+	public List<FileHeader> getFilesByName(Long folderId, Long userId, boolean ignoreDeleted,
+			String after, int max);
+
+	/**
+	 * Returns a page of the files in the specified folder that the user can
+	 * read, most recently modified first. Files modified at the same time are
+	 * ordered by descending ID. The permission check is part of the query,
+	 * so only the requested page is loaded.
+	 *
+	 * @param folderId the ID of the folder
+	 * @param userId the ID of the user requesting the files
+	 * @param ignoreDeleted whether files marked as deleted are left out
+	 * @param before the modification date of the last file of the previous
+	 * 			page, or null for the first page
+	 * @param beforeId the ID of the last file of the previous page
+	 * @param max the maximum number of files to return
+	 * @return the files of the page
+	 */
+	public List<FileHeader> getFilesByModificationDate(Long folderId, Long userId, boolean ignoreDeleted,
+			Date before, Long beforeId, int max);
+
 	/**
 	 * Returns a list of deleted files of user specified by userId
 	 *
@@ -226,6 +265,150 @@ public interface GSSDAO {
 	 */
 	public Folder getFolder(Long parentId, String name) throws ObjectNotFoundException;
 
+	/**
+	 * Retrieve the file with the supplied recorded tree path in the namespace
+	 * of the specified owner.
+	 *
+	 * @param ownerId the ID of the owner
+	 * @param treePath the path of the file with plain names
+	 * @return the file found
+	 * @throws ObjectNotFoundException if no file has the specified path
+	 */
+	public FileHeader getFileByTreePath(Long ownerId, String treePath) throws ObjectNotFoundException;
+
+	/**
+	 * Retrieve the folder with the supplied recorded tree path in the
+	 * namespace of the specified owner.
+	 *
+	 * @param ownerId the ID of the owner
+	 * @param treePath the path of the folder with plain names and a trailing slash
+	 * @return the folder found
+	 * @throws ObjectNotFoundException if no folder has the specified path
+	 */
+	public Folder getFolderByTreePath(Long ownerId, String treePath) throws ObjectNotFoundException;
+
+	/**
+	 * Count the folders of the specified owner that are not deleted and have
+	 * one of the supplied recorded tree paths.
+	 *
+	 * @param ownerId the ID of the owner
+	 * @param treePaths the paths of the folders
+	 * @return the number of folders found
+	 */
+	public long countLiveFoldersByTreePath(Long ownerId, List<String> treePaths);
+
+	/**
+	 * Replace the prefix of the recorded tree paths of the subfolders and
+	 * files of the specified folder, at any depth, after the folder was
+	 * renamed or moved. The folder itself must already have its new path.
+	 * The rows are selected by ID, so paths of other folders and files are
+	 * never touched, even if they start with the same prefix. Paths that
+	 * would grow too long are cleared. Only the updated folders and files
+	 * are evicted from the second-level cache.
+	 *
+	 * @param folderId the ID of the renamed or moved folder
+	 * @param oldPrefix the old path of the folder
+	 * @param newPrefix the new path of the folder
+	 */
+	public void updateTreePaths(Long folderId, String oldPrefix, String newPrefix);
+
+	/**
+	 * Retrieve the IDs of the specified folder and all of its subfolders, at
+	 * any depth, without loading them. Deeper folders come first, so the
+	 * specified folder is the last one.
+	 *
+	 * @param folderId the ID of the top folder
+	 * @return the folder IDs
+	 */
+	public List<Long> getFolderTreeIds(Long folderId);
+
+	/**
+	 * Retrieve the IDs of the files in the specified folders.
+	 *
+	 * @param folderIds the IDs of the folders
+	 * @return the file IDs
+	 */
+	public List<Long> getFileIdsInFolders(List<Long> folderIds);
+
+	/**
+	 * Retrieve the stored file paths of all the bodies of the files in the
+	 * specified folders.
+	 *
+	 * @param folderIds the IDs of the folders
+	 * @return the stored file paths
+	 */
+	public List<String> getStoredFilePathsInFolders(List<Long> folderIds);
+
+	/**
+	 * Calculate the storage used by the bodies of the files in the specified
+	 * folders.
+	 *
+	 * @param folderIds the IDs of the folders
+	 * @return the total size in bytes
+	 */
+	public long getFileSizeInFolders(List<Long> folderIds);
+
+	/**
+	 * Mark the specified folders and the files in them as deleted (trashed)
+	 * or not deleted, with bulk updates.
+	 *
+	 * @param folderIds the IDs of the folders
+	 * @param deleted the new value of the deleted flag
+	 */
+	public void setDeletedInFolders(List<Long> folderIds, boolean deleted);
+
+	/**
+	 * Change the owner of the specified folders and the files in them with
+	 * bulk updates, marking them as modified.
+	 *
+	 * @param folderIds the IDs of the folders
+	 * @param owner the new owner
+	 * @param modifier the user that made the change
+	 * @param modificationDate the date of the change
+	 */
+	public void setOwnerInFolders(List<Long> folderIds, User owner, User modifier, Date modificationDate);
+
+	/**
+	 * Remove the files in the specified folders, along with their bodies,
+	 * tags and permissions, with bulk deletes. The stored files are not
+	 * removed.
+	 *
+	 * @param folderIds the IDs of the folders
+	 */
+	public void deleteFilesInFolders(List<Long> folderIds);
+
+	/**
+	 * Remove the specified empty folders and their permissions with bulk
+	 * deletes. Subfolders must come before their parents, as returned by
+	 * {@link #getFolderTreeIds(Long)}.
+	 *
+	 * @param folderIds the IDs of the folders
+	 */
+	public void deleteFolders(List<Long> folderIds);
+
+	/**
+	 * Replace the permissions of the specified folders with copies of the
+	 * supplied permissions, with a few bulk statements per permission
+	 * instead of one per folder.
+	 *
+	 * @param folderIds the IDs of the folders
+	 * @param permissions the permissions to copy, with their user or group loaded
+	 */
+	public void replaceFolderPermissions(List<Long> folderIds, Collection<Permission> permissions);
+
+	/**
+	 * Replace the permissions of the files in the specified folders with
+	 * copies of the supplied permissions, with a few bulk statements per
+	 * permission instead of one per file, marking the files as modified.
+	 *
+	 * @param folderIds the IDs of the folders
+	 * @param permissions the permissions to copy, with their user or group loaded
+	 * @param modifier the user that made the change
+	 * @param modificationDate the date of the change
+	 */
+	public void replaceFilePermissions(List<Long> folderIds, Collection<Permission> permissions,
+				User modifier, Date modificationDate);
+
 	/**
 	 * Search the system for a user with the specified username.
 	 * If no such user is found, the method returns null.
@@ -376,6 +559,51 @@ public interface GSSDAO {
 	 */
 	public Long getFileCount(Long userId);
 
+	/**
+	 * Retrieve the current storage usage counters of a user.
+	 *
+	 * @param userId the ID of the user
+	 * @return the usage, or null if no counters were created for the user
+	 */
+	public UserUsage getUsage(Long userId);
+
+	/**
+	 * Add the specified amounts to the storage usage counters of a user,
+	 * without reading them first.
+	 *
+	 * @param userId the ID of the user
+	 * @param bytes the number of bytes to add, negative when bytes are freed
+	 * @param files the number of files to add, negative when files are removed
+	 * @return true if the user has usage counters
+	 */
+	public boolean addUsage(Long userId, long bytes, long files);
+
+	/**
+	 * Lock the storage usage counters of a user until the end of the
+	 * transaction, so that they can be recomputed without concurrent changes
+	 * being lost.
+	 *
+	 * @param userId the ID of the user
+	 * @return true if the user has usage counters
+	 */
+	public boolean lockUsage(Long userId);
+
+	/**
+	 * Retrieve the IDs of users whose storage usage counters were recomputed
+	 * least recently, starting with users that have no counters.
+	 *
+	 * @param maxResults the maximum number of IDs to return
+	 * @return the user IDs
+	 */
+	public List<Long> getUsersForUsageReconciliation(int maxResults);
+
+	/**
+	 * Remove the storage usage counters of a user.
+	 *
+	 * @param userId the ID of the user
+	 */
+	public void deleteUsage(Long userId);
+
 	/**
 	 * This method returns all file ids for rebuilding the search index
 	 *
@@ -383,8 +611,6 @@ public interface GSSDAO {
 	 */
 	public List<Long> getAllFileIds();
 
-	public FileUploadStatus getFileUploadStatus(Long userId, String fileName);
-
 	/**
 	 * Fetch the file body with the specified version number.
 	 *
@@ -395,6 +621,65 @@ public interface GSSDAO {
 	 */
 	public FileBody getFileVersion(Long fileId, int version) throws ObjectNotFoundException;
 
+	/**
+	 * Checks if any file body has its contents stored in the specified path.
+	 *
+	 * @param path the stored file path
+	 * @return true if the stored file is referenced by a file body
+	 */
+	public boolean isStoredFileReferenced(String path);
+
+	/**
+	 * Remove the entries of the stored file deletion journal for the
+	 * specified path, because a new file body refers to it. This waits for a
+	 * removal of the stored file that has locked an entry to commit.
+	 *
+	 * @param path the stored file path
+	 * @return the number of entries removed
+	 */
+	public int cancelPendingDeletions(String path);
+
+	/**
+	 * Lock an entry of the stored file deletion journal for the rest of the
+	 * current transaction, so that it cannot be cancelled while its stored
+	 * file is removed.
+	 *
+	 * @param id the ID of the entry
+	 * @return true if the entry was locked, false if it no longer exists
+	 */
+	public boolean lockPendingDeletion(Long id);
+
+	/**
+	 * Retrieve the oldest entries of the stored file deletion journal that
+	 * are due for a removal attempt. Entries whose next attempt lies in the
+	 * future, or that have failed maxAttempts times, are skipped, so that
+	 * they do not hold back the ones behind them.
+	 *
+	 * @param maxResults the maximum number of entries to return
+	 * @param maxAttempts the number of failed attempts after which entries
+	 * 			are no longer returned
+	 * @param now the current date
+	 * @return the journal entries
+	 */
+	public List<PendingDeletion> getPendingDeletions(int maxResults, int maxAttempts, Date now);
+
+	/**
+	 * Return the number of entries in the stored file deletion journal.
+	 *
+	 * @return the number of pending deletions
+	 */
+	public long getPendingDeletionCount();
+
+	/**
+	 * Retrieve the oldest resumable uploads that were started before the
+	 * specified date.
+	 *
+	 * @param date the date
+	 * @param maxResults the maximum number of uploads to return
+	 * @return the upload sessions
+	 */
+	public List<UploadSession> getUploadSessionsStartedBefore(Date date, int maxResults);
+
 	/**
 	 * Update accounting info for given user.
 	 * Adds bandwidth used to appropriate time period bucket.
@@ -407,6 +692,18 @@ public interface GSSDAO {
 	 */
 	public void updateAccounting(User user, Date date, long bandwidthDiff);
 
+	/**
+	 * Add bandwidth used to the time period bucket of the specified user,
+	 * with a bulk update that does not load the bucket. The bucket is created
+	 * if needed. Nothing is recorded for users that no longer exist.
+	 *
+	 * @param userId the ID of the user to update
+	 * @param date a date in the time period
+	 * @param bandwidthDiff Bandwidth used; positive for addition,
+	 * negative for subtraction (e.g. to rollback)
+	 */
+	public void addBandwidth(Long userId, Date date, long bandwidthDiff);
+
 	/**
 	 * Retrieves available user classes.
 	 *
@@ -503,6 +800,15 @@ public interface GSSDAO {
 	 */
 	List<Group> getGroupsContainingUser(Long userId);
 
+	/**
+	 * Retrieve the IDs of the groups the specified user is a member of. The
+	 * result is served from the shared GroupMembershipCache when possible.
+	 *
+	 * @param userId the ID of the user
+	 * @return an unmodifiable set of group IDs
+	 */
+	public Set<Long> getGroupIdsForUser(Long userId);
+
 	/**
 	 * @param userId
 	 * @return
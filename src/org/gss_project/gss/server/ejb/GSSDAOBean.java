@@ -29,18 +29,24 @@ import org.gss_project.gss.server.domain.Group;
 import org.gss_project.gss.server.domain.FileLock;
 import org.gss_project.gss.server.domain.Invitation;
 import org.gss_project.gss.server.domain.Nonce;
+import org.gss_project.gss.server.domain.PendingDeletion;
+import org.gss_project.gss.server.domain.Permission;
 import org.gss_project.gss.server.domain.User;
+import org.gss_project.gss.server.domain.UploadSession;
 import org.gss_project.gss.server.domain.UserClass;
 import org.gss_project.gss.server.domain.UserLogin;
+import org.gss_project.gss.server.domain.UserUsage;
 import org.gss_project.gss.server.domain.WebDavNonce;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 
 import javax.ejb.Stateless;
@@ -50,6 +56,9 @@ import javax.persistence.PersistenceContext;
 import javax.persistence.Query;
 
 import org.apache.commons.lang.StringUtils;
+import org.hibernate.SQLQuery;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
 
 /**
  * The implementation of the GSSDAO interface.
@@ -60,6 +69,19 @@ public class GSSDAOBean implements GSSDAO {
 	private static final int BANDWIDTH_TIME_PERIOD_FIELD = Calendar.MONTH;
 	private static final int BANDWIDTH_TIME_PERIOD_AMOUNT = 1;
 
+	/**
+	 * The maximum number of IDs passed to a single query, to stay well below
+	 * the limit of bind parameters per statement.
+	 */
+	private static final int MAX_IDS_PER_QUERY = 1000;
+
+	/**
+	 * The query space of the tree path updates. No entity is mapped to it, so
+	 * executing them does not evict any second-level cache region, and the
+	 * updated entries are evicted one by one instead.
+	 */
+	private static final String TREE_PATH_QUERY_SPACE = "treepath";
+
 	/**
 	 * The entity manager for the persistence unit
 	 */
@@ -163,6 +185,7 @@ public class GSSDAOBean implements GSSDAO {
 		if (userId == null)
 			throw new ObjectNotFoundException("No user specified");
 		User user = getEntityById(User.class, userId);
+		Set<Long> groupIds = getGroupIdsForUser(userId);
 		String query;
 		if(ignoreDeleted)
 			query = "select f from FileHeader f where f.folder.id=:folderId  and f.deleted=false";
@@ -171,7 +194,7 @@ public class GSSDAOBean implements GSSDAO {
 		List<FileHeader> tempList = manager.createQuery(query).setParameter("folderId", folderId).getResultList();
 		List<FileHeader> retv = new ArrayList<FileHeader>();
 		for (FileHeader f: tempList)
-			if (f.hasReadPermission(user)) retv.add(f);
+			if (f.hasReadPermission(user, groupIds)) retv.add(f);
 
 		return retv;
 	}
@@ -278,18 +301,87 @@ public class GSSDAOBean implements GSSDAO {
 		}
 	}
 
+	@Override
+	public FileHeader getFileByTreePath(Long ownerId, String treePath) throws ObjectNotFoundException {
+		List<?> results = manager.createQuery("select f from FileHeader f where f.owner.id=:ownerId and f.treePath=:path")
+				.setParameter("ownerId", ownerId)
+				.setParameter("path", treePath)
+				.setMaxResults(1)
+				.getResultList();
+		if (results.isEmpty())
+			throw new ObjectNotFoundException("File not found");
+		return (FileHeader) results.get(0);
+	}
+
+	@Override
+	public Folder getFolderByTreePath(Long ownerId, String treePath) throws ObjectNotFoundException {
+		List<?> results = manager.createQuery("select f from Folder f where f.owner.id=:ownerId and f.treePath=:path")
+				.setParameter("ownerId", ownerId)
+				.setParameter("path", treePath)
+				.setMaxResults(1)
+				.getResultList();
+		if (results.isEmpty())
+			throw new ObjectNotFoundException("Folder not found");
+		return (Folder) results.get(0);
+	}
+
+	@Override
+	public long countLiveFoldersByTreePath(Long ownerId, List<String> treePaths) {
+		if (treePaths.isEmpty())
+			return 0;
+		return (Long) manager.createQuery("select count(f) from Folder f where f.owner.id=:ownerId " +
+				"and f.treePath in (:paths) and f.deleted=false")
+				.setParameter("ownerId", ownerId)
+				.setParameter("paths", treePaths)
+				.getSingleResult();
+	}
+
+	@Override
+	public void updateTreePaths(Long folderId, String oldPrefix, String newPrefix) {
+		List<Long> folderIds = getFolderTreeIds(folderId);
+		// The folder itself comes last and already has its new path.
+		updateTreePaths(Folder.class, folderIds.subList(0, folderIds.size() - 1), oldPrefix, newPrefix);
+		updateTreePaths(FileHeader.class, getFileIdsInFolders(folderIds), oldPrefix, newPrefix);
+	}
+
+	/**
+	 * Replace the prefix of the recorded tree paths of the folders or files
+	 * with the specified IDs. A bulk update would evict every cached folder
+	 * or file, so the rows are updated by ID and only their own entries are
+	 * evicted.
+	 */
+	private void updateTreePaths(Class<?> entity, List<Long> ids, String oldPrefix, String newPrefix) {
+		int delta = newPrefix.length() - oldPrefix.length();
+		SessionFactory factory = ((Session) manager.getDelegate()).getSessionFactory();
+		String table = entity.getSimpleName().toLowerCase(Locale.ENGLISH);
+		for (List<Long> chunk : partition(ids)) {
+			createNativeUpdate("update " + table + " set version=version+1, treepath=case " +
+					"when length(treepath) > :limit then null " +
+					"else :prefix || substr(treepath, :start) end where id in (:ids)",
+					TREE_PATH_QUERY_SPACE)
+					.setParameter("limit", Folder.MAX_TREE_PATH_LENGTH - delta)
+					.setParameter("prefix", newPrefix)
+					.setParameter("start", oldPrefix.length() + 1)
+					.setParameterList("ids", chunk)
+					.executeUpdate();
+			for (Long id : chunk)
+				factory.evict(entity, id);
+		}
+	}
+
 	@Override
 	public List<FileHeader> getDeletedFiles(Long userId) throws ObjectNotFoundException {
 		if (userId == null)
 			throw new ObjectNotFoundException("No User specified");
 		User user = getEntityById(User.class, userId);
+		Set<Long> groupIds = getGroupIdsForUser(userId);
 
 		List<FileHeader> tempList = manager.createQuery("select f from FileHeader f where f.owner.id=:userId and " +
 					"f.deleted=true and f.folder.deleted=false").
 					setParameter("userId", userId).getResultList();
 		List<FileHeader> retv = new ArrayList<FileHeader>();
 		for (FileHeader f: tempList)
-			if (f.hasReadPermission(user)) retv.add(f);
+			if (f.hasReadPermission(user, groupIds)) retv.add(f);
 
 		return retv;
 	}
@@ -349,6 +441,62 @@ public class GSSDAOBean implements GSSDAO {
 					setParameter("userId", userId).setParameter("groupId", groupId).getResultList();
 	}
 
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<FileHeader> getFilesByName(Long folderId, Long userId, boolean ignoreDeleted,
+			String after, int max) {
+		Query q = createFilePageQuery(folderId, userId, ignoreDeleted,
+				after == null ? "" : " and f.name > :after", "f.name");
+		if (after != null)
+			q.setParameter("after", after);
+		return q.setMaxResults(max).getResultList();
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<FileHeader> getFilesByModificationDate(Long folderId, Long userId, boolean ignoreDeleted,
+			Date before, Long beforeId, int max) {
+		Query q = createFilePageQuery(folderId, userId, ignoreDeleted,
+				before == null ? "" : " and (f.auditInfo.modificationDate < :before or " +
+				"(f.auditInfo.modificationDate = :before and f.id < :beforeId))",
+				"f.auditInfo.modificationDate desc, f.id desc");
+		if (before != null)
+			q.setParameter("before", before).setParameter("beforeId", beforeId);
+		return q.setMaxResults(max).getResultList();
+	}
+
+	/**
+	 * Build a query for the files of a folder that the specified user can
+	 * read, either through a permission of the user or of one of the groups
+	 * that contain the user, or because the file is readable by all.
+	 *
+	 * @param keyCondition the condition that skips the previous pages
+	 * @param order the order by clause that matches the condition
+	 */
+	private Query createFilePageQuery(Long folderId, Long userId, boolean ignoreDeleted,
+			String keyCondition, String order) {
+		Set<Long> groupIds = getGroupIdsForUser(userId);
+		Query q = manager.createQuery("select f from FileHeader f left join fetch f.currentBody " +
+					"where f.folder.id=:folderId" + (ignoreDeleted ? " and f.deleted=false" : "") +
+					" and (f.readForAll=true or exists (select p.id from f.permissions p " +
+					"where p.read=true and (p.user.id=:userId" +
+					(groupIds.isEmpty() ? "" : " or p.group.id in (:groupIds)") + ")))" +
+					keyCondition + " order by " + order).
+					setParameter("folderId", folderId).setParameter("userId", userId);
+		if (!groupIds.isEmpty())
+			q.setParameter("groupIds", groupIds);
+		return q;
+	}
+
+	@Override
+	public Set<Long> getGroupIdsForUser(Long userId) {
+		GroupMembershipCache cache = GroupMembershipCache.getInstance();
+		Set<Long> groupIds = cache.getGroupIds(userId);
+		if (groupIds == null)
+			groupIds = cache.putGroupIds(userId, new HashSet<Long>(getGroupIdsForUserId(userId)));
+		return groupIds;
+	}
+
 	private List<Long> getGroupIdsForUserId(Long userId) {
 		List<BigInteger> groups = manager.createNativeQuery("select distinct groupsmember_id " +
 		"from GSS_Group_GSS_User where members_id=:userId")
@@ -362,7 +510,7 @@ public class GSSDAOBean implements GSSDAO {
 	
 	@Override
 	public List<User> getUsersSharingFoldersForUser(Long userId) {
-        List<Long> groupIds = getGroupIdsForUserId(userId);
+        Set<Long> groupIds = getGroupIdsForUser(userId);
 		Query q = manager.createQuery("select distinct f.owner from Folder f " +
 					"LEFT JOIN f.permissions p where f.owner.id != :userId and f.deleted=false " +
 					"and (p.user.id=:userId "+ (groupIds.isEmpty() ? "" : "or p.group.id in (:groupIds)") +")").
@@ -374,7 +522,7 @@ public class GSSDAOBean implements GSSDAO {
 
 	@Override
 	public List<User> getUsersSharingFilesForUser(Long userId) {
-        List<Long> groupIds = getGroupIdsForUserId(userId);
+        Set<Long> groupIds = getGroupIdsForUser(userId);
 		Query q = manager.createQuery("select distinct f.owner from FileHeader f " +
 					"LEFT JOIN f.permissions p where f.owner.id != :userId and f.deleted=false " +
 					"and (p.user.id=:userId " + (groupIds.isEmpty() ? "" : "or p.group.id in (:groupIds)") + ")").
@@ -389,6 +537,7 @@ public class GSSDAOBean implements GSSDAO {
 		if (userId == null)
 			throw new ObjectNotFoundException("No user specified");
 		User user = getEntityById(User.class, userId);
+		Set<Long> groupIds = getGroupIdsForUser(userId);
 		List<FileHeader> tempList = manager.createQuery("select distinct f from FileHeader f " +
 					"LEFT JOIN f.permissions p where f.owner.id=:userId and f.deleted=false " +
 					"and (f.readForAll=true or p.group.id != null or p.user.id != f.owner.id)" +
@@ -398,7 +547,7 @@ public class GSSDAOBean implements GSSDAO {
 					setParameter("userId", userId).getResultList();
 		List<FileHeader> retv = new ArrayList<FileHeader>();
 		for (FileHeader f: tempList)
-			if (f.hasReadPermission(user)) retv.add(f);
+			if (f.hasReadPermission(user, groupIds)) retv.add(f);
 
 		return retv;
 	}
@@ -408,13 +557,14 @@ public class GSSDAOBean implements GSSDAO {
 		if (userId == null)
 			throw new ObjectNotFoundException("No user specified");
 		User user = getEntityById(User.class, userId);
+		Set<Long> groupIds = getGroupIdsForUser(userId);
 		List<FileHeader> tempList = manager.createQuery("select distinct f from FileHeader f " +
 					"LEFT JOIN f.permissions p where f.owner.id=:userId and f.deleted=false " +
 					"and (p.group.id != null or p.user.id != f.owner.id)").
 					setParameter("userId", userId).getResultList();
 		List<FileHeader> retv = new ArrayList<FileHeader>();
 		for (FileHeader f: tempList)
-			if (f.hasReadPermission(user)) retv.add(f);
+			if (f.hasReadPermission(user, groupIds)) retv.add(f);
 
 		return retv;
 	}
@@ -433,33 +583,39 @@ public class GSSDAOBean implements GSSDAO {
 		if (userId == null)
 			throw new ObjectNotFoundException("No user specified");
 		User user = getEntityById(User.class, userId);
-		List<FileHeader> tempList = manager.createQuery("select distinct f from FileHeader f " +
+		Set<Long> groupIds = getGroupIdsForUser(userId);
+		Set<Long> callerGroupIds = getGroupIdsForUser(callingUserId);
+		Query q = manager.createQuery("select distinct f from FileHeader f " +
 					"LEFT JOIN f.permissions p where f.owner.id=:userId and f.deleted=false " +
-					"and p.read=true and (p.user.id=:cuserId or p.group.id in " +
-					"(select distinct gg.id from Group gg join gg.members memb " +
-					"where memb.id=:cuserId)) and f.folder.id not in (select distinct fo.id " +
+					"and p.read=true and (p.user.id=:cuserId" +
+					(callerGroupIds.isEmpty() ? "" : " or p.group.id in (:groupIds)") +
+					") and f.folder.id not in (select distinct fo.id " +
 					"from Folder fo LEFT JOIN fo.permissions po where fo.owner.id = :userId " +
-					"and fo.deleted=false and po.read=true and (po.user.id=:cuserId " +
-					"or po.group.id in (select distinct ggo.id from Group ggo " +
-					"join ggo.members membo where membo.id=:cuserId)))").
-					setParameter("userId", userId).setParameter("cuserId", callingUserId).getResultList();
+					"and fo.deleted=false and po.read=true and (po.user.id=:cuserId" +
+					(callerGroupIds.isEmpty() ? "" : " or po.group.id in (:groupIds)") + "))").
+					setParameter("userId", userId).setParameter("cuserId", callingUserId);
+		if (!callerGroupIds.isEmpty())
+			q.setParameter("groupIds", callerGroupIds);
+		List<FileHeader> tempList = q.getResultList();
 		List<FileHeader> retv = new ArrayList<FileHeader>();
 		for (FileHeader f: tempList)
-			if (f.hasReadPermission(user)) retv.add(f);
+			if (f.hasReadPermission(user, groupIds)) retv.add(f);
 
 		return retv;
 	}
 
 	@Override
 	public List<Folder> getSharedRootFolders(Long userId, Long callingUserId) {
-		List<Folder> folders = manager.createQuery("select distinct f from Folder f " +
+		Set<Long> groupIds = getGroupIdsForUser(callingUserId);
+		Query q = manager.createQuery("select distinct f from Folder f " +
 					"LEFT JOIN f.permissions p where f.owner.id = :userId and f.deleted=false " +
-					"and p.read=true and (p.user.id=:cuserId or p.group.id in " +
-					"(select distinct gg.id from Group gg join gg.members memb " +
-					"where memb.id=:cuserId))) ").
+					"and p.read=true and (p.user.id=:cuserId" +
+					(groupIds.isEmpty() ? "" : " or p.group.id in (:groupIds)") + ")").
 					setParameter("userId", userId).
-					setParameter("cuserId", callingUserId).
-					getResultList();
+					setParameter("cuserId", callingUserId);
+		if (!groupIds.isEmpty())
+			q.setParameter("groupIds", groupIds);
+		List<Folder> folders = q.getResultList();
 		List<Folder> result = new ArrayList<Folder>();
 		for(Folder f : folders)
 			if(!folders.contains(f.getParent()))
@@ -493,7 +649,7 @@ public class GSSDAOBean implements GSSDAO {
 
 	@Override
 	public Long getFileSize(Long userId) {
-		Long singleResult = (Long) manager.createQuery("select sum(f.fileSize) from FileBody f where f.header.owner.id=:ownerId")
+		Long singleResult = (Long) manager.createQuery("select sum(coalesce(f.storedSize, f.fileSize)) from FileBody f where f.header.owner.id=:ownerId")
 		.setParameter("ownerId", userId)
 		.getSingleResult();
 		if(singleResult == null)
@@ -503,17 +659,326 @@ public class GSSDAOBean implements GSSDAO {
 	}
 
 	@Override
-	public List<Long> getAllFileIds() {
-		List<Long> ids = manager.createQuery("select f.id from FileHeader f").getResultList();
+	@SuppressWarnings("unchecked")
+	public List<Long> getFolderTreeIds(Long folderId) {
+		List<Number> results = manager.createNativeQuery("with recursive tree(id, depth) as (" +
+				"select id, 0 from folder where id=:folderId " +
+				"union all " +
+				"select f.id, t.depth + 1 from folder f, tree t where f.parent_id=t.id) " +
+				"select id from tree order by depth desc")
+				.setParameter("folderId", folderId)
+				.getResultList();
+		List<Long> ids = new ArrayList<Long>(results.size());
+		for (Number id : results)
+			ids.add(id.longValue());
+		return ids;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<Long> getFileIdsInFolders(List<Long> folderIds) {
+		List<Long> ids = new ArrayList<Long>();
+		for (List<Long> chunk : partition(folderIds))
+			ids.addAll(manager.createQuery("select f.id from FileHeader f where f.folder.id in (:ids)")
+					.setParameter("ids", chunk)
+					.getResultList());
 		return ids;
 	}
 
 	@Override
-	public FileUploadStatus getFileUploadStatus(Long userId, String fileName) {
-		List<FileUploadStatus> res = manager.createQuery(" select f from FileUploadStatus f where f.owner.id=:userId and f.filename=:filename").setParameter("userId", userId).setParameter("filename", fileName).getResultList();
-		if(res.size()>0)
-			return res.get(0);
-		return null;
+	@SuppressWarnings("unchecked")
+	public List<String> getStoredFilePathsInFolders(List<Long> folderIds) {
+		List<String> paths = new ArrayList<String>();
+		for (List<Long> chunk : partition(folderIds))
+			paths.addAll(manager.createQuery("select b.storedFilePath from FileBody b " +
+					"where b.header.folder.id in (:ids)")
+					.setParameter("ids", chunk)
+					.getResultList());
+		return paths;
+	}
+
+	@Override
+	public long getFileSizeInFolders(List<Long> folderIds) {
+		long total = 0;
+		for (List<Long> chunk : partition(folderIds)) {
+			Long size = (Long) manager.createQuery("select sum(coalesce(b.storedSize, b.fileSize)) " +
+					"from FileBody b where b.header.folder.id in (:ids)")
+					.setParameter("ids", chunk)
+					.getSingleResult();
+			if (size != null)
+				total += size;
+		}
+		return total;
+	}
+
+	@Override
+	public void setDeletedInFolders(List<Long> folderIds, boolean deleted) {
+		for (List<Long> chunk : partition(folderIds)) {
+			manager.createQuery("update versioned Folder f set f.deleted=:deleted where f.id in (:ids)")
+					.setParameter("deleted", deleted)
+					.setParameter("ids", chunk)
+					.executeUpdate();
+			manager.createQuery("update versioned FileHeader f set f.deleted=:deleted where f.folder.id in (:ids)")
+					.setParameter("deleted", deleted)
+					.setParameter("ids", chunk)
+					.executeUpdate();
+		}
+	}
+
+	@Override
+	public void setOwnerInFolders(List<Long> folderIds, User owner, User modifier, Date modificationDate) {
+		for (List<Long> chunk : partition(folderIds)) {
+			manager.createQuery("update versioned Folder f set f.owner=:owner, f.auditInfo.modifiedBy=:modifier, " +
+					"f.auditInfo.modificationDate=:date where f.id in (:ids)")
+					.setParameter("owner", owner)
+					.setParameter("modifier", modifier)
+					.setParameter("date", modificationDate)
+					.setParameter("ids", chunk)
+					.executeUpdate();
+			manager.createQuery("update versioned FileHeader f set f.owner=:owner, f.auditInfo.modifiedBy=:modifier, " +
+					"f.auditInfo.modificationDate=:date where f.folder.id in (:ids)")
+					.setParameter("owner", owner)
+					.setParameter("modifier", modifier)
+					.setParameter("date", modificationDate)
+					.setParameter("ids", chunk)
+					.executeUpdate();
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void deleteFilesInFolders(List<Long> folderIds) {
+		for (List<Long> chunk : partition(folderIds)) {
+			List<Number> permissionIds = manager.createNativeQuery("select permissions_id from fileheader_permission " +
+					"where fileheader_id in (select id from fileheader where folder_id in (:ids))")
+					.setParameter("ids", chunk)
+					.getResultList();
+			manager.createQuery("update FileHeader f set f.currentBody=null where f.folder.id in (:ids)")
+					.setParameter("ids", chunk)
+					.executeUpdate();
+			manager.createQuery("delete from FileBody b where b.header.id in " +
+					"(select f.id from FileHeader f where f.folder.id in (:ids))")
+					.setParameter("ids", chunk)
+					.executeUpdate();
+			manager.createQuery("delete from FileTag t where t.file.id in " +
+					"(select f.id from FileHeader f where f.folder.id in (:ids))")
+					.setParameter("ids", chunk)
+					.executeUpdate();
+			createNativeUpdate("delete from fileheader_permission " +
+					"where fileheader_id in (select id from fileheader where folder_id in (:ids))",
+					"fileheader_permission")
+					.setParameterList("ids", chunk)
+					.executeUpdate();
+			manager.createQuery("delete from FileHeader f where f.folder.id in (:ids)")
+					.setParameter("ids", chunk)
+					.executeUpdate();
+			deletePermissions(permissionIds);
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void deleteFolders(List<Long> folderIds) {
+		for (List<Long> chunk : partition(folderIds)) {
+			List<Number> permissionIds = manager.createNativeQuery("select permissions_id from folder_permission " +
+					"where folder_id in (:ids)")
+					.setParameter("ids", chunk)
+					.getResultList();
+			createNativeUpdate("delete from folder_permission where folder_id in (:ids)",
+					"folder_permission")
+					.setParameterList("ids", chunk)
+					.executeUpdate();
+			manager.createQuery("delete from Folder f where f.id in (:ids)")
+					.setParameter("ids", chunk)
+					.executeUpdate();
+			deletePermissions(permissionIds);
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void replaceFolderPermissions(List<Long> folderIds, Collection<Permission> permissions) {
+		for (List<Long> chunk : partition(folderIds)) {
+			List<Number> permissionIds = manager.createNativeQuery("select permissions_id from folder_permission " +
+					"where folder_id in (:ids)")
+					.setParameter("ids", chunk)
+					.getResultList();
+			createNativeUpdate("delete from folder_permission where folder_id in (:ids)",
+					"folder_permission")
+					.setParameterList("ids", chunk)
+					.executeUpdate();
+			deletePermissions(permissionIds);
+			for (Permission permission : permissions)
+				insertPermissions("select id from folder where id in (:ids)",
+						"folder_permission (folder_id, permissions_id)", chunk, permission);
+			manager.createQuery("update versioned Folder f set f.shared=:shared where f.id in (:ids)")
+					.setParameter("shared", permissions.size() > 1)
+					.setParameter("ids", chunk)
+					.executeUpdate();
+			manager.createQuery("update versioned Folder f set f.shared=true where f.id in (:ids) and f.readForAll=true")
+					.setParameter("ids", chunk)
+					.executeUpdate();
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void replaceFilePermissions(List<Long> folderIds, Collection<Permission> permissions,
+				User modifier, Date modificationDate) {
+		for (List<Long> chunk : partition(folderIds)) {
+			List<Number> permissionIds = manager.createNativeQuery("select permissions_id from fileheader_permission " +
+					"where fileheader_id in (select id from fileheader where folder_id in (:ids))")
+					.setParameter("ids", chunk)
+					.getResultList();
+			createNativeUpdate("delete from fileheader_permission " +
+					"where fileheader_id in (select id from fileheader where folder_id in (:ids))",
+					"fileheader_permission")
+					.setParameterList("ids", chunk)
+					.executeUpdate();
+			deletePermissions(permissionIds);
+			for (Permission permission : permissions)
+				insertPermissions("select id from fileheader where folder_id in (:ids)",
+						"fileheader_permission (fileheader_id, permissions_id)", chunk, permission);
+			manager.createQuery("update versioned FileHeader f set f.shared=:shared, f.auditInfo.modifiedBy=:modifier, " +
+					"f.auditInfo.modificationDate=:date where f.folder.id in (:ids)")
+					.setParameter("shared", permissions.size() > 1)
+					.setParameter("modifier", modifier)
+					.setParameter("date", modificationDate)
+					.setParameter("ids", chunk)
+					.executeUpdate();
+			manager.createQuery("update versioned FileHeader f set f.shared=true where f.folder.id in (:ids) and f.readForAll=true")
+					.setParameter("ids", chunk)
+					.executeUpdate();
+		}
+	}
+
+	/**
+	 * Create a copy of the specified permission for every entity returned by
+	 * the supplied query and link it to the entity, with a single statement.
+	 * Each permission ID is drawn from the sequence once and used for both
+	 * the permission and the link, so the link never points to a missing
+	 * permission. The statement uses a data-modifying WITH clause, which
+	 * requires PostgreSQL 9.1 or later.
+	 *
+	 * @param entityQuery the native query that returns the entity IDs, with an ids parameter
+	 * @param joinTable the join table and its entity and permission columns
+	 * @param ids the value of the ids parameter
+	 * @param permission the permission to copy
+	 */
+	private void insertPermissions(String entityQuery, String joinTable, List<Long> ids, Permission permission) {
+		SQLQuery query = createNativeUpdate("with source as (select id as entity_id, " +
+				"nextval('hibernate_sequence') as permission_id from (" + entityQuery + ") e), " +
+				"created as (insert into permission (id, version, user_id, group_id, read, write, modifyacl) " +
+				"select permission_id, 0, " +
+				(permission.getUser() == null ? "null" : ":userId") + ", " +
+				(permission.getGroup() == null ? "null" : ":groupId") + ", " +
+				":read, :write, :modifyACL from source) " +
+				"insert into " + joinTable + " select entity_id, permission_id from source",
+				"permission", joinTable.substring(0, joinTable.indexOf(' ')));
+		query.setParameterList("ids", ids)
+				.setParameter("read", permission.getRead())
+				.setParameter("write", permission.getWrite())
+				.setParameter("modifyACL", permission.getModifyACL());
+		if (permission.getUser() != null)
+			query.setParameter("userId", permission.getUser().getId());
+		if (permission.getGroup() != null)
+			query.setParameter("groupId", permission.getGroup().getId());
+		query.executeUpdate();
+	}
+
+	/**
+	 * Create a native statement that, when executed, only invalidates the
+	 * second-level cache regions of the specified tables, instead of all of
+	 * them as JPA native queries do.
+	 *
+	 * @param sql the SQL statement
+	 * @param tables the tables that the statement modifies
+	 * @return the statement
+	 */
+	private SQLQuery createNativeUpdate(String sql, String... tables) {
+		SQLQuery query = ((Session) manager.getDelegate()).createSQLQuery(sql);
+		for (String table : tables)
+			query.addSynchronizedQuerySpace(table);
+		return query;
+	}
+
+	/**
+	 * Remove the permissions with the specified IDs, after they were
+	 * detached from their files or folders.
+	 */
+	private void deletePermissions(List<Number> permissionIds) {
+		List<Long> ids = new ArrayList<Long>(permissionIds.size());
+		for (Number id : permissionIds)
+			ids.add(id.longValue());
+		for (List<Long> chunk : partition(ids))
+			manager.createQuery("delete from Permission p where p.id in (:ids)")
+					.setParameter("ids", chunk)
+					.executeUpdate();
+	}
+
+	/**
+	 * Split a list of IDs into chunks that fit in a single query, keeping
+	 * their order.
+	 */
+	private static List<List<Long>> partition(List<Long> ids) {
+		List<List<Long>> chunks = new ArrayList<List<Long>>();
+		for (int i = 0; i < ids.size(); i += MAX_IDS_PER_QUERY)
+			chunks.add(ids.subList(i, Math.min(i + MAX_IDS_PER_QUERY, ids.size())));
+		return chunks;
+	}
+
+	@Override
+	public UserUsage getUsage(Long userId) {
+		UserUsage usage = manager.find(UserUsage.class, userId);
+		// The counters may have been changed by bulk updates in this transaction.
+		if (usage != null)
+			manager.refresh(usage);
+		return usage;
+	}
+
+	@Override
+	public boolean addUsage(Long userId, long bytes, long files) {
+		return manager.createQuery("update UserUsage u set u.bytesUsed=u.bytesUsed + :bytes, " +
+				"u.fileCount=u.fileCount + :files where u.userId=:userId")
+				.setParameter("bytes", bytes)
+				.setParameter("files", files)
+				.setParameter("userId", userId)
+				.executeUpdate() > 0;
+	}
+
+	@Override
+	public boolean lockUsage(Long userId) {
+		return manager.createQuery("update UserUsage u set u.reconciled=:now where u.userId=:userId")
+				.setParameter("now", new Date())
+				.setParameter("userId", userId)
+				.executeUpdate() > 0;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<Long> getUsersForUsageReconciliation(int maxResults) {
+		List<Long> ids = manager.createQuery("select u.id from User u where u.id not in " +
+				"(select x.userId from UserUsage x) order by u.id")
+				.setMaxResults(maxResults)
+				.getResultList();
+		if (ids.size() < maxResults)
+			ids.addAll(manager.createQuery("select x.userId from UserUsage x order by x.reconciled")
+					.setMaxResults(maxResults - ids.size())
+					.getResultList());
+		return ids;
+	}
+
+	@Override
+	public void deleteUsage(Long userId) {
+		manager.createQuery("delete from UserUsage u where u.userId=:userId")
+				.setParameter("userId", userId)
+				.executeUpdate();
+	}
+
+	@Override
+	public List<Long> getAllFileIds() {
+		List<Long> ids = manager.createQuery("select f.id from FileHeader f").getResultList();
+		return ids;
 	}
 
 	@Override
@@ -528,6 +993,55 @@ public class GSSDAOBean implements GSSDAO {
 		}
 	}
 
+	@Override
+	public boolean isStoredFileReferenced(String path) {
+		Long count = (Long) manager.createQuery("select count(f) from FileBody f where f.storedFilePath=:path")
+				.setParameter("path", path)
+				.getSingleResult();
+		return count > 0;
+	}
+
+	@Override
+	public int cancelPendingDeletions(String path) {
+		return manager.createQuery("delete from PendingDeletion d where d.storedFilePath=:path")
+				.setParameter("path", path)
+				.executeUpdate();
+	}
+
+	@Override
+	public boolean lockPendingDeletion(Long id) {
+		// Updating the row takes the same lock as the delete in
+		// cancelPendingDeletions.
+		return manager.createQuery("update PendingDeletion d set d.attempts=d.attempts where d.id=:id")
+				.setParameter("id", id)
+				.executeUpdate() > 0;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<PendingDeletion> getPendingDeletions(int maxResults, int maxAttempts, Date now) {
+		return manager.createQuery("select d from PendingDeletion d where d.attempts<:maxAttempts " +
+				"and (d.nextAttempt is null or d.nextAttempt<=:now) order by d.id")
+				.setParameter("maxAttempts", maxAttempts)
+				.setParameter("now", now)
+				.setMaxResults(maxResults)
+				.getResultList();
+	}
+
+	@Override
+	public long getPendingDeletionCount() {
+		return (Long) manager.createQuery("select count(d) from PendingDeletion d").getSingleResult();
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<UploadSession> getUploadSessionsStartedBefore(Date date, int maxResults) {
+		return manager.createQuery("select s from UploadSession s where s.creationDate<:date order by s.id")
+				.setParameter("date", date)
+				.setMaxResults(maxResults)
+				.getResultList();
+	}
+
 	@Override
 	public void updateAccounting(User user, Date date, long bandwidthDiff) {
 		AccountingInfo ai = null;
@@ -569,6 +1083,22 @@ public class GSSDAOBean implements GSSDAO {
 		ai.updateBandwidth(bandwidthDiff);
 	}
 
+	@Override
+	public void addBandwidth(Long userId, Date date, long bandwidthDiff) {
+		int updated = manager.createQuery("update versioned AccountingInfo ai " +
+				"set ai.bandwidthUsed = ai.bandwidthUsed + :diff " +
+				"where ai.user.id=:userId and ai.dateFrom<=:date and ai.dateTo>:date")
+				.setParameter("diff", bandwidthDiff)
+				.setParameter("userId", userId)
+				.setParameter("date", date)
+				.executeUpdate();
+		if (updated == 0) {
+			User user = manager.find(User.class, userId);
+			if (user != null)
+				updateAccounting(user, date, bandwidthDiff);
+		}
+	}
+
 	@Override
 	public List<UserClass> getUserClasses() {
 		// Ordering by quota is important here.
@@ -740,21 +1270,26 @@ public class GSSDAOBean implements GSSDAO {
 	
 	@Override
 	public List<Folder> getSharingFoldersForUser(Long userId) {
-		return manager.createQuery("select distinct f from Folder f " +
-					"LEFT JOIN f.permissions p where  " +
-					" (p.user.id=:userId or p.group.id in (select distinct gg.id " +
-					"from Group gg join gg.members memb where memb.id=:userId))) ").
-					setParameter("userId", userId).getResultList();
+		Set<Long> groupIds = getGroupIdsForUser(userId);
+		Query q = manager.createQuery("select distinct f from Folder f " +
+					"LEFT JOIN f.permissions p where " +
+					" (p.user.id=:userId" + (groupIds.isEmpty() ? "" : " or p.group.id in (:groupIds)") + ")").
+					setParameter("userId", userId);
+		if (!groupIds.isEmpty())
+			q.setParameter("groupIds", groupIds);
+		return q.getResultList();
 	}
 	
 	@Override
 	public List<FileHeader> getSharingFilesForUser(Long userId) {
-		List<FileHeader> users = manager.createQuery("select distinct f from FileHeader f " +
+		Set<Long> groupIds = getGroupIdsForUser(userId);
+		Query q = manager.createQuery("select distinct f from FileHeader f " +
 					"LEFT JOIN f.permissions p where " +
-					" (p.user.id=:userId or p.group.id in (select distinct gg.id from Group gg " +
-					"join gg.members memb where memb.id=:userId)))").
-					setParameter("userId", userId).getResultList();
-		return users;
+					" (p.user.id=:userId" + (groupIds.isEmpty() ? "" : " or p.group.id in (:groupIds)") + ")").
+					setParameter("userId", userId);
+		if (!groupIds.isEmpty())
+			q.setParameter("groupIds", groupIds);
+		return q.getResultList();
     }
 
     @Override
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.server.ejb;
+
+import static org.gss_project.gss.server.configuration.GSSConfigurationFactory.getConfiguration;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * A bounded cache of group memberships, that maps each user to the IDs of
+ * the groups it is a member of. ACLs are evaluated against these IDs,
+ * without loading the member collections of the groups or querying the
+ * membership table on every request. Entries are removed when a membership
+ * changes and again once the change is committed, since a lookup may cache
+ * the old membership in between. They also expire after a configurable
+ * time. The least recently used entries are evicted first.
+ *
+ * @author past
+ */
+public class GroupMembershipCache {
+
+	/**
+	 * The default maximum number of cached users.
+	 */
+	private static final int DEFAULT_SIZE = 10000;
+
+	/**
+	 * The default time in seconds after which a cached entry is reloaded.
+	 */
+	private static final int DEFAULT_EXPIRY = 60;
+
+	/**
+	 * The cache shared by all bean instances.
+	 */
+	private static final GroupMembershipCache instance = new GroupMembershipCache(
+			getConfiguration().getInt("groupCacheSize", DEFAULT_SIZE),
+			getConfiguration().getInt("groupCacheExpiry", DEFAULT_EXPIRY) * 1000L);
+
+	/**
+	 * A set of IDs and the time it was loaded.
+	 */
+	private static class Entry {
+		final Set<Long> ids;
+
+		final long loaded;
+
+		Entry(Set<Long> ids, long loaded) {
+			this.ids = ids;
+			this.loaded = loaded;
+		}
+	}
+
+	private final int maxSize;
+
+	private final long expiry;
+
+	/**
+	 * The group IDs of each user.
+	 */
+	private final Map<Long, Entry> groupIds;
+
+	private long hits;
+
+	private long misses;
+
+	private long evictions;
+
+	private long invalidations;
+
+	/**
+	 * Create a cache that holds the groups of up to maxSize users, for expiry
+	 * milliseconds.
+	 */
+	GroupMembershipCache(int maxSize, long expiry) {
+		this.maxSize = maxSize;
+		this.expiry = expiry;
+		groupIds = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+				if (size() <= maxSize)
+					return false;
+				evictions++;
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Retrieve the cache shared by all bean instances.
+	 */
+	public static GroupMembershipCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Retrieve the cached group IDs of the specified user.
+	 *
+	 * @param userId the ID of the user
+	 * @return an unmodifiable set of group IDs, or null if the user is not
+	 *         cached or the entry has expired
+	 */
+	public synchronized Set<Long> getGroupIds(Long userId) {
+		Entry entry = groupIds.get(userId);
+		if (entry != null && System.currentTimeMillis() - entry.loaded > expiry) {
+			groupIds.remove(userId);
+			entry = null;
+		}
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.ids;
+	}
+
+	/**
+	 * Cache the group IDs of the specified user.
+	 *
+	 * @param userId the ID of the user
+	 * @param ids the IDs of the groups that contain the user
+	 * @return an unmodifiable set of the cached group IDs
+	 */
+	public synchronized Set<Long> putGroupIds(Long userId, Set<Long> ids) {
+		Set<Long> result = Collections.unmodifiableSet(ids);
+		if (maxSize > 0)
+			groupIds.put(userId, new Entry(result, System.currentTimeMillis()));
+		return result;
+	}
+
+	/**
+	 * Remove the groups of the specified user from the cache.
+	 *
+	 * @param userId the ID of the user
+	 */
+	public synchronized void invalidateUser(Long userId) {
+		if (groupIds.remove(userId) != null)
+			invalidations++;
+	}
+
+	/**
+	 * Remove the groups of the specified user from the cache, right away for
+	 * the rest of the current transaction and again when it completes.
+	 *
+	 * @param registry the transaction synchronization registry
+	 * @param userId the ID of the user
+	 */
+	public void invalidateUserOnCompletion(TransactionSynchronizationRegistry registry, final Long userId) {
+		invalidateUser(userId);
+		AfterCompletion.run(registry, new Runnable() {
+			@Override
+			public void run() {
+				invalidateUser(userId);
+			}
+		});
+	}
+
+	/**
+	 * Remove all users from the cache.
+	 */
+	public synchronized void clear() {
+		invalidations += groupIds.size();
+		groupIds.clear();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+
+	public synchronized int getSize() {
+		return groupIds.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Return the fraction of lookups that were found in the cache.
+	 */
+	public synchronized double getHitRate() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.server.ejb;
+
+import org.gss_project.gss.server.domain.FileHeader;
+import org.gss_project.gss.server.domain.Permission;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The metadata of a resource requested in a batch, as loaded in a single
+ * transaction. The resource is a Folder or a FileHeader, or null if nothing
+ * was found at the requested path. The files and permissions are only set
+ * when the requesting user can read the resource.
+ *
+ * @author past
+ */
+public class ResourceMetadata implements Serializable {
+
+	/**
+	 * The serial version UID of the class.
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The resource found, or null.
+	 */
+	private final Object resource;
+
+	/**
+	 * Whether the requesting user can read the resource.
+	 */
+	private boolean readable;
+
+	/**
+	 * The first page of the files in the folder that the user can read.
+	 */
+	private List<FileHeader> files;
+
+	/**
+	 * The permissions of the resource, starting with those of its owner.
+	 */
+	private Set<Permission> permissions;
+
+	ResourceMetadata(Object resource) {
+		this.resource = resource;
+	}
+
+	/**
+	 * Retrieve the resource, or null if it was not found.
+	 */
+	public Object getResource() {
+		return resource;
+	}
+
+	/**
+	 * Retrieve whether the requesting user can read the resource.
+	 */
+	public boolean isReadable() {
+		return readable;
+	}
+
+	void setReadable(boolean readable) {
+		this.readable = readable;
+	}
+
+	/**
+	 * Retrieve the first page of the files in the folder that the user can
+	 * read, or null if the resource is a file.
+	 */
+	public List<FileHeader> getFiles() {
+		return files;
+	}
+
+	void setFiles(List<FileHeader> files) {
+		this.files = files;
+	}
+
+	/**
+	 * Retrieve the permissions of the resource.
+	 */
+	public Set<Permission> getPermissions() {
+		return permissions;
+	}
+
+	void setPermissions(Set<Permission> permissions) {
+		this.permissions = permissions;
+	}
+}
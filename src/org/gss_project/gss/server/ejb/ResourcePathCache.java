@@ -0,0 +1,222 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.server.ejb;
+
+import static org.gss_project.gss.server.configuration.GSSConfigurationFactory.getConfiguration;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of resolved resource paths, that maps an owner and a path
+ * in the owner's namespace to the ID of the file or folder found there. The
+ * least recently used entries are evicted first. Entries are only hints: the
+ * resource is still loaded and checked against its recorded path, but the
+ * traversal of the path is avoided.
+ *
+ * @author past
+ */
+public class ResourcePathCache {
+
+	/**
+	 * The default maximum number of cached paths.
+	 */
+	private static final int DEFAULT_SIZE = 10000;
+
+	/**
+	 * The cache shared by all bean instances.
+	 */
+	private static final ResourcePathCache instance =
+			new ResourcePathCache(getConfiguration().getInt("pathCacheSize", DEFAULT_SIZE));
+
+	/**
+	 * A resolved path.
+	 */
+	public static class Entry {
+		private final Long id;
+
+		private final boolean folder;
+
+		Entry(Long id, boolean folder) {
+			this.id = id;
+			this.folder = folder;
+		}
+
+		/**
+		 * Retrieve the ID of the resource.
+		 */
+		public Long getId() {
+			return id;
+		}
+
+		/**
+		 * Check whether the resource is a folder.
+		 */
+		public boolean isFolder() {
+			return folder;
+		}
+	}
+
+	private final int maxSize;
+
+	private final Map<String, Entry> entries;
+
+	private long hits;
+
+	private long misses;
+
+	private long evictions;
+
+	private long invalidations;
+
+	/**
+	 * Create a cache that holds up to maxSize paths.
+	 */
+	ResourcePathCache(int maxSize) {
+		this.maxSize = maxSize;
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				if (size() <= ResourcePathCache.this.maxSize)
+					return false;
+				evictions++;
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Retrieve the cache shared by all bean instances.
+	 */
+	public static ResourcePathCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Retrieve the resource cached for the specified path.
+	 *
+	 * @param ownerId the ID of the owner of the namespace
+	 * @param path the path with plain names
+	 * @return the cached entry, or null if the path is not cached
+	 */
+	public synchronized Entry get(Long ownerId, String path) {
+		Entry entry = entries.get(key(ownerId, path));
+		if (entry == null)
+			misses++;
+		else
+			hits++;
+		return entry;
+	}
+
+	/**
+	 * Cache the resource found at the specified path.
+	 *
+	 * @param ownerId the ID of the owner of the namespace
+	 * @param path the path with plain names
+	 * @param id the ID of the resource
+	 * @param folder whether the resource is a folder
+	 */
+	public synchronized void put(Long ownerId, String path, Long id, boolean folder) {
+		if (maxSize > 0)
+			entries.put(key(ownerId, path), new Entry(id, folder));
+	}
+
+	/**
+	 * Remove the specified path from the cache.
+	 *
+	 * @param ownerId the ID of the owner of the namespace
+	 * @param path the path with plain names
+	 */
+	public synchronized void invalidate(Long ownerId, String path) {
+		if (entries.remove(key(ownerId, path)) != null)
+			invalidations++;
+	}
+
+	/**
+	 * Remove the specified folder path and every path below it from the
+	 * cache.
+	 *
+	 * @param ownerId the ID of the owner of the namespace
+	 * @param path the path of the folder with plain names
+	 */
+	public synchronized void invalidateTree(Long ownerId, String path) {
+		String folderKey = key(ownerId, path);
+		String prefix = folderKey + '/';
+		Iterator<String> i = entries.keySet().iterator();
+		while (i.hasNext()) {
+			String key = i.next();
+			if (key.equals(folderKey) || key.startsWith(prefix)) {
+				i.remove();
+				invalidations++;
+			}
+		}
+	}
+
+	/**
+	 * Remove all paths from the cache.
+	 */
+	public synchronized void clear() {
+		invalidations += entries.size();
+		entries.clear();
+	}
+
+	/**
+	 * Build the key of a path, ignoring a trailing slash.
+	 */
+	private static String key(Long ownerId, String path) {
+		if (path.length() > 1 && path.endsWith("/"))
+			path = path.substring(0, path.length() - 1);
+		return ownerId + ":" + path;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+
+	public synchronized int getSize() {
+		return entries.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Return the fraction of lookups that were found in the cache.
+	 */
+	public synchronized double getHitRate() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.server.ejb;
+
+import static org.gss_project.gss.server.configuration.GSSConfigurationFactory.getConfiguration;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.ejb.NoSuchEJBException;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.rmi.PortableRemoteObject;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A locator for the session beans used by the web tier, that looks each one
+ * up in JNDI only once instead of on every call. The returned references
+ * wrap the cached bean proxy and look it up again if it is no longer
+ * deployed, e.g. after a redeployment, retrying the failed call once.
+ *
+ * @author past
+ */
+public class ServiceLocator {
+	/**
+	 * The logger.
+	 */
+	private static Log logger = LogFactory.getLog(ServiceLocator.class);
+
+	/**
+	 * The locator shared by all callers.
+	 */
+	private static final ServiceLocator instance = new ServiceLocator();
+
+	/**
+	 * The cached references, keyed by their JNDI name.
+	 */
+	private final ConcurrentMap<String, Object> services = new ConcurrentHashMap<String, Object>();
+
+	/**
+	 * Retrieve the shared locator.
+	 */
+	public static ServiceLocator getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Retrieve a reference to the ExternalAPI session bean.
+	 *
+	 * @return the ExternalAPI bean
+	 * @throws NamingException if the bean cannot be found
+	 */
+	public ExternalAPI getExternalAPI() throws NamingException {
+		return getService(getConfiguration().getString("externalApiPath"), ExternalAPI.class);
+	}
+
+	/**
+	 * Retrieve a reference to the AdminAPI session bean.
+	 *
+	 * @return the AdminAPI bean
+	 * @throws NamingException if the bean cannot be found
+	 */
+	public AdminAPI getAdminAPI() throws NamingException {
+		return getService(getConfiguration().getString("adminApiPath"), AdminAPI.class);
+	}
+
+	/**
+	 * Remove all cached references, so that they are looked up again.
+	 */
+	public void clear() {
+		services.clear();
+	}
+
+	/**
+	 * Retrieve the cached reference to the bean with the specified JNDI name,
+	 * looking it up if this is the first request for it.
+	 */
+	private <T> T getService(String name, Class<T> type) throws NamingException {
+		Object service = services.get(name);
+		if (service == null) {
+			service = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+					new Reference<T>(name, type, lookup(name, type)));
+			Object previous = services.putIfAbsent(name, service);
+			if (previous != null)
+				service = previous;
+		}
+		return type.cast(service);
+	}
+
+	/**
+	 * Look up the bean with the specified JNDI name.
+	 */
+	static <T> T lookup(String name, Class<T> type) throws NamingException {
+		final Context ctx = new InitialContext();
+		try {
+			final Object ref = ctx.lookup(name);
+			return type.cast(PortableRemoteObject.narrow(ref, type));
+		} finally {
+			ctx.close();
+		}
+	}
+
+	/**
+	 * The handler of the cached references, that forwards each call to the
+	 * bean proxy, replacing it if the bean has been undeployed.
+	 */
+	private static class Reference<T> implements InvocationHandler {
+		private final String name;
+
+		private final Class<T> type;
+
+		private volatile T target;
+
+		Reference(String name, Class<T> type, T target) {
+			this.name = name;
+			this.type = type;
+			this.target = target;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			T current = target;
+			try {
+				return method.invoke(current, args);
+			} catch (InvocationTargetException e) {
+				if (!(e.getCause() instanceof NoSuchEJBException))
+					throw e.getCause();
+				logger.info("Looking up " + name + " again due to " + e.getCause());
+				try {
+					current = lookup(name, type);
+				} catch (NamingException ne) {
+					logger.error("Unable to look up " + name, ne);
+					throw e.getCause();
+				}
+				target = current;
+			}
+			try {
+				return method.invoke(current, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.server.ejb;
+
+import java.io.Serializable;
+
+/**
+ * The contents of an upload, as stored in the configured blob store but not
+ * yet attached to a file body.
+ *
+ * @author past
+ */
+public class StoredFile implements Serializable {
+
+	/**
+	 * The serial version UID of the class.
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The location of the contents in the blob store.
+	 */
+	private final String location;
+
+	/**
+	 * The uncompressed size of the stored contents in bytes.
+	 */
+	private final long size;
+
+	/**
+	 * The hex-encoded digest of the contents, or null if it was not computed
+	 * while they were stored.
+	 */
+	private final String contentDigest;
+
+	/**
+	 * The codec of the stored contents, or null if they are stored
+	 * uncompressed.
+	 */
+	private final String codec;
+
+	StoredFile(String location, long size, String contentDigest, String codec) {
+		this.location = location;
+		this.size = size;
+		this.contentDigest = contentDigest;
+		this.codec = codec;
+	}
+
+	/**
+	 * Retrieve the location of the contents in the blob store.
+	 */
+	public String getLocation() {
+		return location;
+	}
+
+	/**
+	 * Retrieve the uncompressed size of the stored contents in bytes.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Retrieve the hex-encoded digest of the contents, or null if it was not
+	 * computed while they were stored.
+	 */
+	public String getContentDigest() {
+		return contentDigest;
+	}
+
+	/**
+	 * Retrieve the codec of the stored contents, or null if they are stored
+	 * uncompressed.
+	 */
+	public String getCodec() {
+		return codec;
+	}
+}
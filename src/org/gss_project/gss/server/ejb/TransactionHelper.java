@@ -20,10 +20,13 @@ package org.gss_project.gss.server.ejb;
 
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.ejb.EJBTransactionRolledbackException;
 
@@ -32,7 +35,9 @@ import org.apache.commons.logging.LogFactory;
 
 /**
  * A helper class that provides a method for repeatedly trying a transaction
- * that is rolled back due to optimistic locking exceptions.
+ * that is rolled back due to optimistic locking exceptions. The first attempt
+ * runs in the calling thread and only the retries are scheduled, in a small
+ * executor shared by all callers.
  *
  * @author  past
  */
@@ -53,6 +58,31 @@ public class TransactionHelper<T> {
 	 */
 	private static final int MIN_TIMEOUT = 200;
 
+	/**
+	 * The number of threads that run the scheduled retries.
+	 */
+	private static final int RETRY_THREADS = 4;
+
+	/**
+	 * The upper bounds in milliseconds of the backoff histogram buckets. The
+	 * last bucket counts the delays above the last bound.
+	 */
+	private static final int[] BACKOFF_BUCKETS = {400, 800, 1600, 3200};
+
+	/**
+	 * The executor that runs the retries of all transactions, created when
+	 * the first retry is scheduled.
+	 */
+	private static ScheduledThreadPoolExecutor executor;
+
+	private static final AtomicLong executions = new AtomicLong();
+
+	private static final AtomicLong retries = new AtomicLong();
+
+	private static final AtomicLong failures = new AtomicLong();
+
+	private static final AtomicLongArray backoffs = new AtomicLongArray(BACKOFF_BUCKETS.length + 1);
+
 	/**
 	 * Execute the supplied command until it completes, ignoring transaction
 	 * rollbacks. Try at least TRANSACTION_RETRIES times before giving up,
@@ -65,45 +95,131 @@ public class TransactionHelper<T> {
 	 * @throws Exception any other exception thrown by the command
 	 */
 	public T tryExecute(final Callable<T> command) throws Exception {
-		T returnValue = null;
-		// Schedule a Future task to call the command after delay milliseconds.
+		executions.incrementAndGet();
 		int delay = 0;
-		ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-		for (int i = 0; i < TRANSACTION_RETRIES; i++) {
-			final int retry = i;
-			ScheduledFuture<T> future = executor.schedule(new Callable<T>() {
-
-				@Override
-				public T call() throws Exception {
-					return command.call();
-				}
-			}, delay, TimeUnit.MILLISECONDS);
-
+		for (int i = 0; ; i++) {
+			Throwable cause;
 			try {
-				returnValue = future.get();
-				break;
+				if (i == 0)
+					return command.call();
+				// Schedule a Future task to call the command after delay milliseconds.
+				ScheduledFuture<T> future = getExecutor().schedule(command, delay, TimeUnit.MILLISECONDS);
+				return future.get();
 			} catch (ExecutionException e) {
-				Throwable cause = e.getCause();
-				if (!(cause instanceof EJBTransactionRolledbackException) ||
-							retry == TRANSACTION_RETRIES - 1) {
-					logger.info("Transaction retry #" + (i+1) +
-								" failed due to " + cause);
-					executor.shutdownNow();
-					if (cause instanceof Exception)
-						throw (Exception) cause;
-					if (cause instanceof Error)
-						throw (Error) cause;
-				}
-				delay = MIN_TIMEOUT + (int) (MIN_TIMEOUT * Math.random() * (i + 1));
-				String origCause = cause.getCause() == null ?
-							cause.getClass().getName() :
-							cause.getCause().getClass().getName();
-				logger.info("Transaction retry #" + (i+1) + " scheduled in " + delay +
-							" msec due to " + origCause);
+				cause = e.getCause();
+			} catch (Exception e) {
+				cause = e;
+			}
+			if (!(cause instanceof EJBTransactionRolledbackException) ||
+						i == TRANSACTION_RETRIES - 1) {
+				logger.info("Transaction retry #" + (i+1) +
+							" failed due to " + cause);
+				if (cause instanceof EJBTransactionRolledbackException)
+					failures.incrementAndGet();
+				if (cause instanceof Exception)
+					throw (Exception) cause;
+				throw (Error) cause;
 			}
+			delay = MIN_TIMEOUT + (int) (MIN_TIMEOUT * Math.random() * (i + 1));
+			retries.incrementAndGet();
+			backoffs.incrementAndGet(getBucket(delay));
+			String origCause = cause.getCause() == null ?
+						cause.getClass().getName() :
+						cause.getCause().getClass().getName();
+			logger.info("Transaction retry #" + (i+1) + " scheduled in " + delay +
+						" msec due to " + origCause);
+		}
+	}
+
+	/**
+	 * Retrieve the executor that runs the retries, creating it if it was
+	 * not created yet or was shut down.
+	 */
+	private static synchronized ScheduledThreadPoolExecutor getExecutor() {
+		if (executor == null || executor.isShutdown())
+			executor = new ScheduledThreadPoolExecutor(RETRY_THREADS, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "TransactionRetry-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		return executor;
+	}
 
+	/**
+	 * Stop the executor that runs the retries, waiting for the scheduled
+	 * retries to complete.
+	 *
+	 * @param timeout the maximum time to wait, in milliseconds
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public static void shutdown(long timeout) throws InterruptedException {
+		ScheduledThreadPoolExecutor stopped;
+		synchronized (TransactionHelper.class) {
+			stopped = executor;
+			executor = null;
 		}
-		executor.shutdownNow();
-		return returnValue;
+		if (stopped != null) {
+			stopped.shutdown();
+			stopped.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Find the histogram bucket of the specified backoff delay.
+	 */
+	private static int getBucket(int delay) {
+		int i = 0;
+		while (i < BACKOFF_BUCKETS.length && delay > BACKOFF_BUCKETS[i])
+			i++;
+		return i;
+	}
+
+	/**
+	 * Retrieve the number of commands executed.
+	 */
+	public static long getExecutions() {
+		return executions.get();
+	}
+
+	/**
+	 * Retrieve the number of retries scheduled.
+	 */
+	public static long getRetries() {
+		return retries.get();
+	}
+
+	/**
+	 * Retrieve the number of commands that were still rolled back after all
+	 * the retries.
+	 */
+	public static long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * Retrieve the number of retries that are currently waiting or running.
+	 */
+	public static synchronized int getPendingRetries() {
+		if (executor == null)
+			return 0;
+		return executor.getQueue().size() + executor.getActiveCount();
+	}
+
+	/**
+	 * Retrieve the backoff delay histogram, as one line per bucket with its
+	 * upper bound in milliseconds and the number of retries in it.
+	 */
+	public static String getBackoffHistogram() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < BACKOFF_BUCKETS.length; i++)
+			sb.append("<=").append(BACKOFF_BUCKETS[i]).append(": ").append(backoffs.get(i)).append('\n');
+		sb.append(">").append(BACKOFF_BUCKETS[BACKOFF_BUCKETS.length - 1]).append(": ").
+				append(backoffs.get(BACKOFF_BUCKETS.length));
+		return sb.toString();
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.server.ejb;
+
+import static org.gss_project.gss.server.configuration.GSSConfigurationFactory.getConfiguration;
+
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The content digests of the resumable uploads in progress, computed while
+ * their chunks are written, so that committing an upload does not have to
+ * read the stored file again. The state of a message digest cannot be saved,
+ * so a digest is only kept while the chunks of an upload arrive in order on
+ * the same node. Uploads without a usable digest are digested again when they
+ * are committed. The least recently used entries are evicted first, which
+ * bounds the memory held by abandoned uploads.
+ *
+ * @author past
+ */
+class UploadDigests {
+
+	/**
+	 * The default maximum number of digests kept.
+	 */
+	private static final int DEFAULT_SIZE = 1000;
+
+	/**
+	 * The digests shared by all bean instances.
+	 */
+	private static final UploadDigests instance = new UploadDigests(
+			getConfiguration().getInt("uploadDigestCacheSize", DEFAULT_SIZE));
+
+	/**
+	 * The digest of the first bytes of an upload.
+	 */
+	static class Digest {
+		final MessageDigest digest;
+
+		/**
+		 * The number of bytes digested so far.
+		 */
+		long position;
+
+		Digest(MessageDigest digest) {
+			this.digest = digest;
+		}
+	}
+
+	private final int maxSize;
+
+	private final Map<Long, Digest> digests;
+
+	/**
+	 * Create a registry that holds up to maxSize digests.
+	 */
+	UploadDigests(int maxSize) {
+		this.maxSize = maxSize;
+		digests = new LinkedHashMap<Long, Digest>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Digest> eldest) {
+				return size() > UploadDigests.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Retrieve the digests shared by all bean instances.
+	 */
+	static UploadDigests getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Take the digest of an upload out of the registry, so that a concurrent
+	 * chunk of the same upload cannot update it at the same time.
+	 *
+	 * @param sessionId the ID of the upload session
+	 * @return the digest, or null if there is none
+	 */
+	synchronized Digest remove(Long sessionId) {
+		return digests.remove(sessionId);
+	}
+
+	/**
+	 * Keep the digest of an upload until its next chunk.
+	 *
+	 * @param sessionId the ID of the upload session
+	 * @param digest the digest of the bytes written so far
+	 */
+	synchronized void put(Long sessionId, Digest digest) {
+		if (maxSize > 0)
+			digests.put(sessionId, digest);
+	}
+}
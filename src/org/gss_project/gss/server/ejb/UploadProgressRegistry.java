@@ -0,0 +1,110 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.server.ejb;
+
+import org.gss_project.gss.server.domain.FileUploadStatus;
+
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+
+/**
+ * A registry of the progress of the uploads in flight, keyed by user and
+ * file name. The progress is kept in the uploadProgress Ehcache cache instead
+ * of the database, since it is only of interest while the upload lasts.
+ * Entries of abandoned uploads expire according to the cache configuration in
+ * ehcache.xml, where the cache can also be replicated to the other nodes of a
+ * cluster.
+ *
+ * @author past
+ */
+public class UploadProgressRegistry {
+
+	/**
+	 * The name of the cache that holds the progress.
+	 */
+	private static final String CACHE_NAME = "uploadProgress";
+
+	/**
+	 * The registry shared by all bean instances.
+	 */
+	private static final UploadProgressRegistry instance = new UploadProgressRegistry();
+
+	private final Ehcache cache;
+
+	private UploadProgressRegistry() {
+		CacheManager manager = CacheManager.create();
+		synchronized (manager) {
+			// Fall back to the default cache settings if it is not configured.
+			if (!manager.cacheExists(CACHE_NAME))
+				manager.addCache(CACHE_NAME);
+		}
+		cache = manager.getEhcache(CACHE_NAME);
+	}
+
+	/**
+	 * Retrieve the registry shared by all bean instances.
+	 */
+	public static UploadProgressRegistry getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Record the progress of an upload.
+	 *
+	 * @param userId the ID of the uploader
+	 * @param filename the name of the uploaded file
+	 * @param bytesUploaded the number of bytes received so far
+	 * @param fileSize the total size of the file
+	 */
+	public void update(Long userId, String filename, Long bytesUploaded, Long fileSize) {
+		FileUploadStatus status = new FileUploadStatus();
+		status.setFilename(filename);
+		status.setBytesUploaded(bytesUploaded);
+		status.setFileSize(fileSize);
+		cache.put(new Element(key(userId, filename), status));
+	}
+
+	/**
+	 * Retrieve the progress of an upload. The owner of the returned status is
+	 * not set.
+	 *
+	 * @param userId the ID of the uploader
+	 * @param filename the name of the uploaded file
+	 * @return the progress, or null if no upload is in progress
+	 */
+	public FileUploadStatus get(Long userId, String filename) {
+		Element element = cache.get(key(userId, filename));
+		return element == null ? null : (FileUploadStatus) element.getObjectValue();
+	}
+
+	/**
+	 * Forget the progress of a finished upload.
+	 *
+	 * @param userId the ID of the uploader
+	 * @param filename the name of the uploaded file
+	 */
+	public void remove(Long userId, String filename) {
+		cache.remove(key(userId, filename));
+	}
+
+	private static String key(Long userId, String filename) {
+		return userId + ":" + filename;
+	}
+}
@@ -0,0 +1,533 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.server.ejb.blob;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The binary delta codec for stored contents, in the style of rsync. The
+ * base contents are split in fixed-size blocks and the target contents are
+ * encoded as a sequence of references to base blocks and literal data,
+ * found with a rolling checksum. The encoded delta is gzip-compressed.
+ * Decoding needs random access to uncompressed base contents in a BlobStore.
+ *
+ * @author past
+ */
+public final class BinaryDelta {
+
+	/**
+	 * The logger.
+	 */
+	private static Log logger = LogFactory.getLog(BinaryDelta.class);
+
+	/**
+	 * The name of the codec, as recorded on FileBody.
+	 */
+	public static final String CODEC = "delta";
+
+	/**
+	 * The size of the base blocks.
+	 */
+	private static final int BLOCK_SIZE = 4 * 1024;
+
+	/**
+	 * The size of the buffer that holds the target contents being scanned.
+	 */
+	private static final int WINDOW_SIZE = 256 * 1024;
+
+	/**
+	 * The size of the buffer used for writing to the store.
+	 */
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * The magic number that starts a delta.
+	 */
+	private static final int MAGIC = 0x47534431;
+
+	/**
+	 * The operation that copies a run of base blocks.
+	 */
+	private static final byte COPY = 'C';
+
+	/**
+	 * The operation that inserts literal data.
+	 */
+	private static final byte LITERAL = 'L';
+
+	/**
+	 * The operation that ends the delta.
+	 */
+	private static final byte END = 'E';
+
+	/**
+	 * Exists only to defeat instantiation.
+	 */
+	private BinaryDelta() {
+	}
+
+	/**
+	 * Store a delta that encodes the target contents in terms of the base
+	 * contents. Neither stream is closed.
+	 *
+	 * @param store the store to keep the delta in
+	 * @param base the base contents
+	 * @param target the target contents
+	 * @param maxSize the size above which the delta is abandoned
+	 * @return the location of the delta, or null if it would be larger than
+	 * 			maxSize
+	 * @throws IOException if the contents could not be read or the delta
+	 * 			could not be stored
+	 */
+	public static String store(BlobStore store, InputStream base, InputStream target, long maxSize) throws IOException {
+		BlockIndex index = new BlockIndex(base);
+		String location = store.put(new ByteArrayInputStream(new byte[0]));
+		boolean stored = false;
+		try {
+			BlobOutputStream blob = new BlobOutputStream(store, location, maxSize);
+			DataOutputStream out = new DataOutputStream(new GZIPOutputStream(blob, BUFFER_SIZE / 16));
+			out.writeInt(MAGIC);
+			out.writeInt(BLOCK_SIZE);
+			encode(index, target, out, blob);
+			out.close();
+			stored = !blob.isOverflown();
+			return stored ? location : null;
+		} finally {
+			if (!stored && !store.delete(location))
+				logger.warn("Could not delete " + location);
+		}
+	}
+
+	/**
+	 * Open the contents encoded by the delta at the specified location.
+	 *
+	 * @param store the store that holds the delta and the base contents
+	 * @param location the location of the delta
+	 * @param baseLocation the location of the uncompressed base contents
+	 * @param temporary true if the base contents should be removed when the
+	 * 			returned stream is closed
+	 * @return a stream with the target contents
+	 * @throws IOException if the delta could not be opened or is corrupt
+	 */
+	public static InputStream open(BlobStore store, String location, String baseLocation, boolean temporary)
+			throws IOException {
+		DataInputStream delta = new DataInputStream(new GZIPInputStream(store.open(location)));
+		if (delta.readInt() != MAGIC) {
+			delta.close();
+			throw new IOException("Invalid delta at " + location);
+		}
+		int blockSize = delta.readInt();
+		return new DeltaInputStream(store, delta, blockSize, baseLocation, temporary);
+	}
+
+	/**
+	 * Return a new digest for the strong checksum of base blocks.
+	 */
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Encode the target contents as operations on the indexed base, stopping
+	 * early if the delta grows too large.
+	 */
+	private static void encode(BlockIndex index, InputStream target, DataOutputStream out,
+				BlobOutputStream blob) throws IOException {
+		Encoder encoder = new Encoder(out);
+		byte[] buffer = new byte[WINDOW_SIZE];
+		// The scanned window is buffer[position, position + BLOCK_SIZE) and
+		// buffer[start, position) holds the pending literal data.
+		int start = 0;
+		int position = 0;
+		int end = 0;
+		boolean eof = false;
+		boolean hashed = false;
+		int a = 0;
+		int b = 0;
+		while (true) {
+			if (end - position < BLOCK_SIZE && !eof) {
+				encoder.literal(buffer, start, position - start);
+				System.arraycopy(buffer, position, buffer, 0, end - position);
+				end -= position;
+				position = 0;
+				start = 0;
+				int n = 0;
+				while (end < buffer.length && -1 != (n = target.read(buffer, end, buffer.length - end)))
+					end += n;
+				eof = n == -1;
+				if (blob.isOverflown())
+					return;
+			}
+			if (end - position < BLOCK_SIZE)
+				break;
+			if (!hashed) {
+				a = 0;
+				b = 0;
+				for (int i = 0; i < BLOCK_SIZE; i++) {
+					a += buffer[position + i] & 0xff;
+					b += (BLOCK_SIZE - i) * (buffer[position + i] & 0xff);
+				}
+				a &= 0xffff;
+				b &= 0xffff;
+				hashed = true;
+			}
+			int block = index.find(b << 16 | a, buffer, position);
+			if (block >= 0) {
+				encoder.literal(buffer, start, position - start);
+				encoder.copy(block);
+				position += BLOCK_SIZE;
+				start = position;
+				hashed = false;
+			} else if (position + BLOCK_SIZE < end) {
+				int removed = buffer[position] & 0xff;
+				int added = buffer[position + BLOCK_SIZE] & 0xff;
+				a = (a - removed + added) & 0xffff;
+				b = (b - BLOCK_SIZE * removed + a) & 0xffff;
+				position++;
+			} else {
+				position++;
+				hashed = false;
+			}
+		}
+		encoder.literal(buffer, start, end - start);
+		encoder.end();
+	}
+
+	/**
+	 * The checksums of the full blocks of base contents.
+	 */
+	private static class BlockIndex {
+		/**
+		 * The blocks for each weak checksum, as an Integer for a single
+		 * block or an int array for several.
+		 */
+		private final Map<Integer, Object> blocks = new HashMap<Integer, Object>();
+
+		/**
+		 * The strong checksums of the blocks, in block order.
+		 */
+		private final ByteArrayOutputStream strong = new ByteArrayOutputStream();
+
+		/**
+		 * The strong checksums, once indexing is done.
+		 */
+		private final byte[] digests;
+
+		/**
+		 * The digest for the strong checksums.
+		 */
+		private final MessageDigest digest = newDigest();
+
+		BlockIndex(InputStream base) throws IOException {
+			byte[] block = new byte[BLOCK_SIZE];
+			int count = 0;
+			while (true) {
+				int length = 0;
+				int n = 0;
+				while (length < BLOCK_SIZE && -1 != (n = base.read(block, length, BLOCK_SIZE - length)))
+					length += n;
+				if (length < BLOCK_SIZE)
+					break;
+				int a = 0;
+				int b = 0;
+				for (int i = 0; i < BLOCK_SIZE; i++) {
+					a += block[i] & 0xff;
+					b += (BLOCK_SIZE - i) * (block[i] & 0xff);
+				}
+				Integer weak = Integer.valueOf((b & 0xffff) << 16 | a & 0xffff);
+				Object existing = blocks.get(weak);
+				if (existing == null)
+					blocks.put(weak, Integer.valueOf(count));
+				else if (existing instanceof Integer)
+					blocks.put(weak, new int[] {((Integer) existing).intValue(), count});
+				else {
+					int[] list = (int[]) existing;
+					int[] grown = Arrays.copyOf(list, list.length + 1);
+					grown[list.length] = count;
+					blocks.put(weak, grown);
+				}
+				strong.write(digest.digest(block));
+				count++;
+			}
+			digests = strong.toByteArray();
+		}
+
+		/**
+		 * Find a base block with the specified weak checksum and the same
+		 * data as the specified window.
+		 *
+		 * @return the block number, or -1 if there is none
+		 */
+		int find(int weak, byte[] buffer, int offset) {
+			Object candidates = blocks.get(Integer.valueOf(weak));
+			if (candidates == null)
+				return -1;
+			digest.update(buffer, offset, BLOCK_SIZE);
+			byte[] hash = digest.digest();
+			if (candidates instanceof Integer)
+				return matches(((Integer) candidates).intValue(), hash);
+			for (int block : (int[]) candidates)
+				if (matches(block, hash) >= 0)
+					return block;
+			return -1;
+		}
+
+		private int matches(int block, byte[] hash) {
+			for (int i = 0; i < hash.length; i++)
+				if (digests[block * hash.length + i] != hash[i])
+					return -1;
+			return block;
+		}
+	}
+
+	/**
+	 * Writes delta operations, merging consecutive block copies.
+	 */
+	private static class Encoder {
+		private final DataOutputStream out;
+
+		/**
+		 * The first block of the pending copy, or -1 if there is none.
+		 */
+		private int copyStart = -1;
+
+		/**
+		 * The number of blocks in the pending copy.
+		 */
+		private int copyCount;
+
+		Encoder(DataOutputStream output) {
+			out = output;
+		}
+
+		void copy(int block) throws IOException {
+			if (copyStart >= 0 && copyStart + copyCount == block) {
+				copyCount++;
+				return;
+			}
+			flushCopy();
+			copyStart = block;
+			copyCount = 1;
+		}
+
+		void literal(byte[] data, int offset, int length) throws IOException {
+			if (length == 0)
+				return;
+			flushCopy();
+			out.writeByte(LITERAL);
+			out.writeInt(length);
+			out.write(data, offset, length);
+		}
+
+		void end() throws IOException {
+			flushCopy();
+			out.writeByte(END);
+			out.flush();
+		}
+
+		private void flushCopy() throws IOException {
+			if (copyStart < 0)
+				return;
+			out.writeByte(COPY);
+			out.writeInt(copyStart);
+			out.writeInt(copyCount);
+			copyStart = -1;
+		}
+	}
+
+	/**
+	 * An output stream that appends to stored contents through
+	 * {@link BlobStore#write(String, long, InputStream)}, and stops writing
+	 * once a size limit is reached.
+	 */
+	private static class BlobOutputStream extends OutputStream {
+		private final BlobStore store;
+
+		private final String location;
+
+		private final long maxSize;
+
+		private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(BUFFER_SIZE);
+
+		/**
+		 * The number of bytes written to the store so far.
+		 */
+		private long written;
+
+		/**
+		 * True once the size limit has been exceeded.
+		 */
+		private boolean overflown;
+
+		BlobOutputStream(BlobStore blobStore, String blobLocation, long limit) {
+			store = blobStore;
+			location = blobLocation;
+			maxSize = limit;
+		}
+
+		boolean isOverflown() {
+			return overflown;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (overflown)
+				return;
+			buffer.write(b, off, len);
+			if (buffer.size() >= BUFFER_SIZE)
+				flush();
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (overflown || buffer.size() == 0)
+				return;
+			if (written + buffer.size() > maxSize) {
+				overflown = true;
+				return;
+			}
+			written += store.write(location, written, new ByteArrayInputStream(buffer.toByteArray()));
+			buffer.reset();
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+
+	/**
+	 * A stream that applies a delta to base contents.
+	 */
+	private static class DeltaInputStream extends InputStream {
+		private final BlobStore store;
+
+		private final DataInputStream delta;
+
+		private final int blockSize;
+
+		private final String baseLocation;
+
+		/**
+		 * True if the base contents should be removed on close.
+		 */
+		private final boolean temporary;
+
+		/**
+		 * The stream for the current copy operation, or null.
+		 */
+		private InputStream copy;
+
+		/**
+		 * The literal bytes left in the current literal operation.
+		 */
+		private int literal;
+
+		/**
+		 * True once the end of the delta has been reached.
+		 */
+		private boolean ended;
+
+		DeltaInputStream(BlobStore blobStore, DataInputStream deltaStream, int size, String base, boolean temp) {
+			store = blobStore;
+			delta = deltaStream;
+			blockSize = size;
+			baseLocation = base;
+			temporary = temp;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			while (!ended) {
+				if (copy != null) {
+					int n = copy.read(b, off, len);
+					if (n > 0)
+						return n;
+					copy.close();
+					copy = null;
+				} else if (literal > 0) {
+					int n = delta.read(b, off, Math.min(len, literal));
+					if (n < 0)
+						throw new EOFException("Truncated delta");
+					literal -= n;
+					return n;
+				} else
+					nextOperation();
+			}
+			return -1;
+		}
+
+		private void nextOperation() throws IOException {
+			byte op = delta.readByte();
+			if (op == COPY) {
+				long block = delta.readInt();
+				long count = delta.readInt();
+				copy = store.open(baseLocation, block * blockSize, count * blockSize);
+			} else if (op == LITERAL)
+				literal = delta.readInt();
+			else if (op == END)
+				ended = true;
+			else
+				throw new IOException("Invalid delta operation " + op);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (copy != null)
+				copy.close();
+			delta.close();
+			if (temporary && !store.delete(baseLocation))
+				logger.warn("Could not delete " + baseLocation);
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.server.ejb.blob;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The physical storage for file contents. Stored contents are identified by
+ * an opaque location string, which is what FileBody records as its stored
+ * file path.
+ *
+ * @author past
+ */
+public interface BlobStore {
+
+	/**
+	 * Store the contents of the specified stream under a newly generated
+	 * location. The stream is read to the end but not closed.
+	 *
+	 * @param stream the contents to store
+	 * @return the location of the stored contents
+	 * @throws IOException if the contents could not be stored
+	 */
+	public String put(InputStream stream) throws IOException;
+
+	/**
+	 * Write the contents of the specified stream into the contents stored at
+	 * the specified location, starting at the specified offset. Existing
+	 * bytes are overwritten and the contents grow as needed. The stream is
+	 * read to the end but not closed.
+	 *
+	 * @param location the location of the contents
+	 * @param offset the position of the first byte to write
+	 * @param stream the data to write
+	 * @return the number of bytes written
+	 * @throws IOException if the contents could not be written
+	 */
+	public long write(String location, long offset, InputStream stream) throws IOException;
+
+	/**
+	 * Cut the contents stored at the specified location down to the
+	 * specified size. Contents that are not larger are left as they are.
+	 *
+	 * @param location the location of the contents
+	 * @param size the size to keep
+	 * @throws IOException if the contents could not be found or truncated
+	 */
+	public void truncate(String location, long size) throws IOException;
+
+	/**
+	 * Move the contents stored at the specified location under the specified
+	 * name. If contents are already stored under that name, they are kept and
+	 * the contents at the old location are discarded.
+	 *
+	 * @param location the current location of the contents
+	 * @param name the name to store the contents under
+	 * @return the new location of the contents
+	 * @throws IOException if the contents could not be moved
+	 */
+	public String rename(String location, String name) throws IOException;
+
+	/**
+	 * Open the contents stored at the specified location.
+	 *
+	 * @param location the location of the contents
+	 * @return a stream with the stored contents
+	 * @throws IOException if the contents could not be found or opened
+	 */
+	public InputStream open(String location) throws IOException;
+
+	/**
+	 * Open a range of the contents stored at the specified location.
+	 *
+	 * @param location the location of the contents
+	 * @param offset the first byte of the range
+	 * @param length the number of bytes in the range
+	 * @return a stream with the requested range of the stored contents
+	 * @throws IOException if the contents could not be found or opened
+	 */
+	public InputStream open(String location, long offset, long length) throws IOException;
+
+	/**
+	 * Return the size in bytes of the contents stored at the specified
+	 * location.
+	 *
+	 * @param location the location of the contents
+	 * @return the size of the contents
+	 * @throws IOException if the contents could not be found
+	 */
+	public long size(String location) throws IOException;
+
+	/**
+	 * Check whether contents are stored at the specified location.
+	 *
+	 * @param location the location of the contents
+	 * @return true if the contents exist
+	 */
+	public boolean exists(String location);
+
+	/**
+	 * Remove the contents stored at the specified location.
+	 *
+	 * @param location the location of the contents
+	 * @return true if the contents were removed or did not exist
+	 */
+	public boolean delete(String location);
+
+	/**
+	 * Return the volume that holds the contents at the specified location,
+	 * for stores that span several disks or mount points.
+	 *
+	 * @param location the location of the contents
+	 * @return the volume name, or null if the store has no volumes
+	 */
+	public String getVolume(String location);
+
+}
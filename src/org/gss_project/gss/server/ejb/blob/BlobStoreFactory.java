@@ -0,0 +1,89 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.server.ejb.blob;
+
+import static org.gss_project.gss.server.configuration.GSSConfigurationFactory.getConfiguration;
+
+import java.util.Arrays;
+
+import org.apache.commons.configuration.DataConfiguration;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Singleton that creates the BlobStore configured in gss.properties and makes
+ * it available to all.
+ *
+ * @author past
+ */
+public final class BlobStoreFactory {
+
+	/**
+	 * The logger.
+	 */
+	private static Log logger = LogFactory.getLog(BlobStoreFactory.class);
+
+	/**
+	 * The (single) store object.
+	 */
+	private static BlobStore store = null;
+
+	/**
+	 * Exists only to defeat instantiation.
+	 */
+	private BlobStoreFactory() {
+	}
+
+	/**
+	 * Return the configured store. The blobStore property selects between the
+	 * 'local' (default), 'sharded', 'volumes' and 'memory' implementations.
+	 *
+	 * @return the store object
+	 */
+	public synchronized static BlobStore getBlobStore() {
+		if (store == null) {
+			DataConfiguration conf = getConfiguration();
+			String type = conf.getString("blobStore", "local");
+			int depth = conf.getInt("fileRepositoryDepth", LocalBlobStore.DEFAULT_DEPTH);
+			if ("sharded".equals(type))
+				store = new ShardedBlobStore(Arrays.asList(conf.getStringArray("fileRepositoryShards")), depth);
+			else if ("volumes".equals(type))
+				store = new VolumeBlobStore(Arrays.asList(conf.getStringArray("fileRepositoryVolumes")), depth,
+							conf.getLong("fileRepositoryMinFreeSpace", 0));
+			else if ("memory".equals(type))
+				store = new MemoryBlobStore();
+			else {
+				if (!"local".equals(type))
+					logger.error("Unknown blob store type " + type + ", using the local file repository");
+				store = new LocalBlobStore(conf.getString("fileRepositoryPath", "/tmp"), depth);
+			}
+		}
+		return store;
+	}
+
+	/**
+	 * Replace the store object, for tests and benchmarks that need a specific
+	 * implementation.
+	 *
+	 * @param blobStore the new store object
+	 */
+	public synchronized static void setBlobStore(BlobStore blobStore) {
+		store = blobStore;
+	}
+}
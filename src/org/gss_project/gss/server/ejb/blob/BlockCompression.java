@@ -0,0 +1,446 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.server.ejb.blob;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The block-indexed compression codec for stored contents. Contents are split
+ * in fixed-size blocks and each block is stored as a separate gzip member,
+ * followed by an index of the block offsets and a fixed-size trailer:
+ *
+ * <pre>
+ * member 0 | member 1 | ... | offset 0 | ... | offset n-1 | size | block size | n | magic
+ * </pre>
+ *
+ * The index allows reading any range of the original contents by
+ * decompressing only the blocks that hold it. The codec works on top of any
+ * BlobStore.
+ *
+ * @author past
+ */
+public final class BlockCompression {
+
+	/**
+	 * The name of the codec, as recorded on FileBody.
+	 */
+	public static final String CODEC = "gzip-blocks";
+
+	/**
+	 * The size of the uncompressed blocks.
+	 */
+	public static final int BLOCK_SIZE = 64 * 1024;
+
+	/**
+	 * The magic number that ends compressed contents.
+	 */
+	private static final int MAGIC = 0x475a4231;
+
+	/**
+	 * The size of the trailer: the uncompressed size, the block size, the
+	 * number of blocks and the magic number.
+	 */
+	private static final int TRAILER_SIZE = 8 + 4 + 4 + 4;
+
+	/**
+	 * Exists only to defeat instantiation.
+	 */
+	private BlockCompression() {
+	}
+
+	/**
+	 * Check whether the contents of the specified stream are worth
+	 * compressing, by sampling their first block. The stream must support
+	 * mark and is reset to where it was, so that it can be stored afterwards.
+	 *
+	 * @param stream the stream to sample
+	 * @param minSize the minimum size of the contents, capped at the block
+	 * 			size
+	 * @param minRatio the minimum compression ratio (uncompressed size
+	 * 			divided by compressed size) of the first block
+	 * @return true if the contents should be stored compressed
+	 * @throws IOException if the stream could not be read
+	 */
+	public static boolean isCompressible(InputStream stream, long minSize, double minRatio)
+			throws IOException {
+		stream.mark(BLOCK_SIZE);
+		try {
+			byte[] block = new byte[BLOCK_SIZE];
+			int length = readBlock(stream, block);
+			if (length == 0 || length < Math.min(minSize, BLOCK_SIZE))
+				return false;
+			return length >= minRatio * compressBlock(block, length).length;
+		} finally {
+			stream.reset();
+		}
+	}
+
+	/**
+	 * Return a stream with the compressed form of the specified contents.
+	 * Compression happens as the returned stream is read, one block at a
+	 * time. Closing the returned stream closes the specified one.
+	 *
+	 * @param stream the uncompressed contents
+	 * @return the compressed contents
+	 */
+	public static InputStream compress(InputStream stream) {
+		return new CompressingInputStream(stream);
+	}
+
+	/**
+	 * Open the uncompressed form of the compressed contents at the specified
+	 * location. Skipping on the returned stream only decompresses the block
+	 * where reading resumes, so ranges can be served efficiently.
+	 *
+	 * @param store the store that holds the contents
+	 * @param location the location of the compressed contents
+	 * @return a stream with the uncompressed contents
+	 * @throws IOException if the contents could not be opened or are corrupt
+	 */
+	public static InputStream decompress(BlobStore store, String location) throws IOException {
+		return new BlockInputStream(store, location);
+	}
+
+	/**
+	 * Return the uncompressed size of the compressed contents at the
+	 * specified location, as recorded in their trailer.
+	 *
+	 * @param store the store that holds the contents
+	 * @param location the location of the compressed contents
+	 * @return the uncompressed size in bytes
+	 * @throws IOException if the contents could not be opened or are corrupt
+	 */
+	public static long size(BlobStore store, String location) throws IOException {
+		long[] info = new long[2];
+		readIndex(store, location, info);
+		return info[0];
+	}
+
+	/**
+	 * Read up to a block of data from the specified stream.
+	 *
+	 * @return the number of bytes read, less than the block length only at
+	 * 			the end of the stream
+	 */
+	private static int readBlock(InputStream stream, byte[] block) throws IOException {
+		int length = 0;
+		int n = 0;
+		while (length < block.length && -1 != (n = stream.read(block, length, block.length - length)))
+			length += n;
+		return length;
+	}
+
+	/**
+	 * Compress a block of data into a gzip member.
+	 */
+	private static byte[] compressBlock(byte[] block, int length) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 2 + 64);
+		GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+		gzip.write(block, 0, length);
+		gzip.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Read the trailer and index of compressed contents.
+	 *
+	 * @param info receives the uncompressed size and the block size
+	 * @return the offsets of the blocks, followed by the offset of the index
+	 */
+	private static long[] readIndex(BlobStore store, String location, long[] info) throws IOException {
+		long storedSize = store.size(location);
+		if (storedSize < TRAILER_SIZE)
+			throw new IOException("Invalid compressed contents at " + location);
+		DataInputStream trailer = new DataInputStream(store.open(location, storedSize - TRAILER_SIZE, TRAILER_SIZE));
+		long size;
+		int blockSize;
+		int count;
+		try {
+			size = trailer.readLong();
+			blockSize = trailer.readInt();
+			count = trailer.readInt();
+			if (trailer.readInt() != MAGIC)
+				throw new IOException("Invalid compressed contents at " + location);
+		} finally {
+			trailer.close();
+		}
+		long indexOffset = storedSize - TRAILER_SIZE - 8L * count;
+		if (blockSize <= 0 || count < 0 || indexOffset < 0)
+			throw new IOException("Invalid compressed contents at " + location);
+		long[] offsets = new long[count + 1];
+		DataInputStream index = new DataInputStream(store.open(location, indexOffset, 8L * count));
+		try {
+			for (int i = 0; i < count; i++)
+				offsets[i] = index.readLong();
+		} finally {
+			index.close();
+		}
+		offsets[count] = indexOffset;
+		info[0] = size;
+		info[1] = blockSize;
+		return offsets;
+	}
+
+	/**
+	 * A stream that compresses the contents of another stream in blocks and
+	 * appends the index and trailer.
+	 */
+	private static class CompressingInputStream extends InputStream {
+		/**
+		 * The uncompressed contents.
+		 */
+		private final InputStream in;
+
+		/**
+		 * The buffer for the uncompressed block.
+		 */
+		private final byte[] block = new byte[BLOCK_SIZE];
+
+		/**
+		 * The offsets of the compressed blocks.
+		 */
+		private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+
+		/**
+		 * The compressed data that has not been read yet.
+		 */
+		private ByteArrayInputStream pending = new ByteArrayInputStream(new byte[0]);
+
+		/**
+		 * The number of compressed bytes produced so far.
+		 */
+		private long offset;
+
+		/**
+		 * The number of uncompressed bytes consumed so far.
+		 */
+		private long size;
+
+		/**
+		 * The number of blocks produced so far.
+		 */
+		private int count;
+
+		/**
+		 * True once the index and trailer have been produced.
+		 */
+		private boolean finished;
+
+		CompressingInputStream(InputStream stream) {
+			in = stream;
+		}
+
+		/**
+		 * Produce more compressed data, returning false at the end.
+		 */
+		private boolean fill() throws IOException {
+			if (finished)
+				return false;
+			int length = readBlock(in, block);
+			if (length > 0) {
+				byte[] member = compressBlock(block, length);
+				new DataOutputStream(index).writeLong(offset);
+				offset += member.length;
+				size += length;
+				count++;
+				pending = new ByteArrayInputStream(member);
+			}
+			if (length < block.length) {
+				DataOutputStream trailer = new DataOutputStream(index);
+				trailer.writeLong(size);
+				trailer.writeInt(BLOCK_SIZE);
+				trailer.writeInt(count);
+				trailer.writeInt(MAGIC);
+				byte[] tail = index.toByteArray();
+				if (length > 0) {
+					byte[] last = new byte[pending.available() + tail.length];
+					pending.read(last, 0, last.length - tail.length);
+					System.arraycopy(tail, 0, last, last.length - tail.length, tail.length);
+					pending = new ByteArrayInputStream(last);
+				} else
+					pending = new ByteArrayInputStream(tail);
+				finished = true;
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			while (pending.available() == 0)
+				if (!fill())
+					return -1;
+			return pending.read(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * A stream that decompresses compressed contents block by block.
+	 */
+	private static class BlockInputStream extends InputStream {
+		/**
+		 * The store that holds the contents.
+		 */
+		private final BlobStore store;
+
+		/**
+		 * The location of the compressed contents.
+		 */
+		private final String location;
+
+		/**
+		 * The offsets of the blocks, followed by the offset of the index.
+		 */
+		private final long[] offsets;
+
+		/**
+		 * The uncompressed size of the contents.
+		 */
+		private final long size;
+
+		/**
+		 * The uncompressed size of the blocks.
+		 */
+		private final int blockSize;
+
+		/**
+		 * The position in the uncompressed contents.
+		 */
+		private long position;
+
+		/**
+		 * The decompressed stream of the current block, or null if it has
+		 * not been opened yet.
+		 */
+		private InputStream current;
+
+		/**
+		 * The index of the current block.
+		 */
+		private int currentBlock;
+
+		BlockInputStream(BlobStore blobStore, String blobLocation) throws IOException {
+			store = blobStore;
+			location = blobLocation;
+			long[] info = new long[2];
+			offsets = readIndex(store, location, info);
+			size = info[0];
+			blockSize = (int) info[1];
+		}
+
+		/**
+		 * Open the block that holds the current position.
+		 */
+		private void openBlock() throws IOException {
+			int block = (int) (position / blockSize);
+			currentBlock = block;
+			long start = offsets[block];
+			current = new GZIPInputStream(store.open(location, start, offsets[block + 1] - start));
+			long toSkip = position - (long) block * blockSize;
+			while (toSkip > 0) {
+				long skipped = current.skip(toSkip);
+				if (skipped <= 0)
+					throw new IOException("Truncated block in " + location);
+				toSkip -= skipped;
+			}
+		}
+
+		/**
+		 * Close the current block, if any.
+		 */
+		private void closeBlock() throws IOException {
+			if (current != null) {
+				current.close();
+				current = null;
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			while (position < size) {
+				if (current == null)
+					openBlock();
+				int n = current.read(b, off, (int) Math.min(len, size - position));
+				if (n > 0) {
+					position += n;
+					return n;
+				}
+				// The block is exhausted, move on to the next one.
+				closeBlock();
+				if (position % blockSize != 0)
+					throw new IOException("Truncated block in " + location);
+			}
+			return -1;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long target = Math.min(size, position + Math.max(0, n));
+			if (current != null && target / blockSize != currentBlock)
+				closeBlock();
+			long skipped = target - position;
+			if (current != null)
+				while (position < target) {
+					long s = current.skip(target - position);
+					if (s <= 0)
+						throw new IOException("Truncated block in " + location);
+					position += s;
+				}
+			position = target;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return current == null ? 0 : current.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			closeBlock();
+		}
+	}
+}
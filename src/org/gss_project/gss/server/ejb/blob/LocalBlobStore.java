@@ -0,0 +1,341 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.server.ejb.blob;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A BlobStore that keeps contents in files under a root directory of the local
+ * file system. Files are stored using random hash names that are distributed
+ * evenly in a tree of subdirectories named after the leading hex characters
+ * in the name, one level per character (2 levels by default). Locations are
+ * absolute file paths, so contents stored by older releases or with a
+ * different depth remain accessible.
+ *
+ * @author past
+ */
+public class LocalBlobStore implements BlobStore {
+
+	/**
+	 * The logger.
+	 */
+	private static Log logger = LogFactory.getLog(LocalBlobStore.class);
+
+	/**
+	 * The size of the buffer used for storing contents.
+	 */
+	private static final int BUFFER_SIZE = 1024 * 4;
+
+	/**
+	 * A cached random number generator for creating unique filenames.
+	 */
+	private static Random random = new Random();
+
+	/**
+	 * The default number of subdirectory levels.
+	 */
+	public static final int DEFAULT_DEPTH = 2;
+
+	/**
+	 * The maximum number of subdirectory levels, bounded by the length of
+	 * the generated names.
+	 */
+	public static final int MAX_DEPTH = 8;
+
+	/**
+	 * The root directory of the store.
+	 */
+	private final File root;
+
+	/**
+	 * The number of subdirectory levels.
+	 */
+	private final int depth;
+
+	/**
+	 * Create a store rooted at the specified directory, with the default
+	 * number of subdirectory levels.
+	 *
+	 * @param rootPath the path of the root directory
+	 */
+	public LocalBlobStore(String rootPath) {
+		this(rootPath, DEFAULT_DEPTH);
+	}
+
+	/**
+	 * Create a store rooted at the specified directory.
+	 *
+	 * @param rootPath the path of the root directory
+	 * @param levels the number of subdirectory levels, from 1 to MAX_DEPTH
+	 */
+	public LocalBlobStore(String rootPath, int levels) {
+		if (levels < 1 || levels > MAX_DEPTH)
+			throw new IllegalArgumentException("Invalid repository depth " + levels);
+		root = new File(rootPath);
+		depth = levels;
+	}
+
+	/**
+	 * Return the root directory of the store.
+	 */
+	public File getRoot() {
+		return root;
+	}
+
+	/**
+	 * Check whether the specified location lies under the root directory of
+	 * this store.
+	 *
+	 * @param location the location to check
+	 * @return true if the location belongs to this store
+	 */
+	public boolean contains(String location) {
+		return location != null && location.startsWith(root.getPath() + File.separator);
+	}
+
+	/**
+	 * Generate a new random name for stored contents. Names are padded to a
+	 * fixed length, so that there is a character for every level.
+	 */
+	protected String generateName() {
+		String name = Long.toHexString(random.nextLong());
+		return "0000000000000000".substring(name.length()) + name;
+	}
+
+	/**
+	 * Return the file under the root directory for stored contents with the
+	 * specified hex name. The subdirectories are not created.
+	 *
+	 * @param name the name of the stored contents
+	 * @return the file for the stored contents
+	 */
+	protected File getFile(String name) {
+		StringBuilder path = new StringBuilder(root.getPath());
+		for (int i = 0; i < depth; i++)
+			path.append(File.separatorChar).append(name.charAt(i));
+		return new File(path.append(File.separatorChar).append(name).toString());
+	}
+
+	/**
+	 * Create the subdirectories that will hold the specified file.
+	 */
+	private void createParent(File file) throws IOException {
+		File parent = file.getParentFile();
+		if (!parent.exists() && !parent.mkdirs() && !parent.exists())
+			throw new IOException("Could not create " + parent.getPath());
+	}
+
+	/**
+	 * Return the number of bytes available for new contents in this store,
+	 * on the file system that holds (or will hold) the root directory.
+	 */
+	public long getUsableSpace() {
+		File dir = root.getAbsoluteFile();
+		while (!dir.exists() && dir.getParentFile() != null)
+			dir = dir.getParentFile();
+		return dir.getUsableSpace();
+	}
+
+	@Override
+	public String put(InputStream stream) throws IOException {
+		File result = getFile(generateName());
+		createParent(result);
+		put(stream, result);
+		return result.getPath();
+	}
+
+	@Override
+	public long write(String location, long offset, InputStream stream) throws IOException {
+		File file = new File(location);
+		if (!file.exists())
+			throw new FileNotFoundException(location);
+		RandomAccessFile output = new RandomAccessFile(file, "rw");
+		long written = 0;
+		try {
+			output.seek(offset);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int n = 0;
+			while (-1 != (n = stream.read(buffer))) {
+				output.write(buffer, 0, n);
+				written += n;
+			}
+		} finally {
+			output.close();
+		}
+		return written;
+	}
+
+	@Override
+	public void truncate(String location, long size) throws IOException {
+		File file = new File(location);
+		if (!file.exists())
+			throw new FileNotFoundException(location);
+		RandomAccessFile output = new RandomAccessFile(file, "rw");
+		try {
+			if (size < output.length())
+				output.setLength(size);
+		} finally {
+			output.close();
+		}
+	}
+
+	@Override
+	public String rename(String location, String name) throws IOException {
+		File source = new File(location);
+		File target = getFile(name);
+		createParent(target);
+		if (target.exists() || !source.renameTo(target)) {
+			if (!target.exists()) {
+				// The target may be on another file system.
+				InputStream in = new FileInputStream(source);
+				try {
+					put(in, target);
+				} finally {
+					in.close();
+				}
+			}
+			if (!source.delete())
+				logger.warn("Could not delete " + source.getPath());
+		}
+		return target.getPath();
+	}
+
+	/**
+	 * Store the contents of the specified stream in the specified file,
+	 * removing any partially written file on failure.
+	 */
+	private void put(InputStream stream, File file) throws IOException {
+		try {
+			OutputStream output = new FileOutputStream(file);
+			try {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int n = 0;
+				while (-1 != (n = stream.read(buffer)))
+					output.write(buffer, 0, n);
+			} finally {
+				output.close();
+			}
+		} catch (IOException e) {
+			if (!file.delete())
+				logger.warn("Could not delete " + file.getPath());
+			throw e;
+		}
+	}
+
+	@Override
+	public InputStream open(String location) throws IOException {
+		return new FileInputStream(location);
+	}
+
+	@Override
+	public InputStream open(String location, long offset, long length) throws IOException {
+		FileInputStream stream = new FileInputStream(location);
+		stream.getChannel().position(offset);
+		return new RangeInputStream(stream, length);
+	}
+
+	@Override
+	public long size(String location) throws IOException {
+		File file = new File(location);
+		if (!file.exists())
+			throw new FileNotFoundException(location);
+		return file.length();
+	}
+
+	@Override
+	public boolean exists(String location) {
+		return new File(location).exists();
+	}
+
+	@Override
+	public boolean delete(String location) {
+		File file = new File(location);
+		return file.delete() || !file.exists();
+	}
+
+	@Override
+	public String getVolume(String location) {
+		return contains(location) ? root.getPath() : null;
+	}
+
+	/**
+	 * A stream that returns at most a fixed number of bytes from the
+	 * underlying stream.
+	 */
+	private static class RangeInputStream extends FilterInputStream {
+		/**
+		 * The number of bytes left in the range.
+		 */
+		private long remaining;
+
+		RangeInputStream(InputStream in, long length) {
+			super(in);
+			remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int b = super.read();
+			if (b != -1)
+				remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int n = super.read(b, off, (int) Math.min(len, remaining));
+			if (n > 0)
+				remaining -= n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(super.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
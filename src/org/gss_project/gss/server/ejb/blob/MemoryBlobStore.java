@@ -0,0 +1,158 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.server.ejb.blob;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A BlobStore that keeps contents in memory, for tests and benchmarks that
+ * should not depend on the speed of the disk. Contents are lost when the
+ * server stops.
+ *
+ * @author past
+ */
+public class MemoryBlobStore implements BlobStore {
+
+	/**
+	 * The prefix of the locations in this store.
+	 */
+	private static final String LOCATION_PREFIX = "memory:";
+
+	/**
+	 * The size of the buffer used for storing contents.
+	 */
+	private static final int BUFFER_SIZE = 1024 * 4;
+
+	/**
+	 * The stored contents, keyed by location.
+	 */
+	private final ConcurrentMap<String, byte[]> contents = new ConcurrentHashMap<String, byte[]>();
+
+	/**
+	 * The counter used for generating new locations.
+	 */
+	private final AtomicLong counter = new AtomicLong();
+
+	@Override
+	public String put(InputStream stream) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int n = 0;
+		while (-1 != (n = stream.read(buffer)))
+			output.write(buffer, 0, n);
+		String location = LOCATION_PREFIX + Long.toHexString(counter.incrementAndGet());
+		contents.put(location, output.toByteArray());
+		return location;
+	}
+
+	@Override
+	public synchronized long write(String location, long offset, InputStream stream) throws IOException {
+		byte[] data = get(location);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int n = 0;
+		while (-1 != (n = stream.read(buffer)))
+			output.write(buffer, 0, n);
+		byte[] chunk = output.toByteArray();
+		long end = offset + chunk.length;
+		if (end > Integer.MAX_VALUE)
+			throw new IOException("Contents too large for the memory store");
+		if (end > data.length) {
+			byte[] grown = new byte[(int) end];
+			System.arraycopy(data, 0, grown, 0, data.length);
+			data = grown;
+		}
+		System.arraycopy(chunk, 0, data, (int) offset, chunk.length);
+		contents.put(location, data);
+		return chunk.length;
+	}
+
+	@Override
+	public synchronized void truncate(String location, long size) throws IOException {
+		byte[] data = get(location);
+		if (size < data.length) {
+			byte[] truncated = new byte[(int) size];
+			System.arraycopy(data, 0, truncated, 0, truncated.length);
+			contents.put(location, truncated);
+		}
+	}
+
+	@Override
+	public String rename(String location, String name) throws IOException {
+		byte[] data = get(location);
+		String target = LOCATION_PREFIX + name;
+		contents.putIfAbsent(target, data);
+		if (!target.equals(location))
+			contents.remove(location);
+		return target;
+	}
+
+	@Override
+	public InputStream open(String location) throws IOException {
+		return new ByteArrayInputStream(get(location));
+	}
+
+	@Override
+	public InputStream open(String location, long offset, long length) throws IOException {
+		byte[] data = get(location);
+		int start = (int) Math.min(offset, data.length);
+		int len = (int) Math.min(length, data.length - start);
+		return new ByteArrayInputStream(data, start, len);
+	}
+
+	@Override
+	public long size(String location) throws IOException {
+		return get(location).length;
+	}
+
+	@Override
+	public boolean exists(String location) {
+		return contents.containsKey(location);
+	}
+
+	@Override
+	public boolean delete(String location) {
+		contents.remove(location);
+		return true;
+	}
+
+	@Override
+	public String getVolume(String location) {
+		return null;
+	}
+
+	/**
+	 * Return the contents stored at the specified location.
+	 *
+	 * @throws FileNotFoundException if there are no contents at the location
+	 */
+	private byte[] get(String location) throws FileNotFoundException {
+		byte[] data = contents.get(location);
+		if (data == null)
+			throw new FileNotFoundException(location);
+		return data;
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.server.ejb.blob;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A BlobStore that spreads contents over several local directories, usually
+ * on separate disks. New uploads are assigned to the directories in turn,
+ * while named contents always go to the same directory, so that identical
+ * contents in a content-addressed repository are still found.
+ *
+ * @author past
+ */
+public class ShardedBlobStore implements BlobStore {
+
+	/**
+	 * The stores for each directory.
+	 */
+	private final LocalBlobStore[] shards;
+
+	/**
+	 * The shard that receives the next upload.
+	 */
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * Create a store that spreads contents over the specified directories.
+	 *
+	 * @param rootPaths the paths of the directories
+	 * @param depth the number of subdirectory levels in each directory
+	 */
+	public ShardedBlobStore(List<String> rootPaths, int depth) {
+		if (rootPaths.isEmpty())
+			throw new IllegalArgumentException("No shard directories specified");
+		shards = new LocalBlobStore[rootPaths.size()];
+		for (int i = 0; i < shards.length; i++)
+			shards[i] = new LocalBlobStore(rootPaths.get(i), depth);
+	}
+
+	/**
+	 * Return the shard that keeps contents with the specified name.
+	 */
+	private LocalBlobStore getShardForName(String name) {
+		return shards[(name.hashCode() & Integer.MAX_VALUE) % shards.length];
+	}
+
+	/**
+	 * Return the shard that keeps contents at the specified location. Locations
+	 * outside of all shards are still absolute paths that any shard can serve.
+	 */
+	private LocalBlobStore getShardForLocation(String location) {
+		for (LocalBlobStore shard : shards)
+			if (shard.contains(location))
+				return shard;
+		return shards[0];
+	}
+
+	@Override
+	public String put(InputStream stream) throws IOException {
+		int shard = (next.getAndIncrement() & Integer.MAX_VALUE) % shards.length;
+		return shards[shard].put(stream);
+	}
+
+	@Override
+	public long write(String location, long offset, InputStream stream) throws IOException {
+		return getShardForLocation(location).write(location, offset, stream);
+	}
+
+	@Override
+	public void truncate(String location, long size) throws IOException {
+		getShardForLocation(location).truncate(location, size);
+	}
+
+	@Override
+	public String rename(String location, String name) throws IOException {
+		return getShardForName(name).rename(location, name);
+	}
+
+	@Override
+	public InputStream open(String location) throws IOException {
+		return getShardForLocation(location).open(location);
+	}
+
+	@Override
+	public InputStream open(String location, long offset, long length) throws IOException {
+		return getShardForLocation(location).open(location, offset, length);
+	}
+
+	@Override
+	public long size(String location) throws IOException {
+		return getShardForLocation(location).size(location);
+	}
+
+	@Override
+	public boolean exists(String location) {
+		return getShardForLocation(location).exists(location);
+	}
+
+	@Override
+	public boolean delete(String location) {
+		return getShardForLocation(location).delete(location);
+	}
+
+	@Override
+	public String getVolume(String location) {
+		return getShardForLocation(location).getVolume(location);
+	}
+}
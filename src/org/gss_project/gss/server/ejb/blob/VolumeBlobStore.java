@@ -0,0 +1,211 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.server.ejb.blob;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A BlobStore that spans several volumes, usually separate disks or mount
+ * points. Each upload is placed on the volume with the fewest uploads in
+ * progress, preferring the one with the most free space among equally busy
+ * volumes, so that concurrent uploads are spread over all of them. Volumes
+ * with less than the configured free space are only used when all of them
+ * are that full.
+ *
+ * @author past
+ */
+public class VolumeBlobStore implements BlobStore {
+
+	/**
+	 * The logger.
+	 */
+	private static Log logger = LogFactory.getLog(VolumeBlobStore.class);
+
+	/**
+	 * The difference in free space below which volumes are considered equally
+	 * free, so that small fluctuations do not steer all uploads to one volume.
+	 */
+	private static final long SPACE_MARGIN = 64L * 1024 * 1024;
+
+	/**
+	 * The stores for each volume.
+	 */
+	private final LocalBlobStore[] volumes;
+
+	/**
+	 * The number of uploads in progress on each volume.
+	 */
+	private final AtomicInteger[] activeWrites;
+
+	/**
+	 * The volume examined first on the next placement, so that ties are
+	 * broken in turn.
+	 */
+	private int next;
+
+	/**
+	 * The free space in bytes below which a volume is considered full.
+	 */
+	private final long minFreeSpace;
+
+	/**
+	 * Create a store that spans the specified volumes.
+	 *
+	 * @param rootPaths the paths of the root directories on each volume
+	 * @param depth the number of subdirectory levels in each volume
+	 * @param minimumFreeSpace the free space in bytes below which a volume
+	 * 			is considered full
+	 */
+	public VolumeBlobStore(List<String> rootPaths, int depth, long minimumFreeSpace) {
+		if (rootPaths.isEmpty())
+			throw new IllegalArgumentException("No volumes specified");
+		volumes = new LocalBlobStore[rootPaths.size()];
+		activeWrites = new AtomicInteger[volumes.length];
+		for (int i = 0; i < volumes.length; i++) {
+			volumes[i] = new LocalBlobStore(rootPaths.get(i), depth);
+			activeWrites[i] = new AtomicInteger();
+		}
+		minFreeSpace = minimumFreeSpace;
+	}
+
+	/**
+	 * Choose the volume for a new upload and count the upload against it.
+	 * The caller must call {@link #release(int)} when the upload finishes.
+	 *
+	 * @return the index of the chosen volume
+	 */
+	private synchronized int acquire() {
+		int best = -1;
+		boolean bestFull = true;
+		int bestWrites = 0;
+		long bestSpace = 0;
+		for (int n = 0; n < volumes.length; n++) {
+			int i = (next + n) % volumes.length;
+			long space = volumes[i].getUsableSpace();
+			boolean full = space < minFreeSpace;
+			int writes = activeWrites[i].get();
+			if (best == -1 || bestFull && !full || bestFull == full &&
+					(writes < bestWrites || writes == bestWrites && space > bestSpace + SPACE_MARGIN)) {
+				best = i;
+				bestFull = full;
+				bestWrites = writes;
+				bestSpace = space;
+			}
+		}
+		next = (next + 1) % volumes.length;
+		if (bestFull)
+			logger.warn("All volumes have less than " + minFreeSpace + " bytes free");
+		activeWrites[best].incrementAndGet();
+		return best;
+	}
+
+	/**
+	 * Mark an upload on the specified volume as finished.
+	 */
+	private void release(int volume) {
+		activeWrites[volume].decrementAndGet();
+	}
+
+	/**
+	 * Return the volume that keeps contents at the specified location.
+	 * Locations outside of all volumes are still absolute paths that any
+	 * volume can serve.
+	 */
+	private LocalBlobStore getVolumeForLocation(String location) {
+		for (LocalBlobStore volume : volumes)
+			if (volume.contains(location))
+				return volume;
+		return volumes[0];
+	}
+
+	@Override
+	public String put(InputStream stream) throws IOException {
+		int volume = acquire();
+		try {
+			return volumes[volume].put(stream);
+		} finally {
+			release(volume);
+		}
+	}
+
+	@Override
+	public long write(String location, long offset, InputStream stream) throws IOException {
+		return getVolumeForLocation(location).write(location, offset, stream);
+	}
+
+	@Override
+	public void truncate(String location, long size) throws IOException {
+		getVolumeForLocation(location).truncate(location, size);
+	}
+
+	/**
+	 * Named contents stay on the volume they were uploaded to, unless the
+	 * same name is already stored on another volume.
+	 */
+	@Override
+	public String rename(String location, String name) throws IOException {
+		LocalBlobStore source = getVolumeForLocation(location);
+		for (LocalBlobStore volume : volumes) {
+			File existing = volume.getFile(name);
+			if (volume != source && existing.exists()) {
+				if (!source.delete(location))
+					logger.warn("Could not delete " + location);
+				return existing.getPath();
+			}
+		}
+		return source.rename(location, name);
+	}
+
+	@Override
+	public InputStream open(String location) throws IOException {
+		return getVolumeForLocation(location).open(location);
+	}
+
+	@Override
+	public InputStream open(String location, long offset, long length) throws IOException {
+		return getVolumeForLocation(location).open(location, offset, length);
+	}
+
+	@Override
+	public long size(String location) throws IOException {
+		return getVolumeForLocation(location).size(location);
+	}
+
+	@Override
+	public boolean exists(String location) {
+		return getVolumeForLocation(location).exists(location);
+	}
+
+	@Override
+	public boolean delete(String location) {
+		return getVolumeForLocation(location).delete(location);
+	}
+
+	@Override
+	public String getVolume(String location) {
+		return getVolumeForLocation(location).getVolume(location);
+	}
+}
@@ -32,15 +32,17 @@ import org.gss_project.gss.server.domain.FileUploadStatus;
 import org.gss_project.gss.server.domain.Folder;
 import org.gss_project.gss.server.domain.Group;
 import org.gss_project.gss.server.domain.Permission;
+import org.gss_project.gss.server.domain.UploadSession;
 import org.gss_project.gss.server.domain.User;
+import org.gss_project.gss.server.ejb.BandwidthAccumulator;
 import org.gss_project.gss.server.ejb.ExternalAPI;
+import org.gss_project.gss.server.ejb.ResourceMetadata;
+import org.gss_project.gss.server.ejb.StoredFile;
 import org.gss_project.gss.server.ejb.TransactionHelper;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -48,6 +50,7 @@ import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLDecoder;
@@ -84,6 +87,7 @@ import org.apache.commons.logging.LogFactory;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONWriter;
 
 
 /**
@@ -97,6 +101,50 @@ public class FilesHandler extends RequestHandler {
 	 */
 	private static final String VERSION_PARAM = "version";
 
+	/**
+	 * The request parameter name for the maximum number of files in a page
+	 * of a folder listing.
+	 */
+	private static final String LIMIT_PARAMETER = "limit";
+
+	/**
+	 * The request parameter name for the cursor of a page of a folder
+	 * listing.
+	 */
+	private static final String AFTER_PARAMETER = "after";
+
+	/**
+	 * The request parameter name for the order of the files in a page of a
+	 * folder listing.
+	 */
+	private static final String ORDER_PARAMETER = "order";
+
+	/**
+	 * The order of files by name.
+	 */
+	private static final String ORDER_NAME = "name";
+
+	/**
+	 * The order of files by modification date, most recent first.
+	 */
+	private static final String ORDER_MODIFIED = "modified";
+
+	/**
+	 * The maximum number of files in a page of a folder listing.
+	 */
+	private static final int MAX_PAGE_SIZE = 1000;
+
+	/**
+	 * The parameter containing the URIs of a batch request, when they are
+	 * not sent as JSON in the request body.
+	 */
+	private static final String BATCH_PARAMETER = "uris";
+
+	/**
+	 * The maximum number of resources in a batch request.
+	 */
+	private static final int MAX_BATCH_SIZE = 200;
+
 	/**
 	 * The request attribute containing the owner of the destination URI
 	 * in a copy or move request.
@@ -125,6 +173,22 @@ public class FilesHandler extends RequestHandler {
 	 */
 	private static final String RESTORE_VERSION_PARAMETER = "restoreVersion";
 
+	/**
+	 * The request parameter name for starting a resumable upload, or for
+	 * operating on one when it contains the upload ID.
+	 */
+	private static final String UPLOAD_PARAMETER = "upload";
+
+	/**
+	 * The request header with the total size of a resumable upload.
+	 */
+	private static final String UPLOAD_LENGTH_HEADER = "X-Upload-Content-Length";
+
+	/**
+	 * The request header with the content type of a resumable upload.
+	 */
+	private static final String UPLOAD_TYPE_HEADER = "X-Upload-Content-Type";
+
 	/**
 	 * The logger.
 	 */
@@ -148,21 +212,12 @@ public class FilesHandler extends RequestHandler {
 		context = servletContext;
 	}
 
+	/**
+	 * Record the bandwidth used by the specified user. It is stored in the
+	 * database in batches by the AccountingFlusher service.
+	 */
 	private void updateAccounting(final User user, final Date date, final long bandwidthDiff) {
-		try {
-			new TransactionHelper<Void>().tryExecute(new Callable<Void>() {
-				@Override
-				public Void call() throws Exception {
-					getService().updateAccounting(user, date, bandwidthDiff);
-					return null;
-				}
-			});
-		} catch (RuntimeException e) {
-			throw e;
-		} catch (Exception e) {
-			// updateAccounting() doesn't throw any checked exceptions
-			assert false;
-		}
+		BandwidthAccumulator.getInstance().add(user.getId(), date, bandwidthDiff);
 	}
 
 	/**
@@ -249,7 +304,7 @@ public class FilesHandler extends RequestHandler {
 								String username = URLDecoder.decode(cookieauth.substring(0, sepIndex), "US-ASCII");
 								user = null;
 								try {
-									user = getService().findUser(username);
+									user = findAuthUser(username);
 								} catch (RpcException e) {
 						        	resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, path);
 									return;
@@ -298,7 +353,7 @@ public class FilesHandler extends RequestHandler {
 					String signature = authParts[1];
 					user = null;
 					try {
-						user = getService().findUser(username);
+						user = findAuthUser(username);
 					} catch (RpcException e) {
 			        	resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, path);
 						return;
@@ -353,6 +408,13 @@ public class FilesHandler extends RequestHandler {
 			return;
     	}
 
+    	// A request for the state of a resumable upload.
+    	String upload = req.getParameter(UPLOAD_PARAMETER);
+    	if (upload != null && !authDeferred) {
+    		serveUploadSession(req, resp, upload, user, content);
+    		return;
+    	}
+
 		// Fetch the version to retrieve, if specified.
 		String verStr = req.getParameter(VERSION_PARAM);
 		int version = 0;
@@ -431,8 +493,8 @@ public class FilesHandler extends RequestHandler {
     	if (file != null) {
     		// Parse range specifier.
     		ranges = parseRange(req, resp, file, oldBody);
-    		// ETag header
-    		resp.setHeader("ETag", getETag(file, oldBody));
+    		// ETag and Digest headers
+    		setEntityTagHeaders(resp, file, oldBody);
     		// Last-Modified header.
     		String lastModified = oldBody == null ?
     					getLastModifiedHttp(file.getAuditInfo()) :
@@ -520,10 +582,16 @@ public class FilesHandler extends RequestHandler {
     			// Serve the directory for an ordinary folder or for fireGSS client
     			else
     				try {
-    					renderResult = renderJson(user, folder);
+    					String order = req.getParameter(ORDER_PARAMETER);
+    					writeJson(user, folder, order == null ? ORDER_NAME : order,
+    							req.getParameter(AFTER_PARAMETER), getLimit(req), resp);
+    					return;
     					} catch (InsufficientPermissionsException e) {
     						resp.setStatus(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
     						return;
+    					} catch (IllegalArgumentException e) {
+    						resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+    						return;
     					}
 
 
@@ -714,6 +782,413 @@ public class FilesHandler extends RequestHandler {
 		}
 	}
 
+	/**
+	 * Parse the ID of a resumable upload from a request parameter, sending
+	 * a Bad Request error if it is not valid.
+	 *
+	 * @return the upload ID or null if it is invalid
+	 */
+	private Long parseUploadId(HttpServletResponse resp, String parameter) throws IOException {
+		try {
+			return Long.valueOf(parameter);
+		} catch (NumberFormatException e) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid upload " + parameter);
+			return null;
+		}
+	}
+
+	/**
+	 * Describe the state of a resumable upload in the response headers. The
+	 * Range header contains the contiguous range of bytes received so far,
+	 * from which the client should resume the upload.
+	 */
+	private void setUploadHeaders(HttpServletResponse resp, UploadSession session) {
+		if (session.getBytesReceived() > 0)
+			resp.setHeader("Range", "bytes=0-" + (session.getBytesReceived() - 1));
+		if (session.getFileSize() != null)
+			resp.setHeader(UPLOAD_LENGTH_HEADER, String.valueOf(session.getFileSize()));
+		// Workaround for IE's broken caching behavior.
+		resp.setHeader("Expires", "-1");
+	}
+
+	/**
+	 * Sends the state of a resumable upload of the current user.
+	 *
+	 * @param req the HTTP request
+	 * @param resp the HTTP response
+	 * @param parameter the value for the upload request parameter
+	 * @param user the current user
+	 * @param content whether a response body should be sent
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void serveUploadSession(HttpServletRequest req, HttpServletResponse resp,
+				String parameter, User user, boolean content) throws IOException {
+		Long sessionId = parseUploadId(resp, parameter);
+		if (sessionId == null)
+			return;
+		try {
+			UploadSession session = getService().getUploadSession(user.getId(), sessionId);
+			setUploadHeaders(resp, session);
+			if (!content) {
+				resp.setStatus(HttpServletResponse.SC_OK);
+				return;
+			}
+			JSONObject json = new JSONObject();
+			json.put("id", session.getId()).
+				put("name", session.getName()).
+				put("bytesUploaded", session.getBytesReceived()).
+				put("bytesTotal", session.getFileSize());
+			sendJson(req, resp, json.toString());
+		} catch (ObjectNotFoundException e) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+		} catch (RpcException e) {
+			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+		} catch (JSONException e) {
+			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+		}
+	}
+
+	/**
+	 * Handle a POST request for a resumable upload. Without an upload ID a
+	 * new upload of the resource is started, with the total size and type
+	 * taken from the X-Upload-Content-Length and X-Upload-Content-Type
+	 * headers. The response carries the upload URL in the Location header.
+	 * With an upload ID, the upload is committed.
+	 *
+	 * @param req the HTTP request
+	 * @param resp the HTTP response
+	 * @param parameter the value for the upload request parameter
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void postUploadSession(HttpServletRequest req, HttpServletResponse resp, String parameter) throws IOException {
+		final User user = getUser(req);
+		if (parameter != null && parameter.length() > 0) {
+			Long sessionId = parseUploadId(resp, parameter);
+			if (sessionId != null)
+				commitUploadSession(req, resp, user, sessionId);
+			return;
+		}
+
+        String path = getInnerPath(req, PATH_FILES);
+		try {
+	    	path = URLDecoder.decode(path, "UTF-8");
+		} catch (IllegalArgumentException e) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+		final String name = getLastElement(path);
+		if (!isValidResourceName(name)) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+		String type = req.getHeader(UPLOAD_TYPE_HEADER);
+		final String mimeType = type != null ? type : context.getMimeType(name);
+		String length = req.getHeader(UPLOAD_LENGTH_HEADER);
+		Long size = null;
+		if (length != null)
+			try {
+				size = Long.valueOf(length);
+			} catch (NumberFormatException e) {
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid " + UPLOAD_LENGTH_HEADER);
+				return;
+			}
+		final Long fileSize = size;
+		try {
+			User owner = getOwner(req);
+			Object parent = getService().getResourceAtPath(owner.getId(), getParentPath(path), true);
+			if (!(parent instanceof Folder)) {
+				resp.sendError(HttpServletResponse.SC_CONFLICT);
+				return;
+			}
+			final Folder folder = (Folder) parent;
+			UploadSession session = new TransactionHelper<UploadSession>().tryExecute(new Callable<UploadSession>() {
+				@Override
+				public UploadSession call() throws Exception {
+					return getService().createUploadSession(user.getId(), folder.getId(), name, mimeType, fileSize);
+				}
+			});
+			resp.setStatus(HttpServletResponse.SC_CREATED);
+			resp.setHeader("Location", req.getRequestURL() + "?" + UPLOAD_PARAMETER + "=" + session.getId());
+			setUploadHeaders(resp, session);
+		} catch (ObjectNotFoundException e) {
+			resp.sendError(HttpServletResponse.SC_CONFLICT);
+		} catch (InsufficientPermissionsException e) {
+			resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+		} catch (QuotaExceededException e) {
+			resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.getMessage());
+		} catch (Exception e) {
+			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, path);
+		}
+	}
+
+	/**
+	 * Handle a PUT request with a chunk of a resumable upload. The chunk
+	 * position is taken from the Content-Range header, or else it is appended
+	 * to the data received so far. Chunks may overlap data already received,
+	 * so a client can simply resend a chunk that failed. The upload is
+	 * committed when its total size is known and has been reached.
+	 *
+	 * @param req the HTTP request
+	 * @param resp the HTTP response
+	 * @param parameter the value for the upload request parameter
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void putUploadChunk(HttpServletRequest req, HttpServletResponse resp, String parameter) throws IOException {
+		final User user = getUser(req);
+		final Long sessionId = parseUploadId(resp, parameter);
+		if (sessionId == null)
+			return;
+		try {
+			UploadSession session = getService().getUploadSession(user.getId(), sessionId);
+			long offset = session.getBytesReceived();
+			if (req.getHeader("Content-Range") != null) {
+				Range range = parseContentRange(req, resp);
+				if (range == null)
+					return;
+				offset = range.start;
+			}
+			if (offset > session.getBytesReceived()) {
+				// The client skipped some data, tell it where to resume.
+				setUploadHeaders(resp, session);
+				resp.setStatus(HttpServletResponse.SC_CONFLICT);
+				return;
+			}
+			final long end = getService().writeUploadChunk(user.getId(), sessionId, offset, req.getInputStream());
+			session = new TransactionHelper<UploadSession>().tryExecute(new Callable<UploadSession>() {
+				@Override
+				public UploadSession call() throws Exception {
+					return getService().updateUploadSession(user.getId(), sessionId, end);
+				}
+			});
+			if (session.isComplete()) {
+				commitUploadSession(req, resp, user, sessionId);
+				return;
+			}
+			setUploadHeaders(resp, session);
+			resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+		} catch (ObjectNotFoundException e) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+		} catch (GSSIOException e) {
+			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+		} catch (QuotaExceededException e) {
+			resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.getMessage());
+		} catch (RpcException e) {
+			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+		} catch (Exception e) {
+			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+		}
+	}
+
+	/**
+	 * Commit a resumable upload, creating the file or replacing its contents.
+	 * The uploaded data are prepared outside the transaction that commits
+	 * them.
+	 *
+	 * @param req the HTTP request
+	 * @param resp the HTTP response
+	 * @param user the current user
+	 * @param sessionId the upload ID
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void commitUploadSession(HttpServletRequest req, HttpServletResponse resp,
+				final User user, final Long sessionId) throws IOException {
+		try {
+			User owner = getOwner(req);
+			boolean exists = true;
+			try {
+				getService().getResourceAtPath(owner.getId(),
+							URLDecoder.decode(getInnerPath(req, PATH_FILES), "UTF-8"), true);
+			} catch (ObjectNotFoundException e) {
+				exists = false;
+			}
+			final StoredFile contents = getService().finishUploadSession(user.getId(), sessionId);
+			FileHeader file = new TransactionHelper<FileHeader>().tryExecute(new Callable<FileHeader>() {
+				@Override
+				public FileHeader call() throws Exception {
+					return getService().commitUploadSession(user.getId(), sessionId, contents);
+				}
+			});
+			updateAccounting(owner, new Date(), file.getCurrentBody().getFileSize());
+			if (exists)
+				resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+			else
+				resp.setStatus(HttpServletResponse.SC_CREATED);
+		} catch (ObjectNotFoundException e) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+		} catch (DuplicateNameException e) {
+			resp.sendError(HttpServletResponse.SC_CONFLICT);
+		} catch (InsufficientPermissionsException e) {
+			resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+		} catch (QuotaExceededException e) {
+			resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.getMessage());
+		} catch (GSSIOException e) {
+			resp.sendError(HttpServletResponse.SC_CONFLICT, e.getMessage());
+		} catch (Exception e) {
+			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+		}
+	}
+
+	/**
+	 * Abort a resumable upload of the current user.
+	 *
+	 * @param req the HTTP request
+	 * @param resp the HTTP response
+	 * @param parameter the value for the upload request parameter
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void deleteUploadSession(HttpServletRequest req, HttpServletResponse resp, String parameter) throws IOException {
+		final User user = getUser(req);
+		final Long sessionId = parseUploadId(resp, parameter);
+		if (sessionId == null)
+			return;
+		try {
+			new TransactionHelper<Void>().tryExecute(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					getService().deleteUploadSession(user.getId(), sessionId);
+					return null;
+				}
+			});
+			resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+		} catch (ObjectNotFoundException e) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+		} catch (Exception e) {
+			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+		}
+	}
+
+	/**
+	 * Serve the metadata of a batch of resources in the files namespace of
+	 * any user, resolving them all with a single call to the service. The
+	 * request contains a JSON array with the URIs of the resources. The
+	 * response contains an array with an object for each URI, in the same
+	 * order, with the URI, the status that a separate request would get and
+	 * the metadata it would return: the contents of a folder or the
+	 * X-GSS-Metadata of a file. Folders contain at most MAX_PAGE_SIZE files,
+	 * ordered by name, with a link to the next page of a larger folder.
+	 *
+	 * @param req the HTTP request
+	 * @param resp the HTTP response
+	 * @throws IOException if an input/output error occurs
+	 */
+	void serveBatch(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		User user = getUser(req);
+		StringBuffer input = new StringBuffer();
+		if (req.getContentType() != null && req.getContentType().startsWith("application/x-www-form-urlencoded"))
+			input.append(req.getParameter(BATCH_PARAMETER));
+		else {
+			// Assume application/json
+			BufferedReader reader = new BufferedReader(new InputStreamReader(req.getInputStream(),"UTF-8"));
+			String line = null;
+			while ((line = reader.readLine()) != null)
+				input.append(line);
+			reader.close();
+		}
+		JSONArray uris;
+		try {
+			uris = new JSONArray(input.toString());
+		} catch (JSONException e) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+		if (uris.length() > MAX_BATCH_SIZE) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Too many resources requested");
+			return;
+		}
+
+		// Find the owner and the path of each resource, so that they can all
+		// be retrieved at once.
+		int[] status = new int[uris.length()];
+		ResourceMetadata[] found = new ResourceMetadata[uris.length()];
+		String[] next = new String[uris.length()];
+		List<Integer> positions = new ArrayList<Integer>();
+		List<String> owners = new ArrayList<String>();
+		List<String> paths = new ArrayList<String>();
+		try {
+			for (int i = 0; i < uris.length(); i++) {
+				String uri = uris.optString(i);
+				if (uri.indexOf('?') != -1)
+					uri = uri.substring(0, uri.indexOf('?'));
+				if (uri.startsWith(getApiRoot()))
+					uri = uri.substring(getApiRoot().length());
+				int slash = uri.indexOf('/');
+				if (slash == -1 || !uri.startsWith(PATH_FILES, slash)) {
+					status[i] = HttpServletResponse.SC_BAD_REQUEST;
+					continue;
+				}
+				String username = uri.substring(0, slash);
+				String path = uri.substring(slash + PATH_FILES.length());
+				if (!path.equals("") && !path.startsWith("/")) {
+					status[i] = HttpServletResponse.SC_BAD_REQUEST;
+					continue;
+				}
+				try {
+					path = URLDecoder.decode(path.equals("") ? "/" : path, "UTF-8");
+				} catch (IllegalArgumentException e) {
+					status[i] = HttpServletResponse.SC_BAD_REQUEST;
+					continue;
+				}
+				positions.add(i);
+				owners.add(username);
+				paths.add(path);
+			}
+			if (!paths.isEmpty()) {
+				// Fetch one more file to find out if there is a next page.
+				List<ResourceMetadata> resources = getService().getResourcesAtPaths(user.getId(), owners, paths,
+						MAX_PAGE_SIZE + 1);
+				for (int i = 0; i < resources.size(); i++) {
+					ResourceMetadata metadata = resources.get(i);
+					int position = positions.get(i);
+					found[position] = metadata;
+					if (metadata.getResource() == null)
+						status[position] = HttpServletResponse.SC_NOT_FOUND;
+					else if (!metadata.isReadable())
+						status[position] = HttpServletResponse.SC_METHOD_NOT_ALLOWED;
+					else {
+						status[position] = HttpServletResponse.SC_OK;
+						List<FileHeader> files = metadata.getFiles();
+						if (files != null && files.size() > MAX_PAGE_SIZE)
+							next[position] = getNextPage((Folder) metadata.getResource(), ORDER_NAME,
+									MAX_PAGE_SIZE, files.get(MAX_PAGE_SIZE - 1));
+					}
+				}
+			}
+		} catch (ObjectNotFoundException e) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, e.getMessage());
+			return;
+		} catch (RpcException e) {
+			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+			return;
+		}
+
+		Writer out = getJsonWriter(resp);
+		try {
+			JSONWriter json = new JSONWriter(out);
+			json.array();
+			for (int i = 0; i < uris.length(); i++) {
+				json.object().
+						key("uri").value(uris.opt(i)).
+						key("status").value(status[i]);
+				if (status[i] == HttpServletResponse.SC_OK) {
+					json.key("metadata");
+					Object resource = found[i].getResource();
+					if (resource instanceof Folder) {
+						List<FileHeader> files = found[i].getFiles();
+						if (next[i] != null)
+							files = files.subList(0, MAX_PAGE_SIZE);
+						writeJson(json, (Folder) resource, true, files, next[i], found[i].getPermissions());
+					} else
+						json.value(renderJson((FileHeader) resource, null, found[i].getPermissions()));
+				}
+				json.endObject();
+			}
+			json.endArray();
+		} catch (JSONException e) {
+			throw new IOException(e);
+		}
+		out.flush();
+	}
+
 	/**
 	 * Server a POST request to create/modify a file or folder.
 	 *
@@ -773,6 +1248,8 @@ public class FilesHandler extends RequestHandler {
 			moveResource(req, resp, path, moveTo);
 		else if (restoreVersion != null)
 			restoreVersion(req, resp, path, restoreVersion);
+		else if (req.getParameterMap().containsKey(UPLOAD_PARAMETER))
+			postUploadSession(req, resp, req.getParameter(UPLOAD_PARAMETER));
 		else
 			// IE with Gears uses POST for multiple uploads.
 			putResource(req, resp);
@@ -897,7 +1374,7 @@ public class FilesHandler extends RequestHandler {
     	}
 
 		FileItemIterator iter;
-		File uploadedFile = null;
+		StoredFile uploadedFile = null;
 		try {
 			// Create a new file upload handler.
 			ServletFileUpload upload = new ServletFileUpload();
@@ -948,7 +1425,7 @@ public class FilesHandler extends RequestHandler {
 					String signature = authParts[1];
 					User user = null;
 					try {
-						user = getService().findUser(username);
+						user = findAuthUser(username);
 					} catch (RpcException e) {
 			        	response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, path);
 						return;
@@ -975,26 +1452,26 @@ public class FilesHandler extends RequestHandler {
 					final String contentType = item.getContentType();
 
 					try {
-						uploadedFile = getService().uploadFile(stream, user.getId());
+						uploadedFile = getService().uploadFile(stream, user.getId(), contentType);
 					} catch (IOException ex) {
 						throw new GSSIOException(ex, false);
 					}
 					FileHeader fileLocal = null;
-					final File upf = uploadedFile;
+					final StoredFile upf = uploadedFile;
 					final FileHeader f = file;
 					final User u = user;
 					if (file == null)
 						fileLocal = new TransactionHelper<FileHeader>().tryExecute(new Callable<FileHeader>() {
 							@Override
 							public FileHeader call() throws Exception {
-								return getService().createFile(u.getId(), folderLocal.getId(), fileName, contentType, upf.getCanonicalFile().length(), upf.getAbsolutePath());
+								return getService().createFile(u.getId(), folderLocal.getId(), fileName, contentType, upf);
 							}
 						});
 					else
 						fileLocal = new TransactionHelper<FileHeader>().tryExecute(new Callable<FileHeader>() {
 							@Override
 							public FileHeader call() throws Exception {
-								return getService().updateFileContents(u.getId(), f.getId(), contentType, upf.getCanonicalFile().length(), upf.getAbsolutePath());
+								return getService().updateFileContents(u.getId(), f.getId(), contentType, upf);
 							}
 						});
 					updateAccounting(owner, new Date(), fileLocal.getCurrentBody().getFileSize());
@@ -1009,8 +1486,7 @@ public class FilesHandler extends RequestHandler {
 			logger.error(error, e);
 			response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, error);
 		} catch (GSSIOException e) {
-			if (uploadedFile != null && uploadedFile.exists())
-				uploadedFile.delete();
+			discardUploadedFile(uploadedFile);
 			String error = "Error while uploading file";
 			if (e.logAsError())
 				logger.error(error, e);
@@ -1018,48 +1494,58 @@ public class FilesHandler extends RequestHandler {
 				logger.debug(error, e);
 			response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, error);
 		} catch (DuplicateNameException e) {
-			if (uploadedFile != null && uploadedFile.exists())
-				uploadedFile.delete();
+			discardUploadedFile(uploadedFile);
 			String error = "The specified file name already exists in this folder";
 			logger.error(error, e);
 			response.sendError(HttpServletResponse.SC_CONFLICT, error);
 
 		} catch (InsufficientPermissionsException e) {
-			if (uploadedFile != null && uploadedFile.exists())
-				uploadedFile.delete();
+			discardUploadedFile(uploadedFile);
 			String error = "You don't have the necessary permissions";
 			logger.error(error, e);
 			response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED, error);
 
 		} catch (QuotaExceededException e) {
-			if (uploadedFile != null && uploadedFile.exists())
-				uploadedFile.delete();
+			discardUploadedFile(uploadedFile);
 			String error = "Not enough free space available";
 			if (logger.isDebugEnabled())
 				logger.debug(error, e);
 			response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, error);
 
 		} catch (ObjectNotFoundException e) {
-			if (uploadedFile != null && uploadedFile.exists())
-				uploadedFile.delete();
+			discardUploadedFile(uploadedFile);
 			String error = "A specified object was not found";
 			logger.error(error, e);
 			response.sendError(HttpServletResponse.SC_NOT_FOUND, error);
 		} catch (RpcException e) {
-			if (uploadedFile != null && uploadedFile.exists())
-				uploadedFile.delete();
+			discardUploadedFile(uploadedFile);
 			String error = "An error occurred while communicating with the service";
 			logger.error(error, e);
 			response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, error);
 		} catch (Exception e) {
-			if (uploadedFile != null && uploadedFile.exists())
-				uploadedFile.delete();
+			discardUploadedFile(uploadedFile);
 			String error = "An internal server error occurred";
 			logger.error(error, e);
 			response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, error);
 		}
 	}
 
+	/**
+	 * Remove an uploaded file that was not attached to a file body. The
+	 * service keeps the file if its contents are shared with other files.
+	 *
+	 * @param uploadedFile the uploaded file, or null if none
+	 */
+	private void discardUploadedFile(StoredFile uploadedFile) {
+		if (uploadedFile == null)
+			return;
+		try {
+			getService().deleteActualFile(uploadedFile.getLocation());
+		} catch (RpcException e) {
+			logger.error("Could not delete uploaded file " + uploadedFile.getLocation(), e);
+		}
+	}
+
 	/**
 	 * Move the resource in the specified path to the specified destination.
 	 *
@@ -1683,6 +2169,11 @@ public class FilesHandler extends RequestHandler {
 	 * @throws FileNotFoundException
 	 */
 	void putResource(HttpServletRequest req, HttpServletResponse resp) throws IOException, FileNotFoundException {
+		String upload = req.getParameter(UPLOAD_PARAMETER);
+		if (upload != null) {
+			putUploadChunk(req, resp, upload);
+			return;
+		}
         String path = getInnerPath(req, PATH_FILES);
 		try {
 	    	path = URLDecoder.decode(path, "UTF-8");
@@ -1716,20 +2207,16 @@ public class FilesHandler extends RequestHandler {
 	        }
         boolean result = true;
 
-        // Temporary content file used to support partial PUT.
-        File contentFile = null;
-
         Range range = parseContentRange(req, resp);
 
         InputStream resourceInputStream = null;
 
         // Append data specified in ranges to existing content for this
-        // resource - create a temporary file on the local filesystem to
-        // perform this operation.
+        // resource.
         // Assume just one range is specified for now
         if (range != null) {
             try {
-				contentFile = executePartialPut(req, range, path);
+				resourceInputStream = executePartialPut(req, range, path);
 			} catch (RpcException e) {
 				resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, path);
 				return;
@@ -1740,7 +2227,6 @@ public class FilesHandler extends RequestHandler {
 				resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
         		return;
 			}
-            resourceInputStream = new FileInputStream(contentFile);
         } else
 			resourceInputStream = req.getInputStream();
 
@@ -1754,28 +2240,28 @@ public class FilesHandler extends RequestHandler {
        		folderLocal = (Folder) parent;
         	final String name = getLastElement(path);
         	final String mimeType = context.getMimeType(name);
-        	File uploadedFile = null;
+        	StoredFile uploadedFile = null;
         	try {
-				uploadedFile = getService().uploadFile(resourceInputStream, user.getId());
+				uploadedFile = getService().uploadFile(resourceInputStream, user.getId(), mimeType);
 			} catch (IOException ex) {
 				throw new GSSIOException(ex, false);
 			}
         	FileHeader fileTemp = null;
-        	final File uploadedf = uploadedFile;
+        	final StoredFile uploadedf = uploadedFile;
 			final Folder parentf = folderLocal;
 			final FileHeader f = fileLocal;
             if (exists)
             	fileTemp = new TransactionHelper<FileHeader>().tryExecute(new Callable<FileHeader>() {
 					@Override
 					public FileHeader call() throws Exception {
-						return getService().updateFileContents(user.getId(), f.getId(), mimeType, uploadedf.getCanonicalFile().length(), uploadedf.getAbsolutePath());
+						return getService().updateFileContents(user.getId(), f.getId(), mimeType, uploadedf);
 					}
 				});
 			else
 				fileTemp = new TransactionHelper<FileHeader>().tryExecute(new Callable<FileHeader>() {
 					@Override
 					public FileHeader call() throws Exception {
-						return getService().createFile(user.getId(), parentf.getId(), name, mimeType, uploadedf.getCanonicalFile().length(), uploadedf.getAbsolutePath());
+						return getService().createFile(user.getId(), parentf.getId(), name, mimeType, uploadedf);
 					}
 
 				});
@@ -1823,6 +2309,11 @@ public class FilesHandler extends RequestHandler {
 	 * @throws IOException if the response cannot be sent
      */
     void deleteResource(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		String upload = req.getParameter(UPLOAD_PARAMETER);
+		if (upload != null) {
+			deleteUploadSession(req, resp, upload);
+			return;
+		}
         String path = getInnerPath(req, PATH_FILES);
     	if (logger.isDebugEnabled())
    			logger.debug("Deleting resource '" + path);
@@ -1905,19 +2396,27 @@ public class FilesHandler extends RequestHandler {
     }
 
 	/**
-     * Return an InputStream to a JSON representation of the contents
-     * of this directory.
+     * Write a JSON representation of the contents of this directory to the
+     * response, streaming the entries as they are rendered. The files and
+     * permissions are retrieved before anything is written, so that errors
+     * can still be reported with a proper status. When a limit is specified
+     * only that many files are rendered, along with the URI of the next page
+     * if there are more, and subfolders are only rendered in the first page.
      *
 	 * @param user the user that made the request
      * @param folder the specified directory
-     * @return an input stream with the rendered contents
+     * @param order the order of the files in a page, by name or by
+     * 			modification date
+     * @param after the cursor of the requested page, or null for the first
+     * @param limit the maximum number of files to render, or 0 for all
+     * @param resp the HTTP response
 	 * @throws IOException if the response cannot be sent
      * @throws ServletException
 	 * @throws InsufficientPermissionsException if the user does not have
 	 * 			the necessary privileges to read the directory
      */
-    private InputStream renderJson(User user, Folder folder) throws IOException,
-    		ServletException, InsufficientPermissionsException {
+    private void writeJson(User user, Folder folder, String order, String after, int limit,
+    		HttpServletResponse resp) throws IOException, ServletException, InsufficientPermissionsException {
     	try {
 			folder = getService().expandFolder(folder);
 		} catch (ObjectNotFoundException e1) {
@@ -1927,76 +2426,155 @@ public class FilesHandler extends RequestHandler {
 			// TODO Auto-generated catch block
 			e1.printStackTrace();
 		}
-    	JSONObject json = new JSONObject();
+    	List<FileHeader> fileHeaders;
+    	String next = null;
+    	Set<Permission> perms;
     	try {
-			json.put("name", folder.getName()).
-					put("owner", folder.getOwner().getUsername()).
-					put("createdBy", folder.getAuditInfo().getCreatedBy().getUsername()).
-					put("creationDate", folder.getAuditInfo().getCreationDate().getTime()).
-					put("deleted", folder.isDeleted()).
-					put("shared", folder.getShared()).
-					put("readForAll", folder.isReadForAll());
-
-			if (folder.getAuditInfo().getModifiedBy() != null)
-				json.put("modifiedBy", folder.getAuditInfo().getModifiedBy().getUsername()).
-						put("modificationDate", folder.getAuditInfo().getModificationDate().getTime());
-			if (folder.getParent() != null) {
-				JSONObject j = new JSONObject();
-				j.put("uri", getApiRoot() + folder.getParent().getURI());
-				j.put("name", folder.getParent().getName());
-				json.put("parent", j);
-			}
-	    	List<JSONObject> subfolders = new ArrayList<JSONObject>();
-	    	for (Folder f: folder.getSubfolders())
-				if (!f.isDeleted()) {
-					JSONObject j = new JSONObject();
-					j.put("name", f.getName()).
-						put("uri", getApiRoot() + f.getURI()).
-						put("shared", f.getShared());
-					subfolders.add(j);
-				}
-	    	json.put("folders", subfolders);
-	    	List<JSONObject> files = new ArrayList<JSONObject>();
-	    	List<FileHeader> fileHeaders = getService().getFiles(user.getId(), folder.getId(), false);
-	    	for (FileHeader f: fileHeaders) {
-	    		JSONObject j = new JSONObject();
-				j.put("name", f.getName()).
-					put("owner", f.getOwner().getUsername()).
-					put("deleted", f.isDeleted()).
-					put("version", f.getCurrentBody().getVersion()).
-					put("content", f.getCurrentBody().getMimeType()).
-					put("size", f.getCurrentBody().getFileSize()).
-					put("shared", f.getShared()).
-					put("versioned",f.isVersioned()).
-					put("creationDate", f.getAuditInfo().getCreationDate().getTime()).
-					put("path", f.getFolder().getPath()).
-					put("uri", getApiRoot() + f.getURI());
-				if (f.getAuditInfo().getModificationDate() != null)
-					j.put("modificationDate", f.getAuditInfo().getModificationDate().getTime());
-				files.add(j);
-	    	}
-	    	json.put("files", files);
-	    	Set<Permission> perms = getService().getFolderPermissions(user.getId(), folder.getId());
-	    	json.put("permissions", renderJson(perms));
-		} catch (JSONException e) {
-			throw new ServletException(e);
+	    	if (limit > 0) {
+	    		// Fetch one more file to find out if there is a next page.
+	    		fileHeaders = getFilePage(user, folder, order, after, limit + 1);
+	    		if (fileHeaders.size() > limit) {
+	    			fileHeaders = fileHeaders.subList(0, limit);
+	    			next = getNextPage(folder, order, limit, fileHeaders.get(limit - 1));
+	    		}
+	    	} else
+	    		fileHeaders = getService().getFiles(user.getId(), folder.getId(), false);
+	    	perms = getService().getFolderPermissions(user.getId(), folder.getId());
 		} catch (ObjectNotFoundException e) {
 			throw new ServletException(e);
 		} catch (RpcException e) {
 			throw new ServletException(e);
 		}
 
-    	// Prepare a writer to a buffered area
-    	ByteArrayOutputStream stream = new ByteArrayOutputStream();
-    	OutputStreamWriter osWriter = new OutputStreamWriter(stream, "UTF8");
-    	PrintWriter writer = new PrintWriter(osWriter);
-
-    	// Return an input stream to the underlying bytes
-    	writer.write(json.toString());
-    	writer.flush();
-    	return new ByteArrayInputStream(stream.toByteArray());
+    	Writer out = getJsonWriter(resp);
+    	try {
+    		writeJson(new JSONWriter(out), folder, after == null, fileHeaders, next, perms);
+		} catch (JSONException e) {
+			throw new ServletException(e);
+		}
+    	out.flush();
     }
 
+	/**
+	 * Write a JSON representation of the specified directory and its
+	 * contents.
+	 *
+	 * @param json the JSON writer
+	 * @param folder the directory, with its subfolders loaded
+	 * @param withSubfolders whether the subfolders are rendered
+	 * @param fileHeaders the files to render
+	 * @param next the URI of the next page of files, or null
+	 * @param perms the permissions of the directory
+	 * @throws JSONException if the JSON cannot be written
+	 * @throws UnsupportedEncodingException
+	 */
+	private void writeJson(JSONWriter json, Folder folder, boolean withSubfolders, List<FileHeader> fileHeaders,
+			String next, Set<Permission> perms) throws JSONException, UnsupportedEncodingException {
+		json.object().
+				key("name").value(folder.getName()).
+				key("owner").value(folder.getOwner().getUsername()).
+				key("createdBy").value(folder.getAuditInfo().getCreatedBy().getUsername()).
+				key("creationDate").value(folder.getAuditInfo().getCreationDate().getTime()).
+				key("deleted").value(folder.isDeleted()).
+				key("shared").value(folder.getShared()).
+				key("readForAll").value(folder.isReadForAll());
+
+		if (folder.getAuditInfo().getModifiedBy() != null)
+			json.key("modifiedBy").value(folder.getAuditInfo().getModifiedBy().getUsername()).
+					key("modificationDate").value(folder.getAuditInfo().getModificationDate().getTime());
+		if (folder.getParent() != null)
+			json.key("parent").object().
+					key("uri").value(getApiRoot() + folder.getParent().getURI()).
+					key("name").value(folder.getParent().getName()).
+					endObject();
+		if (withSubfolders) {
+			json.key("folders").array();
+			for (Folder f: folder.getSubfolders())
+				if (!f.isDeleted())
+					json.object().
+						key("name").value(f.getName()).
+						key("uri").value(getApiRoot() + f.getURI()).
+						key("shared").value(f.getShared()).
+						endObject();
+			json.endArray();
+		}
+		json.key("files").array();
+		for (FileHeader f: fileHeaders)
+			writeJson(json, f, false);
+		json.endArray();
+		if (next != null)
+			json.key("next").value(next);
+		json.key("permissions").value(renderJson(perms));
+		json.endObject();
+	}
+
+	/**
+	 * Retrieve a page of the files in the specified folder.
+	 *
+	 * @param user the user that made the request
+	 * @param folder the specified directory
+	 * @param order the order of the files, by name or by modification date
+	 * @param after the cursor returned with the previous page, or null
+	 * @param max the maximum number of files to return
+	 * @return the files of the page
+	 * @throws IllegalArgumentException if the order or the cursor is invalid
+	 */
+	private List<FileHeader> getFilePage(User user, Folder folder, String order, String after, int max)
+			throws ObjectNotFoundException, InsufficientPermissionsException, RpcException {
+		if (ORDER_MODIFIED.equals(order)) {
+			Date before = null;
+			Long beforeId = null;
+			if (after != null) {
+				int dot = after.indexOf('.');
+				if (dot < 0)
+					throw new IllegalArgumentException("Invalid cursor: " + after);
+				before = new Date(Long.parseLong(after.substring(0, dot)));
+				beforeId = Long.valueOf(after.substring(dot + 1));
+			}
+			return getService().getFilesByModificationDate(user.getId(), folder.getId(), false,
+					before, beforeId, max);
+		}
+		if (!ORDER_NAME.equals(order))
+			throw new IllegalArgumentException("Invalid order: " + order);
+		return getService().getFilesByName(user.getId(), folder.getId(), false, after, max);
+	}
+
+	/**
+	 * Return the URI of the page of files in the specified folder that
+	 * follows the specified file.
+	 */
+	private String getNextPage(Folder folder, String order, int limit, FileHeader last)
+			throws UnsupportedEncodingException {
+		return getApiRoot() + folder.getURI() + "?" + LIMIT_PARAMETER + "=" + limit +
+				"&" + ORDER_PARAMETER + "=" + order + "&" + AFTER_PARAMETER + "=" +
+				URLEncoder.encode(getCursor(last, order), "UTF-8");
+	}
+
+	/**
+	 * Return the cursor that fetches the files following the specified one.
+	 */
+	private String getCursor(FileHeader file, String order) {
+		if (ORDER_MODIFIED.equals(order))
+			return file.getAuditInfo().getModificationDate().getTime() + "." + file.getId();
+		return file.getName();
+	}
+
+	/**
+	 * Retrieve the page size requested with the limit parameter, or 0 if all
+	 * files are requested. The page size is capped to MAX_PAGE_SIZE.
+	 *
+	 * @throws IllegalArgumentException if the limit is not a positive number
+	 */
+	private int getLimit(HttpServletRequest req) {
+		String limit = req.getParameter(LIMIT_PARAMETER);
+		if (limit == null)
+			return 0;
+		int value = Integer.parseInt(limit);
+		if (value <= 0)
+			throw new IllegalArgumentException("Invalid limit: " + limit);
+		return Math.min(value, MAX_PAGE_SIZE);
+	}
+
 	/**
      * Return a String with a JSON representation of the metadata
      * of the specified folder.
@@ -2050,40 +2628,10 @@ public class FilesHandler extends RequestHandler {
      */
     private String renderJson(User user, FileHeader file, FileBody oldBody)
     		throws ServletException, InsufficientPermissionsException {
-    	JSONObject json = new JSONObject();
     	try {
     		file=getService().expandFile(file);
-    		// Need to encode file name in order to properly display it in the web client.
-			json.put("name", URLEncoder.encode(file.getName(),"UTF-8")).
-					put("owner", file.getOwner().getUsername()).
-					put("versioned", file.isVersioned()).
-					put("version", oldBody != null ? oldBody.getVersion() : file.getCurrentBody().getVersion()).
-					put("readForAll", file.isReadForAll()).
-					put("shared", file.getShared()).
-					put("tags", renderJson(file.getFileTagsAsStrings())).
-					put("path", file.getFolder().getPath()).
-    				put("uri", getApiRoot() + file.getURI()).
-					put("deleted", file.isDeleted());
-			JSONObject j = new JSONObject();
-			j.put("uri", getApiRoot() + file.getFolder().getURI()).
-					put("name", URLEncoder.encode(file.getFolder().getName(),"UTF-8"));
-			json.put("folder", j);
-			if (oldBody != null)
-				json.put("createdBy", oldBody.getAuditInfo().getCreatedBy().getUsername()).
-						put("creationDate", oldBody.getAuditInfo().getCreationDate().getTime()).
-						put("modifiedBy", oldBody.getAuditInfo().getModifiedBy().getUsername()).
-						put("modificationDate", oldBody.getAuditInfo().getModificationDate().getTime()).
-						put("content", oldBody.getMimeType()).
-						put("size", oldBody.getFileSize());
-			else
-				json.put("createdBy", file.getAuditInfo().getCreatedBy().getUsername()).
-						put("creationDate", file.getAuditInfo().getCreationDate().getTime()).
-						put("modifiedBy", file.getAuditInfo().getModifiedBy().getUsername()).
-						put("modificationDate", file.getAuditInfo().getModificationDate().getTime()).
-						put("content", file.getCurrentBody().getMimeType()).
-						put("size", file.getCurrentBody().getFileSize());
 	    	Set<Permission> perms = getService().getFilePermissions(user.getId(), file.getId());
-	    	json.put("permissions", renderJson(perms));
+	    	return renderJson(file, oldBody, perms).toString();
 		} catch (JSONException e) {
 			throw new ServletException(e);
 		} catch (ObjectNotFoundException e) {
@@ -2093,8 +2641,54 @@ public class FilesHandler extends RequestHandler {
 		} catch (UnsupportedEncodingException e) {
 			throw new ServletException(e);
 		}
+    }
 
-    	return json.toString();
+	/**
+     * Return a JSON representation of the metadata of the specified file,
+     * with its folder and tags loaded. If an old file body is provided, then
+     * the metadata of that particular version will be returned.
+     *
+     * @param file the specified file header
+     * @param oldBody the version number
+     * @param perms the permissions of the file
+     * @return the JSON-encoded file
+	 * @throws JSONException
+	 * @throws UnsupportedEncodingException
+     */
+    private JSONObject renderJson(FileHeader file, FileBody oldBody, Set<Permission> perms)
+    		throws JSONException, UnsupportedEncodingException {
+    	JSONObject json = new JSONObject();
+    	// Need to encode file name in order to properly display it in the web client.
+		json.put("name", URLEncoder.encode(file.getName(),"UTF-8")).
+				put("owner", file.getOwner().getUsername()).
+				put("versioned", file.isVersioned()).
+				put("version", oldBody != null ? oldBody.getVersion() : file.getCurrentBody().getVersion()).
+				put("readForAll", file.isReadForAll()).
+				put("shared", file.getShared()).
+				put("tags", renderJson(file.getFileTagsAsStrings())).
+				put("path", file.getFolder().getPath()).
+    			put("uri", getApiRoot() + file.getURI()).
+				put("deleted", file.isDeleted());
+		JSONObject j = new JSONObject();
+		j.put("uri", getApiRoot() + file.getFolder().getURI()).
+				put("name", URLEncoder.encode(file.getFolder().getName(),"UTF-8"));
+		json.put("folder", j);
+		if (oldBody != null)
+			json.put("createdBy", oldBody.getAuditInfo().getCreatedBy().getUsername()).
+					put("creationDate", oldBody.getAuditInfo().getCreationDate().getTime()).
+					put("modifiedBy", oldBody.getAuditInfo().getModifiedBy().getUsername()).
+					put("modificationDate", oldBody.getAuditInfo().getModificationDate().getTime()).
+					put("content", oldBody.getMimeType()).
+					put("size", oldBody.getFileSize());
+		else
+			json.put("createdBy", file.getAuditInfo().getCreatedBy().getUsername()).
+					put("creationDate", file.getAuditInfo().getCreationDate().getTime()).
+					put("modifiedBy", file.getAuditInfo().getModifiedBy().getUsername()).
+					put("modificationDate", file.getAuditInfo().getModificationDate().getTime()).
+					put("content", file.getCurrentBody().getMimeType()).
+					put("size", file.getCurrentBody().getFileSize());
+    	json.put("permissions", renderJson(perms));
+    	return json;
     }
 
 	/**
@@ -25,7 +25,7 @@ import org.gss_project.gss.server.domain.Folder;
 import org.gss_project.gss.server.domain.User;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.Writer;
 import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
@@ -33,9 +33,8 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
+import org.json.JSONWriter;
 
 
 /**
@@ -71,17 +70,18 @@ public class OthersHandler extends RequestHandler {
     	if (path.equals("/"))
 			try {
 	    		// Request to retrieve the other users who have shared resources to this user
-	        	JSONArray json = new JSONArray();
-
     	    	List<User> others = getService().getUsersSharingFoldersForUser(owner.getId());
-		    	for (User u: others) {
-		    		JSONObject j = new JSONObject();
-		    		j.put("username", u.getUsername()).
-		    			put("uri", parentUrl + u.getUsername());
-		    		json.put(j);
-		    	}
 
-            	sendJson(req, resp, json.toString());
+    	    	Writer out = getJsonWriter(resp);
+	        	JSONWriter json = new JSONWriter(out);
+	        	json.array();
+		    	for (User u: others)
+		    		json.object().
+		    			key("username").value(u.getUsername()).
+		    			key("uri").value(parentUrl + u.getUsername()).
+		    			endObject();
+		    	json.endArray();
+		    	out.flush();
     		} catch (ObjectNotFoundException e) {
     			logger.error("User not found", e);
     			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
@@ -104,40 +104,23 @@ public class OthersHandler extends RequestHandler {
 	        	path = path.startsWith("/")? path.substring(1): path;
 
 	        	User other = getService().findUser(path);
-	        	JSONObject json = new JSONObject();
-
-				List<JSONObject> subfolders = new ArrayList<JSONObject>();
     	    	List<Folder> folders = getService().getSharedRootFolders(other.getId(), owner.getId());
-        		for (Folder f: folders) {
-        			JSONObject j = new JSONObject();
-        			j.put("name", f.getName()).
-        				put("uri", getApiRoot() + f.getURI()).
-        				put("shared", f.getShared());
-    				subfolders.add(j);
-        		}
-    			json.put("folders", subfolders);
-
-    	    	List<JSONObject> files = new ArrayList<JSONObject>();
     	    	List<FileHeader> fileHeaders = getService().getSharedFiles(other.getId(), owner.getId());
-    	    	for (FileHeader f: fileHeaders) {
-    	    		JSONObject j = new JSONObject();
-    				j.put("name", f.getName()).
-    					put("owner", f.getOwner().getUsername()).
-    					put("deleted", f.isDeleted()).
-    					put("version", f.getCurrentBody().getVersion()).
-    					put("size", f.getCurrentBody().getFileSize()).
-    					put("content", f.getCurrentBody().getMimeType()).
-    					put("creationDate", f.getAuditInfo().getCreationDate().getTime()).
-    					put("modificationDate", f.getAuditInfo().getModificationDate().getTime()).
-    					put("path", f.getFolder().getPath()).
-    					put("shared", f.getShared()).
-    					put("versioned",f.isVersioned()).
-        				put("uri", getApiRoot() + f.getURI());
-        			files.add(j);
-    	    	}
-    	    	json.put("files", files);
 
-            	sendJson(req, resp, json.toString());
+    	    	Writer out = getJsonWriter(resp);
+	        	JSONWriter json = new JSONWriter(out);
+	        	json.object().key("folders").array();
+        		for (Folder f: folders)
+        			json.object().
+        				key("name").value(f.getName()).
+        				key("uri").value(getApiRoot() + f.getURI()).
+        				key("shared").value(f.getShared()).
+        				endObject();
+    			json.endArray().key("files").array();
+    	    	for (FileHeader f: fileHeaders)
+    	    		writeJson(json, f, false);
+    	    	json.endArray().endObject();
+    	    	out.flush();
     		} catch (ObjectNotFoundException e) {
     			logger.error("User not found", e);
     			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.server.rest;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A stream that overlays the contents of a partial PUT request on the
+ * existing contents of a resource. The result is truncated or padded with
+ * zeroes to the total length specified in the request, unless the request
+ * data extend beyond it.
+ *
+ * @author past
+ */
+class PartialPutInputStream extends InputStream {
+	/**
+	 * The existing contents, or null if there are no more.
+	 */
+	private InputStream old;
+
+	/**
+	 * The number of bytes consumed from the existing contents.
+	 */
+	private long oldPosition;
+
+	/**
+	 * The request contents.
+	 */
+	private final InputStream data;
+
+	/**
+	 * Whether the request contents have been fully read.
+	 */
+	private boolean dataDone;
+
+	/**
+	 * The position of the request contents in the result.
+	 */
+	private final long start;
+
+	/**
+	 * The total length of the resource specified in the request.
+	 */
+	private final long length;
+
+	/**
+	 * The number of bytes returned so far.
+	 */
+	private long position;
+
+	PartialPutInputStream(InputStream old, InputStream data, long start, long length) {
+		this.old = old;
+		this.data = data;
+		this.start = start;
+		this.length = length;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int n = read(b, 0, 1);
+		return n == -1 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (position < start) {
+			int n = (int) Math.min(len, start - position);
+			readOld(b, off, n);
+			position += n;
+			return n;
+		}
+		if (!dataDone) {
+			int n = data.read(b, off, len);
+			if (n > 0) {
+				position += n;
+				return n;
+			}
+			dataDone = true;
+		}
+		if (position >= length)
+			return -1;
+		int n = (int) Math.min(len, length - position);
+		readOld(b, off, n);
+		position += n;
+		return n;
+	}
+
+	/**
+	 * Fill the buffer with the existing contents at the current position,
+	 * padding with zeroes past their end.
+	 */
+	private void readOld(byte[] b, int off, int len) throws IOException {
+		int filled = 0;
+		if (old != null) {
+			while (oldPosition < position) {
+				long skipped = old.skip(position - oldPosition);
+				if (skipped <= 0) {
+					if (old.read() == -1)
+						break;
+					skipped = 1;
+				}
+				oldPosition += skipped;
+			}
+			// Keep reading until the buffer is full, since a single read may
+			// return fewer bytes, e.g. when the contents are decompressed.
+			if (oldPosition == position)
+				while (filled < len) {
+					int n = old.read(b, off + filled, len - filled);
+					if (n == -1)
+						break;
+					filled += n;
+					oldPosition += n;
+				}
+			if (filled < len) {
+				old.close();
+				old = null;
+			}
+		}
+		for (int i = filled; i < len; i++)
+			b[off + i] = 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (old != null)
+			old.close();
+		data.close();
+	}
+}
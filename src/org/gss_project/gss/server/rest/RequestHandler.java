@@ -22,15 +22,18 @@ import static org.gss_project.gss.server.configuration.GSSConfigurationFactory.g
 import org.gss_project.gss.common.exceptions.InsufficientPermissionsException;
 import org.gss_project.gss.common.exceptions.ObjectNotFoundException;
 import org.gss_project.gss.common.exceptions.RpcException;
+import org.gss_project.gss.server.ejb.AuthenticationCache;
+import org.gss_project.gss.server.domain.FileBody;
 import org.gss_project.gss.server.domain.FileHeader;
 import org.gss_project.gss.server.domain.User;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -45,6 +48,8 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.json.JSONException;
+import org.json.JSONWriter;
 
 /**
  * The servlet that handles requests for the REST API.
@@ -104,6 +109,11 @@ public class RequestHandler extends Webdav {
 	 */
 	protected static final String PATH_TOKEN = "/newtoken";
 
+	/**
+	 * The path for retrieving a batch of resources.
+	 */
+	protected static final String PATH_BATCH = "/batch";
+
 	/**
 	 * The GSS-specific header for the request timestamp.
 	 */
@@ -164,6 +174,21 @@ public class RequestHandler extends Webdav {
 	 */
 	private static final String HMAC_SHA1 = "HmacSHA1";
 
+	/**
+	 * The HMAC-SHA1 instance of each request thread, along with the
+	 * authentication token it was last initialized with.
+	 */
+	private static final ThreadLocal<SigningMac> signingMac = new ThreadLocal<SigningMac>();
+
+	/**
+	 * A Mac instance and the key it was initialized with.
+	 */
+	private static class SigningMac {
+		Mac mac;
+
+		byte[] key;
+	}
+
 	/**
 	 * The serial version UID of the class.
 	 */
@@ -193,6 +218,7 @@ public class RequestHandler extends Webdav {
 		methodsAllowed.put(PATH_TAGS, METHOD_GET);
 		methodsAllowed.put(PATH_TRASH, METHOD_GET + ", " + METHOD_DELETE);
 		methodsAllowed.put(PATH_TOKEN, METHOD_GET);
+		methodsAllowed.put(PATH_BATCH, METHOD_POST);
 	}
 
 	/**
@@ -281,6 +307,9 @@ public class RequestHandler extends Webdav {
 		} else if (path.startsWith(PATH_TAGS)) {
             resp.addHeader("Allow", methodsAllowed.get(PATH_TAGS));
 			resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+		} else if (path.startsWith(PATH_BATCH)) {
+            resp.addHeader("Allow", methodsAllowed.get(PATH_BATCH));
+			resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
 		} else if (path.startsWith(PATH_TRASH)) {
             resp.addHeader("Allow", methodsAllowed.get(PATH_TRASH));
 			resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
@@ -331,6 +360,9 @@ public class RequestHandler extends Webdav {
 		} else if (path.startsWith(PATH_TAGS)) {
             resp.addHeader("Allow", methodsAllowed.get(PATH_TAGS));
 			resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+		} else if (path.startsWith(PATH_BATCH)) {
+            resp.addHeader("Allow", methodsAllowed.get(PATH_BATCH));
+			resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
 		} else if (path.startsWith(PATH_TRASH)) {
             resp.addHeader("Allow", methodsAllowed.get(PATH_TRASH));
 			resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
@@ -385,7 +417,10 @@ public class RequestHandler extends Webdav {
 			new TagsHandler().serveTags(req, resp);
 		else if (path.startsWith(PATH_TOKEN))
 			new TokenHandler().newToken(req, resp);
-		else
+		else if (path.startsWith(PATH_BATCH)) {
+            resp.addHeader("Allow", methodsAllowed.get(PATH_BATCH));
+			resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+		} else
 			resp.sendError(HttpServletResponse.SC_NOT_FOUND, req.getRequestURI());
 	}
 
@@ -426,6 +461,9 @@ public class RequestHandler extends Webdav {
 		} else if (path.startsWith(PATH_TAGS)) {
             resp.addHeader("Allow", methodsAllowed.get(PATH_TAGS));
 			resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+		} else if (path.startsWith(PATH_BATCH)) {
+            resp.addHeader("Allow", methodsAllowed.get(PATH_BATCH));
+			resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
 		} else if (path.startsWith(PATH_GROUPS))
 			new GroupsHandler().deleteGroup(req, resp);
 		else if (path.startsWith(PATH_TRASH))
@@ -484,6 +522,8 @@ public class RequestHandler extends Webdav {
 			resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
 		} else if (path.startsWith(PATH_FILES))
 			new FilesHandler(getServletContext()).postResource(req, resp);
+		else if (path.startsWith(PATH_BATCH))
+			new FilesHandler(getServletContext()).serveBatch(req, resp);
 		else if (path.equals("/"))
 			new UserHandler().postUser(req, resp);
 		else
@@ -548,32 +588,59 @@ public class RequestHandler extends Webdav {
 	 * @throws IOException
 	 */
 	protected void sendJson(HttpServletRequest req, HttpServletResponse resp, String json) throws UnsupportedEncodingException, IOException {
-		ByteArrayOutputStream stream = new ByteArrayOutputStream();
-    	OutputStreamWriter osWriter = new OutputStreamWriter(stream, "UTF8");
-    	PrintWriter writer = new PrintWriter(osWriter);
+		Writer writer = getJsonWriter(resp);
+		writer.write(json);
+		writer.flush();
+	}
 
-    	writer.write(json);
-    	writer.flush();
+	/**
+	 * Prepare the response for a JSON document and return a writer that
+	 * sends it to the client as it is rendered, without holding a copy of the
+	 * whole document.
+	 *
+	 * @param resp the HTTP response
+	 * @return a writer to the response body, that must be flushed at the end
+	 * @throws IOException if the response stream cannot be retrieved
+	 */
+	protected Writer getJsonWriter(HttpServletResponse resp) throws IOException {
+		resp.setContentType("application/json;charset=UTF-8");
+		resp.setBufferSize(output);
+		return new OutputStreamWriter(resp.getOutputStream(), "UTF-8");
+	}
 
-    	resp.setContentType("application/json;charset=UTF-8");
-    	resp.setBufferSize(output);
-		try {
-			copy(null, new ByteArrayInputStream(stream.toByteArray()), resp.getOutputStream(), req, null);
-		} catch (ObjectNotFoundException e) {
-			// This should never happen with a null first parameter.
-			logger.error("", e);
-			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-			return;
-		} catch (InsufficientPermissionsException e) {
-			// This should never happen with a null first parameter.
-			logger.error("", e);
-			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-			return;
-		} catch (RpcException e) {
-			logger.error("", e);
-			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-			return;
-		}
+	/**
+	 * Write the JSON representation of a file in a listing.
+	 *
+	 * @param json the writer of the listing
+	 * @param f the file
+	 * @param withFolder whether the URI and name of the parent folder are
+	 * 			included
+	 * @throws JSONException if the representation cannot be written
+	 * @throws UnsupportedEncodingException if the folder name cannot be encoded
+	 */
+	protected void writeJson(JSONWriter json, FileHeader f, boolean withFolder)
+			throws JSONException, UnsupportedEncodingException {
+		FileBody currentBody = f.getCurrentBody();
+		json.object().
+			key("name").value(f.getName()).
+			key("owner").value(f.getOwner().getUsername()).
+			key("deleted").value(f.isDeleted()).
+			key("version").value(currentBody.getVersion()).
+			key("content").value(currentBody.getMimeType()).
+			key("size").value(currentBody.getFileSize()).
+			key("shared").value(f.getShared()).
+			key("versioned").value(f.isVersioned()).
+			key("creationDate").value(f.getAuditInfo().getCreationDate().getTime()).
+			key("path").value(f.getFolder().getPath()).
+			key("uri").value(getApiRoot() + f.getURI());
+		if (f.getAuditInfo().getModificationDate() != null)
+			json.key("modificationDate").value(f.getAuditInfo().getModificationDate().getTime());
+		if (withFolder)
+			json.key("folder").object().
+				key("uri").value(getApiRoot() + f.getFolder().getURI()).
+				key("name").value(URLEncoder.encode(f.getFolder().getName(), "UTF-8")).
+				endObject();
+		json.endObject();
 	}
 
 	/**
@@ -636,7 +703,7 @@ public class RequestHandler extends Webdav {
 		String signature = authParts[1];
 		User user = null;
 		try {
-			user = getService().findUser(username);
+			user = findAuthUser(username);
 		} catch (RpcException e) {
 			return false;
 		}
@@ -672,14 +739,12 @@ public class RequestHandler extends Webdav {
 			logger.debug("server pre-signing data: "+data);
 		String serverSignature = null;
 		// If the authentication token is not valid, the user must get another one.
-		if (user.getAuthToken() == null)
+		byte[] token = user.getAuthToken();
+		if (token == null)
 			return false;
-		// Get an HMAC-SHA1 key from the authentication token.
-		SecretKeySpec signingKey = new SecretKeySpec(user.getAuthToken(), HMAC_SHA1);
 		try {
-			// Get an HMAC-SHA1 Mac instance and initialize with the signing key.
-			Mac mac = Mac.getInstance(HMAC_SHA1);
-			mac.init(signingKey);
+			// Get an HMAC-SHA1 Mac instance initialized with the signing key.
+			Mac mac = getMac(token);
 			// Compute the HMAC on input data bytes.
 			byte[] rawHmac = mac.doFinal(data.getBytes());
 			serverSignature = new String(Base64.encodeBase64(rawHmac), "US-ASCII");
@@ -696,6 +761,51 @@ public class RequestHandler extends Webdav {
 		return true;
 	}
 
+	/**
+	 * Retrieve the HMAC-SHA1 instance of the current thread, initialized with
+	 * the specified authentication token. The instance is only initialized
+	 * again when the token differs from the one used in the previous request
+	 * of the thread.
+	 *
+	 * @param token the authentication token
+	 * @return the Mac instance
+	 * @throws GeneralSecurityException if the Mac cannot be initialized
+	 */
+	private static Mac getMac(byte[] token) throws GeneralSecurityException {
+		SigningMac m = signingMac.get();
+		if (m == null) {
+			m = new SigningMac();
+			m.mac = Mac.getInstance(HMAC_SHA1);
+			signingMac.set(m);
+		}
+		if (!Arrays.equals(m.key, token)) {
+			m.key = null;
+			m.mac.init(new SecretKeySpec(token, HMAC_SHA1));
+			m.key = token;
+		}
+		return m.mac;
+	}
+
+	/**
+	 * Find the user with the specified username, in order to authenticate a
+	 * request. The user is retrieved from the authentication cache when
+	 * possible, and must not be modified.
+	 *
+	 * @param username the username
+	 * @return the user, or null if no such user exists
+	 * @throws RpcException in case an error occurs
+	 */
+	protected User findAuthUser(String username) throws RpcException {
+		AuthenticationCache cache = AuthenticationCache.getInstance();
+		User user = cache.get(username);
+		if (user == null) {
+			user = getService().findUser(username);
+			if (user != null)
+				cache.put(user);
+		}
+		return user;
+	}
+
 	protected boolean getAuthDeferred(HttpServletRequest req) {
 		Boolean attr = (Boolean) req.getAttribute(AUTH_DEFERRED_ATTR);
 		return attr == null? false: attr;
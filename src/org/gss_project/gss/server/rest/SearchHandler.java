@@ -21,13 +21,12 @@ package org.gss_project.gss.server.rest;
 import org.gss_project.gss.common.exceptions.ObjectNotFoundException;
 import org.gss_project.gss.common.exceptions.RpcException;
 import org.gss_project.gss.server.domain.FileHeader;
-import org.gss_project.gss.server.domain.FileBody;
 import org.gss_project.gss.server.domain.SearchResult;
 import org.gss_project.gss.server.domain.User;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.net.URLDecoder;
-import java.net.URLEncoder;
 import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
@@ -35,9 +34,8 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
+import org.json.JSONWriter;
 
 /**
  * A class that handles operations on the 'search' namespace.
@@ -82,7 +80,6 @@ public class SearchHandler extends RequestHandler {
     	if (!path.equals("/"))
 			try {
 		    	User user = getUser(req);
-	        	JSONArray json = new JSONArray();
 	        	int start =-1;
 	        	if(req.getParameter("start") != null)
 	        		start = Integer.parseInt(req.getParameter("start"));
@@ -90,33 +87,15 @@ public class SearchHandler extends RequestHandler {
                 if (req.getParameter("lucene") != null)
                     luceneQuery = true;
 				SearchResult searchResult = getService().search(user.getId(), URLDecoder.decode(path,"UTF-8"), start, luceneQuery);
-                if (start > -1) {
-                    JSONObject j = new JSONObject();
-                    j.put("length", searchResult.getTotal());
-                    json.put(j);
-                }
-    	    	for (FileHeader f: searchResult.getResults()) {
-    	    		FileBody currentBody = f.getCurrentBody();
-    	    		JSONObject j = new JSONObject();
-    				j.put("name", f.getName()).
-    					put("owner", f.getOwner().getUsername()).
-    					put("deleted", f.isDeleted()).
-    					put("version", currentBody.getVersion()).
-    					put("size", currentBody.getFileSize()).
-    					put("path", f.getFolder().getPath()).
-						put("content", currentBody.getMimeType()).
-						put("shared", f.getShared()).
-    					put("versioned",f.isVersioned()).
-    					put("creationDate", f.getAuditInfo().getCreationDate().getTime()).
-    					put("modificationDate", f.getAuditInfo().getModificationDate().getTime()).
-        				put("uri", getApiRoot() + f.getURI());
-    				JSONObject jf = new JSONObject();
-    				jf.put("uri", getApiRoot() + f.getFolder().getURI()).
-    						put("name", URLEncoder.encode(f.getFolder().getName(),"UTF-8"));
-    				j.put("folder", jf);
-    				json.put(j);
-    	    	}
-            	sendJson(req, resp, json.toString());
+                Writer out = getJsonWriter(resp);
+	        	JSONWriter json = new JSONWriter(out);
+	        	json.array();
+                if (start > -1)
+                    json.object().key("length").value(searchResult.getTotal()).endObject();
+    	    	for (FileHeader f: searchResult.getResults())
+    	    		writeJson(json, f, true);
+    	    	json.endArray();
+    	    	out.flush();
     		} catch (ObjectNotFoundException e) {
     			logger.error("User not found or search query not specified", e);
     			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
@@ -26,8 +26,7 @@ import org.gss_project.gss.server.domain.Folder;
 import org.gss_project.gss.server.domain.User;
 
 import java.io.IOException;
-import java.net.URLEncoder;
-import java.util.ArrayList;
+import java.io.Writer;
 import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
@@ -36,7 +35,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.json.JSONException;
-import org.json.JSONObject;
+import org.json.JSONWriter;
 
 
 /**
@@ -70,48 +69,28 @@ public class SharedHandler extends RequestHandler {
 	        		throw new InsufficientPermissionsException("User " + user.getUsername()
 	        					+ " does not have permission to view the resources shared by "
 	        					+ owner.getUsername());
-	        	JSONObject json = new JSONObject();
-
-				List<JSONObject> subfolders = new ArrayList<JSONObject>();
     	    	List<Folder> folders = getService().getSharedRootFolders(owner.getId());
-    	    	for (Folder f: folders) {
-        			JSONObject j = new JSONObject();
-        			j.put("name", f.getName()).
-        				put("uri", getApiRoot() + f.getURI());
-        			if (f.getParent() != null)
-        				j.put("parent", getApiRoot() + f.getParent().getURI()).
-        				put("shared", f.getShared());;
-    				subfolders.add(j);
-        		}
-    			json.put("folders", subfolders);
-
     	    	List<FileHeader> fileHeaders = getService().getSharedFilesNotInSharedFolders(owner.getId());
-    	    	List<JSONObject> files = new ArrayList<JSONObject>();
-    	    	for (FileHeader f: fileHeaders) {
-    	    		JSONObject j = new JSONObject();
-    				j.put("name", f.getName()).
-    					put("owner", f.getOwner().getUsername()).
-    					put("deleted", f.isDeleted()).
-    					put("version", f.getCurrentBody().getVersion()).
-    					put("size", f.getCurrentBody().getFileSize()).
-    					put("content", f.getCurrentBody().getMimeType()).
-    					put("path", f.getFolder().getPath()).
-    					put("shared", f.getShared()).
-    					put("versioned",f.isVersioned()).
-    					put("creationDate", f.getAuditInfo().getCreationDate().getTime()).
-    					put("modificationDate", f.getAuditInfo().getModificationDate().getTime()).
-        				put("uri", getApiRoot() + f.getURI());
-    				JSONObject jf = new JSONObject();
-    				jf.put("uri", getApiRoot() + f.getFolder().getURI()).
-    						put("name", URLEncoder.encode(f.getFolder().getName(),"UTF-8"));
-    				j.put("folder", jf);
-        			files.add(j);
-    	    	}
-    	    	json.put("files", files);
 
-            	sendJson(req, resp, json.toString());
             	// Workaround for IE's broken caching behavior.
     			resp.setHeader("Expires", "-1");
+    			Writer out = getJsonWriter(resp);
+    			JSONWriter json = new JSONWriter(out);
+    			json.object().key("folders").array();
+    	    	for (Folder f: folders) {
+        			json.object().
+        				key("name").value(f.getName()).
+        				key("uri").value(getApiRoot() + f.getURI());
+        			if (f.getParent() != null)
+        				json.key("parent").value(getApiRoot() + f.getParent().getURI()).
+        				key("shared").value(f.getShared());
+        			json.endObject();
+        		}
+    			json.endArray().key("files").array();
+    	    	for (FileHeader f: fileHeaders)
+    	    		writeJson(json, f, true);
+    	    	json.endArray().endObject();
+    	    	out.flush();
     		} catch (ObjectNotFoundException e) {
     			logger.error("User not found", e);
     			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
@@ -27,8 +27,7 @@ import org.gss_project.gss.server.domain.User;
 import org.gss_project.gss.server.ejb.TransactionHelper;
 
 import java.io.IOException;
-import java.net.URLEncoder;
-import java.util.ArrayList;
+import java.io.Writer;
 import java.util.List;
 import java.util.concurrent.Callable;
 
@@ -39,7 +38,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.json.JSONException;
-import org.json.JSONObject;
+import org.json.JSONWriter;
 
 
 /**
@@ -96,49 +95,30 @@ public class TrashHandler extends RequestHandler {
 			return;
 		}
 
-		JSONObject json = new JSONObject();
+		// Workaround for IE's broken caching behavior.
+   		resp.setHeader("Expires", "-1");
+		Writer out = getJsonWriter(resp);
     	try {
-    		List<JSONObject> trashFolders = new ArrayList<JSONObject>();
+    		JSONWriter json = new JSONWriter(out);
+    		json.object().key("folders").array();
     		for (Folder f: folders) {
-    			JSONObject j = new JSONObject();
-    			j.put("name", f.getName()).
-    				put("uri", getApiRoot() + f.getURI());
+    			json.object().
+    				key("name").value(f.getName()).
+    				key("uri").value(getApiRoot() + f.getURI());
     			if (f.getParent() != null)
-    				j.put("parent", getApiRoot() + f.getParent().getURI());
-				trashFolders.add(j);
+    				json.key("parent").value(getApiRoot() + f.getParent().getURI());
+    			json.endObject();
     		}
-	    	json.put("folders", trashFolders);
-	    	List<JSONObject> trashFiles = new ArrayList<JSONObject>();
-	    	for (FileHeader f: files) {
-	    		JSONObject j = new JSONObject();
-				j.put("name", f.getName()).
-					put("owner", f.getOwner().getUsername()).
-					put("deleted", f.isDeleted()).
-					put("version", f.getCurrentBody().getVersion()).
-					put("size", f.getCurrentBody().getFileSize()).
-					put("content", f.getCurrentBody().getMimeType()).
-					put("shared", f.getShared()).
-				    put("versioned",f.isVersioned()).
-					put("path", f.getFolder().getPath()).
-					put("creationDate", f.getAuditInfo().getCreationDate().getTime()).
-					put("modificationDate", f.getAuditInfo().getModificationDate().getTime()).
-    				put("uri", getApiRoot() + f.getURI());
-				JSONObject p = new JSONObject();
-				p.put("uri", getApiRoot() + f.getFolder().getURI()).
-						put("name", URLEncoder.encode(f.getFolder().getName(),"UTF-8"));
-				j.put("folder", p);
-				trashFiles.add(j);
-	    	}
-	    	json.put("files", trashFiles);
+	    	json.endArray().key("files").array();
+	    	for (FileHeader f: files)
+	    		writeJson(json, f, true);
+	    	json.endArray().endObject();
 		} catch (JSONException e) {
 			logger.error("", e);
 			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
 			return;
 		}
-
-		// Workaround for IE's broken caching behavior.
-   		resp.setHeader("Expires", "-1");
-    	sendJson(req, resp, json.toString());
+		out.flush();
 	}
 
 	/**
@@ -30,26 +30,30 @@ import org.gss_project.gss.server.domain.FileBody;
 import org.gss_project.gss.server.domain.FileHeader;
 import org.gss_project.gss.server.domain.Folder;
 import org.gss_project.gss.server.domain.User;
+import org.gss_project.gss.server.ejb.BandwidthAccumulator;
 import org.gss_project.gss.server.ejb.ExternalAPI;
+import org.gss_project.gss.server.ejb.ServiceLocator;
+import org.gss_project.gss.server.ejb.StoredFile;
 import org.gss_project.gss.server.ejb.TransactionHelper;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
+import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
@@ -64,12 +68,12 @@ import java.util.Stack;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
 import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 
 import javax.naming.Context;
-import javax.naming.InitialContext;
 import javax.naming.NamingException;
-import javax.rmi.PortableRemoteObject;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
@@ -81,6 +85,9 @@ import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -230,6 +237,22 @@ public class Webdav extends HttpServlet {
 	 */
 	private static final int BUFFER_SIZE = 4096;
 
+	/**
+	 * Size of the buffers used for serving file channels, in bytes.
+	 */
+	private static final int CHANNEL_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The maximum number of idle channel buffers kept for reuse.
+	 */
+	private static final int CHANNEL_BUFFER_POOL_SIZE = 64;
+
+	/**
+	 * The idle buffers for serving file channels, shared by all requests.
+	 */
+	private static final BlockingQueue<ChannelBuffer> channelBuffers =
+			new ArrayBlockingQueue<ChannelBuffer>(CHANNEL_BUFFER_POOL_SIZE);
+
 	/**
 	 * The output buffer size to use when serving resources.
 	 */
@@ -343,30 +366,19 @@ public class Webdav extends HttpServlet {
 	 */
 	protected ExternalAPI getService() throws RpcException {
 		try {
-			final Context ctx = new InitialContext();
-			final Object ref = ctx.lookup(getConfiguration().getString("externalApiPath"));
-			return (ExternalAPI) PortableRemoteObject.narrow(ref, ExternalAPI.class);
+			return ServiceLocator.getInstance().getExternalAPI();
 		} catch (final NamingException e) {
 			logger.error("Unable to retrieve the ExternalAPI EJB", e);
 			throw new RpcException("An error occurred while contacting the naming service");
 		}
 	}
 
+	/**
+	 * Record the bandwidth used by the specified user. It is stored in the
+	 * database in batches by the AccountingFlusher service.
+	 */
 	private void updateAccounting(final User user, final Date date, final long bandwidthDiff) {
-		try {
-			new TransactionHelper<Void>().tryExecute(new Callable<Void>() {
-				@Override
-				public Void call() throws Exception {
-					getService().updateAccounting(user, date, bandwidthDiff);
-					return null;
-				}
-			});
-		} catch (RuntimeException e) {
-			throw e;
-		} catch (Exception e) {
-			// updateAccounting() doesn't throw any checked exceptions
-			assert false;
-		}
+		BandwidthAccumulator.getInstance().add(user.getId(), date, bandwidthDiff);
 	}
 
 	@Override
@@ -709,20 +721,16 @@ public class Webdav extends HttpServlet {
 			}
 		boolean result = true;
 
-		// Temporary content file used to support partial PUT.
-		File contentFile = null;
-
 		Range range = parseContentRange(req, resp);
 
 		InputStream resourceInputStream = null;
 
 		// Append data specified in ranges to existing content for this
-		// resource - create a temporary file on the local filesystem to
-		// perform this operation.
+		// resource.
 		// Assume just one range is specified for now
 		if (range != null) {
 			try {
-				contentFile = executePartialPut(req, range, path);
+				resourceInputStream = executePartialPut(req, range, path);
 			} catch (RpcException e) {
 				resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, path);
 				return;
@@ -733,7 +741,6 @@ public class Webdav extends HttpServlet {
 				resp.sendError(HttpServletResponse.SC_FORBIDDEN);
 				return;
 			}
-			resourceInputStream = new FileInputStream(contentFile);
 		} else
 			resourceInputStream = req.getInputStream();
 
@@ -746,28 +753,28 @@ public class Webdav extends HttpServlet {
 			final Folder folderLocal = (Folder) parent;
 			final String name = getLastElement(path);
 			final String mimeType = getServletContext().getMimeType(name);
-        	File uploadedFile = null;
+        	StoredFile uploadedFile = null;
         	try {
-				uploadedFile = getService().uploadFile(resourceInputStream, user.getId());
+				uploadedFile = getService().uploadFile(resourceInputStream, user.getId(), mimeType);
 			} catch (IOException ex) {
 				throw new GSSIOException(ex, false);
 			}
 			// FIXME: Add attributes
 			FileHeader fileLocal = null;
 			final FileHeader f = file;
-			final File uf = uploadedFile;
+			final StoredFile uf = uploadedFile;
 			if (exists)
 				fileLocal = new TransactionHelper<FileHeader>().tryExecute(new Callable<FileHeader>() {
 					@Override
 					public FileHeader call() throws Exception {
-						return getService().updateFileContents(user.getId(), f.getId(), mimeType, uf.length(), uf.getAbsolutePath());
+						return getService().updateFileContents(user.getId(), f.getId(), mimeType, uf);
 					}
 				});
 			else
 				fileLocal = new TransactionHelper<FileHeader>().tryExecute(new Callable<FileHeader>() {
 					@Override
 					public FileHeader call() throws Exception {
-						return getService().createFile(user.getId(), folderLocal.getId(), name, mimeType, uf.length(), uf.getAbsolutePath());
+						return getService().createFile(user.getId(), folderLocal.getId(), name, mimeType, uf);
 					}
 				});
 			updateAccounting(user, new Date(), fileLocal.getCurrentBody().getFileSize());
@@ -1537,18 +1544,61 @@ public class Webdav extends HttpServlet {
 	}
 
 	/**
-	 * Get the ETag associated with a file.
+	 * Get the ETag associated with a file. Bodies with a recorded content
+	 * digest get a strong ETag derived from it, so that metadata changes do
+	 * not invalidate cached copies.
 	 *
 	 * @param file the FileHeader object for this file
 	 * @param oldBody the old version of the file, if requested
 	 * @return a string containing the ETag
 	 */
 	protected String getETag(FileHeader file, FileBody oldBody) {
+		FileBody body = oldBody == null ? file.getCurrentBody() : oldBody;
+		if (body.getContentDigest() != null)
+			return "\"" + body.getContentDigest() + "\"";
 		if (oldBody == null)
 			return "\"" + file.getCurrentBody().getFileSize() + "-" + file.getAuditInfo().getModificationDate().getTime() + "\"";
 		return "\"" + oldBody.getFileSize() + "-" + oldBody.getAuditInfo().getModificationDate().getTime() + "\"";
 	}
 
+	/**
+	 * Get the value of the Digest header (RFC 3230) for a file, or null if
+	 * no content digest was recorded for it.
+	 *
+	 * @param file the FileHeader object for this file
+	 * @param oldBody the old version of the file, if requested
+	 * @return the header value or null
+	 */
+	protected String getDigestHeader(FileHeader file, FileBody oldBody) {
+		FileBody body = oldBody == null ? file.getCurrentBody() : oldBody;
+		if (body.getContentDigest() == null)
+			return null;
+		try {
+			byte[] digest = Hex.decodeHex(body.getContentDigest().toCharArray());
+			return "SHA-256=" + new String(Base64.encodeBase64(digest), "US-ASCII");
+		} catch (DecoderException e) {
+			logger.error("Invalid content digest for file " + file.getId(), e);
+			return null;
+		} catch (UnsupportedEncodingException e) {
+			logger.error("", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Set the ETag and Digest headers for a file.
+	 *
+	 * @param resp the HTTP response
+	 * @param file the FileHeader object for this file
+	 * @param oldBody the old version of the file, if requested
+	 */
+	protected void setEntityTagHeaders(HttpServletResponse resp, FileHeader file, FileBody oldBody) {
+		resp.setHeader("ETag", getETag(file, oldBody));
+		String digest = getDigestHeader(file, oldBody);
+		if (digest != null)
+			resp.setHeader("Digest", digest);
+	}
+
 	/**
 	 * URL rewriter.
 	 *
@@ -1727,32 +1777,21 @@ public class Webdav extends HttpServlet {
 
 	/**
 	 * Handle a partial PUT. New content specified in request is appended to
-	 * existing content in oldRevisionContent (if present). This code does not
-	 * support simultaneous partial updates to the same resource.
+	 * existing content in oldRevisionContent (if present). The merged content
+	 * is produced as a stream while it is being uploaded, so no temporary copy
+	 * is kept outside of the file repository. This code does not support
+	 * simultaneous partial updates to the same resource.
 	 *
 	 * @param req
 	 * @param range
 	 * @param path
-	 * @return
+	 * @return a stream with the merged content
 	 * @throws IOException
 	 * @throws RpcException
 	 * @throws InsufficientPermissionsException
 	 * @throws ObjectNotFoundException
 	 */
-	protected File executePartialPut(HttpServletRequest req, Range range, String path) throws IOException, RpcException, ObjectNotFoundException, InsufficientPermissionsException {
-		// Append data specified in ranges to existing content for this
-		// resource - create a temporary file on the local file system to
-		// perform this operation.
-		File tempDir = (File) getServletContext().getAttribute("javax.servlet.context.tempdir");
-		// Convert all '/' characters to '.' in resourcePath
-		String convertedResourcePath = path.replace('/', '.');
-		File contentFile = new File(tempDir, convertedResourcePath);
-		if (contentFile.createNewFile())
-			// Clean up contentFile when Tomcat is terminated.
-			contentFile.deleteOnExit();
-
-		RandomAccessFile randAccessContentFile = new RandomAccessFile(contentFile, "rw");
-
+	protected InputStream executePartialPut(HttpServletRequest req, Range range, String path) throws IOException, RpcException, ObjectNotFoundException, InsufficientPermissionsException {
 		User user = getUser(req);
 		User owner = getOwner(req);
 		FileHeader oldResource = null;
@@ -1764,33 +1803,11 @@ public class Webdav extends HttpServlet {
 			// Do nothing.
 		}
 
-		// Copy data in oldRevisionContent to contentFile
-		if (oldResource != null) {
-			InputStream contents = getService().getFileContents(user.getId(), oldResource.getId());
-			BufferedInputStream bufOldRevStream = new BufferedInputStream(contents, BUFFER_SIZE);
-
-			int numBytesRead;
-			byte[] copyBuffer = new byte[BUFFER_SIZE];
-			while ((numBytesRead = bufOldRevStream.read(copyBuffer)) != -1)
-				randAccessContentFile.write(copyBuffer, 0, numBytesRead);
-
-			bufOldRevStream.close();
-		}
-
-		randAccessContentFile.setLength(range.length);
-
-		// Append data in request input stream to contentFile
-		randAccessContentFile.seek(range.start);
-		int numBytesRead;
-		byte[] transferBuffer = new byte[BUFFER_SIZE];
-		BufferedInputStream requestBufInStream = new BufferedInputStream(req.getInputStream(), BUFFER_SIZE);
-		while ((numBytesRead = requestBufInStream.read(transferBuffer)) != -1)
-			randAccessContentFile.write(transferBuffer, 0, numBytesRead);
-		randAccessContentFile.close();
-		requestBufInStream.close();
-
-		return contentFile;
-
+		InputStream oldContents = null;
+		if (oldResource != null)
+			oldContents = new BufferedInputStream(getService().getFileContents(user.getId(), oldResource.getId()), BUFFER_SIZE);
+		InputStream requestBufInStream = new BufferedInputStream(req.getInputStream(), BUFFER_SIZE);
+		return new PartialPutInputStream(oldContents, requestBufInStream, range.start, range.length);
 	}
 
 	/**
@@ -1873,8 +1890,8 @@ public class Webdav extends HttpServlet {
 			resp.setHeader("Accept-Ranges", "bytes");
 			// Parse range specifier
 			ranges = parseRange(req, resp, file, null);
-			// ETag header
-			resp.setHeader("ETag", getETag(file, null));
+			// ETag and Digest headers
+			setEntityTagHeaders(resp, file, null);
 			// Last-Modified header
 			resp.setHeader("Last-Modified", getLastModifiedHttp(file.getAuditInfo()));
 			// Get content length
@@ -2204,7 +2221,7 @@ public class Webdav extends HttpServlet {
 					// The entity has not been modified since the date
 					// specified by the client. This is not an error case.
 					response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
-					response.setHeader("ETag", getETag(file, oldBody));
+					setEntityTagHeaders(response, file, oldBody);
 					return false;
 				}
 		} catch (IllegalArgumentException illegalArgument) {
@@ -2234,9 +2251,11 @@ public class Webdav extends HttpServlet {
 			boolean conditionSatisfied = false;
 			if (!headerValue.equals("*")) {
 				StringTokenizer commaTokenizer = new StringTokenizer(headerValue, ",");
+				// If-None-Match uses the weak comparison function.
+				String opaqueTag = stripWeakPrefix(eTag);
 				while (!conditionSatisfied && commaTokenizer.hasMoreTokens()) {
 					String currentToken = commaTokenizer.nextToken();
-					if (currentToken.trim().equals(eTag))
+					if (stripWeakPrefix(currentToken.trim()).equals(opaqueTag))
 						conditionSatisfied = true;
 				}
 			} else
@@ -2247,7 +2266,7 @@ public class Webdav extends HttpServlet {
 				// back.
 				if ("GET".equals(request.getMethod()) || "HEAD".equals(request.getMethod())) {
 					response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
-					response.setHeader("ETag", getETag(file, oldBody));
+					setEntityTagHeaders(response, file, oldBody);
 					return false;
 				}
 				response.sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
@@ -2257,6 +2276,16 @@ public class Webdav extends HttpServlet {
 		return true;
 	}
 
+	/**
+	 * Remove the weakness indicator from an entity tag.
+	 *
+	 * @param eTag the entity tag
+	 * @return the opaque part of the tag
+	 */
+	private String stripWeakPrefix(String eTag) {
+		return eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+	}
+
 	/**
 	 * Check if the if-unmodified-since condition is satisfied.
 	 *
@@ -2320,6 +2349,15 @@ public class Webdav extends HttpServlet {
 		else
 			resourceInputStream = is;
 
+		if (resourceInputStream instanceof FileInputStream) {
+			// Read the whole file through its channel
+			FileInputStream fis = (FileInputStream) resourceInputStream;
+			exception = copyRange(fis.getChannel(), ostream, 0, -1);
+			fis.close();
+			if (exception != null)
+				throw exception;
+			return;
+		}
 		InputStream istream = new BufferedInputStream(resourceInputStream, input);
 		// Copy the input stream to the output stream
 		exception = copyRange(istream, ostream);
@@ -2523,6 +2561,52 @@ public class Webdav extends HttpServlet {
 		return exception;
 	}
 
+	/**
+	 * Copy the specified range of a file channel to the specified output
+	 * stream. The channel is read by position into a pooled direct buffer,
+	 * so ranges near the end of large files do not skip over the preceding
+	 * bytes, and serving large files does not allocate buffers.
+	 *
+	 * @param channel The file channel to read from
+	 * @param ostream The output stream to write to
+	 * @param start Start of the range which will be copied
+	 * @param end End of the range which will be copied, or -1 for the end of
+	 *            the file
+	 * @return Exception which occurred during processing, including an
+	 *            EOFException if the file ends before the range
+	 */
+	private IOException copyRange(FileChannel channel, ServletOutputStream ostream, long start, long end) {
+		try {
+			if (end < 0)
+				end = channel.size() - 1;
+			if (logger.isDebugEnabled())
+				logger.debug("Serving bytes:" + start + "-" + end);
+			ChannelBuffer transfer = channelBuffers.poll();
+			if (transfer == null)
+				transfer = new ChannelBuffer();
+			try {
+				ByteBuffer buffer = transfer.buffer;
+				long position = start;
+				while (position <= end) {
+					buffer.clear();
+					buffer.limit((int) Math.min(buffer.capacity(), end - position + 1));
+					int len = channel.read(buffer, position);
+					if (len < 0)
+						throw new EOFException("File ended at byte " + position + " of range " + start + "-" + end);
+					buffer.flip();
+					buffer.get(transfer.array, 0, len);
+					ostream.write(transfer.array, 0, len);
+					position += len;
+				}
+			} finally {
+				channelBuffers.offer(transfer);
+			}
+		} catch (IOException e) {
+			return e;
+		}
+		return null;
+	}
+
 	/**
 	 * Copy the contents of the specified input stream to the specified output
 	 * stream, and ensure that both streams are closed before returning (even in
@@ -2587,10 +2671,16 @@ public class Webdav extends HttpServlet {
 		InputStream resourceInputStream = oldBody == null ?
 					getService().getFileContents(user.getId(), file.getId()) :
 					getService().getFileContents(user.getId(), file.getId(), oldBody.getId());
-		InputStream istream = new BufferedInputStream(resourceInputStream, input);
-		exception = copyRange(istream, ostream, range.start, range.end);
-		// Clean up the input stream
-		istream.close();
+		if (resourceInputStream instanceof FileInputStream) {
+			FileInputStream fis = (FileInputStream) resourceInputStream;
+			exception = copyRange(fis.getChannel(), ostream, range.start, range.end);
+			fis.close();
+		} else {
+			InputStream istream = new BufferedInputStream(resourceInputStream, input);
+			exception = copyRange(istream, ostream, range.start, range.end);
+			// Clean up the input stream
+			istream.close();
+		}
 		// Rethrow any exception that has occurred
 		if (exception != null)
 			throw exception;
@@ -2659,7 +2749,6 @@ public class Webdav extends HttpServlet {
 			InputStream resourceInputStream = oldBody == null ?
 						getService().getFileContents(user.getId(), file.getId()) :
 						getService().getFileContents(user.getId(), file.getId(), oldBody.getId());
-			InputStream istream = new BufferedInputStream(resourceInputStream, input);
 			Range currentRange = (Range) ranges.next();
 			// Writing MIME header.
 			ostream.println();
@@ -2670,8 +2759,15 @@ public class Webdav extends HttpServlet {
 			ostream.println();
 
 			// Printing content
-			exception = copyRange(istream, ostream, currentRange.start, currentRange.end);
-			istream.close();
+			if (resourceInputStream instanceof FileInputStream) {
+				FileInputStream fis = (FileInputStream) resourceInputStream;
+				exception = copyRange(fis.getChannel(), ostream, currentRange.start, currentRange.end);
+				fis.close();
+			} else {
+				InputStream istream = new BufferedInputStream(resourceInputStream, input);
+				exception = copyRange(istream, ostream, currentRange.start, currentRange.end);
+				istream.close();
+			}
 		}
 
 		ostream.println();
@@ -3448,4 +3544,14 @@ public class Webdav extends HttpServlet {
 		return true;
 	}
 
+	/**
+	 * A direct buffer that a file channel is read into without an extra copy
+	 * by the JVM, along with the array that the servlet output stream is
+	 * written from.
+	 */
+	private static class ChannelBuffer {
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(CHANNEL_BUFFER_SIZE);
+
+		final byte[] array = new byte[CHANNEL_BUFFER_SIZE];
+	}
 }
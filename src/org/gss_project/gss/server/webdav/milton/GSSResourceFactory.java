@@ -24,16 +24,13 @@ import org.gss_project.gss.common.exceptions.RpcException;
 import org.gss_project.gss.server.domain.FileHeader;
 import org.gss_project.gss.server.domain.Folder;
 import org.gss_project.gss.server.domain.User;
+import org.gss_project.gss.server.ejb.BandwidthAccumulator;
 import org.gss_project.gss.server.ejb.ExternalAPI;
-import org.gss_project.gss.server.ejb.TransactionHelper;
+import org.gss_project.gss.server.ejb.ServiceLocator;
 
 import java.util.Date;
-import java.util.concurrent.Callable;
 
-import javax.naming.Context;
-import javax.naming.InitialContext;
 import javax.naming.NamingException;
-import javax.rmi.PortableRemoteObject;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -281,9 +278,7 @@ public class GSSResourceFactory implements ResourceFactory {
 		 */
 		protected ExternalAPI getService() throws RpcException {
 			try {
-				final Context ctx = new InitialContext();
-				final Object ref = ctx.lookup(getConfiguration().getString("externalApiPath"));
-				return (ExternalAPI) PortableRemoteObject.narrow(ref, ExternalAPI.class);
+				return ServiceLocator.getInstance().getExternalAPI();
 				
 			} catch (final NamingException e) {
 				log.error("Unable to retrieve the ExternalAPI EJB", e);
@@ -291,21 +286,12 @@ public class GSSResourceFactory implements ResourceFactory {
 			}
 		}
 
+		/**
+		 * Record the bandwidth used by the specified user. It is stored in the
+		 * database in batches by the AccountingFlusher service.
+		 */
 		private void updateAccounting(final User user, final Date date, final long bandwidthDiff) {
-			try {
-				new TransactionHelper<Void>().tryExecute(new Callable<Void>() {
-					@Override
-					public Void call() throws Exception {
-						getService().updateAccounting(user, date, bandwidthDiff);
-						return null;
-					}
-				});
-			} catch (RuntimeException e) {
-				throw e;
-			} catch (Exception e) {
-				// updateAccounting() doesn't throw any checked exceptions
-				assert false;
-			}
+			BandwidthAccumulator.getInstance().add(user.getId(), date, bandwidthDiff);
 		}
 
 		
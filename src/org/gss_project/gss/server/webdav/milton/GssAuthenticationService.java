@@ -21,16 +21,14 @@ package org.gss_project.gss.server.webdav.milton;
 import static org.gss_project.gss.server.configuration.GSSConfigurationFactory.getConfiguration;
 import org.gss_project.gss.common.exceptions.RpcException;
 import org.gss_project.gss.server.ejb.ExternalAPI;
+import org.gss_project.gss.server.ejb.ServiceLocator;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
-import javax.naming.Context;
-import javax.naming.InitialContext;
 import javax.naming.NamingException;
-import javax.rmi.PortableRemoteObject;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -207,9 +205,7 @@ public class GssAuthenticationService extends com.bradmcevoy.http.Authentication
 	 */
 	protected ExternalAPI getService() throws RpcException {
 		try {
-			final Context ctx = new InitialContext();
-			final Object ref = ctx.lookup(getConfiguration().getString("externalApiPath"));
-			return (ExternalAPI) PortableRemoteObject.narrow(ref, ExternalAPI.class);
+			return ServiceLocator.getInstance().getExternalAPI();
 		} catch (final NamingException e) {
 			log.error("Unable to retrieve the ExternalAPI EJB", e);
 			throw new RpcException("An error occurred while contacting the naming service");
@@ -27,9 +27,9 @@ import org.gss_project.gss.common.exceptions.RpcException;
 import org.gss_project.gss.server.domain.FileHeader;
 import org.gss_project.gss.server.domain.Folder;
 import org.gss_project.gss.server.domain.User;
+import org.gss_project.gss.server.ejb.StoredFile;
 import org.gss_project.gss.server.ejb.TransactionHelper;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -272,9 +272,9 @@ public class GssFolderResource extends GssResource implements MakeCollectionable
 	@Override
 	public Resource createNew(final String name, InputStream in, Long length, final String contentType ) throws IOException, ConflictException, NotAuthorizedException, BadRequestException {
 		
-    	File uploadedFile = null;
+    	StoredFile uploadedFile = null;
     	try {
-			uploadedFile = getService().uploadFile(in, getCurrentUser().getId());
+			uploadedFile = getService().uploadFile(in, getCurrentUser().getId(), contentType);
 		} catch (IOException ex) {
 			throw new IOException(ex);
 		} catch (ObjectNotFoundException e) {
@@ -282,7 +282,7 @@ public class GssFolderResource extends GssResource implements MakeCollectionable
 		} catch (RpcException e) {
 			throw new RuntimeException("Unable to upload file");			
 		}
-		final File uf = uploadedFile;
+		final StoredFile uf = uploadedFile;
 		try {
 			String pathFolder = folder.getPath();
 			if(!pathFolder.endsWith("/"))
@@ -302,7 +302,7 @@ public class GssFolderResource extends GssResource implements MakeCollectionable
 				kmfile = new TransactionHelper<FileHeader>().tryExecute(new Callable<FileHeader>() {
 					@Override
 					public FileHeader call()  throws Exception{
-						return getService().updateFileContents(getCurrentUser().getId(), ((FileHeader)ff).getId(),  contentType, uf.length(), uf.getAbsolutePath());
+						return getService().updateFileContents(getCurrentUser().getId(), ((FileHeader)ff).getId(),  contentType, uf);
 					}
 				});
 			}
@@ -310,7 +310,7 @@ public class GssFolderResource extends GssResource implements MakeCollectionable
 				kmfile = new TransactionHelper<FileHeader>().tryExecute(new Callable<FileHeader>() {
 					@Override
 					public FileHeader call() throws Exception{
-						return getService().createFile(getCurrentUser().getId(), folder.getId(), name, contentType, uf.length(), uf.getAbsolutePath());
+						return getService().createFile(getCurrentUser().getId(), folder.getId(), name, contentType, uf);
 					}
 				});
 			return new GssFileResource(host, factory, kmfile, getCurrentUser());
@@ -24,15 +24,13 @@ import static org.gss_project.gss.server.configuration.GSSConfigurationFactory.g
 
 import org.gss_project.gss.server.domain.FileLock;
 import org.gss_project.gss.server.ejb.ExternalAPI;
+import org.gss_project.gss.server.ejb.ServiceLocator;
 
 
 import java.util.Date;
 import java.util.UUID;
 
-import javax.naming.Context;
-import javax.naming.InitialContext;
 import javax.naming.NamingException;
-import javax.rmi.PortableRemoteObject;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -135,9 +133,7 @@ public class GssLockManager implements LockManager {
 
     protected ExternalAPI getService() throws RuntimeException {
 		try {
-			final Context ctx = new InitialContext();
-			final Object ref = ctx.lookup(getConfiguration().getString("externalApiPath"));
-			return (ExternalAPI) PortableRemoteObject.narrow(ref, ExternalAPI.class);
+			return ServiceLocator.getInstance().getExternalAPI();
 		} catch (final NamingException e) {
 			log.error("Unable to retrieve the ExternalAPI EJB", e);
 			throw new RuntimeException("An error occurred while contacting the naming service");
@@ -22,14 +22,12 @@ import static org.gss_project.gss.server.configuration.GSSConfigurationFactory.g
 import org.gss_project.gss.common.exceptions.RpcException;
 import org.gss_project.gss.server.domain.WebDavNonce;
 import org.gss_project.gss.server.ejb.ExternalAPI;
+import org.gss_project.gss.server.ejb.ServiceLocator;
 
 import java.util.Date;
 import java.util.UUID;
 
-import javax.naming.Context;
-import javax.naming.InitialContext;
 import javax.naming.NamingException;
-import javax.rmi.PortableRemoteObject;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -143,9 +141,7 @@ public class GssNonceProvider implements NonceProvider {
 	 */
 	protected ExternalAPI getService() throws RpcException {
 		try {
-			final Context ctx = new InitialContext();
-			final Object ref = ctx.lookup(getConfiguration().getString("externalApiPath"));
-			return (ExternalAPI) PortableRemoteObject.narrow(ref, ExternalAPI.class);
+			return ServiceLocator.getInstance().getExternalAPI();
 		} catch (final NamingException e) {
 			log.error("Unable to retrieve the ExternalAPI EJB", e);
 			throw new RpcException("An error occurred while contacting the naming service");
@@ -24,6 +24,7 @@ import org.gss_project.gss.server.domain.FileHeader;
 import org.gss_project.gss.server.domain.Folder;
 import org.gss_project.gss.server.domain.User;
 import org.gss_project.gss.server.ejb.ExternalAPI;
+import org.gss_project.gss.server.ejb.ServiceLocator;
 
 import java.io.IOException;
 import java.io.OutputStream;
@@ -32,10 +33,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
-import javax.naming.Context;
-import javax.naming.InitialContext;
 import javax.naming.NamingException;
-import javax.rmi.PortableRemoteObject;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -192,9 +190,7 @@ public class GssOtherUserResource implements PropFindableResource,  GetableResou
 	 */
 	private ExternalAPI getService() throws RpcException {
 		try {
-			final Context ctx = new InitialContext();
-			final Object ref = ctx.lookup(getConfiguration().getString("externalApiPath"));
-			return (ExternalAPI) PortableRemoteObject.narrow(ref, ExternalAPI.class);
+			return ServiceLocator.getInstance().getExternalAPI();
 		} catch (final NamingException e) {
 			log.error("Unable to retrieve the ExternalAPI EJB", e);
 			throw new RpcException("An error occurred while contacting the naming service");
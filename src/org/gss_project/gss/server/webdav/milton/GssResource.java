@@ -20,14 +20,12 @@ package org.gss_project.gss.server.webdav.milton;
 
 import static org.gss_project.gss.server.configuration.GSSConfigurationFactory.getConfiguration;
 
-import javax.naming.Context;
-import javax.naming.InitialContext;
 import javax.naming.NamingException;
-import javax.rmi.PortableRemoteObject;
 
 import org.gss_project.gss.common.exceptions.RpcException;
 import org.gss_project.gss.server.domain.User;
 import org.gss_project.gss.server.ejb.ExternalAPI;
+import org.gss_project.gss.server.ejb.ServiceLocator;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -151,9 +149,7 @@ public abstract class GssResource implements Resource, MoveableResource, Copyabl
 	 */
 	protected ExternalAPI getService() throws RpcException {
 		try {
-			final Context ctx = new InitialContext();
-			final Object ref = ctx.lookup(getConfiguration().getString("externalApiPath"));
-			return (ExternalAPI) PortableRemoteObject.narrow(ref, ExternalAPI.class);
+			return ServiceLocator.getInstance().getExternalAPI();
 			
 		} catch (final NamingException e) {
 			log.error("Unable to retrieve the ExternalAPI EJB", e);
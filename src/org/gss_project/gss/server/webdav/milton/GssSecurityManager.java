@@ -22,15 +22,13 @@ import static org.gss_project.gss.server.configuration.GSSConfigurationFactory.g
 import org.gss_project.gss.common.exceptions.RpcException;
 import org.gss_project.gss.server.domain.User;
 import org.gss_project.gss.server.ejb.ExternalAPI;
+import org.gss_project.gss.server.ejb.ServiceLocator;
 import org.gss_project.gss.server.ejb.TransactionHelper;
 
 import java.io.UnsupportedEncodingException;
 import java.util.concurrent.Callable;
 
-import javax.naming.Context;
-import javax.naming.InitialContext;
 import javax.naming.NamingException;
-import javax.rmi.PortableRemoteObject;
 import javax.security.auth.login.FailedLoginException;
 
 import org.apache.commons.codec.binary.Base64;
@@ -151,9 +149,7 @@ public class GssSecurityManager  implements com.bradmcevoy.http.SecurityManager{
     
     private ExternalAPI getService() throws RpcException {
 		try {
-			final Context ctx = new InitialContext();
-			final Object ref = ctx.lookup(getConfiguration().getString("externalApiPath"));
-			return (ExternalAPI) PortableRemoteObject.narrow(ref, ExternalAPI.class);
+			return ServiceLocator.getInstance().getExternalAPI();
 		} catch (final NamingException e) {
 			log.error("Unable to retrieve the ExternalAPI EJB", e);
 			throw new RpcException("An error occurred while contacting the naming service");
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.mbeans;
+
+import org.gss_project.gss.server.domain.PendingDeletion;
+import org.gss_project.gss.server.ejb.ExternalAPI;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the batching of the deletion journal processing.
+ *
+ * @author past
+ */
+public class BlobReaperTest extends TestCase {
+
+	/**
+	 * A deletion journal that fails to remove some of its files, selecting
+	 * entries the way the service does.
+	 */
+	private static class Journal implements InvocationHandler {
+		final List<PendingDeletion> entries = new ArrayList<PendingDeletion>();
+
+		final Set<String> failing = new HashSet<String>();
+
+		final Date now = new Date();
+
+		int batches;
+
+		Journal(int size) {
+			for (int i = 0; i < size; i++) {
+				PendingDeletion deletion = new PendingDeletion();
+				deletion.setStoredFilePath("file" + i);
+				entries.add(deletion);
+			}
+		}
+
+		ExternalAPI service() {
+			return (ExternalAPI) Proxy.newProxyInstance(getClass().getClassLoader(),
+						new Class[] {ExternalAPI.class}, this);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			if (!method.getName().equals("reapDeletedFiles"))
+				throw new UnsupportedOperationException(method.getName());
+			batches++;
+			int max = (Integer) args[0];
+			int selected = 0;
+			int reaped = 0;
+			for (Iterator<PendingDeletion> it = entries.iterator(); it.hasNext() && selected < max;) {
+				PendingDeletion deletion = it.next();
+				if (deletion.getNextAttempt() != null && deletion.getNextAttempt().after(now))
+					continue;
+				selected++;
+				if (failing.contains(deletion.getStoredFilePath()))
+					deletion.recordFailedAttempt(now, 60000);
+				else {
+					it.remove();
+					reaped++;
+				}
+			}
+			return reaped;
+		}
+	}
+
+	public void testDrainsFullBatches() throws InterruptedException {
+		Journal journal = new Journal(10);
+		assertEquals(10, new BlobReaper().reap(journal.service(), 3, 0));
+		assertTrue(journal.entries.isEmpty());
+		// Four batches with entries and a final empty one.
+		assertEquals(5, journal.batches);
+	}
+
+	public void testFailuresDoNotBlockLaterEntries() throws InterruptedException {
+		Journal journal = new Journal(10);
+		journal.failing.add("file0");
+		journal.failing.add("file1");
+		assertEquals(8, new BlobReaper().reap(journal.service(), 3, 0));
+		assertEquals(2, journal.entries.size());
+		for (PendingDeletion deletion : journal.entries) {
+			assertEquals(1, deletion.getAttempts());
+			assertTrue(deletion.getNextAttempt().after(journal.now));
+		}
+	}
+
+	public void testStopsWhenNothingCompletes() throws InterruptedException {
+		Journal journal = new Journal(3);
+		for (PendingDeletion deletion : journal.entries)
+			journal.failing.add(deletion.getStoredFilePath());
+		assertEquals(0, new BlobReaper().reap(journal.service(), 3, 0));
+		assertEquals(1, journal.batches);
+	}
+
+	public void testEmptyJournal() throws InterruptedException {
+		Journal journal = new Journal(0);
+		assertEquals(0, new BlobReaper().reap(journal.service(), 100, 0));
+		assertEquals(1, journal.batches);
+	}
+
+	public void testRetryDelayDoubles() {
+		PendingDeletion deletion = new PendingDeletion();
+		Date now = new Date();
+		deletion.recordFailedAttempt(now, 1000);
+		assertEquals(now.getTime() + 1000, deletion.getNextAttempt().getTime());
+		deletion.recordFailedAttempt(now, 1000);
+		assertEquals(now.getTime() + 2000, deletion.getNextAttempt().getTime());
+		deletion.recordFailedAttempt(now, 1000);
+		assertEquals(now.getTime() + 4000, deletion.getNextAttempt().getTime());
+		assertEquals(3, deletion.getAttempts());
+	}
+}
@@ -25,11 +25,14 @@ import org.gss_project.gss.common.exceptions.ObjectNotFoundException;
 import org.gss_project.gss.server.domain.FileHeader;
 import org.gss_project.gss.server.domain.Folder;
 import org.gss_project.gss.server.domain.Group;
+import org.gss_project.gss.server.domain.Permission;
 import org.gss_project.gss.server.domain.User;
 
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
@@ -651,6 +654,67 @@ public class ExternalAPITest extends TestCase {
 		}
 	}
 
+	/**
+	 * Retrieve the user with the specified username, creating it if it does
+	 * not exist.
+	 */
+	private User getTestUser(final ExternalAPIRemote service, final String username) throws Exception {
+		final User user = service.findUser(username);
+		if (user != null)
+			return user;
+		return service.createUser(username, username, username + "@example.com", null, null, null);
+	}
+
+	/**
+	 * Tests
+	 * {@link org.gss_project.gss.server.ejb.ExternalAPIBean#moveFolder(Long, Long, Long, String)}
+	 * to the namespace of another user, that already has a folder at the old
+	 * path of the moved folder. Fails if the recorded paths of the moved tree
+	 * are not updated or the paths of the other folder are changed.
+	 */
+	public final void testMoveFolderToOtherOwner() {
+		try {
+			final String name = "junitMovedFolder";
+			final ExternalAPIRemote service = getService();
+			final User source = getTestUser(service, "junitMoveSource");
+			final User target = getTestUser(service, "junitMoveTarget");
+			final Folder moved = service.createFolder(source.getId(), service.getRootFolder(source.getId()).getId(), name);
+			final Folder movedChild = service.createFolder(source.getId(), moved.getId(), "child");
+			final Folder existing = service.createFolder(target.getId(), service.getRootFolder(target.getId()).getId(), name);
+			final Folder existingChild = service.createFolder(target.getId(), existing.getId(), "child");
+			final Folder destination = service.createFolder(target.getId(), service.getRootFolder(target.getId()).getId(), "junitMoveDestination");
+			try {
+				final Set<Permission> perms = new HashSet<Permission>(service.getFolderPermissions(target.getId(), destination.getId()));
+				final Permission perm = new Permission();
+				perm.setUser(source);
+				perm.setRead(true);
+				perm.setWrite(true);
+				perms.add(perm);
+				service.updateFolder(target.getId(), destination.getId(), null, null, perms);
+				service.moveFolder(source.getId(), moved.getId(), destination.getId(), name);
+
+				final String movedPath = "/junitMoveDestination/" + name + "/";
+				Assert.assertEquals(movedPath, service.getFolder(target.getId(), moved.getId()).getTreePath());
+				Assert.assertEquals(movedPath + "child/", service.getFolder(target.getId(), movedChild.getId()).getTreePath());
+				Assert.assertEquals("/" + name + "/", service.getFolder(target.getId(), existing.getId()).getTreePath());
+				Assert.assertEquals("/" + name + "/child/", service.getFolder(target.getId(), existingChild.getId()).getTreePath());
+				Assert.assertEquals(existingChild.getId(), ((Folder) service.getResourceAtPath(target.getId(), "/" + name + "/child", true)).getId());
+				Assert.assertEquals(movedChild.getId(), ((Folder) service.getResourceAtPath(target.getId(), movedPath + "child", true)).getId());
+			} finally {
+				service.deleteFolder(target.getId(), destination.getId());
+				service.deleteFolder(target.getId(), existing.getId());
+				try {
+					service.deleteFolder(source.getId(), moved.getId());
+				} catch (final ObjectNotFoundException e) {
+					// It was moved and deleted with the destination.
+				}
+			}
+		} catch (final Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+
 	/**
 	 * Tests {@link ExternalAPIBean#getUser(Long)} with normal parameters
 	 */
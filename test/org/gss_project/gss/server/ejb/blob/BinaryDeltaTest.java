@@ -0,0 +1,148 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.server.ejb.blob;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the binary delta codec.
+ *
+ * @author past
+ */
+public class BinaryDeltaTest extends TestCase {
+
+	/**
+	 * A store that remembers the location of the last contents put in it.
+	 */
+	private static class RecordingBlobStore extends MemoryBlobStore {
+		String lastLocation;
+
+		@Override
+		public String put(InputStream stream) throws IOException {
+			lastLocation = super.put(stream);
+			return lastLocation;
+		}
+	}
+
+	private final RecordingBlobStore store = new RecordingBlobStore();
+
+	/**
+	 * Return random contents of the specified length.
+	 */
+	private static byte[] random(int length, long seed) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	/**
+	 * Return the specified contents with the specified data inserted at the
+	 * specified offset.
+	 */
+	private static byte[] insert(byte[] data, int offset, byte[] inserted) {
+		byte[] result = new byte[data.length + inserted.length];
+		System.arraycopy(data, 0, result, 0, offset);
+		System.arraycopy(inserted, 0, result, offset, inserted.length);
+		System.arraycopy(data, offset, result, offset + inserted.length, data.length - offset);
+		return result;
+	}
+
+	private String storeDelta(byte[] base, byte[] target, long maxSize) throws IOException {
+		return BinaryDelta.store(store, new ByteArrayInputStream(base), new ByteArrayInputStream(target), maxSize);
+	}
+
+	private byte[] apply(String delta, byte[] base, boolean temporary) throws IOException {
+		String baseLocation = store.put(new ByteArrayInputStream(base));
+		return readAll(BinaryDelta.open(store, delta, baseLocation, temporary));
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[1000];
+		int n;
+		while ((n = in.read(buf)) != -1)
+			out.write(buf, 0, n);
+		in.close();
+		return out.toByteArray();
+	}
+
+	public void testRoundTripOfEditedContents() throws IOException {
+		byte[] base = random(300000, 1);
+		byte[] target = insert(base, 123457, "An unaligned insertion".getBytes());
+		System.arraycopy(random(100, 2), 0, target, 250000, 100);
+		String delta = storeDelta(base, target, Long.MAX_VALUE);
+		assertNotNull(delta);
+		assertTrue(store.size(delta) < target.length / 10);
+		assertTrue(Arrays.equals(target, apply(delta, base, false)));
+	}
+
+	public void testRoundTripOfIdenticalContents() throws IOException {
+		byte[] base = random(100000, 3);
+		String delta = storeDelta(base, base.clone(), Long.MAX_VALUE);
+		assertTrue(store.size(delta) < base.length / 10);
+		assertTrue(Arrays.equals(base, apply(delta, base, false)));
+	}
+
+	public void testRoundTripOfUnrelatedContents() throws IOException {
+		byte[] base = random(50000, 4);
+		byte[] target = random(70000, 5);
+		String delta = storeDelta(base, target, Long.MAX_VALUE);
+		assertTrue(Arrays.equals(target, apply(delta, base, false)));
+	}
+
+	public void testRoundTripOfShortContents() throws IOException {
+		byte[] base = random(1000, 6);
+		byte[] target = insert(base, 500, new byte[] {1, 2, 3});
+		String delta = storeDelta(base, target, Long.MAX_VALUE);
+		assertTrue(Arrays.equals(target, apply(delta, base, false)));
+		delta = storeDelta(base, new byte[0], Long.MAX_VALUE);
+		assertEquals(0, apply(delta, base, false).length);
+	}
+
+	public void testLargeDeltaAbandoned() throws IOException {
+		byte[] base = random(50000, 7);
+		byte[] target = random(3 * 1024 * 1024, 8);
+		assertNull(storeDelta(base, target, 1024 * 1024));
+		assertFalse(store.exists(store.lastLocation));
+	}
+
+	public void testTemporaryBaseRemovedOnClose() throws IOException {
+		byte[] base = random(20000, 9);
+		String delta = storeDelta(base, insert(base, 10000, new byte[] {42}), Long.MAX_VALUE);
+		apply(delta, base, true);
+		assertFalse(store.exists(store.lastLocation));
+	}
+
+	public void testInvalidDeltaRejected() throws IOException {
+		String location = store.put(new ByteArrayInputStream(random(5000, 10)));
+		try {
+			BinaryDelta.open(store, location, location, false);
+			fail("Invalid delta was accepted");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+}
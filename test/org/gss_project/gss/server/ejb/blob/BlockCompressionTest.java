@@ -0,0 +1,155 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.server.ejb.blob;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the block-indexed compression codec.
+ *
+ * @author past
+ */
+public class BlockCompressionTest extends TestCase {
+
+	private final BlobStore store = new MemoryBlobStore();
+
+	/**
+	 * Return compressible contents of the specified length.
+	 */
+	private static byte[] text(int length) {
+		byte[] data = new byte[length];
+		byte[] line = "The quick brown fox jumps over the lazy dog 0123456789\n".getBytes();
+		for (int i = 0; i < length; i++)
+			data[i] = (byte) (line[i % line.length] + i / line.length % 3);
+		return data;
+	}
+
+	/**
+	 * Return incompressible contents of the specified length.
+	 */
+	private static byte[] random(int length) {
+		byte[] data = new byte[length];
+		new Random(42).nextBytes(data);
+		return data;
+	}
+
+	private String store(byte[] data) throws IOException {
+		InputStream in = BlockCompression.compress(new ByteArrayInputStream(data));
+		try {
+			return store.put(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[1000];
+		int n;
+		while ((n = in.read(buf)) != -1)
+			out.write(buf, 0, n);
+		in.close();
+		return out.toByteArray();
+	}
+
+	public void testRoundTripAcrossBlocks() throws IOException {
+		byte[] data = text(3 * BlockCompression.BLOCK_SIZE + 1234);
+		String location = store(data);
+		assertTrue(store.size(location) < data.length);
+		assertEquals(data.length, BlockCompression.size(store, location));
+		assertTrue(Arrays.equals(data, readAll(BlockCompression.decompress(store, location))));
+	}
+
+	public void testRoundTripOfWholeBlocks() throws IOException {
+		byte[] data = text(2 * BlockCompression.BLOCK_SIZE);
+		String location = store(data);
+		assertEquals(data.length, BlockCompression.size(store, location));
+		assertTrue(Arrays.equals(data, readAll(BlockCompression.decompress(store, location))));
+	}
+
+	public void testRoundTripOfEmptyContents() throws IOException {
+		String location = store(new byte[0]);
+		assertEquals(0, BlockCompression.size(store, location));
+		assertEquals(0, readAll(BlockCompression.decompress(store, location)).length);
+	}
+
+	public void testSkipToLaterBlock() throws IOException {
+		byte[] data = text(3 * BlockCompression.BLOCK_SIZE);
+		String location = store(data);
+		InputStream in = BlockCompression.decompress(store, location);
+		long offset = 2L * BlockCompression.BLOCK_SIZE + 100;
+		assertEquals(offset, in.skip(offset));
+		byte[] expected = new byte[data.length - (int) offset];
+		System.arraycopy(data, (int) offset, expected, 0, expected.length);
+		assertTrue(Arrays.equals(expected, readAll(in)));
+	}
+
+	public void testSkipWithinOpenBlock() throws IOException {
+		byte[] data = text(BlockCompression.BLOCK_SIZE + 500);
+		String location = store(data);
+		InputStream in = BlockCompression.decompress(store, location);
+		assertEquals(data[0], (byte) in.read());
+		assertEquals(99, in.skip(99));
+		assertEquals(data[100], (byte) in.read());
+		assertEquals(data.length - 101, in.skip(Long.MAX_VALUE / 2));
+		assertEquals(-1, in.read());
+		in.close();
+	}
+
+	public void testCompressibleContents() throws IOException {
+		byte[] data = text(100000);
+		InputStream in = new BufferedInputStream(new ByteArrayInputStream(data), BlockCompression.BLOCK_SIZE);
+		assertTrue(BlockCompression.isCompressible(in, 4096, 1.5));
+		// The sample is read again when storing.
+		assertTrue(Arrays.equals(data, readAll(in)));
+	}
+
+	public void testIncompressibleContents() throws IOException {
+		InputStream in = new BufferedInputStream(new ByteArrayInputStream(random(100000)), BlockCompression.BLOCK_SIZE);
+		assertFalse(BlockCompression.isCompressible(in, 4096, 1.5));
+	}
+
+	public void testContentsBelowMinimumSize() throws IOException {
+		InputStream in = new BufferedInputStream(new ByteArrayInputStream(text(1000)), BlockCompression.BLOCK_SIZE);
+		assertFalse(BlockCompression.isCompressible(in, 4096, 1.5));
+	}
+
+	public void testMinimumSizeCappedAtBlockSize() throws IOException {
+		InputStream in = new BufferedInputStream(new ByteArrayInputStream(text(100000)), BlockCompression.BLOCK_SIZE);
+		assertTrue(BlockCompression.isCompressible(in, 1024 * 1024, 1.5));
+	}
+
+	public void testUncompressedContentsRejected() throws IOException {
+		String location = store.put(new ByteArrayInputStream(text(5000)));
+		try {
+			BlockCompression.decompress(store, location);
+			fail("Uncompressed contents were accepted");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+}
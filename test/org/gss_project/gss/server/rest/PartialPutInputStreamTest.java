@@ -0,0 +1,101 @@
+/*
+ * Copyright 2011 Electronic Business Systems Ltd.
+ *
+ * This file is part of GSS.
+ *
+ * GSS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gss_project.gss.server.rest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the overlaying of partial PUT contents on existing ones.
+ *
+ * @author past
+ */
+public class PartialPutInputStreamTest extends TestCase {
+
+	/**
+	 * A stream that returns at most one byte per read and never skips, like
+	 * a decompressing stream with little input available.
+	 */
+	private static class TrickleInputStream extends FilterInputStream {
+		TrickleInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return super.read(b, off, Math.min(len, 1));
+		}
+
+		@Override
+		public long skip(long n) {
+			return 0;
+		}
+	}
+
+	private static InputStream bytes(String s) {
+		return new ByteArrayInputStream(s.getBytes());
+	}
+
+	private static String readAll(InputStream in, int bufferSize) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[bufferSize];
+		int n;
+		while ((n = in.read(buf)) != -1)
+			out.write(buf, 0, n);
+		in.close();
+		return out.toString();
+	}
+
+	public void testOverlayInTheMiddle() throws IOException {
+		InputStream in = new PartialPutInputStream(bytes("abcdefghij"), bytes("XY"), 3, 10);
+		assertEquals("abcXYfghij", readAll(in, 4));
+	}
+
+	public void testOldContentsWithShortReads() throws IOException {
+		InputStream old = new TrickleInputStream(bytes("abcdefghij"));
+		InputStream in = new PartialPutInputStream(old, new TrickleInputStream(bytes("XY")), 3, 10);
+		assertEquals("abcXYfghij", readAll(in, 64));
+	}
+
+	public void testPaddingPastTheOldContents() throws IOException {
+		InputStream old = new TrickleInputStream(bytes("abc"));
+		InputStream in = new PartialPutInputStream(old, bytes("X"), 5, 8);
+		assertEquals("abc\0\0X\0\0", readAll(in, 64));
+	}
+
+	public void testTruncation() throws IOException {
+		InputStream in = new PartialPutInputStream(bytes("abcdef"), bytes("X"), 0, 3);
+		assertEquals("Xbc", readAll(in, 64));
+	}
+
+	public void testDataBeyondTheLength() throws IOException {
+		InputStream in = new PartialPutInputStream(bytes("ab"), bytes("XYZ"), 1, 2);
+		assertEquals("aXYZ", readAll(in, 64));
+	}
+
+	public void testNoOldContents() throws IOException {
+		InputStream in = new PartialPutInputStream(null, bytes("XY"), 2, 5);
+		assertEquals("\0\0XY\0", readAll(in, 64));
+	}
+}